@@ -0,0 +1,90 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.InstantiationStrategy;
+
+import java.text.Normalizer;
+import java.util.regex.Pattern;
+
+/**
+ * Normalizes the authors of the blame information: lower case, without accents, and with other non-ASCII characters
+ * replaced by underscores.
+ * <p/>
+ * Authors already normalized are returned as is. Others are normalized once and kept in a bounded cache, as a
+ * repository usually has a few hundred authors for millions of lines. Thread-safe, shared by all the modules.
+ */
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
+public class AuthorNormalizer implements BatchExtension {
+  private static final Pattern NON_ASCII_CHARS = Pattern.compile("[^\\x00-\\x7F]");
+  private static final Pattern ACCENT_CODES = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+  private static final int MAX_CACHED_AUTHORS = 10000;
+
+  private final Cache<String, String> cache = CacheBuilder.newBuilder()
+    .maximumSize(MAX_CACHED_AUTHORS)
+    .build(new CacheLoader<String, String>() {
+      @Override
+      public String load(String author) {
+        return normalize(author);
+      }
+    });
+
+  public String normalizeAuthor(String author) {
+    if (isNormalized(author)) {
+      return author;
+    }
+    return cache.getUnchecked(author);
+  }
+
+  /**
+   * @return true if the author is only made of ASCII characters other than upper case letters
+   */
+  @VisibleForTesting
+  static boolean isNormalized(String author) {
+    for (int i = 0; i < author.length(); i++) {
+      char c = author.charAt(i);
+      if (c > 0x7F || (c >= 'A' && c <= 'Z')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @VisibleForTesting
+  static String normalize(String inputString) {
+    String lowerCasedString = inputString.toLowerCase();
+    String stringWithoutAccents = removeAccents(lowerCasedString);
+    return removeNonAsciiCharacters(stringWithoutAccents);
+  }
+
+  private static String removeAccents(String inputString) {
+    String unicodeDecomposedString = Normalizer.normalize(inputString, Normalizer.Form.NFD);
+    return ACCENT_CODES.matcher(unicodeDecomposedString).replaceAll("");
+  }
+
+  private static String removeNonAsciiCharacters(String inputString) {
+    return NON_ASCII_CHARS.matcher(inputString).replaceAll("_");
+  }
+}
@@ -19,70 +19,367 @@
  */
 package org.sonar.plugins.scmactivity;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.apache.maven.scm.ScmException;
 import org.apache.maven.scm.command.blame.BlameLine;
 import org.apache.maven.scm.command.blame.BlameScmResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.measures.CoreMetrics;
+import org.sonar.api.measures.Measure;
 import org.sonar.api.measures.Metric;
-import org.sonar.api.measures.PropertiesBuilder;
 import org.sonar.api.resources.Resource;
 import org.sonar.api.utils.DateUtils;
+import org.sonar.api.utils.KeyValueFormat;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 
 import java.io.File;
-import java.text.Normalizer;
-import java.util.regex.Pattern;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public class Blame implements BatchExtension {
   private static final Logger LOG = LoggerFactory.getLogger(Blame.class);
-  private static final Pattern NON_ASCII_CHARS = Pattern.compile("[^\\x00-\\x7F]");
-  private static final Pattern ACCENT_CODES = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+  /**
+   * Maximum number of files of a directory blamed with a single command, see {@link ScmFacade#blame(File, List)}
+   */
+  public static final int MAX_BATCH_SIZE = 50;
 
   private final ScmFacade scmFacade;
+  private final BlameCache blameCache;
+  private final AuthorNormalizer authorNormalizer;
+  private final ProjectBlamePrefetch projectPrefetch;
+  private final BlameDurations durations;
+  private final Map<File, List<BlameLine>> prefetched = Maps.newConcurrentMap();
+  private final Map<File, PreviousBlame> previousBlames = Maps.newConcurrentMap();
+  private final Map<File, FutureTask<List<BlameLine>>> warmUps = Maps.newConcurrentMap();
+  private final Queue<FutureTask<List<BlameLine>>> notStartedWarmUps = new ConcurrentLinkedQueue<FutureTask<List<BlameLine>>>();
+  private final Map<File, FutureTask<Void>> batches = Maps.newConcurrentMap();
+  private volatile FutureTask<Void> singlePass;
+  private volatile boolean singlePassTimedOut;
+  private Executor warmUpExecutor;
 
-  public Blame(ScmFacade scmFacade) {
+  public Blame(ScmFacade scmFacade, BlameCache blameCache, AuthorNormalizer authorNormalizer, ProjectBlamePrefetch projectPrefetch,
+    BlameDurations durations) {
     this.scmFacade = scmFacade;
+    this.blameCache = blameCache;
+    this.authorNormalizer = authorNormalizer;
+    this.projectPrefetch = projectPrefetch;
+    this.durations = durations;
+  }
+
+  /**
+   * Starts the blame of the files of all the modules, during the analysis of the first module.
+   *
+   * @param moduleBaseDir base directory of the module being analysed
+   * @param previousRevision revision of the previous analysis, null if unknown
+   * @param maxPending maximum number of files blamed ahead of their module
+   */
+  public void prefetchAllModules(File moduleBaseDir, ScmChanges scmChanges, @Nullable String previousRevision, Executor executor, int maxPending) {
+    if (scmFacade.isSinglePassBlameEnabled()) {
+      // Already blames all the files of a module at once
+      return;
+    }
+    // Timeouts are reported by the module which takes the blame
+    projectPrefetch.start(moduleBaseDir, scmFacade.withUnreportedTimeouts(), scmChanges, blameCache, previousRevision, executor, maxPending);
+  }
+
+  /**
+   * Blames in a single pass the files which are going to be saved, when the SCM supports it.
+   */
+  public void prefetch(Collection<File> files) {
+    if (!scmFacade.isSinglePassBlameEnabled()) {
+      return;
+    }
+    List<File> notCached = Lists.newArrayList();
+    for (File file : files) {
+      List<BlameLine> lines = blameCache.get(file);
+      if (lines == null) {
+        notCached.add(file);
+      } else {
+        prefetched.put(file, lines);
+      }
+    }
+    if (notCached.isEmpty()) {
+      return;
+    }
+
+    LOG.info("Retrieve SCM info for {} file(s) in a single pass", notCached.size());
+    try {
+      for (Map.Entry<File, List<BlameLine>> entry : scmFacade.blame(notCached).entrySet()) {
+        blameCache.put(entry.getKey(), entry.getValue());
+        prefetched.put(entry.getKey(), entry.getValue());
+      }
+    } catch (BlameTimeouts.BlameTimeoutException e) {
+      // Reported once by BlameTimeouts, the files keep their previous SCM info
+      LOG.debug(e.getMessage());
+      singlePassTimedOut = true;
+    } catch (BlameCircuitBreaker.CircuitOpenException e) {
+      LOG.debug(e.getMessage());
+    } catch (ScmException e) {
+      LOG.warn("Fail to retrieve SCM info in a single pass, files will be blamed one by one", e);
+    }
+  }
+
+  /**
+   * Starts in background the blame of the files which are going to be saved, so that it overlaps with the other
+   * sensors. At most {@code maxPending} files are blamed ahead of {@link #save}, which bounds the memory used by the
+   * blame waiting to be saved. Must be called from the main thread, after {@link #setPreviousBlame}.
+   */
+  public void warmUp(List<InputFile> files, Executor executor, int maxPending) {
+    warmUpExecutor = executor;
+    if (scmFacade.isSinglePassBlameEnabled()) {
+      final List<File> toPrefetch = Lists.newArrayList();
+      for (InputFile inputFile : files) {
+        toPrefetch.add(inputFile.file());
+      }
+      singlePass = new FutureTask<Void>(new Runnable() {
+        public void run() {
+          prefetch(toPrefetch);
+        }
+      }, null);
+      executor.execute(singlePass);
+    }
+
+    Set<File> blamedWithOthers = scmFacade.isBatchBlameEnabled() ? batch(files) : Collections.<File>emptySet();
+
+    for (final InputFile inputFile : files) {
+      FutureTask<List<BlameLine>> task = new FutureTask<List<BlameLine>>(new Callable<List<BlameLine>>() {
+        public List<BlameLine> call() {
+          return lines(inputFile.file(), inputFile.lines());
+        }
+      });
+      warmUps.put(inputFile.file(), task);
+      if (!blamedWithOthers.contains(inputFile.file())) {
+        notStartedWarmUps.add(task);
+      }
+    }
+    for (int i = 0; i < maxPending; i++) {
+      startNextWarmUp();
+    }
+  }
+
+  /**
+   * Groups the files by directory, so that they are blamed by the warm-up of the first file of their group.
+   *
+   * @return the files whose warm-up does not need to be started
+   */
+  private Set<File> batch(List<InputFile> files) {
+    Map<File, List<File>> byDirectory = Maps.newLinkedHashMap();
+    for (InputFile inputFile : files) {
+      File file = inputFile.file();
+      File dir = file.getParentFile();
+      // Incremental or prefetched blames are retrieved file by file
+      if (dir == null || previousBlames.containsKey(file) || projectPrefetch.isScheduled(file)) {
+        continue;
+      }
+      List<File> group = byDirectory.get(dir);
+      if (group == null) {
+        group = Lists.newArrayList();
+        byDirectory.put(dir, group);
+      }
+      group.add(file);
+    }
+
+    Set<File> blamedWithOthers = Sets.newHashSet();
+    for (Map.Entry<File, List<File>> entry : byDirectory.entrySet()) {
+      final File dir = entry.getKey();
+      if (entry.getValue().size() < 2) {
+        continue;
+      }
+      for (final List<File> chunk : Lists.partition(entry.getValue(), MAX_BATCH_SIZE)) {
+        FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+          public void run() {
+            prefetchBatch(dir, chunk);
+          }
+        }, null);
+        for (File file : chunk) {
+          batches.put(file, task);
+        }
+        blamedWithOthers.addAll(chunk.subList(1, chunk.size()));
+      }
+    }
+    return blamedWithOthers;
+  }
+
+  /**
+   * Blames with a single command the files of a directory which are not cached yet.
+   */
+  private void prefetchBatch(File dir, List<File> files) {
+    List<File> notCached = Lists.newArrayList();
+    for (File file : files) {
+      List<BlameLine> lines = blameCache.get(file);
+      if (lines == null) {
+        notCached.add(file);
+      } else {
+        prefetched.put(file, lines);
+      }
+    }
+    if (notCached.isEmpty()) {
+      return;
+    }
+
+    LOG.info("Retrieve SCM info for {} file(s) of {}", notCached.size(), dir);
+    try {
+      for (Map.Entry<File, List<BlameLine>> entry : scmFacade.blame(dir, notCached).entrySet()) {
+        blameCache.put(entry.getKey(), entry.getValue());
+        prefetched.put(entry.getKey(), entry.getValue());
+      }
+    } catch (BlameTimeouts.BlameTimeoutException e) {
+      LOG.debug(e.getMessage());
+    } catch (BlameCircuitBreaker.CircuitOpenException e) {
+      LOG.debug(e.getMessage());
+    } catch (ScmException e) {
+      LOG.warn(String.format("Fail to retrieve SCM info of the files of: %s, they will be blamed one by one", dir), e);
+    }
+  }
+
+  private void startNextWarmUp() {
+    FutureTask<List<BlameLine>> task = notStartedWarmUps.poll();
+    // Skip the files already blamed by save()
+    while (task != null && task.isDone()) {
+      task = notStartedWarmUps.poll();
+    }
+    if (task != null) {
+      warmUpExecutor.execute(task);
+    }
+  }
+
+  /**
+   * @return true if the files whose previous blame is known are blamed incrementally
+   */
+  public boolean isIncrementalEnabled() {
+    return scmFacade.isIncrementalBlameEnabled();
+  }
+
+  /**
+   * Provides the measures of the previous analysis of a file, so that only the lines changed since the given revision
+   * are blamed when the file is saved.
+   */
+  public void setPreviousBlame(File file, String revision, List<Measure> measures) {
+    if (!measures.isEmpty()) {
+      previousBlames.put(file, new PreviousBlame(revision, measures));
+    }
   }
 
   public MeasureUpdate save(File file, Resource resource, int lineCount) {
-    BlameScmResult result = retrieveBlame(file);
-    if (result == null) {
+    List<BlameLine> lines;
+    FutureTask<List<BlameLine>> warmUp = warmUps.remove(file);
+    if (warmUp == null) {
+      lines = lines(file, lineCount);
+    } else {
+      startNextWarmUp();
+      // Blamed right now if not started yet
+      warmUp.run();
+      lines = await(warmUp);
+    }
+    if (lines == null) {
       return new CopyPreviousMeasures(resource);
     }
 
-    PropertiesBuilder<Integer, String> authors = propertiesBuilder(CoreMetrics.SCM_AUTHORS_BY_LINE);
-    PropertiesBuilder<Integer, String> dates = propertiesBuilder(CoreMetrics.SCM_LAST_COMMIT_DATETIMES_BY_LINE);
-    PropertiesBuilder<Integer, String> revisions = propertiesBuilder(CoreMetrics.SCM_REVISIONS_BY_LINE);
+    return BlameEncoder.encode(resource, lines, lineCount, authorNormalizer);
+  }
 
-    int lineNumber = 1;
-    for (BlameLine line : result.getLines()) {
-      authors.add(lineNumber, normalizeString(line.getAuthor()));
-      dates.add(lineNumber, DateUtils.formatDateTime(line.getDate()));
-      revisions.add(lineNumber, line.getRevision());
+  /**
+   * @return null if the file could not be blamed
+   */
+  @CheckForNull
+  private List<BlameLine> lines(File file, int lineCount) {
+    FutureTask<Void> pass = singlePass;
+    if (pass != null) {
+      pass.run();
+      await(pass);
+    }
+    // Files missing from the result of their batch are blamed one by one
+    FutureTask<Void> batch = batches.remove(file);
+    if (batch != null) {
+      batch.run();
+      await(batch);
+    }
+    PreviousBlame previousBlame = previousBlames.remove(file);
+    List<BlameLine> lines = prefetched.remove(file);
+    // Blamed with the files of all the modules, see prefetchAllModules()
+    boolean scheduled = lines == null && projectPrefetch.isScheduled(file);
+    if (lines == null && !scheduled) {
+      lines = blameCache.get(file);
+    }
+    if (lines != null) {
+      return lines;
+    }
+    if (singlePassTimedOut) {
+      return null;
+    }
 
-      lineNumber++;
-      // SONARPLUGINS-3097 For some SCM blame is missing on last empty line
-      if (lineNumber > result.getLines().size() && lineNumber == lineCount) {
-        authors.add(lineNumber, normalizeString(line.getAuthor()));
-        dates.add(lineNumber, DateUtils.formatDateTime(line.getDate()));
-        revisions.add(lineNumber, line.getRevision());
+    try {
+      if (previousBlame != null && !scheduled) {
+        lines = reblame(file, previousBlame, lineCount);
+        if (lines != null) {
+          blameCache.put(file, lines);
+        }
       }
+      if (lines == null) {
+        lines = retrieveBlame(file);
+      }
+    } catch (BlameTimeouts.BlameTimeoutException e) {
+      // Reported once by BlameTimeouts
+      LOG.debug(e.getMessage());
+      return null;
+    } catch (BlameCircuitBreaker.CircuitOpenException e) {
+      // Reported once by BlameCircuitBreaker
+      LOG.debug(e.getMessage());
+      return null;
     }
-
-    return new SaveNewMeasures(resource, authors.build(), dates.build(), revisions.build());
+    return lines;
   }
 
-  private BlameScmResult retrieveBlame(File file) {
-    LOG.info("Retrieve SCM info for {}", file);
+  private static <T> T await(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for SCM blame results", e);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
 
+  @CheckForNull
+  private List<BlameLine> retrieveBlame(File file) throws BlameTimeouts.BlameTimeoutException, BlameCircuitBreaker.CircuitOpenException {
     try {
-      BlameScmResult result = scmFacade.blame(file);
+      List<BlameLine> lines = projectPrefetch.take(file, scmFacade);
+      if (lines != null) {
+        return lines;
+      }
+
+      LOG.info("Retrieve SCM info for {}", file);
+      BlameScmResult result = blameAndRecordDuration(file);
       if (result.isSuccess()) {
-        return result;
+        blameCache.put(file, result.getLines());
+        return result.getLines();
       }
       LOG.warn(String.format("Fail to retrieve SCM info of: %s. Reason: %s%n%s", file, result.getProviderMessage(), result.getCommandOutput()));
+    } catch (BlameTimeouts.BlameTimeoutException e) {
+      throw e;
+    } catch (BlameCircuitBreaker.CircuitOpenException e) {
+      throw e;
     } catch (ScmException e) {
       // See SONARPLUGINS-368. Can occur on generated source
       LOG.warn(String.format("Fail to retrieve SCM info of: %s", file), e);
@@ -91,22 +388,109 @@ public class Blame implements BatchExtension {
     return null;
   }
 
-  private static PropertiesBuilder<Integer, String> propertiesBuilder(Metric metric) {
-    return new PropertiesBuilder<Integer, String>(metric);
+  /**
+   * Records the duration of the SCM command only, not of the wait for a thread or for the prefetch of other modules.
+   * Blames stopped by the circuit breaker did not run and are not recorded.
+   */
+  private BlameScmResult blameAndRecordDuration(File file) throws ScmException {
+    long start = System.currentTimeMillis();
+    try {
+      BlameScmResult result = scmFacade.blame(file);
+      durations.record(file, System.currentTimeMillis() - start);
+      return result;
+    } catch (BlameCircuitBreaker.CircuitOpenException e) {
+      throw e;
+    } catch (ScmException e) {
+      durations.record(file, System.currentTimeMillis() - start);
+      throw e;
+    }
   }
 
-  private String normalizeString(String inputString) {
-    String lowerCasedString = inputString.toLowerCase();
-    String stringWithoutAccents = removeAccents(lowerCasedString);
-    return removeNonAsciiCharacters(stringWithoutAccents);
+  @CheckForNull
+  private List<BlameLine> reblameAndRecordDuration(File file, String revision, List<BlameLine> previous) throws ScmException {
+    long start = System.currentTimeMillis();
+    try {
+      List<BlameLine> lines = scmFacade.reblame(file, revision, previous);
+      durations.record(file, System.currentTimeMillis() - start);
+      return lines;
+    } catch (BlameCircuitBreaker.CircuitOpenException e) {
+      throw e;
+    } catch (ScmException e) {
+      durations.record(file, System.currentTimeMillis() - start);
+      throw e;
+    }
   }
 
-  private String removeAccents(String inputString) {
-    String unicodeDecomposedString = Normalizer.normalize(inputString, Normalizer.Form.NFD);
-    return ACCENT_CODES.matcher(unicodeDecomposedString).replaceAll("");
+  @CheckForNull
+  private List<BlameLine> reblame(File file, PreviousBlame previousBlame, int lineCount)
+    throws BlameTimeouts.BlameTimeoutException, BlameCircuitBreaker.CircuitOpenException {
+    List<BlameLine> previous = previousBlame.lines();
+    if (previous == null) {
+      return null;
+    }
+    LOG.info("Retrieve SCM info for {} since revision {}", file, previousBlame.revision);
+    try {
+      List<BlameLine> lines = reblameAndRecordDuration(file, previousBlame.revision, previous);
+      // The blame of the last empty line may be missing, see save()
+      if (lines != null && (lines.size() == lineCount || lines.size() == lineCount - 1)) {
+        return lines;
+      }
+      LOG.debug("Previous SCM info of {} does not match its changes, the file is fully blamed", file);
+    } catch (BlameTimeouts.BlameTimeoutException e) {
+      throw e;
+    } catch (BlameCircuitBreaker.CircuitOpenException e) {
+      throw e;
+    } catch (ScmException e) {
+      LOG.warn(String.format("Fail to retrieve SCM info of %s since revision %s, the file is fully blamed", file, previousBlame.revision), e);
+    }
+    return null;
   }
 
-  private String removeNonAsciiCharacters(String inputString) {
-    return NON_ASCII_CHARS.matcher(inputString).replaceAll("_");
+  /**
+   * Blame by line as saved by the previous analysis, with authors already normalized.
+   */
+  private static final class PreviousBlame {
+    private final String revision;
+    private final List<Measure> measures;
+
+    PreviousBlame(String revision, List<Measure> measures) {
+      this.revision = revision;
+      this.measures = measures;
+    }
+
+    /**
+     * @return null if the measures are not complete
+     */
+    @CheckForNull
+    List<BlameLine> lines() {
+      Map<Integer, String> authors = data(CoreMetrics.SCM_AUTHORS_BY_LINE);
+      Map<Integer, String> dates = data(CoreMetrics.SCM_LAST_COMMIT_DATETIMES_BY_LINE);
+      Map<Integer, String> revisions = data(CoreMetrics.SCM_REVISIONS_BY_LINE);
+      if (authors == null || dates == null || revisions == null) {
+        return null;
+      }
+
+      List<BlameLine> lines = Lists.newArrayListWithCapacity(revisions.size());
+      for (int lineNumber = 1; lineNumber <= revisions.size(); lineNumber++) {
+        String author = authors.get(lineNumber);
+        Date date = DateUtils.parseDateTimeQuietly(dates.get(lineNumber));
+        String revision = revisions.get(lineNumber);
+        if (author == null || date == null || revision == null) {
+          return null;
+        }
+        lines.add(new BlameLine(date, revision, author, author));
+      }
+      return lines;
+    }
+
+    @CheckForNull
+    private Map<Integer, String> data(Metric metric) {
+      for (Measure measure : measures) {
+        if (metric.equals(measure.getMetric()) && measure.getData() != null) {
+          return KeyValueFormat.parseIntString(measure.getData());
+        }
+      }
+      return null;
+    }
   }
 }
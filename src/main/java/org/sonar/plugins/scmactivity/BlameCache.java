@@ -0,0 +1,400 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+
+import javax.annotation.CheckForNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local blame cache, shared between analyses and CI jobs through the directory {@link ScmActivityPlugin#CACHE_PATH}.
+ * <p/>
+ * Entries are keyed by the repository of the file, its path in the repository and the last commit which changed it,
+ * see {@link ScmChanges#getLastCommit(File)}, and by the SHA-1 of its content (computed like a Git blob id), so that
+ * a given version of a file is blamed only once whatever the branch being analysed. The blame of files with
+ * uncommitted lines is not cached, as it changes once they are committed. Each entry stores the per-line revisions,
+ * authors and dates in a compact binary form: the distinct commits first, then one commit index per line. Least
+ * recently used entries are evicted when the cache grows over {@link ScmActivityPlugin#CACHE_MAX_SIZE}.
+ * Only supported with Git, Subversion and Mercurial.
+ */
+public class BlameCache implements BatchExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(BlameCache.class);
+  private static final int MAGIC = 0x53434d42;
+  private static final int VERSION = 1;
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final ScmConfiguration configuration;
+  private final ScmChanges scmChanges;
+  private final ProjectScmResources projectResources;
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+
+  /**
+   * Files missing from the cache, so that the SCM is asked only once for their last commit
+   * key: the file
+   * value: its entry
+   */
+  private final Map<File, File> missed = Maps.newConcurrentMap();
+
+  public BlameCache(ScmConfiguration configuration, ScmChanges scmChanges, ProjectScmResources projectResources) {
+    this.configuration = configuration;
+    this.scmChanges = scmChanges;
+    this.projectResources = projectResources;
+  }
+
+  public boolean isEnabled() {
+    return configuration.getCacheDir() != null && scmChanges.isLastCommitSupported();
+  }
+
+  /**
+   * @return null if the current version of the file was never blamed
+   */
+  @CheckForNull
+  public List<BlameLine> get(File file) {
+    if (!isEnabled()) {
+      return null;
+    }
+
+    File entry = entry(file);
+    if (entry != null && entry.isFile()) {
+      try {
+        List<BlameLine> lines = read(entry);
+        // Keep track of the last use for the eviction
+        entry.setLastModified(System.currentTimeMillis());
+        hits.incrementAndGet();
+        return lines;
+      } catch (IOException e) {
+        LOG.debug("Ignore corrupted SCM blame cache entry: " + entry, e);
+      }
+    }
+    if (entry != null) {
+      missed.put(file, entry);
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Does nothing if a line is not committed yet.
+   */
+  public void put(File file, List<BlameLine> lines) {
+    if (!isEnabled()) {
+      return;
+    }
+
+    File entry = missed.remove(file);
+    if (entry == null) {
+      entry = entry(file);
+    }
+    if (entry == null || !isCommitted(lines)) {
+      return;
+    }
+    File temp = new File(entry.getPath() + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+    try {
+      FileUtils.forceMkdir(entry.getParentFile());
+      write(temp, lines);
+      if (!temp.renameTo(entry)) {
+        // Concurrently written by another analysis
+        FileUtils.deleteQuietly(temp);
+      }
+    } catch (IOException e) {
+      LOG.debug("Unable to write SCM blame cache entry: " + entry, e);
+      FileUtils.deleteQuietly(temp);
+    }
+  }
+
+  /**
+   * Logs the statistics of the cache. The least recently used entries over the maximum size are evicted once at the
+   * end of the analysis of the project. Must be called once all the blame tasks are finished.
+   */
+  public void close() {
+    missed.clear();
+    if (!isEnabled()) {
+      return;
+    }
+
+    LOG.info("SCM blame cache: {} hit(s), {} miss(es)", hits.get(), misses.get());
+    projectResources.evictBlameCacheOnStop(configuration.getCacheDir(), configuration.getCacheMaxSize());
+  }
+
+  @VisibleForTesting
+  int getHits() {
+    return hits.get();
+  }
+
+  @VisibleForTesting
+  int getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return null if the file can not be cached, for example if it was never committed
+   */
+  @CheckForNull
+  private File entry(File file) {
+    String lastCommit = scmChanges.getLastCommit(file);
+    if (lastCommit == null) {
+      return null;
+    }
+    String contentHash;
+    try {
+      contentHash = blobId(file);
+    } catch (IOException e) {
+      LOG.debug("Unable to hash " + file, e);
+      return null;
+    }
+
+    String key = DigestUtils.shaHex(configuration.getScmProvider() + '\n' + lastCommit + '\n' + contentHash);
+    return new File(new File(configuration.getCacheDir(), key.substring(0, 2)), key.substring(2));
+  }
+
+  /**
+   * @return false if a line is not committed yet, such as the all-zero revision of Git or the "-" of Subversion
+   */
+  @VisibleForTesting
+  static boolean isCommitted(List<BlameLine> lines) {
+    for (BlameLine line : lines) {
+      String revision = line.getRevision();
+      if (StringUtils.isBlank(revision) || StringUtils.containsOnly(revision, "0") || revision.startsWith("-")) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Same as <code>git hash-object</code>
+   */
+  @VisibleForTesting
+  static String blobId(File file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    digest.update(("blob " + file.length() + '\0').getBytes("US-ASCII"));
+
+    InputStream input = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = input.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      Closeables.closeQuietly(input);
+    }
+    return new String(Hex.encodeHex(digest.digest()));
+  }
+
+  @VisibleForTesting
+  static void write(File entry, List<BlameLine> lines) throws IOException {
+    Map<BlameLine, Integer> indexes = Maps.newHashMap();
+    List<BlameLine> commits = Lists.newArrayList();
+    int[] lineIndexes = new int[lines.size()];
+    for (int i = 0; i < lines.size(); i++) {
+      BlameLine line = lines.get(i);
+      BlameLine commit = new CommitKey(line);
+      Integer index = indexes.get(commit);
+      if (index == null) {
+        index = commits.size();
+        indexes.put(commit, index);
+        commits.add(line);
+      }
+      lineIndexes[i] = index;
+    }
+
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(entry)));
+    try {
+      output.writeInt(MAGIC);
+      output.writeByte(VERSION);
+      writeVarInt(output, commits.size());
+      for (BlameLine commit : commits) {
+        writeString(output, commit.getRevision());
+        writeString(output, commit.getAuthor());
+        writeString(output, commit.getCommitter());
+        output.writeLong(commit.getDate() == null ? Long.MIN_VALUE : commit.getDate().getTime());
+      }
+      writeVarInt(output, lineIndexes.length);
+      for (int index : lineIndexes) {
+        writeVarInt(output, index);
+      }
+    } finally {
+      output.close();
+    }
+  }
+
+  @VisibleForTesting
+  static List<BlameLine> read(File entry) throws IOException {
+    DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+    try {
+      if (input.readInt() != MAGIC || input.readByte() != VERSION) {
+        throw new IOException("Unsupported format");
+      }
+      BlameLine[] commits = new BlameLine[readVarInt(input)];
+      for (int i = 0; i < commits.length; i++) {
+        String revision = readString(input);
+        String author = readString(input);
+        String committer = readString(input);
+        long time = input.readLong();
+        commits[i] = new BlameLine(time == Long.MIN_VALUE ? null : new Date(time), revision, author, committer);
+      }
+      int lineCount = readVarInt(input);
+      List<BlameLine> lines = Lists.newArrayListWithCapacity(lineCount);
+      for (int i = 0; i < lineCount; i++) {
+        lines.add(commits[readVarInt(input)]);
+      }
+      return lines;
+    } finally {
+      Closeables.closeQuietly(input);
+    }
+  }
+
+  private static void writeString(DataOutputStream output, String value) throws IOException {
+    output.writeBoolean(value != null);
+    if (value != null) {
+      output.writeUTF(value);
+    }
+  }
+
+  private static String readString(DataInputStream input) throws IOException {
+    return input.readBoolean() ? input.readUTF() : null;
+  }
+
+  private static void writeVarInt(DataOutputStream output, int value) throws IOException {
+    int remaining = value;
+    while ((remaining & ~0x7F) != 0) {
+      output.writeByte((remaining & 0x7F) | 0x80);
+      remaining >>>= 7;
+    }
+    output.writeByte(remaining);
+  }
+
+  private static int readVarInt(DataInputStream input) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = input.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed integer");
+  }
+
+  @VisibleForTesting
+  static void evict(File dir, long maxSize) {
+    List<File> entries = Lists.newArrayList();
+    long size = 0;
+    File[] subDirs = dir.listFiles();
+    if (subDirs == null) {
+      return;
+    }
+    for (File subDir : subDirs) {
+      File[] files = subDir.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          if (!file.getName().endsWith(TEMP_SUFFIX)) {
+            entries.add(file);
+            size += file.length();
+          }
+        }
+      }
+    }
+    if (size <= maxSize) {
+      return;
+    }
+
+    Collections.sort(entries, new Comparator<File>() {
+      public int compare(File left, File right) {
+        long diff = left.lastModified() - right.lastModified();
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+      }
+    });
+    int evicted = 0;
+    for (File entry : entries) {
+      if (size <= maxSize) {
+        break;
+      }
+      long length = entry.length();
+      if (entry.delete()) {
+        size -= length;
+        evicted++;
+      }
+    }
+    LOG.debug("{} entries evicted from the SCM blame cache", evicted);
+  }
+
+  /**
+   * Identifies the commit of a blame line, as {@link BlameLine} does not implement equals/hashCode.
+   */
+  private static final class CommitKey extends BlameLine {
+    CommitKey(BlameLine line) {
+      super(line.getDate(), line.getRevision(), line.getAuthor(), line.getCommitter());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof CommitKey)) {
+        return false;
+      }
+      CommitKey other = (CommitKey) o;
+      return StringUtils.equals(getRevision(), other.getRevision())
+        && StringUtils.equals(getAuthor(), other.getAuthor())
+        && StringUtils.equals(getCommitter(), other.getCommitter())
+        && (getDate() == null ? other.getDate() == null : getDate().equals(other.getDate()));
+    }
+
+    @Override
+    public int hashCode() {
+      return getRevision() == null ? 0 : getRevision().hashCode();
+    }
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.scm.ScmException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stops the blame when it fails systematically, for instance because of a wrong URL, a missing executable, expired
+ * credentials or a shallow clone. The circuit opens after {@link ScmActivityPlugin#CIRCUIT_BREAKER_FAILURES} consecutive
+ * failures, or when {@link ScmActivityPlugin#CIRCUIT_BREAKER_FAILURE_RATE} percent of the blames fail with the same
+ * cause. Files are then no longer blamed and keep their previous SCM info, and a single diagnostic is logged at the end
+ * of the analysis.
+ */
+public class BlameCircuitBreaker {
+  private static final Logger LOG = LoggerFactory.getLogger(BlameCircuitBreaker.class);
+  private static final int MIN_BLAMES_FOR_FAILURE_RATE = 20;
+  private static final int MAX_CAUSE_LENGTH = 200;
+  private static final String FILE_NAME_BOUNDARY_BEFORE = "(?<![\\w.-])";
+  private static final String FILE_NAME_BOUNDARY_AFTER = "(?![\\w-]|\\.\\w)";
+
+  private final int maxConsecutiveFailures;
+  private final int maxFailureRate;
+  private final Map<String, Integer> failuresByCause = Maps.newHashMap();
+  private int blames;
+  private int failures;
+  private String lastCause;
+  private int consecutiveFailures;
+  private String openCause;
+  private boolean disabled;
+  private int skipped;
+
+  /**
+   * @param maxConsecutiveFailures 0 to never open the circuit on consecutive failures
+   * @param maxFailureRate percentage, 0 to never open the circuit on the failure rate
+   */
+  public BlameCircuitBreaker(int maxConsecutiveFailures, int maxFailureRate) {
+    this.maxConsecutiveFailures = maxConsecutiveFailures;
+    this.maxFailureRate = maxFailureRate;
+  }
+
+  /**
+   * Must be called before the blame of a file.
+   *
+   * @throws CircuitOpenException if the file must not be blamed
+   */
+  public synchronized void check(File file) throws CircuitOpenException {
+    if (openCause != null) {
+      skipped++;
+      throw new CircuitOpenException("SCM blame is stopped after systematic failures, not blaming " + file);
+    }
+  }
+
+  public synchronized void success() {
+    blames++;
+    consecutiveFailures = 0;
+    lastCause = null;
+  }
+
+  public void failure(File file, ScmException e) {
+    failure(file, Throwables.getRootCause(e).toString());
+  }
+
+  /**
+   * @param cause message of the failure, in which the file is replaced so that failures of different files match
+   */
+  public synchronized void failure(File file, @Nullable String cause) {
+    String normalizedCause = normalize(file, cause);
+    blames++;
+    failures++;
+    Integer count = failuresByCause.get(normalizedCause);
+    count = count == null ? 1 : count + 1;
+    failuresByCause.put(normalizedCause, count);
+    consecutiveFailures = normalizedCause.equals(lastCause) ? consecutiveFailures + 1 : 1;
+    lastCause = normalizedCause;
+
+    if (openCause == null && (isAboveMaxConsecutiveFailures() || isAboveMaxFailureRate(count))) {
+      openCause = normalizedCause;
+      LOG.debug("SCM blame is stopped after {} failure(s) out of {} blame(s): {}", new Object[] {failures, blames, openCause});
+    }
+  }
+
+  private boolean isAboveMaxConsecutiveFailures() {
+    return maxConsecutiveFailures > 0 && consecutiveFailures >= maxConsecutiveFailures;
+  }
+
+  private boolean isAboveMaxFailureRate(int failuresWithCause) {
+    return maxFailureRate > 0 && blames >= MIN_BLAMES_FOR_FAILURE_RATE && failuresWithCause * 100L >= maxFailureRate * (long) blames;
+  }
+
+  static String normalize(File file, @Nullable String cause) {
+    String normalized = StringUtils.defaultString(cause).trim();
+    normalized = StringUtils.replace(normalized, file.getAbsolutePath(), "<file>");
+    normalized = replaceSegments(normalized, file.getPath(), "<file>");
+    normalized = replaceSegments(normalized, file.getName(), "<file>");
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (dir != null) {
+      normalized = StringUtils.replace(normalized, dir.getPath(), "<dir>");
+    }
+    return StringUtils.abbreviate(normalized.replaceAll("\\s+", " "), MAX_CAUSE_LENGTH);
+  }
+
+  /**
+   * Replaces the path where it is not part of a longer file name, so that a short name such as <code>a</code> does
+   * not corrupt the words of the message.
+   */
+  private static String replaceSegments(String text, String path, String replacement) {
+    if (path.isEmpty()) {
+      return text;
+    }
+    return Pattern.compile(FILE_NAME_BOUNDARY_BEFORE + Pattern.quote(path) + FILE_NAME_BOUNDARY_AFTER).matcher(text)
+      .replaceAll(Matcher.quoteReplacement(replacement));
+  }
+
+  /**
+   * Opens the circuit before any blame, when the SCM environment can not work, see {@link ScmPreflight}.
+   */
+  public synchronized void disable(String reason) {
+    if (openCause == null) {
+      openCause = reason;
+      disabled = true;
+    }
+  }
+
+  public synchronized boolean isOpen() {
+    return openCause != null;
+  }
+
+  /**
+   * Logs why the blame was stopped, if it was.
+   */
+  public synchronized void report() {
+    if (disabled) {
+      LOG.warn("SCM blame was disabled, {} file(s) keep their previous SCM info. {}", skipped, openCause);
+    } else if (openCause != null) {
+      LOG.warn("SCM blame was stopped after {} failure(s) out of {} blame(s), {} file(s) keep their previous SCM info. "
+        + "Please check the SCM URL, the SCM executable, the credentials and the depth of the clone. Cause of {} failure(s): {}",
+        new Object[] {failures, blames, skipped, failuresByCause.get(openCause), openCause});
+    }
+  }
+
+  /**
+   * A file is not blamed because the circuit is open.
+   */
+  public static final class CircuitOpenException extends ScmException {
+    public CircuitOpenException(String message) {
+      super(message);
+    }
+  }
+}
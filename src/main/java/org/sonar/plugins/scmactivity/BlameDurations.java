@@ -0,0 +1,150 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.fs.FileSystem;
+import org.sonar.api.batch.fs.InputFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Durations of the blame of the files of the module, kept from one analysis to the next in the working directory, so
+ * that the longest blames are started first and do not delay the end of the analysis. The duration of a file never
+ * blamed is estimated from its number of lines.
+ */
+public class BlameDurations implements BatchExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(BlameDurations.class);
+  @VisibleForTesting
+  static final String FILENAME = "scm-blame-durations.txt";
+
+  private final FileSystem fs;
+  private final Map<String, Long> durations = Maps.newConcurrentMap();
+  private boolean loaded;
+
+  public BlameDurations(FileSystem fs) {
+    this.fs = fs;
+  }
+
+  /**
+   * Orders the files by decreasing expected duration of their blame. Must only be used from the main thread.
+   */
+  public void sortLongestFirst(List<InputFile> files) {
+    load();
+    final double millisPerLine = millisPerLine(files);
+    Collections.sort(files, new Comparator<InputFile>() {
+      public int compare(InputFile left, InputFile right) {
+        return Double.compare(expected(right, millisPerLine), expected(left, millisPerLine));
+      }
+    });
+  }
+
+  private double expected(InputFile file, double millisPerLine) {
+    Long duration = durations.get(file.relativePath());
+    return duration == null ? file.lines() * millisPerLine : duration;
+  }
+
+  /**
+   * Average duration of the blame of a line, 1 if unknown.
+   */
+  private double millisPerLine(List<InputFile> files) {
+    long millis = 0;
+    long lines = 0;
+    for (InputFile file : files) {
+      Long duration = durations.get(file.relativePath());
+      if (duration != null) {
+        millis += duration;
+        lines += file.lines();
+      }
+    }
+    return millis > 0 && lines > 0 ? (double) millis / lines : 1.0;
+  }
+
+  public void record(File file, long millis) {
+    String baseDir = fs.baseDir().getAbsolutePath() + File.separator;
+    String path = file.getAbsolutePath();
+    if (path.startsWith(baseDir)) {
+      durations.put(StringUtils.replace(path.substring(baseDir.length()), File.separator, "/"), millis);
+    }
+  }
+
+  /**
+   * Keeps the durations of the files of the module for the next analysis. Must only be used from the main thread.
+   */
+  public void save() {
+    load();
+    StringBuilder content = new StringBuilder();
+    for (InputFile file : fs.inputFiles(fs.predicates().all())) {
+      Long duration = durations.get(file.relativePath());
+      if (duration != null) {
+        content.append(duration).append('\t').append(file.relativePath()).append('\n');
+      }
+    }
+    try {
+      FileUtils.write(file(), content, Charsets.UTF_8);
+    } catch (IOException e) {
+      LOG.debug("Unable to save the durations of SCM blame", e);
+    }
+  }
+
+  private void load() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    File file = file();
+    if (!file.isFile()) {
+      return;
+    }
+    try {
+      for (String line : FileUtils.readLines(file, Charsets.UTF_8)) {
+        String duration = StringUtils.substringBefore(line, "\t");
+        String path = StringUtils.substringAfter(line, "\t");
+        // Durations recorded during this analysis are more accurate
+        if (isDuration(duration) && path.length() > 0 && !durations.containsKey(path)) {
+          durations.put(path, Long.parseLong(duration));
+        }
+      }
+    } catch (IOException e) {
+      LOG.debug("Unable to read the durations of SCM blame", e);
+    }
+  }
+
+  private static boolean isDuration(String value) {
+    // At most 18 digits, so that it can not overflow
+    return value.length() > 0 && value.length() < 19 && StringUtils.isNumeric(value);
+  }
+
+  private File file() {
+    return new File(fs.workDir(), FILENAME);
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.sonar.api.measures.CoreMetrics;
+import org.sonar.api.measures.Measure;
+import org.sonar.api.resources.Resource;
+import org.sonar.api.utils.DateUtils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes the blame of a file into the data of the SCM measures by line, with the same output as
+ * {@link org.sonar.api.measures.PropertiesBuilder}.
+ * <p/>
+ * Lines are walked once into a dictionary of their revisions, so that the author and the date of each revision are
+ * normalized and formatted once, then the three measures are written into buffers of their exact size.
+ */
+final class BlameEncoder {
+  private BlameEncoder() {
+  }
+
+  /**
+   * @param lineCount number of lines of the file, which may have one more line than the blame, see SONARPLUGINS-3097
+   */
+  static SaveNewMeasures encode(Resource resource, List<BlameLine> lines, int lineCount, AuthorNormalizer authorNormalizer) {
+    int size = lines.size();
+    // SONARPLUGINS-3097 For some SCM blame is missing on last empty line
+    boolean missingLastLine = size > 0 && lineCount == size + 1;
+    Entry[] entries = new Entry[missingLastLine ? size + 1 : size];
+
+    Map<String, Entry> dictionary = new HashMap<String, Entry>();
+    int keysLength = 0;
+    int authorsLength = 0;
+    int datesLength = 0;
+    int revisionsLength = 0;
+    for (int i = 0; i < entries.length; i++) {
+      Entry entry = i < size ? entry(dictionary, lines.get(i), authorNormalizer) : entries[i - 1];
+      entries[i] = entry;
+      // "line=" and the separator
+      keysLength += digits(i + 1) + 2;
+      authorsLength += entry.author.length();
+      datesLength += entry.date.length();
+      revisionsLength += entry.revision.length();
+    }
+    // No separator after the last line
+    int separatorsLength = Math.max(0, keysLength - 1);
+
+    StringBuilder authors = new StringBuilder(separatorsLength + authorsLength);
+    StringBuilder dates = new StringBuilder(separatorsLength + datesLength);
+    StringBuilder revisions = new StringBuilder(separatorsLength + revisionsLength);
+    for (int i = 0; i < entries.length; i++) {
+      int lineNumber = i + 1;
+      if (i > 0) {
+        authors.append(';');
+        dates.append(';');
+        revisions.append(';');
+      }
+      authors.append(lineNumber).append('=').append(entries[i].author);
+      dates.append(lineNumber).append('=').append(entries[i].date);
+      revisions.append(lineNumber).append('=').append(entries[i].revision);
+    }
+
+    return new SaveNewMeasures(resource,
+      new Measure(CoreMetrics.SCM_AUTHORS_BY_LINE, authors.toString()),
+      new Measure(CoreMetrics.SCM_LAST_COMMIT_DATETIMES_BY_LINE, dates.toString()),
+      new Measure(CoreMetrics.SCM_REVISIONS_BY_LINE, revisions.toString()));
+  }
+
+  /**
+   * Lines of the same revision usually share the same author and date, which are then encoded once.
+   */
+  private static Entry entry(Map<String, Entry> dictionary, BlameLine line, AuthorNormalizer authorNormalizer) {
+    String revision = line.getRevision();
+    Entry entry = dictionary.get(revision);
+    if (entry != null && entry.isSameCommit(line)) {
+      return entry;
+    }
+    entry = new Entry(line, authorNormalizer);
+    if (revision != null) {
+      dictionary.put(revision, entry);
+    }
+    return entry;
+  }
+
+  private static int digits(int number) {
+    int digits = 1;
+    for (int n = number; n >= 10; n /= 10) {
+      digits++;
+    }
+    return digits;
+  }
+
+  private static final class Entry {
+    private final String rawAuthor;
+    private final Object rawDate;
+    private final String author;
+    private final String date;
+    private final String revision;
+
+    Entry(BlameLine line, AuthorNormalizer authorNormalizer) {
+      rawAuthor = line.getAuthor();
+      rawDate = line.getDate();
+      author = authorNormalizer.normalizeAuthor(line.getAuthor());
+      date = DateUtils.formatDateTime(line.getDate());
+      // PropertiesBuilder writes an empty value for null
+      revision = line.getRevision() == null ? "" : line.getRevision();
+    }
+
+    boolean isSameCommit(BlameLine line) {
+      return ObjectUtils.equals(rawAuthor, line.getAuthor()) && ObjectUtils.equals(rawDate, line.getDate());
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.apache.maven.scm.provider.ScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarGitInProcessScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarHgCommandServerScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarPerforceScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarSvnInProcessScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarTfsServerScmProvider;
+
+/**
+ * Providers blaming files of a {@link SupportedScm} with another engine, selected by the configuration. They are
+ * registered in {@link SonarScmManager} but are not SCMs: their types are not accepted in SCM URLs, see {@link UrlChecker}.
+ *
+ * @since 1.9
+ */
+public enum BlameEngineProviders {
+  SVN_IN_PROCESS(new SonarSvnInProcessScmProvider()),
+  GIT_IN_PROCESS(new SonarGitInProcessScmProvider()),
+  HG_COMMAND_SERVER(new SonarHgCommandServerScmProvider()),
+  PERFORCE_BATCH(new SonarPerforceScmProvider()),
+  TFS_SERVER(new SonarTfsServerScmProvider());
+
+  private final ScmProvider provider;
+
+  private BlameEngineProviders(ScmProvider provider) {
+    this.provider = provider;
+  }
+
+  public String getType() {
+    return provider.getScmType();
+  }
+
+  public ScmProvider getProvider() {
+    return provider;
+  }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.apache.maven.scm.ScmException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.plugins.scmactivity.maven.ChildProcesses;
+
+import java.io.File;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the duration of the blame. An SCM command lasting more than {@link ScmActivityPlugin#BLAME_TIMEOUT} is killed,
+ * by interrupting the thread waiting for it, and no command is started once {@link ScmActivityPlugin#BLAME_DEADLINE}
+ * is reached. In both cases the previous blame information of the file is kept.
+ */
+public class BlameTimeouts implements BatchExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(BlameTimeouts.class);
+  private static final int MAX_REPORTED_FILES = 10;
+
+  private final ScmConfiguration configuration;
+  private final ProjectScmResources projectResources;
+  private final Queue<File> timedOut = new ConcurrentLinkedQueue<File>();
+  private final AtomicInteger skipped = new AtomicInteger();
+
+  public BlameTimeouts(ScmConfiguration configuration, ProjectScmResources projectResources) {
+    this.configuration = configuration;
+    this.projectResources = projectResources;
+  }
+
+  /**
+   * Starts watching the blame of a file by the current thread.
+   *
+   * @throws BlameTimeoutException if the deadline is reached
+   */
+  public Watch start(File file) throws BlameTimeoutException {
+    long now = System.currentTimeMillis();
+    long deadline = projectResources.getBlameDeadline(configuration.getBlameDeadline() * 1000L);
+    if (now >= deadline) {
+      skipped.incrementAndGet();
+      throw new BlameTimeoutException("SCM blame deadline reached, not blaming " + file);
+    }
+
+    int timeout = configuration.getBlameTimeout();
+    long timeoutMillis = timeout > 0 ? timeout * 1000L : Long.MAX_VALUE;
+    Watch watch;
+    if (timeoutMillis <= deadline - now) {
+      watch = new Watch(file, String.format("SCM blame of %s did not complete within %d second(s)", file, timeout));
+      if (timeout > 0) {
+        watch.alarm = projectResources.getWatchdog().schedule(watch, timeoutMillis, TimeUnit.MILLISECONDS);
+      }
+    } else {
+      watch = new Watch(file, String.format("SCM blame of %s did not complete before the deadline", file));
+      watch.alarm = projectResources.getWatchdog().schedule(watch, deadline - now, TimeUnit.MILLISECONDS);
+    }
+    return watch;
+  }
+
+  /**
+   * Reports a timeout which occurred while the file was blamed for another module, see {@link ProjectBlamePrefetch}.
+   */
+  public void add(File file, BlameTimeoutException e) {
+    if (e.isKilled()) {
+      timedOut.add(file);
+    } else {
+      skipped.incrementAndGet();
+    }
+  }
+
+  /**
+   * Logs the files whose blame timed out or was skipped since the last call.
+   */
+  public void report() {
+    int count = 0;
+    StringBuilder files = new StringBuilder();
+    for (File file = timedOut.poll(); file != null; file = timedOut.poll()) {
+      if (count < MAX_REPORTED_FILES) {
+        files.append(count == 0 ? "" : ", ").append(file);
+      }
+      count++;
+    }
+    if (count > 0) {
+      LOG.warn("SCM blame timed out for {} file(s), their previous SCM info is kept: {}{}", new Object[] {count, files, count > MAX_REPORTED_FILES ? ", ..." : ""});
+    }
+    int notBlamed = skipped.getAndSet(0);
+    if (notBlamed > 0) {
+      LOG.warn("SCM blame deadline reached, {} file(s) keep their previous SCM info", notBlamed);
+    }
+  }
+
+  /**
+   * Blame of a file by a thread, interrupted when it lasts too long.
+   */
+  public final class Watch implements Runnable {
+    private final File file;
+    private final String message;
+    private final Thread thread = Thread.currentThread();
+    private Future<?> alarm;
+    private boolean finished;
+    private boolean expired;
+
+    private Watch(File file, String message) {
+      this.file = file;
+      this.message = message;
+    }
+
+    public synchronized void run() {
+      if (!finished) {
+        expired = true;
+        // Interrupted first, so that the thread knows the process was killed as soon as its output ends
+        thread.interrupt();
+        ChildProcesses.kill(thread);
+      }
+    }
+
+    /**
+     * Must be called by the thread which started the watch, once the blame is finished or failed.
+     *
+     * @throws BlameTimeoutException if the blame was interrupted
+     */
+    public void stop() throws BlameTimeoutException {
+      if (alarm != null) {
+        alarm.cancel(false);
+      }
+      synchronized (this) {
+        finished = true;
+        if (!expired) {
+          return;
+        }
+      }
+      // Clear the interruption, the thread goes on with the next file
+      Thread.interrupted();
+      timedOut.add(file);
+      throw new BlameTimeoutException(message, true);
+    }
+  }
+
+  /**
+   * The blame of a file was interrupted or not started.
+   */
+  public static final class BlameTimeoutException extends ScmException {
+    private final boolean killed;
+
+    public BlameTimeoutException(String message) {
+      this(message, false);
+    }
+
+    public BlameTimeoutException(String message, boolean killed) {
+      super(message);
+      this.killed = killed;
+    }
+
+    /**
+     * @return true if the SCM command was killed, false if it was not started
+     */
+    public boolean isKilled() {
+      return killed;
+    }
+  }
+}
@@ -32,21 +32,27 @@ public class BlameVersionSelector implements BatchExtension {
   private static final Logger LOG = LoggerFactory.getLogger(BlameVersionSelector.class);
 
   private final Blame blame;
+  private final ChangedFiles changedFiles;
 
-  public BlameVersionSelector(Blame blame) {
+  public BlameVersionSelector(Blame blame, ChangedFiles changedFiles) {
     this.blame = blame;
+    this.changedFiles = changedFiles;
   }
 
   public MeasureUpdate detect(Resource sonarFile, InputFile inputFile, SensorContext context, boolean hasPreviousMeasures) {
     File file = inputFile.file();
 
-    if (inputFile.status() == InputFile.Status.SAME && hasPreviousMeasures) {
+    if (!shouldBlame(inputFile, hasPreviousMeasures)) {
       return fileNotChanged(file, sonarFile);
     }
 
     return fileChanged(file, sonarFile, inputFile.lines());
   }
 
+  public boolean shouldBlame(InputFile inputFile, boolean hasPreviousMeasures) {
+    return !changedFiles.isUnchanged(inputFile) || !hasPreviousMeasures;
+  }
+
   private MeasureUpdate fileNotChanged(File file, Resource resource) {
     LOG.debug("File not changed since previous analysis: {}", file);
 
@@ -0,0 +1,109 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.SensorContext;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.measures.Measure;
+import org.sonar.api.resources.Resource;
+
+import javax.annotation.CheckForNull;
+
+import java.io.File;
+import java.util.Set;
+
+/**
+ * Files of a module changed since its previous analysis.
+ * <p/>
+ * A file is unchanged if its content is the same as on previous analysis, or if the SCM reports no change on it since
+ * the revision recorded by the previous analysis. Must only be used from the main thread, before the files are
+ * submitted to the blame workers.
+ */
+public class ChangedFiles implements BatchExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(ChangedFiles.class);
+
+  private final ScmChanges scmChanges;
+  private final PreviousMeasures previousMeasures;
+
+  private String revision;
+  private String previousRevision;
+  private Set<File> changedInScm;
+
+  public ChangedFiles(ScmChanges scmChanges, PreviousMeasures previousMeasures) {
+    this.scmChanges = scmChanges;
+    this.previousMeasures = previousMeasures;
+  }
+
+  /**
+   * Asks the SCM for the files changed since the previous analysis of the module.
+   */
+  public void detect(Resource module) {
+    changedInScm = null;
+    previousRevision = null;
+    revision = scmChanges.getRevision();
+    if (revision == null) {
+      return;
+    }
+    String previous = previousMeasures.getRevision(module);
+    if (previous == null) {
+      return;
+    }
+
+    changedInScm = scmChanges.getChangedFiles(previous);
+    if (changedInScm == null) {
+      LOG.info("Unable to get the files changed since revision {}", previous);
+      return;
+    }
+    previousRevision = previous;
+    if (revision.equals(previousRevision) && changedInScm.isEmpty()) {
+      LOG.info("SCM revision {} has not changed since previous analysis", revision);
+    } else {
+      LOG.info("{} file(s) changed since revision {}", changedInScm.size(), previousRevision);
+    }
+  }
+
+  /**
+   * @return the revision of the previous analysis, if the files changed since then are known
+   */
+  @CheckForNull
+  public String getPreviousRevision() {
+    return previousRevision;
+  }
+
+  public boolean isUnchanged(InputFile inputFile) {
+    return inputFile.status() == InputFile.Status.SAME || (changedInScm != null && !changedInScm.contains(inputFile.file()));
+  }
+
+  /**
+   * Records the revision of the working copy, unless it has local modifications.
+   */
+  public void saveRevision(SensorContext context) {
+    if (revision == null) {
+      return;
+    }
+    Set<File> localChanges = scmChanges.getChangedFiles(revision);
+    if (localChanges != null && localChanges.isEmpty()) {
+      context.saveMeasure(new Measure(ScmActivityMetrics.SCM_ANALYSED_REVISION, revision));
+    }
+  }
+}
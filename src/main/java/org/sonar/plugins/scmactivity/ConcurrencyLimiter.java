@@ -0,0 +1,119 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of blames running at the same time. When adaptive, the limit starts at half of the maximum, and is
+ * reconsidered after each window of completed blames: raised by one while the throughput improves, lowered by one when
+ * the latency doubles, and halved when a blame fails.
+ */
+public class ConcurrencyLimiter {
+  private static final Logger LOG = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+  private static final int MIN_WINDOW = 4;
+  private static final double IMPROVEMENT = 1.05;
+
+  private final boolean adaptive;
+  private int max;
+  private int limit;
+  private int running;
+
+  private long windowStart = -1;
+  private int completed;
+  private long totalLatency;
+  private boolean failed;
+  private double previousThroughput;
+  private double bestLatency = Double.MAX_VALUE;
+
+  public ConcurrencyLimiter(int max, boolean adaptive) {
+    this.adaptive = adaptive;
+    setMax(max);
+  }
+
+  public synchronized void setMax(int max) {
+    this.max = Math.max(1, max);
+    limit = adaptive ? Math.max(1, Math.min(limit == 0 ? (this.max + 1) / 2 : limit, this.max)) : this.max;
+    notifyAll();
+  }
+
+  public synchronized void acquire() throws InterruptedException {
+    while (running >= limit) {
+      wait();
+    }
+    running++;
+  }
+
+  /**
+   * @param latencyMillis duration of the blame
+   * @param success false if the blame failed or timed out
+   */
+  public void release(long latencyMillis, boolean success) {
+    release(System.currentTimeMillis(), latencyMillis, success);
+  }
+
+  @VisibleForTesting
+  synchronized void release(long now, long latencyMillis, boolean success) {
+    running--;
+    if (adaptive) {
+      record(now, latencyMillis, success);
+    }
+    notifyAll();
+  }
+
+  private void record(long now, long latencyMillis, boolean success) {
+    if (windowStart < 0) {
+      windowStart = now - latencyMillis;
+    }
+    completed++;
+    totalLatency += latencyMillis;
+    failed |= !success;
+    if (completed < Math.max(MIN_WINDOW, limit)) {
+      return;
+    }
+
+    double throughput = completed / (double) Math.max(1, now - windowStart);
+    double latency = totalLatency / (double) completed;
+    int previousLimit = limit;
+    if (failed) {
+      limit = Math.max(1, limit / 2);
+    } else if (latency > 2 * bestLatency) {
+      limit = Math.max(1, limit - 1);
+    } else if (throughput > previousThroughput * IMPROVEMENT) {
+      limit = Math.min(max, limit + 1);
+    }
+    if (limit != previousLimit) {
+      LOG.debug("Blaming up to {} file(s) at the same time", limit);
+    }
+    bestLatency = Math.min(bestLatency, latency);
+    // After a back off, any improvement of the throughput raises the limit again
+    previousThroughput = limit < previousLimit ? 0 : throughput;
+    windowStart = now;
+    completed = 0;
+    totalLatency = 0;
+    failed = false;
+  }
+
+  public synchronized int getLimit() {
+    return limit;
+  }
+}
@@ -19,34 +19,20 @@
  */
 package org.sonar.plugins.scmactivity;
 
-import com.google.common.collect.ImmutableList;
 import org.sonar.api.batch.SensorContext;
-import org.sonar.api.batch.TimeMachine;
-import org.sonar.api.batch.TimeMachineQuery;
-import org.sonar.api.measures.CoreMetrics;
 import org.sonar.api.measures.Measure;
-import org.sonar.api.measures.Metric;
 import org.sonar.api.measures.PersistenceMode;
 import org.sonar.api.resources.Resource;
 
-import java.util.List;
-
 public class CopyPreviousMeasures implements MeasureUpdate {
-  private static final List<Metric> METRICS = ImmutableList.of(
-    CoreMetrics.SCM_LAST_COMMIT_DATETIMES_BY_LINE,
-    CoreMetrics.SCM_REVISIONS_BY_LINE,
-    CoreMetrics.SCM_AUTHORS_BY_LINE);
-
   private final Resource resource;
 
   public CopyPreviousMeasures(Resource resource) {
     this.resource = resource;
   }
 
-  public void execute(TimeMachine timeMachine, SensorContext context) {
-    TimeMachineQuery query = new TimeMachineQuery(resource).setOnlyLastAnalysis(true).setMetrics(METRICS);
-
-    for (Measure measure : timeMachine.getMeasures(query)) {
+  public void execute(PreviousMeasures previousMeasures, SensorContext context) {
+    for (Measure measure : previousMeasures.take(resource)) {
       saveMeasure(context, measure);
     }
   }
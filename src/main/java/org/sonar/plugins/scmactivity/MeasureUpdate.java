@@ -20,9 +20,8 @@
 package org.sonar.plugins.scmactivity;
 
 import org.sonar.api.batch.SensorContext;
-import org.sonar.api.batch.TimeMachine;
 
 interface MeasureUpdate {
 
-  void execute(TimeMachine timeMachine, SensorContext context);
+  void execute(PreviousMeasures previousMeasures, SensorContext context);
 }
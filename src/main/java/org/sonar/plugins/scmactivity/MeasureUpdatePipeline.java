@@ -0,0 +1,148 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.SensorContext;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounded producer/consumer pipeline between the blame workers and the main thread.
+ * <p/>
+ * Workers push their {@link MeasureUpdate} into a queue as soon as it is built, and the main thread executes updates
+ * in completion order. The number of updates submitted but not yet executed, and the size of the data they hold,
+ * are both capped: submitting blocks the main thread, which executes finished updates in the meantime.
+ */
+public class MeasureUpdatePipeline {
+  private static final Logger LOG = LoggerFactory.getLogger(MeasureUpdatePipeline.class);
+
+  private final ExecutorService executor;
+  private final PreviousMeasures previousMeasures;
+  private final SensorContext context;
+  private final Semaphore pendingUpdates;
+  private final DataBudget pendingData;
+  private final BlockingQueue<Future<MeasureUpdate>> completed = new LinkedBlockingQueue<Future<MeasureUpdate>>();
+  private int inFlight;
+
+  public MeasureUpdatePipeline(ExecutorService executor, PreviousMeasures previousMeasures, SensorContext context,
+    int maxPendingUpdates, long maxPendingDataSize) {
+    this.executor = executor;
+    this.previousMeasures = previousMeasures;
+    this.context = context;
+    this.pendingUpdates = new Semaphore(maxPendingUpdates);
+    this.pendingData = new DataBudget(maxPendingDataSize);
+  }
+
+  /**
+   * Must be called from the main thread.
+   */
+  public void submit(final Callable<MeasureUpdate> task) {
+    while (!pendingUpdates.tryAcquire()) {
+      executeNext();
+    }
+
+    inFlight++;
+    executor.execute(new FutureTask<MeasureUpdate>(new Callable<MeasureUpdate>() {
+      public MeasureUpdate call() throws Exception {
+        MeasureUpdate update = task.call();
+        pendingData.acquire(dataSize(update));
+        return update;
+      }
+    }) {
+      @Override
+      protected void done() {
+        completed.add(this);
+      }
+    });
+  }
+
+  /**
+   * Executes all the remaining updates. Must be called from the main thread.
+   */
+  public void finish() {
+    while (inFlight > 0) {
+      executeNext();
+    }
+  }
+
+  private void executeNext() {
+    Future<MeasureUpdate> update = takeCompleted();
+    inFlight--;
+    pendingUpdates.release();
+
+    try {
+      MeasureUpdate measureUpdate = update.get();
+      try {
+        measureUpdate.execute(previousMeasures, context);
+      } finally {
+        pendingData.release(dataSize(measureUpdate));
+      }
+    } catch (Exception e) {
+      LOG.error("Failure during SCM blame retrieval", ExceptionUtils.getRootCause(e));
+    }
+  }
+
+  private static long dataSize(MeasureUpdate update) {
+    return update instanceof SaveNewMeasures ? ((SaveNewMeasures) update).dataSize() : 0;
+  }
+
+  private Future<MeasureUpdate> takeCompleted() {
+    try {
+      return completed.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for SCM blame results", e);
+    }
+  }
+
+  /**
+   * Bytes held by the updates which are built but not yet executed. A single update larger than the whole budget
+   * is still accepted when nothing else is pending, so that workers can never deadlock.
+   */
+  private static final class DataBudget {
+    private final long max;
+    private long used;
+
+    DataBudget(long max) {
+      this.max = max;
+    }
+
+    synchronized void acquire(long size) throws InterruptedException {
+      while (used > 0 && used + size > max) {
+        wait();
+      }
+      used += size;
+    }
+
+    synchronized void release(long size) {
+      used -= size;
+      notifyAll();
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.TimeMachine;
+import org.sonar.api.batch.TimeMachineQuery;
+import org.sonar.api.measures.CoreMetrics;
+import org.sonar.api.measures.Measure;
+import org.sonar.api.measures.Metric;
+import org.sonar.api.resources.Resource;
+
+import javax.annotation.CheckForNull;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SCM measures of the previous analysis. Must only be used from the main thread.
+ * <p/>
+ * Measures of unchanged files are prefetched with a single query before the file is submitted to the blame workers,
+ * and kept until they are copied, so that the change detection and the copy share the same query. At most
+ * {@link ScmConfiguration#getMaxPendingDataSize()} of data is kept: beyond, measures are queried again when taken.
+ */
+public class PreviousMeasures implements BatchExtension {
+  private static final List<Metric> METRICS = ImmutableList.of(
+    CoreMetrics.SCM_LAST_COMMIT_DATETIMES_BY_LINE,
+    CoreMetrics.SCM_REVISIONS_BY_LINE,
+    CoreMetrics.SCM_AUTHORS_BY_LINE);
+
+  private final TimeMachine timeMachine;
+  private final long maxPrefetchedSize;
+  private long prefetchedSize;
+
+  /**
+   * key: the resource
+   * value: the data of each metric, in the order of {@link #METRICS}
+   */
+  private final Map<Resource, String[]> prefetched = Maps.newHashMap();
+
+  public PreviousMeasures(TimeMachine timeMachine, ScmConfiguration configuration) {
+    this.timeMachine = timeMachine;
+    this.maxPrefetchedSize = configuration.getMaxPendingDataSize();
+  }
+
+  /**
+   * Loads the previous measures of a file, to be taken later by {@link #take(Resource)}.
+   *
+   * @return false if the file has no SCM measures on previous analysis
+   */
+  public boolean prefetch(Resource resource) {
+    List<Measure> measures = query(resource);
+    if (measures.isEmpty()) {
+      return false;
+    }
+
+    String[] data = new String[METRICS.size()];
+    for (Measure measure : measures) {
+      int index = METRICS.indexOf(measure.getMetric());
+      if (index >= 0) {
+        data[index] = measure.getData();
+      }
+    }
+    long size = size(data);
+    if (prefetchedSize + size <= maxPrefetchedSize) {
+      prefetched.put(resource, data);
+      prefetchedSize += size;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the previous measures of a file, from the prefetched ones if any, and forgets them.
+   */
+  public List<Measure> take(Resource resource) {
+    String[] data = prefetched.remove(resource);
+    if (data == null) {
+      return query(resource);
+    }
+    prefetchedSize -= size(data);
+
+    List<Measure> measures = Lists.newArrayList();
+    for (int i = 0; i < data.length; i++) {
+      if (data[i] != null) {
+        measures.add(new Measure(METRICS.get(i), data[i]));
+      }
+    }
+    return measures;
+  }
+
+  /**
+   * Forgets the prefetched measures of a file saved with new measures.
+   */
+  public void forget(Resource resource) {
+    String[] data = prefetched.remove(resource);
+    if (data != null) {
+      prefetchedSize -= size(data);
+    }
+  }
+
+  /**
+   * @return the revision recorded by the previous analysis of the module, or null
+   */
+  @CheckForNull
+  public String getRevision(Resource module) {
+    List<Measure> measures = timeMachine.getMeasures(new TimeMachineQuery(module).setOnlyLastAnalysis(true)
+      .setMetrics(ScmActivityMetrics.SCM_ANALYSED_REVISION));
+    return measures.isEmpty() ? null : StringUtils.trimToNull(measures.get(0).getData());
+  }
+
+  private static long size(String[] data) {
+    long size = 0;
+    for (String value : data) {
+      size += value == null ? 0 : 2L * value.length();
+    }
+    return size;
+  }
+
+  private List<Measure> query(Resource resource) {
+    return timeMachine.getMeasures(new TimeMachineQuery(resource).setOnlyLastAnalysis(true).setMetrics(METRICS));
+  }
+}
@@ -0,0 +1,341 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.command.blame.BlameScmResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.batch.InstantiationStrategy;
+import org.sonar.api.batch.bootstrap.ProjectDefinition;
+import org.sonar.api.batch.bootstrap.ProjectReactor;
+import org.sonar.api.utils.WildcardPattern;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Blames, during the analysis of the first module, the files changed since the previous analysis in all the modules
+ * of the project, so that the blame threads are kept busy for the whole analysis instead of being drained at the end
+ * of each module. The analysis of each module then takes the blame of its files from memory. Only supported with Git,
+ * Subversion and Mercurial, whose tracked and changed files are listed with a single command, see
+ * {@link ScmActivityPlugin#PREFETCH_ALL_MODULES}.
+ * <p/>
+ * Files are blamed in the order in which their modules are analysed, and at most <code>maxPending</code> blames are
+ * started ahead of their module, which bounds the memory used by the blame waiting to be taken. Files excluded from
+ * the analysis, and files of modules with other SCM settings than the first module, are left to their module.
+ */
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
+public class ProjectBlamePrefetch implements BatchExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(ProjectBlamePrefetch.class);
+  private static final String SCM_PROPERTY_PREFIX = "sonar.scm.";
+  private static final String ABSOLUTE_PATTERN_PREFIX = "file:";
+
+  private final ProjectReactor reactor;
+  private final TrackedFiles trackedFiles;
+  private final Map<File, FutureTask<List<BlameLine>>> tasks = Maps.newConcurrentMap();
+  private final Queue<FutureTask<List<BlameLine>>> notStarted = new ConcurrentLinkedQueue<FutureTask<List<BlameLine>>>();
+  private Executor executor;
+  private boolean started;
+
+  public ProjectBlamePrefetch(ProjectReactor reactor, TrackedFiles trackedFiles) {
+    this.reactor = reactor;
+    this.trackedFiles = trackedFiles;
+  }
+
+  /**
+   * Schedules the blame of the source and test files changed in all the modules, on the first call only. Nothing is
+   * scheduled if the previous revision is unknown, as the files whose previous measures are copied are then unknown.
+   * Must only be used from the main thread.
+   *
+   * @param moduleBaseDir base directory of the module being analysed, whose SCM settings are used
+   * @param scmFacade facade of the module being analysed, see {@link ScmFacade#withUnreportedTimeouts()}
+   * @param previousRevision revision of the previous analysis, null if unknown
+   * @param maxPending maximum number of blames started ahead of their module
+   */
+  public void start(File moduleBaseDir, ScmFacade scmFacade, ScmChanges scmChanges, BlameCache blameCache, @Nullable String previousRevision,
+    Executor executor, int maxPending) {
+    if (started) {
+      return;
+    }
+    started = true;
+
+    File rootDir = TrackedFiles.canonical(reactor.getRoot().getBaseDir());
+    if (previousRevision == null) {
+      LOG.debug("No previous revision, the files of each module are blamed with the module");
+      return;
+    }
+    Set<File> files = trackedFiles.get(scmChanges);
+    Set<File> changed = scmChanges.getChangedFiles(rootDir, previousRevision);
+    ProjectDefinition analysed = module(moduleBaseDir);
+    if (files == null || changed == null || analysed == null) {
+      LOG.debug("Unable to list the files changed in {}, the files of each module are blamed with the module", rootDir);
+      return;
+    }
+
+    Map<ProjectDefinition, List<File>> filesByModule = filesByModule(Sets.intersection(files, changed), scmProperties(analysed));
+    this.executor = executor;
+    for (List<File> moduleFiles : filesByModule.values()) {
+      for (File file : moduleFiles) {
+        FutureTask<List<BlameLine>> task = new FutureTask<List<BlameLine>>(new BlameTask(scmFacade, blameCache, file));
+        tasks.put(file, task);
+        notStarted.add(task);
+      }
+    }
+    LOG.info("Retrieve SCM info for {} file(s) of all the modules", tasks.size());
+    for (int i = 0; i < maxPending; i++) {
+      startNext();
+    }
+  }
+
+  public boolean isScheduled(File file) {
+    return tasks.containsKey(TrackedFiles.canonical(file));
+  }
+
+  /**
+   * Waits for the blame of a file scheduled by {@link #start}. The file is blamed by the calling thread if no blame
+   * thread picked it yet.
+   *
+   * @param scmFacade facade of the module being analysed, which reports the timeouts
+   * @return null if the file was not scheduled
+   */
+  @CheckForNull
+  public List<BlameLine> take(File file, ScmFacade scmFacade) throws ScmException {
+    FutureTask<List<BlameLine>> task = tasks.remove(TrackedFiles.canonical(file));
+    if (task == null) {
+      return null;
+    }
+    startNext();
+    // No-op if already run by a blame thread
+    task.run();
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ScmException("Interrupted while blaming " + file, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof BlameTimeouts.BlameTimeoutException) {
+        scmFacade.reportTimeout(file, (BlameTimeouts.BlameTimeoutException) e.getCause());
+      }
+      Throwables.propagateIfInstanceOf(e.getCause(), ScmException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  private void startNext() {
+    FutureTask<List<BlameLine>> task = notStarted.poll();
+    // Skip the files already blamed by take()
+    while (task != null && task.isDone()) {
+      task = notStarted.poll();
+    }
+    if (task != null) {
+      executor.execute(task);
+    }
+  }
+
+  /**
+   * Called by the container at the end of the analysis.
+   */
+  public void stop() {
+    notStarted.clear();
+    if (!tasks.isEmpty()) {
+      LOG.debug("{} prefetched SCM blame(s) not used", tasks.size());
+      for (FutureTask<List<BlameLine>> task : tasks.values()) {
+        task.cancel(false);
+      }
+      tasks.clear();
+    }
+  }
+
+  @CheckForNull
+  private ProjectDefinition module(File baseDir) {
+    File canonicalBaseDir = TrackedFiles.canonical(baseDir);
+    for (ProjectDefinition module : reactor.getProjects()) {
+      if (TrackedFiles.canonical(module.getBaseDir()).equals(canonicalBaseDir)) {
+        return module;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the files under a source or test directory of a module with the given SCM settings, not excluded from
+   * the analysis, by module of the deepest such directory in the order of analysis
+   */
+  private Map<ProjectDefinition, List<File>> filesByModule(Set<File> files, Map<String, String> scmProperties) {
+    Map<ProjectDefinition, List<File>> result = Maps.newLinkedHashMap();
+    List<SourceDir> dirs = Lists.newArrayList();
+    for (ProjectDefinition module : inAnalysisOrder(reactor.getRoot(), Lists.<ProjectDefinition>newArrayList())) {
+      if (!scmProperties.equals(scmProperties(module))) {
+        continue;
+      }
+      result.put(module, Lists.<File>newArrayList());
+      for (String path : module.getSourceDirs()) {
+        dirs.add(new SourceDir(module, path, property(module, CoreProperties.PROJECT_EXCLUSIONS_PROPERTY)));
+      }
+      for (String path : module.getTestDirs()) {
+        dirs.add(new SourceDir(module, path, property(module, CoreProperties.PROJECT_TEST_EXCLUSIONS_PROPERTY)));
+      }
+    }
+
+    for (File file : files) {
+      File canonicalFile = TrackedFiles.canonical(file);
+      String path = canonicalFile.getPath();
+      SourceDir deepest = null;
+      for (SourceDir dir : dirs) {
+        if (path.startsWith(dir.path) && (deepest == null || dir.path.length() > deepest.path.length())) {
+          deepest = dir;
+        }
+      }
+      if (deepest != null && !deepest.isExcluded(canonicalFile)) {
+        result.get(deepest.module).add(canonicalFile);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Modules are analysed after their sub-modules.
+   */
+  private static List<ProjectDefinition> inAnalysisOrder(ProjectDefinition module, List<ProjectDefinition> result) {
+    for (ProjectDefinition subProject : module.getSubProjects()) {
+      inAnalysisOrder(subProject, result);
+    }
+    result.add(module);
+    return result;
+  }
+
+  private static Map<String, String> scmProperties(ProjectDefinition module) {
+    Map<String, String> result = Maps.newHashMap();
+    for (ProjectDefinition definition = module; definition != null; definition = definition.getParent()) {
+      for (String key : definition.getProperties().stringPropertyNames()) {
+        if (key.startsWith(SCM_PROPERTY_PREFIX) && !result.containsKey(key)) {
+          result.put(key, definition.getProperties().getProperty(key));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the property of the module, inherited from its parents
+   */
+  @CheckForNull
+  private static String property(ProjectDefinition module, String key) {
+    for (ProjectDefinition definition = module; definition != null; definition = definition.getParent()) {
+      String value = definition.getProperties().getProperty(key);
+      if (value != null) {
+        return value;
+      }
+    }
+    return null;
+  }
+
+  private static final class SourceDir {
+    private final ProjectDefinition module;
+    private final File baseDir;
+    private final String path;
+    private final List<WildcardPattern> exclusions = Lists.newArrayList();
+    private final List<WildcardPattern> absoluteExclusions = Lists.newArrayList();
+
+    SourceDir(ProjectDefinition module, String path, @Nullable String exclusions) {
+      this.module = module;
+      this.baseDir = TrackedFiles.canonical(module.getBaseDir());
+      File dir = new File(path);
+      if (!dir.isAbsolute()) {
+        dir = new File(baseDir, path);
+      }
+      this.path = TrackedFiles.canonical(dir).getPath() + File.separator;
+      for (String exclusion : StringUtils.split(StringUtils.defaultString(exclusions), ',')) {
+        String pattern = exclusion.trim();
+        if (pattern.startsWith(ABSOLUTE_PATTERN_PREFIX)) {
+          absoluteExclusions.add(WildcardPattern.create(pattern.substring(ABSOLUTE_PATTERN_PREFIX.length())));
+        } else if (!pattern.isEmpty()) {
+          this.exclusions.add(WildcardPattern.create(pattern));
+        }
+      }
+    }
+
+    /**
+     * Same as the exclusions of the analysis: patterns are relative to the base directory of the module, unless
+     * prefixed with <code>file:</code>.
+     */
+    boolean isExcluded(File file) {
+      String absolutePath = file.getAbsolutePath().replace(File.separatorChar, '/');
+      String basePath = baseDir.getPath().replace(File.separatorChar, '/') + '/';
+      String relativePath = StringUtils.removeStart(absolutePath, basePath);
+      for (WildcardPattern exclusion : exclusions) {
+        if (exclusion.match(relativePath)) {
+          return true;
+        }
+      }
+      for (WildcardPattern exclusion : absoluteExclusions) {
+        if (exclusion.match(absolutePath)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static final class BlameTask implements Callable<List<BlameLine>> {
+    private final ScmFacade scmFacade;
+    private final BlameCache blameCache;
+    private final File file;
+
+    BlameTask(ScmFacade scmFacade, BlameCache blameCache, File file) {
+      this.scmFacade = scmFacade;
+      this.blameCache = blameCache;
+      this.file = file;
+    }
+
+    public List<BlameLine> call() throws ScmException {
+      List<BlameLine> lines = blameCache.get(file);
+      if (lines == null) {
+        BlameScmResult result = scmFacade.blame(file);
+        if (!result.isSuccess()) {
+          throw new ScmException(String.format("%s%n%s", result.getProviderMessage(), result.getCommandOutput()));
+        }
+        lines = result.getLines();
+        blameCache.put(file, lines);
+      }
+      return lines;
+    }
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.scm.manager.NoSuchScmProviderException;
+import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.repository.ScmRepository;
+import org.apache.maven.scm.repository.ScmRepositoryException;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.InstantiationStrategy;
+import org.sonar.plugins.scmactivity.maven.ChildProcesses;
+
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resources shared by the analyses of all the modules of a project: the blame threads, their concurrency limit and
+ * circuit breaker, the SCM repositories, the guessed SCM URLs, the blame deadline and the maintenance of the blame
+ * cache. Threads and processes are started once, and released at the end of the analysis.
+ */
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
+public class ProjectScmResources implements BatchExtension {
+
+  private final SonarScmManager scmManager;
+  private final Map<List<String>, ScmRepository> repositories = Maps.newHashMap();
+  private final Map<File, String> guessedUrls = Maps.newConcurrentMap();
+  private ThreadPoolExecutor executor;
+  private ScheduledExecutorService watchdog;
+  private ConcurrencyLimiter limiter;
+  private BlameCircuitBreaker circuitBreaker;
+  private boolean preflightStarted;
+  private boolean svnExeFallback;
+  private Long blameDeadline;
+  private File blameCacheDir;
+  private long blameCacheMaxSize;
+
+  public ProjectScmResources(SonarScmManager scmManager) {
+    this.scmManager = scmManager;
+  }
+
+  /**
+   * Blame threads, resized to the thread count of the module being analysed.
+   * Must only be used from the main thread.
+   */
+  public ExecutorService getExecutor(int threadCount) {
+    if (executor == null) {
+      executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), new BlameThreadFactory("scm-blame-"));
+    } else if (threadCount > executor.getMaximumPoolSize()) {
+      executor.setMaximumPoolSize(threadCount);
+      executor.setCorePoolSize(threadCount);
+    } else if (threadCount < executor.getMaximumPoolSize()) {
+      executor.setCorePoolSize(threadCount);
+      executor.setMaximumPoolSize(threadCount);
+    }
+    return executor;
+  }
+
+  /**
+   * Limit of the number of blames running at the same time, resized to the maximum of the module being analysed.
+   */
+  public synchronized ConcurrencyLimiter getLimiter(int maxConcurrentBlames, boolean adaptive) {
+    if (limiter == null) {
+      limiter = new ConcurrencyLimiter(maxConcurrentBlames, adaptive);
+    } else {
+      limiter.setMax(maxConcurrentBlames);
+    }
+    return limiter;
+  }
+
+  /**
+   * Circuit breaker of the blame, created with the thresholds of the first module and reported at the end of the analysis.
+   */
+  public synchronized BlameCircuitBreaker getCircuitBreaker(int maxConsecutiveFailures, int maxFailureRate) {
+    if (circuitBreaker == null) {
+      circuitBreaker = new BlameCircuitBreaker(maxConsecutiveFailures, maxFailureRate);
+    }
+    return circuitBreaker;
+  }
+
+  /**
+   * @return true the first time, so that the SCM environment is only checked once, see {@link ScmPreflight}
+   */
+  public synchronized boolean startPreflight() {
+    boolean first = !preflightStarted;
+    preflightStarted = true;
+    return first;
+  }
+
+  /**
+   * Blames Subversion files with svn blame, because the working copy can not be read in-process, see {@link ScmPreflight}.
+   */
+  public synchronized void fallBackToSvnExe() {
+    svnExeFallback = true;
+  }
+
+  public synchronized boolean isSvnExeFallback() {
+    return svnExeFallback;
+  }
+
+  /**
+   * Stops the blame threads and kills their SCM commands, after a failure of the analysis.
+   * Must only be used from the main thread.
+   */
+  public void cancelBlames() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+      ChildProcesses.killAll();
+    }
+  }
+
+  /**
+   * Thread which interrupts the blames lasting too long, see {@link BlameTimeouts}.
+   */
+  public synchronized ScheduledExecutorService getWatchdog() {
+    if (watchdog == null) {
+      watchdog = Executors.newSingleThreadScheduledExecutor(new BlameThreadFactory("scm-blame-watchdog-"));
+    }
+    return watchdog;
+  }
+
+  /**
+   * Time at which the blame of the project must end, computed on the first call.
+   *
+   * @param durationMillis duration of the blame of the whole project, 0 for no deadline
+   */
+  public synchronized long getBlameDeadline(long durationMillis) {
+    if (blameDeadline == null) {
+      blameDeadline = durationMillis > 0 ? System.currentTimeMillis() + durationMillis : Long.MAX_VALUE;
+    }
+    return blameDeadline;
+  }
+
+  /**
+   * SCM repository of an URL, with credentials, created once.
+   */
+  public synchronized ScmRepository getRepository(String url, @Nullable String user, @Nullable String password)
+    throws ScmRepositoryException, NoSuchScmProviderException {
+    List<String> key = Arrays.asList(url, user, password);
+    ScmRepository repository = repositories.get(key);
+    if (repository == null) {
+      repository = scmManager.makeScmRepository(url);
+      if (!StringUtils.isBlank(user)) {
+        ScmProviderRepository providerRepository = repository.getProviderRepository();
+        providerRepository.setUser(user);
+        providerRepository.setPassword(password);
+      }
+      repositories.put(key, repository);
+    }
+    return repository;
+  }
+
+  /**
+   * SCM URL guessed for the directories already looked up, the empty string if none.
+   */
+  Map<File, String> getGuessedUrls() {
+    return guessedUrls;
+  }
+
+  /**
+   * Evicts the entries of the blame cache at the end of the analysis, instead of after each module.
+   */
+  public synchronized void evictBlameCacheOnStop(File dir, long maxSize) {
+    blameCacheDir = dir;
+    blameCacheMaxSize = maxSize;
+  }
+
+  /**
+   * Called by the container at the end of the analysis.
+   */
+  public void stop() {
+    cancelBlames();
+    synchronized (this) {
+      if (watchdog != null) {
+        watchdog.shutdownNow();
+        watchdog = null;
+      }
+      if (circuitBreaker != null) {
+        circuitBreaker.report();
+        circuitBreaker = null;
+      }
+    }
+    scmManager.closeEngines();
+    synchronized (this) {
+      if (blameCacheDir != null) {
+        BlameCache.evict(blameCacheDir, blameCacheMaxSize);
+        blameCacheDir = null;
+      }
+    }
+  }
+
+  @VisibleForTesting
+  ThreadPoolExecutor getExecutor() {
+    return executor;
+  }
+
+  private static final class BlameThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    BlameThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -21,7 +21,6 @@ package org.sonar.plugins.scmactivity;
 
 import com.google.common.annotations.VisibleForTesting;
 import org.sonar.api.batch.SensorContext;
-import org.sonar.api.batch.TimeMachine;
 import org.sonar.api.measures.Measure;
 import org.sonar.api.measures.PersistenceMode;
 import org.sonar.api.resources.Resource;
@@ -39,12 +38,25 @@ public class SaveNewMeasures implements MeasureUpdate {
     this.revisions = revisions;
   }
 
-  public void execute(TimeMachine timeMachine, SensorContext context) {
+  public void execute(PreviousMeasures previousMeasures, SensorContext context) {
+    previousMeasures.forget(resource);
     saveMeasure(context, authors);
     saveMeasure(context, dates);
     saveMeasure(context, revisions);
   }
 
+  /**
+   * Approximate heap size, in bytes, of the measure data held until saved.
+   */
+  long dataSize() {
+    return 2L * (length(authors) + length(dates) + length(revisions));
+  }
+
+  private static int length(Measure measure) {
+    String data = measure.getData();
+    return data == null ? 0 : data.length();
+  }
+
   private void saveMeasure(SensorContext context, Measure measure) {
     context.saveMeasure(resource, measure.setPersistenceMode(PersistenceMode.DATABASE));
   }
@@ -54,6 +66,11 @@ public class SaveNewMeasures implements MeasureUpdate {
     return authors;
   }
 
+  @VisibleForTesting
+  Measure getDates() {
+    return dates;
+  }
+
   @VisibleForTesting
   Measure getRevisions() {
     return revisions;
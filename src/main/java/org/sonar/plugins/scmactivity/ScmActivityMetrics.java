@@ -0,0 +1,44 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import com.google.common.collect.ImmutableList;
+import org.sonar.api.measures.CoreMetrics;
+import org.sonar.api.measures.Metric;
+import org.sonar.api.measures.Metrics;
+
+import java.util.List;
+
+public final class ScmActivityMetrics implements Metrics {
+
+  /**
+   * Revision of the working copy at the time of the analysis of a module. Only saved when the working copy has no local
+   * modification, so that the files changed since then can be asked to the SCM.
+   */
+  public static final Metric SCM_ANALYSED_REVISION = new Metric.Builder("scm_analysed_revision", "SCM analysed revision", Metric.ValueType.STRING)
+    .setDescription("Revision of the working copy when SCM information was last retrieved")
+    .setDomain(CoreMetrics.DOMAIN_SCM)
+    .setHidden(true)
+    .create();
+
+  public List<Metric> getMetrics() {
+    return ImmutableList.of(SCM_ANALYSED_REVISION);
+  }
+}
@@ -72,18 +72,228 @@ import java.util.List;
     key = ScmActivityPlugin.THREAD_COUNT,
     defaultValue = "4",
     name = "Thread count",
-    description = "Number of threads used to speed-up the retrieval of authors by line (aka blame information).",
+    description = "Number of threads used to speed-up the retrieval of authors by line (aka blame information). "
+      + "Git, Mercurial and Bazaar blame files locally, and are limited by the number of processors.",
     module = true,
     project = true,
     global = true
   ),
+  @Property(
+    key = ScmActivityPlugin.MAX_SERVER_REQUESTS,
+    name = "Maximum concurrent server requests",
+    description = "Maximum number of files blamed at the same time with SCMs which query a server: Subversion, CVS, Perforce, TFS, "
+      + "ClearCase, AccuRev, Jazz and Integrity. Defaults to 16 for Subversion, 8 for Perforce and TFS, and 4 for the others. "
+      + "More threads than the thread count are started if needed.",
+    module = false,
+    project = true,
+    global = true,
+    type = PropertyType.INTEGER
+  ),
+  @Property(
+    key = ScmActivityPlugin.ADAPTIVE_CONCURRENCY,
+    defaultValue = "false",
+    name = "Adaptive concurrency",
+    description = "Start with half of the maximum number of concurrent blames, and raise it while the throughput improves. "
+      + "Back off when the blames get slower or fail.",
+    module = false,
+    project = true,
+    global = true,
+    type = PropertyType.BOOLEAN
+  ),
+  @Property(
+    key = ScmActivityPlugin.BLAME_TIMEOUT,
+    defaultValue = "300",
+    name = "Blame timeout (seconds)",
+    description = "Maximum duration of the retrieval of the blame information of a file. The SCM command is killed after this delay "
+      + "and the previous blame information of the file is kept. 0 for no timeout.",
+    module = true,
+    project = true,
+    global = true,
+    type = PropertyType.INTEGER
+  ),
+  @Property(
+    key = ScmActivityPlugin.BLAME_DEADLINE,
+    defaultValue = "0",
+    name = "Blame deadline (seconds)",
+    description = "Maximum duration of the retrieval of the blame information of the whole project. Once reached, the files not blamed "
+      + "yet keep their previous blame information. 0 for no deadline.",
+    module = false,
+    project = true,
+    global = true,
+    type = PropertyType.INTEGER
+  ),
+  @Property(
+    key = ScmActivityPlugin.CIRCUIT_BREAKER_FAILURES,
+    defaultValue = "10",
+    name = "Consecutive blame failures before stopping",
+    description = "The blame is stopped after this number of consecutive failures with the same cause, "
+      + "and the remaining files keep their previous SCM info. 0 to never stop.",
+    module = false,
+    project = true,
+    global = true,
+    type = PropertyType.INTEGER
+  ),
+  @Property(
+    key = ScmActivityPlugin.CIRCUIT_BREAKER_FAILURE_RATE,
+    defaultValue = "50",
+    name = "Blame failure rate before stopping (%)",
+    description = "The blame is stopped when this percentage of the files fail with the same cause, "
+      + "and the remaining files keep their previous SCM info. 0 to never stop.",
+    module = false,
+    project = true,
+    global = true,
+    type = PropertyType.INTEGER
+  ),
+  @Property(
+    key = ScmActivityPlugin.MAX_PENDING_UPDATES,
+    defaultValue = "256",
+    name = "Maximum pending updates",
+    description = "Maximum number of files whose blame information is being retrieved or waiting to be saved. "
+      + "Bounds the memory used by the analysis of large projects.",
+    module = true,
+    project = true,
+    global = true,
+    type = PropertyType.INTEGER
+  ),
+  @Property(
+    key = ScmActivityPlugin.MAX_PENDING_DATA_SIZE,
+    defaultValue = "64",
+    name = "Maximum pending data size (MB)",
+    description = "Maximum size of the blame information retrieved but not yet saved. "
+      + "Blame threads wait for the measures to be saved when this limit is reached.",
+    module = true,
+    project = true,
+    global = true,
+    type = PropertyType.INTEGER
+  ),
+  @Property(
+    key = ScmActivityPlugin.CACHE_PATH,
+    defaultValue = "",
+    name = "Blame cache directory",
+    description = "Directory of a local cache of blame information, shared between analyses of the same machine. "
+      + "A version of a file which was already blamed is not blamed again. Only used with Git, Subversion and Mercurial. "
+      + "Leave empty to disable the cache.",
+    module = false,
+    project = true,
+    global = true
+  ),
+  @Property(
+    key = ScmActivityPlugin.CACHE_MAX_SIZE,
+    defaultValue = "256",
+    name = "Blame cache maximum size (MB)",
+    description = "Least recently used entries are evicted from the blame cache when it grows over this size.",
+    module = false,
+    project = true,
+    global = true,
+    type = PropertyType.INTEGER
+  ),
+  @Property(
+    key = ScmActivityPlugin.GIT_BLAME_ENGINE,
+    defaultValue = ScmActivityPlugin.GIT_BLAME_ENGINE_EXE,
+    name = "Git blame engine",
+    description = "<i>exe</i> runs git blame for each file. <i>inprocess</i> computes blame within the analysis, "
+      + "walking the history once for all the files and reading the repository through a single git process. <i>verify</i> runs both, logs the lines on which they differ "
+      + "and keeps the result of <i>exe</i>.",
+    module = false,
+    project = true,
+    global = true,
+    type = PropertyType.SINGLE_SELECT_LIST,
+    options = {ScmActivityPlugin.GIT_BLAME_ENGINE_EXE, ScmActivityPlugin.GIT_BLAME_ENGINE_IN_PROCESS, ScmActivityPlugin.GIT_BLAME_ENGINE_VERIFY}
+  ),
+  @Property(
+    key = ScmActivityPlugin.INCREMENTAL_BLAME,
+    defaultValue = "false",
+    name = "Incremental blame",
+    description = "Only blame the lines changed since the previous analysis, and shift the blame information of the other lines. "
+      + "Only supported with Git 1.8.4 or later and the <i>exe</i> git blame engine.",
+    module = false,
+    project = true,
+    global = true,
+    type = PropertyType.BOOLEAN
+  ),
+  @Property(
+    key = ScmActivityPlugin.SVN_BLAME_ENGINE,
+    defaultValue = ScmActivityPlugin.SVN_BLAME_ENGINE_EXE,
+    name = "Subversion blame engine",
+    description = "<i>exe</i> runs svn blame for each file. <i>inprocess</i> computes blame within the analysis with SVNKit, "
+      + "sending the requests of all the files over a few authenticated sessions kept open on the server. "
+      + "<i>inprocess</i> reads working copies of Subversion 1.7 and later, and falls back to svn blame when it can not read "
+      + "the working copy.",
+    module = false,
+    project = true,
+    global = true,
+    type = PropertyType.SINGLE_SELECT_LIST,
+    options = {ScmActivityPlugin.SVN_BLAME_ENGINE_EXE, ScmActivityPlugin.SVN_BLAME_ENGINE_IN_PROCESS}
+  ),
+  @Property(
+    key = ScmActivityPlugin.HG_BLAME_ENGINE,
+    defaultValue = ScmActivityPlugin.HG_BLAME_ENGINE_EXE,
+    name = "Mercurial blame engine",
+    description = "<i>exe</i> runs hg annotate for each file. <i>cmdserver</i> runs hg annotate over a Mercurial command server "
+      + "kept by each blame thread, so that Mercurial is not started again for each file. "
+      + "<i>cmdserver</i> requires a version of Mercurial whose annotate command supports templates.",
+    module = false,
+    project = true,
+    global = true,
+    type = PropertyType.SINGLE_SELECT_LIST,
+    options = {ScmActivityPlugin.HG_BLAME_ENGINE_EXE, ScmActivityPlugin.HG_BLAME_ENGINE_COMMAND_SERVER}
+  ),
+  @Property(
+    key = ScmActivityPlugin.SVN_BATCH_BLAME,
+    defaultValue = "false",
+    name = "Blame Subversion files by directory",
+    description = "Blame up to " + Blame.MAX_BATCH_SIZE + " files of a directory with a single <i>svn blame</i> command, "
+      + "so that they share the connection to the server. Only used by the <i>exe</i> Subversion blame engine.",
+    module = false,
+    project = true,
+    global = true,
+    type = PropertyType.BOOLEAN
+  ),
+  @Property(
+    key = ScmActivityPlugin.PREFETCH_ALL_MODULES,
+    defaultValue = "false",
+    name = "Blame all modules at once",
+    description = "Blame the files changed since the previous analysis in all the modules during the analysis of the first one, "
+      + "so that the blame threads are kept busy for the whole analysis. Excluded files and modules with other SCM settings are "
+      + "blamed with their module. Only supported with Git, Subversion and Mercurial.",
+    module = false,
+    project = true,
+    global = true,
+    type = PropertyType.BOOLEAN
+  ),
+  @Property(
+    key = ScmActivityPlugin.PERFORCE_BLAME_ENGINE,
+    defaultValue = ScmActivityPlugin.PERFORCE_BLAME_ENGINE_EXE,
+    name = "Perforce blame engine",
+    description = "<i>exe</i> runs p4 annotate and p4 filelog for each file, the revision of a line is the one of the file. "
+      + "<i>batch</i> blames up to " + Blame.MAX_BATCH_SIZE + " files of a directory with a single p4 annotate, and describes each changelist "
+      + "once for all the files; the revision of a line is its changelist number.",
+    module = false,
+    project = true,
+    global = true,
+    type = PropertyType.SINGLE_SELECT_LIST,
+    options = {ScmActivityPlugin.PERFORCE_BLAME_ENGINE_EXE, ScmActivityPlugin.PERFORCE_BLAME_ENGINE_BATCH}
+  ),
+  @Property(
+    key = ScmActivityPlugin.TFS_BLAME_ENGINE,
+    defaultValue = ScmActivityPlugin.TFS_BLAME_ENGINE_EXE,
+    name = "TFS blame engine",
+    description = "<i>exe</i> runs SonarTfsAnnotate for each file. <i>server</i> sends the files to a SonarTfsAnnotate server "
+      + "kept by each blame thread, so that it loads the TFS client and authenticates only once. "
+      + "<i>server</i> requires a version of SonarTfsAnnotate which supports the <i>--server</i> option.",
+    module = false,
+    project = true,
+    global = true,
+    type = PropertyType.SINGLE_SELECT_LIST,
+    options = {ScmActivityPlugin.TFS_BLAME_ENGINE_EXE, ScmActivityPlugin.TFS_BLAME_ENGINE_SERVER}
+  ),
   @Property(
     key = ScmActivityPlugin.PERFORCE_CLIENTSPEC_NAME,
     defaultValue = "",
     name = "Perforce Clientspec name",
     description = "Will set the property "
       + "<a href=\"http://maven.apache.org/scm/maven-scm-providers/maven-scm-provider-perforce/\">maven.scm.perforce.clientspec.name</a> "
-      + "used by Perforce SCM provider",
+      + "used by Perforce SCM provider. The <i>batch</i> Perforce blame engine passes it to its commands instead.",
     module = false,
     project = false,
     global = false
@@ -94,18 +304,60 @@ public final class ScmActivityPlugin extends SonarPlugin {
   public static final String USER = "sonar.scm.user.secured";
   public static final String PASSWORD = "sonar.scm.password.secured";
   public static final String THREAD_COUNT = "sonar.scm.threadCount";
+  public static final String MAX_SERVER_REQUESTS = "sonar.scm.maxServerRequests";
+  public static final String ADAPTIVE_CONCURRENCY = "sonar.scm.adaptiveConcurrency";
+  public static final String BLAME_TIMEOUT = "sonar.scm.blameTimeout";
+  public static final String BLAME_DEADLINE = "sonar.scm.blameDeadline";
+  public static final String CIRCUIT_BREAKER_FAILURES = "sonar.scm.circuitBreaker.failures";
+  public static final String CIRCUIT_BREAKER_FAILURE_RATE = "sonar.scm.circuitBreaker.failureRate";
+  public static final String MAX_PENDING_UPDATES = "sonar.scm.maxPendingUpdates";
+  public static final String MAX_PENDING_DATA_SIZE = "sonar.scm.maxPendingDataSize";
+  public static final String CACHE_PATH = "sonar.scm.cache.path";
+  public static final String CACHE_MAX_SIZE = "sonar.scm.cache.maxSize";
+  public static final String GIT_BLAME_ENGINE = "sonar.scm.git.blameEngine";
+  public static final String GIT_BLAME_ENGINE_EXE = "exe";
+  public static final String GIT_BLAME_ENGINE_IN_PROCESS = "inprocess";
+  public static final String GIT_BLAME_ENGINE_VERIFY = "verify";
+  public static final String INCREMENTAL_BLAME = "sonar.scm.incrementalBlame";
+  public static final String SVN_BLAME_ENGINE = "sonar.scm.svn.blameEngine";
+  public static final String SVN_BLAME_ENGINE_EXE = "exe";
+  public static final String SVN_BLAME_ENGINE_IN_PROCESS = "inprocess";
+  public static final String HG_BLAME_ENGINE = "sonar.scm.hg.blameEngine";
+  public static final String HG_BLAME_ENGINE_EXE = "exe";
+  public static final String HG_BLAME_ENGINE_COMMAND_SERVER = "cmdserver";
+  public static final String SVN_BATCH_BLAME = "sonar.scm.svn.batchBlame";
+  public static final String PREFETCH_ALL_MODULES = "sonar.scm.prefetchAllModules";
   public static final String PERFORCE_CLIENTSPEC_NAME = "sonar.scm.perforce.clientspec.name";
+  public static final String PERFORCE_BLAME_ENGINE = "sonar.scm.perforce.blameEngine";
+  public static final String PERFORCE_BLAME_ENGINE_EXE = "exe";
+  public static final String PERFORCE_BLAME_ENGINE_BATCH = "batch";
+  public static final String TFS_BLAME_ENGINE = "sonar.scm.tfs.blameEngine";
+  public static final String TFS_BLAME_ENGINE_EXE = "exe";
+  public static final String TFS_BLAME_ENGINE_SERVER = "server";
 
   @SuppressWarnings("unchecked")
   public List getExtensions() {
     return ImmutableList.of(
+      AuthorNormalizer.class,
       Blame.class,
+      BlameCache.class,
+      BlameDurations.class,
+      BlameTimeouts.class,
       BlameVersionSelector.class,
+      ChangedFiles.class,
       MavenScmConfiguration.class,
+      PreviousMeasures.class,
+      ProjectBlamePrefetch.class,
+      ProjectScmResources.class,
+      ScmActivityMetrics.class,
       ScmActivitySensor.class,
+      ScmActivityWarmUpSensor.class,
+      ScmChanges.class,
       ScmConfiguration.class,
       SonarScmManager.class,
+      TrackedFiles.class,
       ScmFacade.class,
+      ScmPreflight.class,
       ScmUrlGuess.class,
       UrlChecker.class);
   }
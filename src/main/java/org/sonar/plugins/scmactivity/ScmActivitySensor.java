@@ -21,18 +21,16 @@ package org.sonar.plugins.scmactivity;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
-import org.apache.commons.lang.exception.ExceptionUtils;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.batch.DependedUpon;
 import org.sonar.api.batch.Sensor;
 import org.sonar.api.batch.SensorContext;
-import org.sonar.api.batch.TimeMachine;
-import org.sonar.api.batch.TimeMachineQuery;
 import org.sonar.api.batch.fs.FileSystem;
 import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.measures.CoreMetrics;
-import org.sonar.api.measures.Measure;
 import org.sonar.api.measures.Metric;
 import org.sonar.api.resources.File;
 import org.sonar.api.resources.Project;
@@ -41,26 +39,48 @@ import org.sonar.api.utils.TimeProfiler;
 
 import java.nio.charset.Charset;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
-public final class ScmActivitySensor implements Sensor {
+public class ScmActivitySensor implements Sensor {
   private static final Logger LOG = LoggerFactory.getLogger(ScmActivitySensor.class);
 
   private final ScmConfiguration configuration;
   private final BlameVersionSelector blameVersionSelector;
   private final UrlChecker urlChecker;
-  private final TimeMachine timeMachine;
+  private final ScmPreflight preflight;
+  private final PreviousMeasures previousMeasures;
+  private final BlameCache blameCache;
+  private final Blame blame;
+  private final ChangedFiles changedFiles;
+  private final ScmChanges scmChanges;
+  private final TrackedFiles trackedFiles;
+  private final ProjectScmResources projectResources;
+  private final BlameTimeouts timeouts;
+  private final BlameDurations durations;
   private final FileSystem fs;
+  private Map<InputFile, Resource> sonarFiles;
+  private Set<InputFile> withPreviousMeasures;
+  private Set<InputFile> untracked;
 
   public ScmActivitySensor(ScmConfiguration configuration, BlameVersionSelector blameVersionSelector, UrlChecker urlChecker,
-    TimeMachine timeMachine, FileSystem fs) {
+    ScmPreflight preflight, PreviousMeasures previousMeasures, BlameCache blameCache, Blame blame, ChangedFiles changedFiles, ScmChanges scmChanges,
+    TrackedFiles trackedFiles, ProjectScmResources projectResources, BlameTimeouts timeouts, BlameDurations durations, FileSystem fs) {
     this.configuration = configuration;
     this.blameVersionSelector = blameVersionSelector;
     this.urlChecker = urlChecker;
-    this.timeMachine = timeMachine;
+    this.preflight = preflight;
+    this.previousMeasures = previousMeasures;
+    this.blameCache = blameCache;
+    this.blame = blame;
+    this.changedFiles = changedFiles;
+    this.scmChanges = scmChanges;
+    this.trackedFiles = trackedFiles;
+    this.projectResources = projectResources;
+    this.timeouts = timeouts;
+    this.durations = durations;
     this.fs = fs;
   }
 
@@ -77,70 +97,120 @@ public final class ScmActivitySensor implements Sensor {
   }
 
   public void analyse(Project module, final SensorContext context) {
-    urlChecker.check(configuration.getUrl());
+    if (sonarFiles == null) {
+      warmUp(module, context);
+    }
 
     TimeProfiler profiler = new TimeProfiler().start("Retrieve SCM blame information with encoding " + Charset.defaultCharset());
 
-    // Use multiple threads for the change detection and the blame retrieval
+    // Use multiple threads for the change detection and the blame retrieval, shared by all the modules
     // However all measures read/write should be done on main thread
     //
-    ExecutorService executor = createExecutor();
-
-    List<Future<MeasureUpdate>> updates = Lists.newArrayList();
-    collect(updates, context, fs.inputFiles(fs.predicates().all()), executor);
-    execute(updates, context);
+    ExecutorService executor = projectResources.getExecutor(configuration.getBlameThreadCount());
+    MeasureUpdatePipeline pipeline = new MeasureUpdatePipeline(executor, previousMeasures, context,
+      configuration.getMaxPendingUpdates(), configuration.getMaxPendingDataSize());
+
+    try {
+      submit(pipeline, context);
+      sonarFiles = null;
+      withPreviousMeasures = null;
+      untracked = null;
+      pipeline.finish();
+    } catch (RuntimeException e) {
+      // Do not leave SCM commands running in background
+      projectResources.cancelBlames();
+      throw e;
+    }
+    changedFiles.saveRevision(context);
 
-    executor.shutdown();
+    blameCache.close();
+    durations.save();
+    timeouts.report();
 
     profiler.stop();
   }
 
-  private void collect(List<Future<MeasureUpdate>> updates, final SensorContext context,
-    Iterable<InputFile> allFiles, ExecutorService executor) {
-    for (final InputFile inputFile : allFiles) {
+  /**
+   * Selects the files to blame and starts their blame in background, see {@link ScmActivityWarmUpSensor}.
+   * Must be called from the main thread.
+   */
+  public void warmUp(Project module, SensorContext context) {
+    urlChecker.check(configuration.getUrl());
+    preflight.check();
+
+    ExecutorService executor = projectResources.getExecutor(configuration.getBlameThreadCount());
+    changedFiles.detect(module);
+    if (configuration.isPrefetchAllModulesEnabled()) {
+      blame.prefetchAllModules(fs.baseDir(), scmChanges, changedFiles.getPreviousRevision(), executor, configuration.getMaxPendingUpdates());
+    }
+    List<InputFile> filesToBlame = collect(context, fs.inputFiles(fs.predicates().all()));
+    blame.warmUp(filesToBlame, executor, configuration.getMaxPendingUpdates());
+  }
+
+  private List<InputFile> collect(SensorContext context, Iterable<InputFile> allFiles) {
+    sonarFiles = Maps.newLinkedHashMap();
+    withPreviousMeasures = Sets.newHashSet();
+    untracked = Sets.newHashSet();
+    List<InputFile> filesToBlame = Lists.newArrayList();
+    String previousRevision = changedFiles.getPreviousRevision();
+    boolean incremental = previousRevision != null && blame.isIncrementalEnabled();
+    for (InputFile inputFile : allFiles) {
       // Load resource to get fully initialized one
-      final Resource sonarFile = context.getResource(File.create(inputFile.relativePath()));
+      Resource sonarFile = context.getResource(File.create(inputFile.relativePath()));
       if (sonarFile == null) {
         LOG.debug("File not found in Sonar index: {}", inputFile.file());
       } else {
-        final boolean hasPreviousMeasures = hasScmMeasuresOnPreviousAnalysis(sonarFile);
-        updates.add(executor.submit(new Callable<MeasureUpdate>() {
-          public MeasureUpdate call() {
-            return blameVersionSelector.detect(sonarFile, inputFile, context, hasPreviousMeasures);
+        sonarFiles.put(inputFile, sonarFile);
+        if (!trackedFiles.isTracked(scmChanges, inputFile.file())) {
+          // Generated or ignored file, whose blame would fail
+          untracked.add(inputFile);
+          continue;
+        }
+        // Previous measures only matter for unchanged files, which are copied
+        boolean hasPreviousMeasures = changedFiles.isUnchanged(inputFile) && previousMeasures.prefetch(sonarFile);
+        if (hasPreviousMeasures) {
+          withPreviousMeasures.add(inputFile);
+        }
+        if (blameVersionSelector.shouldBlame(inputFile, hasPreviousMeasures)) {
+          filesToBlame.add(inputFile);
+          if (incremental && !changedFiles.isUnchanged(inputFile)) {
+            blame.setPreviousBlame(inputFile.file(), previousRevision, previousMeasures.take(sonarFile));
           }
-        }));
+        }
       }
     }
-  }
 
-  private void execute(List<Future<MeasureUpdate>> updates, SensorContext context) {
-    for (Future<MeasureUpdate> update : updates) {
-      try {
-        MeasureUpdate measureUpdate = update.get();
-        measureUpdate.execute(timeMachine, context);
-      } catch (Exception e) {
-        LOG.error("Failure during SCM blame retrieval", ExceptionUtils.getRootCause(e));
-      }
+    if (!untracked.isEmpty()) {
+      LOG.info("{} file(s) not tracked by the SCM are not blamed", untracked.size());
     }
-  }
 
-  private ExecutorService createExecutor() {
-    return Executors.newFixedThreadPool(configuration.getThreadCount());
-  }
-
-  private boolean hasScmMeasuresOnPreviousAnalysis(Resource resource) {
-    List<Measure> measures = timeMachine.getMeasures(queryPreviousMeasure(resource));
-    if (measures.isEmpty()) {
-      return false;
+    durations.sortLongestFirst(filesToBlame);
+    // Longest blames are also saved first, so that they do not wait for the others
+    Map<InputFile, Resource> ordered = Maps.newLinkedHashMap();
+    for (InputFile inputFile : filesToBlame) {
+      ordered.put(inputFile, sonarFiles.get(inputFile));
     }
+    ordered.putAll(sonarFiles);
+    sonarFiles = ordered;
 
-    return true;
+    return filesToBlame;
   }
 
-  private static TimeMachineQuery queryPreviousMeasure(Resource resource) {
-    return new TimeMachineQuery(resource)
-      .setMetrics(CoreMetrics.SCM_AUTHORS_BY_LINE)
-      .setOnlyLastAnalysis(true);
+  private void submit(MeasureUpdatePipeline pipeline, final SensorContext context) {
+    for (Map.Entry<InputFile, Resource> entry : sonarFiles.entrySet()) {
+      final InputFile inputFile = entry.getKey();
+      final Resource sonarFile = entry.getValue();
+      final boolean hasPreviousMeasures = withPreviousMeasures.contains(inputFile);
+      final boolean tracked = !untracked.contains(inputFile);
+      pipeline.submit(new Callable<MeasureUpdate>() {
+        public MeasureUpdate call() {
+          if (!tracked) {
+            return new CopyPreviousMeasures(sonarFile);
+          }
+          return blameVersionSelector.detect(sonarFile, inputFile, context, hasPreviousMeasures);
+        }
+      });
+    }
   }
 
   @Override
@@ -0,0 +1,53 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.sonar.api.batch.Phase;
+import org.sonar.api.batch.Sensor;
+import org.sonar.api.batch.SensorContext;
+import org.sonar.api.resources.Project;
+
+/**
+ * Starts the blame of the files of the module before the other sensors, so that it runs in background while they
+ * are executed. {@link ScmActivitySensor} then only saves the measures.
+ */
+@Phase(name = Phase.Name.PRE)
+public final class ScmActivityWarmUpSensor implements Sensor {
+  private final ScmConfiguration configuration;
+  private final ScmActivitySensor scmActivitySensor;
+
+  public ScmActivityWarmUpSensor(ScmConfiguration configuration, ScmActivitySensor scmActivitySensor) {
+    this.configuration = configuration;
+    this.scmActivitySensor = scmActivitySensor;
+  }
+
+  public boolean shouldExecuteOnProject(Project project) {
+    return configuration.isEnabled();
+  }
+
+  public void analyse(Project module, SensorContext context) {
+    scmActivitySensor.warmUp(module, context);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName();
+  }
+}
@@ -0,0 +1,405 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.scm.provider.ScmUrlUtils;
+import org.apache.maven.scm.provider.svn.repository.SvnScmProviderRepository;
+import org.apache.maven.scm.provider.svn.svnexe.command.SvnCommandLineUtils;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.fs.FileSystem;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Asks the SCM, with a single command, for the revision of the working copy and for the files changed since a given
+ * revision, for the files it tracks and for the last commit of a file. Supported for Git, Subversion and Mercurial.
+ */
+public class ScmChanges implements BatchExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(ScmChanges.class);
+  private static final Pattern SVN_CHANGED_PATH = Pattern.compile("\\s+[MADR] (/.*?)(?: \\(from .*:\\d+\\))?");
+  private static final Pattern SVN_STATUS_ENTRY = Pattern.compile("<entry\\s+path=\"([^\"]*)\">\\s*<wc-status[^>]*?\\sitem=\"([^\"]*)\"");
+  private static final Set<String> SVN_UNTRACKED_ITEMS = ImmutableSet.of("unversioned", "ignored", "added", "external", "none");
+
+  /**
+   * Maximum duration of a command, so that a prompt or an unreachable server can not hang the analysis
+   */
+  @VisibleForTesting
+  static final int COMMAND_TIMEOUT_SECONDS = 600;
+
+  private final ScmConfiguration configuration;
+  private final FileSystem fs;
+  private final Map<File, String> hgRoots = Maps.newConcurrentMap();
+
+  public ScmChanges(ScmConfiguration configuration, FileSystem fs) {
+    this.configuration = configuration;
+    this.fs = fs;
+  }
+
+  /**
+   * @return null if unknown
+   */
+  @CheckForNull
+  public String getRevision() {
+    return getRevision(fs.baseDir());
+  }
+
+  @CheckForNull
+  private String getRevision(File dir) {
+    String provider = configuration.getScmProvider();
+    if ("git".equals(provider)) {
+      return StringUtils.trimToNull(run(dir, "git", "rev-parse", "HEAD"));
+    }
+    if ("svn".equals(provider)) {
+      return svnInfo(dir, "Revision");
+    }
+    if ("hg".equals(provider)) {
+      return StringUtils.trimToNull(run(dir, "hg", "log", "-r", ".", "--template", "{node}"));
+    }
+    return null;
+  }
+
+  /**
+   * Files committed since the given revision, or locally modified.
+   *
+   * @return null if unknown
+   */
+  @CheckForNull
+  public Set<File> getChangedFiles(String revision) {
+    return getChangedFiles(fs.baseDir(), revision);
+  }
+
+  /**
+   * Files under the given directory committed since the given revision, or locally modified.
+   *
+   * @return null if unknown
+   */
+  @CheckForNull
+  public Set<File> getChangedFiles(File dir, String revision) {
+    String provider = configuration.getScmProvider();
+    if ("git".equals(provider)) {
+      String output = run(dir, "git", "diff", "--name-only", "-z", "--relative", revision, "--");
+      return output == null ? null : gitFiles(dir, output);
+    }
+    if ("svn".equals(provider)) {
+      return svnChangedFiles(dir, revision);
+    }
+    if ("hg".equals(provider)) {
+      String root = run(dir, "hg", "root");
+      String output = run(dir, "hg", "status", "--rev", revision, "-m", "-a", "-r", "-n");
+      return root == null || output == null ? null : relativeFiles(new File(root.trim()), output);
+    }
+    return null;
+  }
+
+  /**
+   * Files under the given directory known to the SCM.
+   *
+   * @return null if unknown
+   */
+  @CheckForNull
+  public Set<File> getTrackedFiles(File dir) {
+    String provider = configuration.getScmProvider();
+    if ("git".equals(provider)) {
+      String output = run(dir, "git", "ls-files", "-z");
+      return output == null ? null : gitFiles(dir, output);
+    }
+    if ("svn".equals(provider)) {
+      // Local command, the repository is not queried
+      String output = svn(dir, "status", "-v", "--xml");
+      return output == null ? null : svnFiles(dir, output);
+    }
+    if ("hg".equals(provider)) {
+      String root = StringUtils.trimToNull(run(dir, "hg", "root"));
+      // Files of the parent revision of the working directory, which are the only ones hg annotate can blame
+      String output = root == null ? null : run(dir, "hg", "manifest");
+      return output == null ? null : hgFiles(dir, new File(root), output);
+    }
+    return null;
+  }
+
+  public boolean isLastCommitSupported() {
+    String provider = configuration.getScmProvider();
+    return "git".equals(provider) || "svn".equals(provider) || "hg".equals(provider);
+  }
+
+  /**
+   * Identifies, with a local command, the repository of a file, its path in the repository and the last commit which
+   * changed it. Git and Mercurial commit ids already identify the history of their repository, Subversion revisions
+   * are qualified by the UUID of the repository.
+   *
+   * @return null if unknown, for example if the file was never committed
+   */
+  @CheckForNull
+  public String getLastCommit(File file) {
+    File dir = file.getParentFile();
+    String provider = configuration.getScmProvider();
+    if ("git".equals(provider)) {
+      // The commit, an empty line and the path relative to the root of the repository
+      String output = run(dir, "git", "log", "-1", "--format=%H", "--name-only", "--", file.getName());
+      return output == null ? null : StringUtils.trimToNull(output.replaceAll("\\s+", " "));
+    }
+    if ("svn".equals(provider)) {
+      String info = svn(dir, "info", file.getName());
+      String uuid = svnInfoField(info, "Repository UUID");
+      String url = svnInfoField(info, "URL");
+      String root = svnInfoField(info, "Repository Root");
+      String revision = svnInfoField(info, "Last Changed Rev");
+      if (uuid == null || url == null || root == null || revision == null) {
+        return null;
+      }
+      return uuid + " " + revision + " " + url.substring(root.length());
+    }
+    if ("hg".equals(provider)) {
+      String root = hgRoot(dir);
+      String node = StringUtils.trimToNull(run(dir, "hg", "log", "-f", "-l", "1", "--template", "{node}", file.getName()));
+      String prefix = root == null ? null : relativePrefix(new File(root), dir);
+      if (node == null || prefix == null) {
+        return null;
+      }
+      return node + " " + prefix + file.getName();
+    }
+    return null;
+  }
+
+  @CheckForNull
+  private String hgRoot(File dir) {
+    String root = hgRoots.get(dir);
+    if (root == null) {
+      root = StringUtils.trimToEmpty(run(dir, "hg", "root"));
+      hgRoots.put(dir, root);
+    }
+    return StringUtils.trimToNull(root);
+  }
+
+  @VisibleForTesting
+  static Set<File> svnFiles(File baseDir, String output) {
+    Set<File> files = Sets.newHashSet();
+    Matcher matcher = SVN_STATUS_ENTRY.matcher(output);
+    while (matcher.find()) {
+      if (!SVN_UNTRACKED_ITEMS.contains(matcher.group(2))) {
+        files.add(new File(baseDir, StringEscapeUtils.unescapeXml(matcher.group(1))));
+      }
+    }
+    return files;
+  }
+
+  /**
+   * @param root root of the repository, to which the paths are relative
+   */
+  @VisibleForTesting
+  static Set<File> hgFiles(File dir, File root, String output) {
+    String prefix = relativePrefix(root, dir);
+    Set<File> files = Sets.newHashSet();
+    for (String path : output.split("\\r?\\n")) {
+      if (prefix != null && path.startsWith(prefix) && path.length() > prefix.length()) {
+        files.add(new File(dir, path.substring(prefix.length())));
+      }
+    }
+    return files;
+  }
+
+  /**
+   * @return path of the directory relative to the root, with a trailing slash unless empty, null if not under the root
+   */
+  @CheckForNull
+  private static String relativePrefix(File root, File dir) {
+    String rootPath = TrackedFiles.canonical(root).getPath();
+    String dirPath = TrackedFiles.canonical(dir).getPath();
+    if (dirPath.equals(rootPath)) {
+      return "";
+    }
+    if (!dirPath.startsWith(rootPath + File.separator)) {
+      return null;
+    }
+    return dirPath.substring(rootPath.length() + 1).replace(File.separatorChar, '/') + "/";
+  }
+
+  @VisibleForTesting
+  static Set<File> gitFiles(File baseDir, String output) {
+    Set<File> files = Sets.newHashSet();
+    for (String path : output.split("[\\u0000\\r\\n]+")) {
+      if (path.length() > 0) {
+        files.add(new File(baseDir, path));
+      }
+    }
+    return files;
+  }
+
+  @CheckForNull
+  private Set<File> svnChangedFiles(File dir, String revision) {
+    String current = getRevision(dir);
+    if (current == null || !StringUtils.isNumeric(revision) || Long.parseLong(revision) > Long.parseLong(current)) {
+      return null;
+    }
+
+    Set<File> files = Sets.newHashSet();
+    if (Long.parseLong(revision) < Long.parseLong(current)) {
+      String url = svnInfo(dir, "URL");
+      String root = svnInfo(dir, "Repository Root");
+      String log = svn(dir, "log", "-v", "-q", "-r", (Long.parseLong(revision) + 1) + ":BASE");
+      if (url == null || root == null || log == null) {
+        return null;
+      }
+      files.addAll(svnLogChangedFiles(dir, decode(url.substring(root.length())), log));
+    }
+
+    String status = svn(dir, "status", "-q");
+    if (status == null) {
+      return null;
+    }
+    files.addAll(svnStatusChangedFiles(dir, status));
+    return files;
+  }
+
+  /**
+   * @param prefix path of the working copy in the repository, e.g. /trunk/module
+   */
+  @VisibleForTesting
+  static Set<File> svnLogChangedFiles(File baseDir, String prefix, String log) {
+    Set<File> files = Sets.newHashSet();
+    for (String line : log.split("\\r?\\n")) {
+      Matcher matcher = SVN_CHANGED_PATH.matcher(line);
+      if (matcher.matches() && matcher.group(1).startsWith(prefix + "/")) {
+        files.add(new File(baseDir, matcher.group(1).substring(prefix.length() + 1)));
+      }
+    }
+    return files;
+  }
+
+  @VisibleForTesting
+  static Set<File> svnStatusChangedFiles(File baseDir, String status) {
+    Set<File> files = Sets.newHashSet();
+    for (String line : status.split("\\r?\\n")) {
+      // 7 columns of status, a space and the path
+      if (line.length() > 8 && line.charAt(0) != ' ') {
+        files.add(new File(baseDir, line.substring(8).trim()));
+      }
+    }
+    return files;
+  }
+
+  @VisibleForTesting
+  static Set<File> relativeFiles(File dir, String output) {
+    Set<File> files = Sets.newHashSet();
+    for (String path : output.split("\\r?\\n")) {
+      if (path.trim().length() > 0) {
+        files.add(new File(dir, path.trim()));
+      }
+    }
+    return files;
+  }
+
+  @CheckForNull
+  private String svnInfo(File dir, String field) {
+    return svnInfoField(svn(dir, "info"), field);
+  }
+
+  @CheckForNull
+  private static String svnInfoField(@Nullable String info, String field) {
+    if (info == null) {
+      return null;
+    }
+    for (String line : info.split("\\r?\\n")) {
+      if (line.startsWith(field + ": ")) {
+        return line.substring(field.length() + 2).trim();
+      }
+    }
+    return null;
+  }
+
+  private static String decode(String path) {
+    try {
+      return URLDecoder.decode(path.replace("+", "%2B"), "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Runs svn with the configured credentials and without prompting.
+   */
+  @CheckForNull
+  private String svn(File dir, String... args) {
+    return run(svnCommandLine(dir, args), COMMAND_TIMEOUT_SECONDS);
+  }
+
+  @VisibleForTesting
+  Commandline svnCommandLine(File dir, String... args) {
+    String url = configuration.getUrl();
+    SvnScmProviderRepository repository = new SvnScmProviderRepository(url == null ? "" : ScmUrlUtils.getProviderSpecificPart(url),
+      configuration.getUser(), configuration.getPassword());
+    Commandline cl = SvnCommandLineUtils.getBaseSvnCommandLine(dir, repository);
+    cl.addArguments(args);
+    return cl;
+  }
+
+  /**
+   * @return the standard output, or null if the command failed
+   */
+  @CheckForNull
+  static String run(File dir, String executable, String... args) {
+    Commandline cl = new Commandline();
+    cl.setExecutable(executable);
+    cl.addArguments(args);
+    cl.setWorkingDirectory(dir);
+    return run(cl, COMMAND_TIMEOUT_SECONDS);
+  }
+
+  /**
+   * @return the standard output, or null if the command failed or lasted more than the timeout
+   */
+  @CheckForNull
+  @VisibleForTesting
+  static String run(Commandline cl, int timeoutSeconds) {
+    CommandLineUtils.StringStreamConsumer stdout = new CommandLineUtils.StringStreamConsumer();
+    CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+    try {
+      int exitCode = CommandLineUtils.executeCommandLine(cl, stdout, stderr, timeoutSeconds);
+      if (exitCode != 0) {
+        LOG.debug("Fail to execute {}: {}", SvnCommandLineUtils.cryptPassword(cl), stderr.getOutput());
+        return null;
+      }
+      return stdout.getOutput();
+    } catch (CommandLineException e) {
+      LOG.debug("Fail to execute " + SvnCommandLineUtils.cryptPassword(cl), e);
+      return null;
+    }
+  }
+}
@@ -21,6 +21,7 @@ package org.sonar.plugins.scmactivity;
 
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
+import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.maven.scm.provider.ScmUrlUtils;
 import org.slf4j.Logger;
@@ -32,6 +33,8 @@ import org.sonar.api.utils.SonarException;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
 
+import java.io.File;
+
 public class ScmConfiguration implements BatchExtension {
   private static final Logger LOG = LoggerFactory.getLogger(ScmConfiguration.class);
 
@@ -76,11 +79,184 @@ public class ScmConfiguration implements BatchExtension {
     if (threadCount < 1) {
       throw new SonarException(String.format("SCM Activity Plugin is configured to use [%d] thread(s). The minimum is 1.", threadCount));
     }
-    if (threadCount > Runtime.getRuntime().availableProcessors()) {
+    return threadCount;
+  }
+
+  /**
+   * Number of concurrent blames sent to the SCM server, 0 if the SCM blames files locally.
+   */
+  public int getMaxServerRequests() {
+    SupportedScm scm = SupportedScm.forType(getScmProvider());
+    if (scm == null || !scm.isServerBound()) {
+      return 0;
+    }
+    if (StringUtils.isBlank(settings.getString(ScmActivityPlugin.MAX_SERVER_REQUESTS))) {
+      return scm.getDefaultMaxServerRequests();
+    }
+    int maxServerRequests = settings.getInt(ScmActivityPlugin.MAX_SERVER_REQUESTS);
+    if (maxServerRequests < 1) {
+      throw new SonarException(String.format("SCM Activity Plugin is configured to send at most [%d] concurrent server request(s). The minimum is 1.",
+        maxServerRequests));
+    }
+    return maxServerRequests;
+  }
+
+  /**
+   * Number of blame threads: the thread count for local SCMs, and enough threads to send the maximum number of concurrent
+   * requests for SCMs which query a server.
+   */
+  public int getBlameThreadCount() {
+    int threadCount = getThreadCount();
+    int maxServerRequests = getMaxServerRequests();
+    if (maxServerRequests == 0 && threadCount > Runtime.getRuntime().availableProcessors()) {
       LOG.warn("SCM Activity Plugin is configured to use more threads than actually available on this machine.");
     }
+    return Math.max(threadCount, maxServerRequests);
+  }
 
-    return threadCount;
+  /**
+   * Maximum number of files blamed at the same time
+   */
+  public int getMaxConcurrentBlames() {
+    int maxServerRequests = getMaxServerRequests();
+    return maxServerRequests > 0 ? maxServerRequests : getThreadCount();
+  }
+
+  public boolean isAdaptiveConcurrencyEnabled() {
+    return settings.getBoolean(ScmActivityPlugin.ADAPTIVE_CONCURRENCY);
+  }
+
+  public int getMaxPendingUpdates() {
+    int maxPendingUpdates = settings.getInt(ScmActivityPlugin.MAX_PENDING_UPDATES);
+
+    if (maxPendingUpdates < 1) {
+      throw new SonarException(String.format("SCM Activity Plugin is configured to keep at most [%d] pending update(s). The minimum is 1.", maxPendingUpdates));
+    }
+
+    return maxPendingUpdates;
+  }
+
+  /**
+   * In seconds, 0 for no timeout
+   */
+  public int getBlameTimeout() {
+    return nonNegative(ScmActivityPlugin.BLAME_TIMEOUT, "a blame timeout");
+  }
+
+  /**
+   * In seconds, 0 for no deadline
+   */
+  public int getBlameDeadline() {
+    return nonNegative(ScmActivityPlugin.BLAME_DEADLINE, "a blame deadline");
+  }
+
+  /**
+   * 0 to never stop the blame on consecutive failures, see {@link BlameCircuitBreaker}
+   */
+  public int getCircuitBreakerFailures() {
+    return Math.max(0, settings.getInt(ScmActivityPlugin.CIRCUIT_BREAKER_FAILURES));
+  }
+
+  /**
+   * Percentage, 0 to never stop the blame on the failure rate, see {@link BlameCircuitBreaker}
+   */
+  public int getCircuitBreakerFailureRate() {
+    return Math.max(0, settings.getInt(ScmActivityPlugin.CIRCUIT_BREAKER_FAILURE_RATE));
+  }
+
+  private int nonNegative(String key, String description) {
+    int seconds = settings.getInt(key);
+    if (seconds < 0) {
+      throw new SonarException(String.format("SCM Activity Plugin is configured with %s of [%d] second(s). The minimum is 0.", description, seconds));
+    }
+    return seconds;
+  }
+
+  /**
+   * In bytes
+   */
+  public long getMaxPendingDataSize() {
+    return settings.getInt(ScmActivityPlugin.MAX_PENDING_DATA_SIZE) * 1024L * 1024L;
+  }
+
+  /**
+   * @return null if the blame cache is disabled
+   */
+  @CheckForNull
+  public File getCacheDir() {
+    String path = settings.getString(ScmActivityPlugin.CACHE_PATH);
+    if (StringUtils.isBlank(path)) {
+      return null;
+    }
+    return new File(path);
+  }
+
+  /**
+   * In bytes
+   */
+  public long getCacheMaxSize() {
+    return settings.getInt(ScmActivityPlugin.CACHE_MAX_SIZE) * 1024L * 1024L;
+  }
+
+  /**
+   * @return one of {@link ScmActivityPlugin#GIT_BLAME_ENGINE_EXE}, {@link ScmActivityPlugin#GIT_BLAME_ENGINE_IN_PROCESS}
+   * and {@link ScmActivityPlugin#GIT_BLAME_ENGINE_VERIFY}
+   */
+  public String getGitBlameEngine() {
+    return blameEngine(ScmActivityPlugin.GIT_BLAME_ENGINE,
+      ScmActivityPlugin.GIT_BLAME_ENGINE_EXE, ScmActivityPlugin.GIT_BLAME_ENGINE_IN_PROCESS, ScmActivityPlugin.GIT_BLAME_ENGINE_VERIFY);
+  }
+
+  /**
+   * @return {@link ScmActivityPlugin#SVN_BLAME_ENGINE_EXE} or {@link ScmActivityPlugin#SVN_BLAME_ENGINE_IN_PROCESS}
+   */
+  public String getSvnBlameEngine() {
+    return blameEngine(ScmActivityPlugin.SVN_BLAME_ENGINE, ScmActivityPlugin.SVN_BLAME_ENGINE_EXE, ScmActivityPlugin.SVN_BLAME_ENGINE_IN_PROCESS);
+  }
+
+  /**
+   * @return {@link ScmActivityPlugin#HG_BLAME_ENGINE_EXE} or {@link ScmActivityPlugin#HG_BLAME_ENGINE_COMMAND_SERVER}
+   */
+  public String getHgBlameEngine() {
+    return blameEngine(ScmActivityPlugin.HG_BLAME_ENGINE, ScmActivityPlugin.HG_BLAME_ENGINE_EXE, ScmActivityPlugin.HG_BLAME_ENGINE_COMMAND_SERVER);
+  }
+
+  /**
+   * @return {@link ScmActivityPlugin#PERFORCE_BLAME_ENGINE_EXE} or {@link ScmActivityPlugin#PERFORCE_BLAME_ENGINE_BATCH}
+   */
+  public String getPerforceBlameEngine() {
+    return blameEngine(ScmActivityPlugin.PERFORCE_BLAME_ENGINE, ScmActivityPlugin.PERFORCE_BLAME_ENGINE_EXE, ScmActivityPlugin.PERFORCE_BLAME_ENGINE_BATCH);
+  }
+
+  /**
+   * @return {@link ScmActivityPlugin#TFS_BLAME_ENGINE_EXE} or {@link ScmActivityPlugin#TFS_BLAME_ENGINE_SERVER}
+   */
+  public String getTfsBlameEngine() {
+    return blameEngine(ScmActivityPlugin.TFS_BLAME_ENGINE, ScmActivityPlugin.TFS_BLAME_ENGINE_EXE, ScmActivityPlugin.TFS_BLAME_ENGINE_SERVER);
+  }
+
+  /**
+   * @param defaultEngine used when the property is not set
+   * @param otherEngines the other supported values of the property
+   */
+  private String blameEngine(String property, String defaultEngine, String... otherEngines) {
+    String engine = StringUtils.defaultIfBlank(settings.getString(property), defaultEngine);
+    if (!engine.equals(defaultEngine) && !ArrayUtils.contains(otherEngines, engine)) {
+      throw new SonarException(String.format("SCM Activity Plugin is configured to use an unknown blame engine [%s] in %s.", engine, property));
+    }
+    return engine;
+  }
+
+  public boolean isSvnBatchBlameEnabled() {
+    return settings.getBoolean(ScmActivityPlugin.SVN_BATCH_BLAME);
+  }
+
+  public boolean isIncrementalBlameEnabled() {
+    return settings.getBoolean(ScmActivityPlugin.INCREMENTAL_BLAME);
+  }
+
+  public boolean isPrefetchAllModulesEnabled() {
+    return settings.getBoolean(ScmActivityPlugin.PREFETCH_ALL_MODULES);
   }
 
   @CheckForNull
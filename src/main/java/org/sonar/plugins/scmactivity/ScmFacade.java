@@ -22,51 +22,499 @@ package org.sonar.plugins.scmactivity;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
+import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.maven.scm.ScmException;
 import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.command.blame.BlameLine;
 import org.apache.maven.scm.command.blame.BlameScmRequest;
 import org.apache.maven.scm.command.blame.BlameScmResult;
-import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.manager.NoSuchScmProviderException;
+import org.apache.maven.scm.provider.perforce.repository.PerforceScmProviderRepository;
+import org.apache.maven.scm.provider.svn.repository.SvnScmProviderRepository;
 import org.apache.maven.scm.provider.svn.util.SvnUtil;
 import org.apache.maven.scm.repository.ScmRepository;
 import org.apache.maven.scm.repository.ScmRepositoryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.sonar.api.BatchExtension;
 import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.scmactivity.maven.DiffHunk;
+import org.sonar.plugins.scmactivity.maven.SonarGitExeScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarGitInProcessScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarHgCommandServerScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarPerforceScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarPerforceScmProviderRepository;
+import org.sonar.plugins.scmactivity.maven.SonarSvnInProcessScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarTfsServerScmProvider;
+import org.sonar.plugins.scmactivity.maven.SvnBatchBlame;
+
+import javax.annotation.CheckForNull;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 public class ScmFacade implements BatchExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(ScmFacade.class);
+  private static final int MAX_REPORTED_DIFFERENCES = 10;
+
   private final SonarScmManager scmManager;
   private final ScmConfiguration configuration;
+  private final ProjectScmResources projectResources;
+  private final BlameTimeouts timeouts;
   private Supplier<ScmRepository> repository;
+  private Supplier<ScmRepository> inProcessGitRepository;
+  private Supplier<ScmRepository> inProcessSvnRepository;
+  private Supplier<ScmRepository> hgCommandServerRepository;
+  private Supplier<ScmRepository> perforceRepository;
+  private Supplier<ScmRepository> tfsServerRepository;
 
-  public ScmFacade(SonarScmManager scmManager, ScmConfiguration configuration) {
+  public ScmFacade(SonarScmManager scmManager, ScmConfiguration configuration, ProjectScmResources projectResources, BlameTimeouts timeouts) {
     this.scmManager = scmManager;
     this.configuration = configuration;
+    this.projectResources = projectResources;
+    this.timeouts = timeouts;
     repository = Suppliers.memoize(new ScmRepositorySupplier());
+    inProcessGitRepository = Suppliers.memoize(new EngineRepositorySupplier(SonarGitInProcessScmProvider.SCM_TYPE));
+    inProcessSvnRepository = Suppliers.memoize(new InProcessSvnRepositorySupplier());
+    hgCommandServerRepository = Suppliers.memoize(new EngineRepositorySupplier(SonarHgCommandServerScmProvider.SCM_TYPE));
+    perforceRepository = Suppliers.memoize(new PerforceRepositorySupplier());
+    tfsServerRepository = Suppliers.memoize(new EngineRepositorySupplier(SonarTfsServerScmProvider.SCM_TYPE));
   }
 
+  /**
+   * @throws BlameTimeouts.BlameTimeoutException if the blame did not complete in time, see {@link BlameTimeouts}
+   * @throws BlameCircuitBreaker.CircuitOpenException if the blame is stopped after systematic failures
+   */
   public BlameScmResult blame(File file) throws ScmException {
-    if ("perforce".equals(configuration.getScmProvider())) {
-      String perforceClientSpecName = configuration.getPerforceClientspecName();
-      // SONARPLUGINS-2940
-      if (StringUtils.isNotBlank(perforceClientSpecName)) {
-        System.setProperty("maven.scm.perforce.clientspec.name", perforceClientSpecName);
+    BlameCircuitBreaker circuitBreaker = getCircuitBreaker();
+    circuitBreaker.check(file);
+    ConcurrencyLimiter limiter = projectResources.getLimiter(configuration.getMaxConcurrentBlames(), configuration.isAdaptiveConcurrencyEnabled());
+    acquire(limiter, file);
+    long start = System.currentTimeMillis();
+    boolean success = false;
+    try {
+      BlameScmResult result = blameWithTimeout(file);
+      success = result.isSuccess();
+      if (success) {
+        circuitBreaker.success();
+      } else {
+        circuitBreaker.failure(file, result.getProviderMessage() + " " + StringUtils.defaultString(result.getCommandOutput()));
+      }
+      return result;
+    } catch (BlameTimeouts.BlameTimeoutException e) {
+      if (e.isKilled()) {
+        circuitBreaker.failure(file, e.getMessage());
+      }
+      throw e;
+    } catch (ScmException e) {
+      circuitBreaker.failure(file, e);
+      throw e;
+    } finally {
+      limiter.release(System.currentTimeMillis() - start, success);
+    }
+  }
+
+  /**
+   * @return a facade with the same settings, whose timeouts are not reported: they are rethrown to the module which
+   * takes the blame, see {@link ProjectBlamePrefetch}
+   */
+  public ScmFacade withUnreportedTimeouts() {
+    return new ScmFacade(scmManager, configuration, projectResources, new BlameTimeouts(configuration, projectResources));
+  }
+
+  /**
+   * Reports with the timeouts of this module a timeout which occurred while the file was blamed for another module.
+   */
+  public void reportTimeout(File file, BlameTimeouts.BlameTimeoutException e) {
+    timeouts.add(file, e);
+  }
+
+  private BlameCircuitBreaker getCircuitBreaker() {
+    return projectResources.getCircuitBreaker(configuration.getCircuitBreakerFailures(), configuration.getCircuitBreakerFailureRate());
+  }
+
+  private static void acquire(ConcurrencyLimiter limiter, File file) throws ScmException {
+    try {
+      limiter.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ScmException("Interrupted before the blame of " + file, e);
+    }
+  }
+
+  private BlameScmResult blameWithTimeout(File file) throws ScmException {
+    BlameTimeouts.Watch watch = timeouts.start(file);
+    try {
+      return blameWithoutTimeout(file);
+    } finally {
+      watch.stop();
+    }
+  }
+
+  private BlameScmResult blameWithoutTimeout(File file) throws ScmException {
+    if (isBatchPerforce()) {
+      return blame(perforceRepository.get(), file);
+    }
+    if ("git".equals(configuration.getScmProvider())) {
+      String engine = configuration.getGitBlameEngine();
+      if (ScmActivityPlugin.GIT_BLAME_ENGINE_IN_PROCESS.equals(engine)) {
+        return blame(inProcessGitRepository.get(), file);
+      }
+      if (ScmActivityPlugin.GIT_BLAME_ENGINE_VERIFY.equals(engine)) {
+        BlameScmResult result = blame(getScmRepository(), file);
+        verifyInProcess(file, result);
+        return result;
+      }
+    }
+    if (isInProcessSvn()) {
+      return blame(inProcessSvnRepository.get(), file);
+    }
+    if ("hg".equals(configuration.getScmProvider())
+      && ScmActivityPlugin.HG_BLAME_ENGINE_COMMAND_SERVER.equals(configuration.getHgBlameEngine())) {
+      return blame(hgCommandServerRepository.get(), file);
+    }
+    if ("tfs".equals(configuration.getScmProvider())
+      && ScmActivityPlugin.TFS_BLAME_ENGINE_SERVER.equals(configuration.getTfsBlameEngine())) {
+      return blame(tfsServerRepository.get(), file);
+    }
+    return blame(getScmRepository(), file);
+  }
+
+  private boolean isBatchPerforce() {
+    return "perforce".equals(configuration.getScmProvider())
+      && ScmActivityPlugin.PERFORCE_BLAME_ENGINE_BATCH.equals(configuration.getPerforceBlameEngine());
+  }
+
+  private boolean isInProcessSvn() {
+    return "svn".equals(configuration.getScmProvider())
+      && ScmActivityPlugin.SVN_BLAME_ENGINE_IN_PROCESS.equals(configuration.getSvnBlameEngine())
+      && !projectResources.isSvnExeFallback();
+  }
+
+  /**
+   * @return true if files are blamed in a single pass by {@link #blame(Collection)}
+   */
+  public boolean isSinglePassBlameEnabled() {
+    return "git".equals(configuration.getScmProvider())
+      && ScmActivityPlugin.GIT_BLAME_ENGINE_IN_PROCESS.equals(configuration.getGitBlameEngine());
+  }
+
+  /**
+   * Blames files with a single walk of the history, see {@link #isSinglePassBlameEnabled()}.
+   *
+   * @return the blame of the files which could be blamed
+   * @throws BlameTimeouts.BlameTimeoutException if the walk did not complete in time, see {@link BlameTimeouts}
+   */
+  public Map<File, List<BlameLine>> blame(Collection<File> files) throws ScmException {
+    BlameCircuitBreaker circuitBreaker = getCircuitBreaker();
+    if (!isSinglePassBlameEnabled() || files.isEmpty() || circuitBreaker.isOpen()) {
+      return Collections.emptyMap();
+    }
+    File dir = commonDir(files);
+    ConcurrencyLimiter limiter = projectResources.getLimiter(configuration.getMaxConcurrentBlames(), configuration.isAdaptiveConcurrencyEnabled());
+    acquire(limiter, dir);
+    long start = System.currentTimeMillis();
+    boolean success = false;
+    try {
+      Map<File, List<BlameLine>> result = singlePassBlameWithTimeout(dir, files);
+      success = !result.isEmpty();
+      if (success) {
+        circuitBreaker.success();
+      } else {
+        circuitBreaker.failure(dir, "Blame of " + files.size() + " file(s) returned nothing");
+      }
+      return result;
+    } catch (BlameTimeouts.BlameTimeoutException e) {
+      if (e.isKilled()) {
+        circuitBreaker.failure(dir, e.getMessage());
+      }
+      throw e;
+    } catch (ScmException e) {
+      circuitBreaker.failure(dir, e);
+      throw e;
+    } finally {
+      limiter.release(System.currentTimeMillis() - start, success);
+    }
+  }
+
+  private Map<File, List<BlameLine>> singlePassBlameWithTimeout(File dir, Collection<File> files) throws ScmException {
+    BlameTimeouts.Watch watch = timeouts.start(dir);
+    try {
+      SonarGitInProcessScmProvider provider = (SonarGitInProcessScmProvider) scmManager.getProviderByType(SonarGitInProcessScmProvider.SCM_TYPE);
+      return provider.blame(files);
+    } catch (IOException e) {
+      throw new ScmException("Unable to blame " + files.size() + " file(s)", e);
+    } finally {
+      watch.stop();
+    }
+  }
+
+  /**
+   * @return the deepest directory containing all the files, which identifies the walk in the timeouts and failures
+   */
+  @VisibleForTesting
+  static File commonDir(Collection<File> files) {
+    File dir = files.iterator().next().getAbsoluteFile().getParentFile();
+    for (File file : files) {
+      while (dir != null && !file.getAbsolutePath().startsWith(dir.getPath() + File.separator)) {
+        dir = dir.getParentFile();
       }
     }
-    BlameScmRequest blameRequest = new BlameScmRequest(getScmRepository(), new ScmFileSet(file.getParentFile()));
+    return dir == null ? new File(File.separator) : dir;
+  }
+
+  /**
+   * @return true if the files of a directory are blamed with a single command by {@link #blame(File, List)}
+   */
+  public boolean isBatchBlameEnabled() {
+    return ("svn".equals(configuration.getScmProvider()) && configuration.isSvnBatchBlameEnabled() && !isInProcessSvn())
+      || isBatchPerforce();
+  }
+
+  /**
+   * Blames several files of a directory with a single command, see {@link #isBatchBlameEnabled()}.
+   *
+   * @return the blame of the files which could be blamed
+   * @throws BlameTimeouts.BlameTimeoutException if the blame did not complete in time, see {@link BlameTimeouts}
+   * @throws BlameCircuitBreaker.CircuitOpenException if the blame is stopped
+   */
+  public Map<File, List<BlameLine>> blame(File dir, List<File> files) throws ScmException {
+    BlameCircuitBreaker circuitBreaker = getCircuitBreaker();
+    circuitBreaker.check(dir);
+    ConcurrencyLimiter limiter = projectResources.getLimiter(configuration.getMaxConcurrentBlames(), configuration.isAdaptiveConcurrencyEnabled());
+    acquire(limiter, dir);
+    long start = System.currentTimeMillis();
+    boolean success = false;
+    try {
+      Map<File, List<BlameLine>> result = batchBlameWithTimeout(dir, files);
+      success = !result.isEmpty();
+      if (success) {
+        circuitBreaker.success();
+      } else {
+        circuitBreaker.failure(dir, "Blame of " + files.size() + " file(s) returned nothing");
+      }
+      return result;
+    } catch (BlameTimeouts.BlameTimeoutException e) {
+      if (e.isKilled()) {
+        circuitBreaker.failure(dir, e.getMessage());
+      }
+      throw e;
+    } catch (ScmException e) {
+      circuitBreaker.failure(dir, e);
+      throw e;
+    } finally {
+      limiter.release(System.currentTimeMillis() - start, success);
+    }
+  }
+
+  private Map<File, List<BlameLine>> batchBlameWithTimeout(File dir, List<File> files) throws ScmException {
+    BlameTimeouts.Watch watch = timeouts.start(dir);
+    try {
+      if (isBatchPerforce()) {
+        SonarPerforceScmProvider provider = (SonarPerforceScmProvider) scmManager.getProviderByType(SonarPerforceScmProvider.SCM_TYPE);
+        return provider.blame((SonarPerforceScmProviderRepository) perforceRepository.get().getProviderRepository(), dir, files);
+      }
+      return new SvnBatchBlame().blame((SvnScmProviderRepository) getScmRepository().getProviderRepository(), dir, files);
+    } finally {
+      watch.stop();
+    }
+  }
+
+  /**
+   * @return true if files can be blamed incrementally by {@link #reblame(File, String, List)}
+   */
+  public boolean isIncrementalBlameEnabled() {
+    if (!configuration.isIncrementalBlameEnabled() || !"git".equals(configuration.getScmProvider())
+      || !ScmActivityPlugin.GIT_BLAME_ENGINE_EXE.equals(configuration.getGitBlameEngine())) {
+      return false;
+    }
+    try {
+      return getGitExeProvider().isRangedBlameSupported();
+    } catch (ScmException e) {
+      LOG.warn("Incremental blame is not available", e);
+      return false;
+    }
+  }
+
+  /**
+   * Blames only the lines changed since a revision, and shifts the blame of the other lines.
+   *
+   * @param previous blame of the file at the given revision
+   * @return null if the changes can not be applied to the previous blame
+   * @throws BlameTimeouts.BlameTimeoutException if the blame did not complete in time, see {@link BlameTimeouts}
+   * @throws BlameCircuitBreaker.CircuitOpenException if the blame is stopped
+   */
+  @CheckForNull
+  public List<BlameLine> reblame(File file, String revision, List<BlameLine> previous) throws ScmException {
+    BlameCircuitBreaker circuitBreaker = getCircuitBreaker();
+    circuitBreaker.check(file);
+    ConcurrencyLimiter limiter = projectResources.getLimiter(configuration.getMaxConcurrentBlames(), configuration.isAdaptiveConcurrencyEnabled());
+    acquire(limiter, file);
+    long start = System.currentTimeMillis();
+    boolean success = false;
+    try {
+      List<BlameLine> lines = reblameWithTimeout(file, revision, previous);
+      success = true;
+      if (lines != null) {
+        // Otherwise the file is blamed again, which records the outcome
+        circuitBreaker.success();
+      }
+      return lines;
+    } catch (BlameTimeouts.BlameTimeoutException e) {
+      if (e.isKilled()) {
+        circuitBreaker.failure(file, e.getMessage());
+      }
+      throw e;
+    } catch (ScmException e) {
+      circuitBreaker.failure(file, e);
+      throw e;
+    } finally {
+      limiter.release(System.currentTimeMillis() - start, success);
+    }
+  }
+
+  @CheckForNull
+  private List<BlameLine> reblameWithTimeout(File file, String revision, List<BlameLine> previous) throws ScmException {
+    BlameTimeouts.Watch watch = timeouts.start(file);
+    try {
+      SonarGitExeScmProvider provider = getGitExeProvider();
+      List<DiffHunk> hunks = provider.diff(file, revision);
+      if (hunks == null) {
+        return null;
+      }
+      return DiffHunk.apply(previous, hunks, provider.blame(file, hunks));
+    } finally {
+      watch.stop();
+    }
+  }
+
+  private SonarGitExeScmProvider getGitExeProvider() throws ScmException {
+    return (SonarGitExeScmProvider) scmManager.getProviderByType("git");
+  }
+
+  private BlameScmResult blame(ScmRepository scmRepository, File file) throws ScmException {
+    BlameScmRequest blameRequest = new BlameScmRequest(scmRepository, new ScmFileSet(file.getParentFile()));
     blameRequest.setFilename(file.getName());
     // FIXME setIgnoreWhitespace is not taken into account see http://jira.codehaus.org/browse/SCM-681#comment-323446
     blameRequest.setIgnoreWhitespace(true);
     return scmManager.blame(blameRequest);
   }
 
+  /**
+   * The result of the git executable is kept even if the in-process engine fails, which is logged as a difference.
+   */
+  private void verifyInProcess(File file, BlameScmResult expected) {
+    BlameScmResult actual;
+    try {
+      actual = blame(inProcessGitRepository.get(), file);
+    } catch (Exception e) {
+      LOG.warn(String.format("In-process git blame of %s failed while git blame %s", file, succeeded(expected)), e);
+      return;
+    }
+    verify(file, expected, actual);
+  }
+
+  /**
+   * Logs the lines on which the in-process git blame engine does not return the same data as the git executable.
+   */
+  @VisibleForTesting
+  static int verify(File file, BlameScmResult expected, BlameScmResult actual) {
+    if (expected.isSuccess() != actual.isSuccess()) {
+      LOG.warn("In-process git blame of {} {} while git blame {}", new Object[] {file, succeeded(actual), succeeded(expected)});
+      return 1;
+    }
+    if (!expected.isSuccess()) {
+      return 0;
+    }
+    List<BlameLine> expectedLines = expected.getLines();
+    List<BlameLine> actualLines = actual.getLines();
+    int differences = 0;
+    if (expectedLines.size() != actualLines.size()) {
+      LOG.warn("In-process git blame of {} returned {} line(s) instead of {}", new Object[] {file, actualLines.size(), expectedLines.size()});
+      differences++;
+    }
+    for (int i = 0; i < Math.min(expectedLines.size(), actualLines.size()); i++) {
+      BlameLine expectedLine = expectedLines.get(i);
+      BlameLine actualLine = actualLines.get(i);
+      if (!sameBlame(expectedLine, actualLine)) {
+        if (differences < MAX_REPORTED_DIFFERENCES) {
+          LOG.warn("In-process git blame of {} differs on line {}: [{}] instead of [{}]", new Object[] {file, i + 1, toString(actualLine), toString(expectedLine)});
+        }
+        differences++;
+      }
+    }
+    if (differences > 0) {
+      LOG.warn("In-process git blame of {} differs on {} line(s)", file, differences);
+    }
+    return differences;
+  }
+
+  private static boolean sameBlame(BlameLine expected, BlameLine actual) {
+    return StringUtils.equals(expected.getRevision(), actual.getRevision())
+      && StringUtils.equals(expected.getAuthor(), actual.getAuthor())
+      && StringUtils.equals(expected.getCommitter(), actual.getCommitter())
+      // Uncommitted lines are dated when blamed
+      && (StringUtils.containsOnly(expected.getRevision(), "0") || ObjectUtils.equals(expected.getDate(), actual.getDate()));
+  }
+
+  private static String succeeded(BlameScmResult result) {
+    return result.isSuccess() ? "succeeded" : "failed";
+  }
+
+  private static String toString(BlameLine line) {
+    return line.getRevision() + " " + line.getAuthor() + " " + line.getCommitter() + " " + line.getDate();
+  }
+
   @VisibleForTesting
   ScmRepository getScmRepository() {
     return repository.get();
   }
 
+  /**
+   * Repository of the SCM URL, blamed by the provider of another blame engine.
+   */
+  private class EngineRepositorySupplier implements Supplier<ScmRepository> {
+    private final String scmType;
+
+    EngineRepositorySupplier(String scmType) {
+      this.scmType = scmType;
+    }
+
+    public ScmRepository get() {
+      return new ScmRepository(scmType, getScmRepository().getProviderRepository());
+    }
+  }
+
+  private class InProcessSvnRepositorySupplier extends EngineRepositorySupplier {
+    InProcessSvnRepositorySupplier() {
+      super(SonarSvnInProcessScmProvider.SCM_TYPE);
+    }
+
+    @Override
+    public ScmRepository get() {
+      try {
+        SonarSvnInProcessScmProvider provider = (SonarSvnInProcessScmProvider) scmManager.getProviderByType(SonarSvnInProcessScmProvider.SCM_TYPE);
+        provider.setMaxSessions(configuration.getMaxConcurrentBlames());
+      } catch (NoSuchScmProviderException e) {
+        throw new SonarException(e);
+      }
+      return super.get();
+    }
+  }
+
+  private class PerforceRepositorySupplier implements Supplier<ScmRepository> {
+    public ScmRepository get() {
+      PerforceScmProviderRepository providerRepository = (PerforceScmProviderRepository) getScmRepository().getProviderRepository();
+      return new ScmRepository(SonarPerforceScmProvider.SCM_TYPE,
+        new SonarPerforceScmProviderRepository(providerRepository, configuration.getPerforceClientspecName()));
+    }
+  }
+
   private class ScmRepositorySupplier implements Supplier<ScmRepository> {
     public ScmRepository get() {
       try {
@@ -76,16 +524,9 @@ public class ScmFacade implements BatchExtension {
         String password = configuration.getPassword();
 
         initSvn(scmProvider);
+        initPerforce(scmProvider);
 
-        ScmRepository scmRepository = scmManager.makeScmRepository(connectionUrl);
-
-        if (!StringUtils.isBlank(user)) {
-          ScmProviderRepository providerRepository = scmRepository.getProviderRepository();
-          providerRepository.setUser(user);
-          providerRepository.setPassword(password);
-        }
-
-        return scmRepository;
+        return projectResources.getRepository(connectionUrl, user, password);
       } catch (ScmRepositoryException e) {
         throw new SonarException(e.getValidationMessages().toString(), e);
       } catch (ScmException e) {
@@ -104,4 +545,18 @@ public class ScmFacade implements BatchExtension {
       SvnUtil.getSettings().setTrustServerCert(true);
     }
   }
+
+  /*
+   * SONARPLUGINS-2940
+   * The clientspec of the exe Perforce blame engine can only be passed through a system property, which is set once
+   * instead of by each blame. The batch engine passes it to its commands, see SonarPerforceScmProviderRepository.
+   */
+  private void initPerforce(String scmProvider) {
+    if (StringUtils.equals(scmProvider, "perforce") && !isBatchPerforce()) {
+      String perforceClientSpecName = configuration.getPerforceClientspecName();
+      if (StringUtils.isNotBlank(perforceClientSpecName)) {
+        System.setProperty("maven.scm.perforce.clientspec.name", perforceClientSpecName);
+      }
+    }
+  }
 }
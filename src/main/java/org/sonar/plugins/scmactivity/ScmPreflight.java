@@ -0,0 +1,236 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.provider.ScmProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.bootstrap.ProjectReactor;
+import org.sonar.plugins.scmactivity.maven.GitVersion;
+import org.sonar.plugins.scmactivity.maven.SonarGitExeScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarGitInProcessScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarSvnInProcessScmProvider;
+
+import javax.annotation.CheckForNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Checks once per analysis, before any blame, that the SCM executable can be run and that the project is in a working
+ * copy with the whole history. Otherwise the blame is disabled, instead of failing for each file, and the files keep
+ * their previous SCM info. The version of git is also given to the git provider, which uses it to select the blame
+ * command.
+ */
+public class ScmPreflight implements BatchExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(ScmPreflight.class);
+
+  private final ScmConfiguration configuration;
+  private final ProjectScmResources projectResources;
+  private final SonarScmManager scmManager;
+  private final ProjectReactor reactor;
+
+  public ScmPreflight(ScmConfiguration configuration, ProjectScmResources projectResources, SonarScmManager scmManager, ProjectReactor reactor) {
+    this.configuration = configuration;
+    this.projectResources = projectResources;
+    this.scmManager = scmManager;
+    this.reactor = reactor;
+  }
+
+  /**
+   * Must be called once the SCM URL is checked, see {@link UrlChecker}.
+   */
+  public void check() {
+    if (!projectResources.startPreflight()) {
+      return;
+    }
+    String failure = probe(reactor.getRoot().getBaseDir());
+    if (failure != null) {
+      LOG.warn("SCM blame is disabled: {}", failure);
+      projectResources.getCircuitBreaker(configuration.getCircuitBreakerFailures(), configuration.getCircuitBreakerFailureRate()).disable(failure);
+    }
+  }
+
+  /**
+   * @return why the blame can not work, null if it can or if unknown
+   */
+  @VisibleForTesting
+  @CheckForNull
+  String probe(File dir) {
+    String provider = configuration.getScmProvider();
+    if ("git".equals(provider)) {
+      return probeGit(dir);
+    }
+    if ("svn".equals(provider)) {
+      if (ScmActivityPlugin.SVN_BLAME_ENGINE_IN_PROCESS.equals(configuration.getSvnBlameEngine())) {
+        return probeInProcessSvn(dir);
+      }
+      return probeSvn(dir);
+    }
+    if ("hg".equals(provider)) {
+      return probeHg(dir);
+    }
+    if ("perforce".equals(provider) && ScmChanges.run(dir, "p4", "-V") == null) {
+      return "The p4 executable can not be run.";
+    }
+    return null;
+  }
+
+  @CheckForNull
+  private String probeGit(File dir) {
+    // Also needed by the in-process engine, which forks git cat-file, git log and git ls-files
+    String versionOutput = ScmChanges.run(dir, "git", "--version");
+    if (versionOutput == null) {
+      return "The git executable can not be run.";
+    }
+    GitVersion version = GitVersion.parse(versionOutput);
+    setGitVersion(version);
+    File gitDir;
+    if (ScmActivityPlugin.GIT_BLAME_ENGINE_IN_PROCESS.equals(configuration.getGitBlameEngine())) {
+      gitDir = findGitDir(dir);
+      if (gitDir == null) {
+        return dir + " is not in a git working copy.";
+      }
+    } else {
+      String gitDirOutput = StringUtils.trimToNull(ScmChanges.run(dir, "git", "rev-parse", "--git-dir"));
+      if (gitDirOutput == null) {
+        return dir + " is not in a git working copy.";
+      }
+      gitDir = resolve(dir, gitDirOutput);
+      // Shared by the linked work trees, printed as is by git before 2.5
+      String commonDirOutput = StringUtils.trimToNull(ScmChanges.run(dir, "git", "rev-parse", "--git-common-dir"));
+      if (commonDirOutput != null && !commonDirOutput.startsWith("--")) {
+        gitDir = resolve(dir, commonDirOutput);
+      }
+    }
+    LOG.info("Git {} in {}", version == null ? "of unknown version" : version, gitDir);
+    if (new File(gitDir, "shallow").exists()) {
+      return gitDir + " is a shallow clone, whose blame attributes all the old lines to the oldest fetched commit. "
+        + "Please fetch the whole history, with git fetch --unshallow.";
+    }
+    return null;
+  }
+
+  /**
+   * @return the directory shared by all the work trees of the repository containing the directory
+   */
+  @CheckForNull
+  @VisibleForTesting
+  static File findGitDir(File dir) {
+    for (File parent = dir.getAbsoluteFile(); parent != null; parent = parent.getParentFile()) {
+      File gitDir = new File(parent, ".git");
+      if (gitDir.isFile()) {
+        // Linked work tree or submodule
+        String path = readFirstLine(gitDir);
+        gitDir = path != null && path.startsWith("gitdir:") ? resolve(parent, path.substring("gitdir:".length()).trim()) : null;
+      }
+      if (gitDir != null && gitDir.isDirectory()) {
+        String commonDir = readFirstLine(new File(gitDir, "commondir"));
+        return commonDir == null ? gitDir : resolve(gitDir, commonDir);
+      }
+    }
+    return null;
+  }
+
+  @CheckForNull
+  private static String readFirstLine(File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      return StringUtils.trimToNull(Files.readFirstLine(file, Charsets.UTF_8));
+    } catch (IOException e) {
+      LOG.debug("Unable to read " + file, e);
+      return null;
+    }
+  }
+
+  private static File resolve(File dir, String path) {
+    return new File(path).isAbsolute() ? new File(path) : new File(dir, path);
+  }
+
+  private void setGitVersion(GitVersion version) {
+    // The in-process engine blames with git the files it can not blame
+    for (String type : new String[] {"git", SonarGitInProcessScmProvider.SCM_TYPE}) {
+      try {
+        ScmProvider provider = scmManager.getProviderByType(type);
+        if (provider instanceof SonarGitExeScmProvider) {
+          ((SonarGitExeScmProvider) provider).setVersion(version);
+        }
+      } catch (ScmException e) {
+        LOG.debug("No " + type + " provider", e);
+      }
+    }
+  }
+
+  @CheckForNull
+  private static String probeSvn(File dir) {
+    String version = StringUtils.trimToNull(ScmChanges.run(dir, "svn", "--version", "--quiet"));
+    if (version == null) {
+      return "The svn executable can not be run.";
+    }
+    if (ScmChanges.run(dir, "svn", "info") == null) {
+      return dir + " is not in a Subversion working copy readable by svn " + version + ".";
+    }
+    LOG.info("Subversion {}", version);
+    return null;
+  }
+
+  /**
+   * Falls back to svn blame when the working copy can not be read in-process.
+   */
+  @CheckForNull
+  private String probeInProcessSvn(File dir) {
+    String failure = null;
+    try {
+      ScmProvider provider = scmManager.getProviderByType(SonarSvnInProcessScmProvider.SCM_TYPE);
+      if (provider instanceof SonarSvnInProcessScmProvider) {
+        failure = ((SonarSvnInProcessScmProvider) provider).checkWorkingCopy(dir);
+      }
+    } catch (ScmException e) {
+      LOG.debug("No in-process svn provider", e);
+    }
+    if (failure == null) {
+      return null;
+    }
+    LOG.warn("{} Files are blamed with svn blame.", failure);
+    projectResources.fallBackToSvnExe();
+    return probeSvn(dir);
+  }
+
+  @CheckForNull
+  private static String probeHg(File dir) {
+    String version = StringUtils.trimToNull(ScmChanges.run(dir, "hg", "--version", "--quiet"));
+    if (version == null) {
+      return "The hg executable can not be run.";
+    }
+    if (ScmChanges.run(dir, "hg", "root") == null) {
+      return dir + " is not in a Mercurial working copy.";
+    }
+    LOG.info(version);
+    return null;
+  }
+}
@@ -19,20 +19,33 @@
  */
 package org.sonar.plugins.scmactivity;
 
+import com.google.common.collect.Lists;
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.BatchExtension;
 import org.sonar.api.batch.fs.FileSystem;
 
+import javax.annotation.CheckForNull;
+
 import java.io.File;
+import java.util.List;
+import java.util.Map;
 
 public class ScmUrlGuess implements BatchExtension {
   private static final Logger LOG = LoggerFactory.getLogger(ScmUrlGuess.class);
 
   private final FileSystem fs;
 
-  public ScmUrlGuess(FileSystem fs) {
+  /**
+   * key: a directory already looked up by a module of the project
+   * value: the URL guessed for the directory, or the empty string
+   */
+  private final Map<File, String> guessedUrls;
+
+  public ScmUrlGuess(FileSystem fs, ProjectScmResources projectResources) {
     this.fs = fs;
+    this.guessedUrls = projectResources.getGuessedUrls();
   }
 
   public String guess() {
@@ -40,19 +53,38 @@ public class ScmUrlGuess implements BatchExtension {
 
     File basedir = fs.baseDir();
 
-    for (File dir = basedir; dir != null; dir = dir.getParentFile()) {
-      for (SupportedScm scm : SupportedScm.values()) {
-        if (scm.getGuessedUrl() != null) {
-          LOG.debug("Search for: " + new File(dir, scm.getScmSpecificFilename()));
-          if (new File(dir, scm.getScmSpecificFilename()).isDirectory()) {
-            LOG.info("Found SCM type: " + scm.getType());
-            return scm.getGuessedUrl();
-          }
-        }
+    List<File> lookedUp = Lists.newArrayList();
+    String url = null;
+    for (File dir = basedir; dir != null && url == null; dir = dir.getParentFile()) {
+      url = guessedUrls.get(dir);
+      if (url == null) {
+        lookedUp.add(dir);
+        url = guess(dir);
       }
     }
+    url = StringUtils.defaultString(url);
+    for (File dir : lookedUp) {
+      guessedUrls.put(dir, url);
+    }
+
+    if (url.length() == 0) {
+      LOG.info("Didn't find which SCM provider is used. Fallback on configuration");
+      return null;
+    }
+    return url;
+  }
 
-    LOG.info("Didn't find which SCM provider is used. Fallback on configuration");
+  @CheckForNull
+  private static String guess(File dir) {
+    for (SupportedScm scm : SupportedScm.values()) {
+      if (scm.getGuessedUrl() != null) {
+        LOG.debug("Search for: " + new File(dir, scm.getScmSpecificFilename()));
+        if (new File(dir, scm.getScmSpecificFilename()).isDirectory()) {
+          LOG.info("Found SCM type: " + scm.getType());
+          return scm.getGuessedUrl();
+        }
+      }
+    }
     return null;
   }
 
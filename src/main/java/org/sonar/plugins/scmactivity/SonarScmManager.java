@@ -20,24 +20,62 @@
 package org.sonar.plugins.scmactivity;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Sets;
 import org.apache.maven.scm.log.ScmLogger;
 import org.apache.maven.scm.manager.AbstractScmManager;
 import org.apache.maven.scm.provider.ScmProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.InstantiationStrategy;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
 public class SonarScmManager extends AbstractScmManager implements BatchExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(SonarScmManager.class);
+
+  /**
+   * Providers keeping processes, sessions or caches between blames
+   */
+  private final Set<Closeable> engines = Sets.newLinkedHashSet();
+
   public SonarScmManager() {
     registerProviders();
   }
 
+  @Override
+  public void setScmProvider(String providerType, ScmProvider provider) {
+    super.setScmProvider(providerType, provider);
+    if (provider instanceof Closeable) {
+      engines.add((Closeable) provider);
+    }
+  }
+
+  /**
+   * Releases the processes, sessions and caches of the providers, at the end of the analysis. They are created again if needed.
+   */
+  public void closeEngines() {
+    for (Closeable engine : engines) {
+      try {
+        engine.close();
+      } catch (IOException e) {
+        LOG.debug("Unable to close " + engine, e);
+      }
+    }
+  }
+
   private void registerProviders() {
     for (SupportedScm supportedScm : SupportedScm.values()) {
       ScmProvider provider = supportedScm.getProvider();
 
       setScmProvider(provider.getScmType(), supportedScm.getProvider());
     }
+    for (BlameEngineProviders engine : BlameEngineProviders.values()) {
+      setScmProvider(engine.getType(), engine.getProvider());
+    }
   }
 
   @Override
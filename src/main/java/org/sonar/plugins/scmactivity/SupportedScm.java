@@ -32,25 +32,43 @@ import org.apache.maven.scm.provider.svn.svnexe.SvnExeScmProvider;
 import org.sonar.plugins.scmactivity.maven.SonarGitExeScmProvider;
 import org.sonar.plugins.scmactivity.maven.SonarTfsScmProvider;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
 public enum SupportedScm {
-  SVN(new SvnExeScmProvider(), "scm:svn:svn://"),
-  CVS(new CvsExeScmProvider(), null),
-  GIT(new SonarGitExeScmProvider(), "scm:git:"),
-  HG(new HgScmProvider(), "scm:hg:"),
-  BAZAAR(new BazaarScmProvider(), "scm:bazaar:"),
-  CLEAR_CASE(new ClearCaseScmProvider(), null),
-  ACCU_REV(new AccuRevScmProvider(), null),
-  PERFORCE(new PerforceScmProvider(), null),
-  TFS(new SonarTfsScmProvider(), "scm:tfs:"),
-  JAZZ(new JazzScmProvider(), null),
-  INTEGRITY(new IntegrityScmProvider(), null);
+  SVN(new SvnExeScmProvider(), "scm:svn:svn://", 16),
+  CVS(new CvsExeScmProvider(), null, 4),
+  GIT(new SonarGitExeScmProvider(), "scm:git:", 0),
+  HG(new HgScmProvider(), "scm:hg:", 0),
+  BAZAAR(new BazaarScmProvider(), "scm:bazaar:", 0),
+  CLEAR_CASE(new ClearCaseScmProvider(), null, 4),
+  ACCU_REV(new AccuRevScmProvider(), null, 4),
+  PERFORCE(new PerforceScmProvider(), null, 8),
+  TFS(new SonarTfsScmProvider(), "scm:tfs:", 8),
+  JAZZ(new JazzScmProvider(), null, 4),
+  INTEGRITY(new IntegrityScmProvider(), null, 4);
 
   private final ScmProvider provider;
   private final String guessedUrl;
+  private final int maxServerRequests;
 
-  private SupportedScm(ScmProvider provider, String guessedUrl) {
+  /**
+   * @param maxServerRequests default number of concurrent blames sent to the SCM server, 0 if the blame is local
+   */
+  private SupportedScm(ScmProvider provider, String guessedUrl, int maxServerRequests) {
     this.provider = provider;
     this.guessedUrl = guessedUrl;
+    this.maxServerRequests = maxServerRequests;
+  }
+
+  @CheckForNull
+  public static SupportedScm forType(@Nullable String type) {
+    for (SupportedScm scm : values()) {
+      if (scm.getType().equals(type)) {
+        return scm;
+      }
+    }
+    return null;
   }
 
   public String getGuessedUrl() {
@@ -69,4 +87,15 @@ public enum SupportedScm {
     return provider;
   }
 
+  /**
+   * @return true if the blame waits on a SCM server rather than on the local CPU and disk
+   */
+  public boolean isServerBound() {
+    return maxServerRequests > 0;
+  }
+
+  public int getDefaultMaxServerRequests() {
+    return maxServerRequests;
+  }
+
 }
@@ -0,0 +1,84 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.batch.InstantiationStrategy;
+import org.sonar.api.batch.bootstrap.ProjectReactor;
+
+import javax.annotation.CheckForNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Files of the project tracked by the SCM, listed with a single command on the first call, see
+ * {@link ScmChanges#getTrackedFiles(File)}. Untracked files, such as generated sources, are not blamed.
+ */
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
+public class TrackedFiles implements BatchExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(TrackedFiles.class);
+
+  private final ProjectReactor reactor;
+  private File rootDir;
+  private Set<File> files;
+
+  public TrackedFiles(ProjectReactor reactor) {
+    this.reactor = reactor;
+  }
+
+  /**
+   * @return the tracked files under the canonical root directory of the project, null if unknown
+   */
+  @CheckForNull
+  public synchronized Set<File> get(ScmChanges scmChanges) {
+    if (rootDir == null) {
+      rootDir = canonical(reactor.getRoot().getBaseDir());
+      files = scmChanges.getTrackedFiles(rootDir);
+      if (files == null) {
+        LOG.debug("Unable to list the files tracked by the SCM in {}", rootDir);
+      }
+    }
+    return files;
+  }
+
+  /**
+   * @return false if the file is under the root directory of the project but not tracked, true otherwise
+   */
+  public boolean isTracked(ScmChanges scmChanges, File file) {
+    Set<File> tracked = get(scmChanges);
+    if (tracked == null || tracked.contains(file)) {
+      return true;
+    }
+    File canonicalFile = canonical(file);
+    return tracked.contains(canonicalFile) || !canonicalFile.getPath().startsWith(rootDir.getPath() + File.separator);
+  }
+
+  static File canonical(File file) {
+    try {
+      return file.getCanonicalFile();
+    } catch (IOException e) {
+      return file.getAbsoluteFile();
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Child processes read by each thread, so that they can be killed when the thread has to stop. Unlike the commands
+ * run by {@link org.codehaus.plexus.util.cli.CommandLineUtils}, a thread blocked on the output of a process is not
+ * released by an interruption.
+ *
+ * @since 1.9
+ */
+public final class ChildProcesses {
+  private static final Map<Thread, Process> PROCESSES = new ConcurrentHashMap<Thread, Process>();
+  private static final Set<Thread> KILLED = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+  private ChildProcesses() {
+    // only static methods
+  }
+
+  /**
+   * Must be followed by {@link #unregister()} from the same thread.
+   */
+  public static void register(Process process) {
+    clearKilled();
+    PROCESSES.put(Thread.currentThread(), process);
+  }
+
+  public static void unregister() {
+    PROCESSES.remove(Thread.currentThread());
+  }
+
+  /**
+   * Kills the process read by a thread, if any.
+   */
+  public static void kill(Thread thread) {
+    Process process = PROCESSES.remove(thread);
+    if (process != null) {
+      KILLED.add(thread);
+      process.destroy();
+    }
+  }
+
+  /**
+   * @return true if the last process registered by the current thread was killed, so that it must not be run again
+   */
+  public static boolean isKilled() {
+    return KILLED.contains(Thread.currentThread());
+  }
+
+  /**
+   * Forgets the kill of the last process of the current thread, before a new command.
+   */
+  public static void clearKilled() {
+    KILLED.remove(Thread.currentThread());
+  }
+
+  public static void killAll() {
+    for (Thread thread : PROCESSES.keySet()) {
+      kill(thread);
+    }
+  }
+}
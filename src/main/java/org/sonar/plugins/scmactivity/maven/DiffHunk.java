@@ -0,0 +1,144 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.maven.scm.command.blame.BlameLine;
+
+import javax.annotation.CheckForNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A change between two versions of a file, as in the header of a hunk of an unified diff:
+ * <code>@@ -oldStart,oldCount +newStart,newCount @@</code>. When a count is zero, the start is the line after which
+ * the lines are removed or inserted.
+ *
+ * @since 1.9
+ */
+public final class DiffHunk {
+  private static final Pattern HEADER = Pattern.compile("@@ -(\\d+)(?:,(\\d+))? \\+(\\d+)(?:,(\\d+))? @@.*");
+
+  private final int oldStart;
+  private final int oldCount;
+  private final int newStart;
+  private final int newCount;
+
+  public DiffHunk(int oldStart, int oldCount, int newStart, int newCount) {
+    this.oldStart = oldStart;
+    this.oldCount = oldCount;
+    this.newStart = newStart;
+    this.newCount = newCount;
+  }
+
+  public int getNewStart() {
+    return newStart;
+  }
+
+  public int getNewCount() {
+    return newCount;
+  }
+
+  /**
+   * Parses the hunk headers of an unified diff of a single file.
+   *
+   * @return null if the diff is not a text diff
+   */
+  @CheckForNull
+  public static List<DiffHunk> parse(String diff) {
+    List<DiffHunk> hunks = new ArrayList<DiffHunk>();
+    for (String line : diff.split("\\r?\\n")) {
+      if (line.startsWith("@@ ")) {
+        Matcher matcher = HEADER.matcher(line);
+        if (!matcher.matches()) {
+          return null;
+        }
+        hunks.add(new DiffHunk(Integer.parseInt(matcher.group(1)), count(matcher.group(2)),
+          Integer.parseInt(matcher.group(3)), count(matcher.group(4))));
+      } else if (line.startsWith("Binary files ") || line.startsWith("GIT binary patch")) {
+        return null;
+      }
+    }
+    return hunks;
+  }
+
+  private static int count(String group) {
+    return group == null ? 1 : Integer.parseInt(group);
+  }
+
+  /**
+   * Shifts the blame of the previous version of a file to the lines of the new version, and inserts the blame of the
+   * lines added by the hunks.
+   *
+   * @param previous blame of the previous version
+   * @param hunks changes from the previous version, in order
+   * @param added blame of the lines added by the hunks, in order
+   * @return null if the blame of the previous version does not match the hunks
+   */
+  @CheckForNull
+  public static List<BlameLine> apply(List<BlameLine> previous, List<DiffHunk> hunks, List<BlameLine> added) {
+    List<BlameLine> lines = new ArrayList<BlameLine>(previous.size() + added.size());
+    int nextPrevious = 0;
+    int nextAdded = 0;
+    for (DiffHunk hunk : hunks) {
+      int firstRemoved = hunk.oldCount == 0 ? hunk.oldStart : (hunk.oldStart - 1);
+      int firstAdded = hunk.newCount == 0 ? hunk.newStart : (hunk.newStart - 1);
+      if (firstRemoved < nextPrevious || firstRemoved + hunk.oldCount > previous.size()) {
+        return null;
+      }
+      lines.addAll(previous.subList(nextPrevious, firstRemoved));
+      if (lines.size() != firstAdded || nextAdded + hunk.newCount > added.size()) {
+        return null;
+      }
+      lines.addAll(added.subList(nextAdded, nextAdded + hunk.newCount));
+      nextAdded += hunk.newCount;
+      nextPrevious = firstRemoved + hunk.oldCount;
+    }
+    if (nextAdded != added.size()) {
+      return null;
+    }
+    lines.addAll(previous.subList(nextPrevious, previous.size()));
+    return lines;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof DiffHunk)) {
+      return false;
+    }
+    DiffHunk other = (DiffHunk) o;
+    return oldStart == other.oldStart && oldCount == other.oldCount && newStart == other.newStart && newCount == other.newCount;
+  }
+
+  @Override
+  public int hashCode() {
+    return ((oldStart * 31 + oldCount) * 31 + newStart) * 31 + newCount;
+  }
+
+  @Override
+  public String toString() {
+    return "@@ -" + oldStart + "," + oldCount + " +" + newStart + "," + newCount + " @@";
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.maven.scm.command.blame.BlameLine;
+
+import javax.annotation.CheckForNull;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Commits and emails met while parsing the blame output of the files of an analysis.
+ * <p/>
+ * Lookups are done on the raw bytes of the output, so that known commits and emails cost no allocation. All the lines
+ * of a commit share the same {@link BlameLine}. The lines not committed yet, whose revision is all zeros, are not
+ * shared: their author and date depend on the file. Tables are emptied when they reach {@link #MAX_ENTRIES}, and at
+ * the end of the analysis. Thread-safe.
+ *
+ * @since 1.9
+ */
+public class GitBlameDictionary {
+
+  /**
+   * Maximum number of commits, and of emails, kept between two files
+   */
+  static final int MAX_ENTRIES = 100000;
+
+  private final Charset charset;
+  private final BytesTable<BlameLine> commits = new BytesTable<BlameLine>();
+  private final BytesTable<String> emails = new BytesTable<String>();
+
+  public GitBlameDictionary() {
+    this(Charset.defaultCharset());
+  }
+
+  public GitBlameDictionary(Charset charset) {
+    this.charset = charset;
+  }
+
+  /**
+   * @return the commit whose 40 hexadecimal digits start at the given offset, or <code>null</code> if unknown
+   */
+  @CheckForNull
+  public synchronized BlameLine getCommit(byte[] bytes, int offset) {
+    if (isNotCommitted(bytes, offset)) {
+      return null;
+    }
+    return commits.get(bytes, offset, 40);
+  }
+
+  public synchronized void putCommit(byte[] bytes, int offset, BlameLine commit) {
+    if (isNotCommitted(bytes, offset)) {
+      return;
+    }
+    if (commits.size >= MAX_ENTRIES) {
+      commits.clear();
+    }
+    commits.put(bytes, offset, 40, commit);
+  }
+
+  public synchronized String getEmail(byte[] bytes, int offset, int length) {
+    String email = emails.get(bytes, offset, length);
+    if (email == null) {
+      email = new String(bytes, offset, length, charset);
+      if (emails.size >= MAX_ENTRIES) {
+        emails.clear();
+      }
+      emails.put(bytes, offset, length, email);
+    }
+    return email;
+  }
+
+  public synchronized int size() {
+    return commits.size + emails.size;
+  }
+
+  public synchronized void clear() {
+    commits.clear();
+    emails.clear();
+  }
+
+  private static boolean isNotCommitted(byte[] bytes, int offset) {
+    for (int i = offset; i < offset + 40; i++) {
+      if (bytes[i] != '0') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Open addressing hash table keyed by byte sequences
+   */
+  private static final class BytesTable<V> {
+    private byte[][] keys = new byte[64][];
+    private Object[] values = new Object[64];
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    @CheckForNull
+    V get(byte[] bytes, int offset, int length) {
+      int mask = keys.length - 1;
+      for (int i = hash(bytes, offset, length) & mask; keys[i] != null; i = (i + 1) & mask) {
+        if (equals(keys[i], bytes, offset, length)) {
+          return (V) values[i];
+        }
+      }
+      return null;
+    }
+
+    void put(byte[] bytes, int offset, int length, V value) {
+      if (2 * (size + 1) > keys.length) {
+        resize();
+      }
+      int mask = keys.length - 1;
+      int i = hash(bytes, offset, length) & mask;
+      while (keys[i] != null) {
+        if (equals(keys[i], bytes, offset, length)) {
+          values[i] = value;
+          return;
+        }
+        i = (i + 1) & mask;
+      }
+      keys[i] = Arrays.copyOfRange(bytes, offset, offset + length);
+      values[i] = value;
+      size++;
+    }
+
+    void clear() {
+      keys = new byte[64][];
+      values = new Object[64];
+      size = 0;
+    }
+
+    private void resize() {
+      byte[][] oldKeys = keys;
+      Object[] oldValues = values;
+      keys = new byte[oldKeys.length * 2][];
+      values = new Object[oldKeys.length * 2];
+      int mask = keys.length - 1;
+      for (int j = 0; j < oldKeys.length; j++) {
+        if (oldKeys[j] != null) {
+          int i = hash(oldKeys[j], 0, oldKeys[j].length) & mask;
+          while (keys[i] != null) {
+            i = (i + 1) & mask;
+          }
+          keys[i] = oldKeys[j];
+          values[i] = oldValues[j];
+        }
+      }
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+      int hash = 1;
+      for (int i = offset; i < offset + length; i++) {
+        hash = 31 * hash + bytes[i];
+      }
+      return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(byte[] key, byte[] bytes, int offset, int length) {
+      if (key.length != length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (key[i] != bytes[offset + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
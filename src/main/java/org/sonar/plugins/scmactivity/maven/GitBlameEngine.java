@@ -0,0 +1,565 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.scm.command.blame.BlameLine;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Computes the blame of files of a git work tree without forking a <code>git blame</code> process per file.
+ * <p/>
+ * Mirrors what <code>git blame -w --porcelain</code> does: starting from the working copy, lines are passed
+ * from a commit to its parents while they are unchanged, whitespace being ignored, and are attributed to the
+ * commit which introduced them. Commit and file data is read through a {@link GitObjectReader} and cached, so
+ * an engine is meant to be shared by all the files of a repository.
+ * <p/>
+ * Renames without changes are followed, like git does. A file whose history reaches a commit which may have renamed
+ * it with changes, that is a commit adding it and deleting other files, is not blamed, as the similarity computed
+ * by git to detect such renames is not reproduced: it must be blamed by the git executable instead.
+ *
+ * @since 1.9
+ */
+public class GitBlameEngine implements Closeable {
+
+  static final String NOT_COMMITTED_REVISION = "0000000000000000000000000000000000000000";
+  static final String NOT_COMMITTED_EMAIL = "not.committed.yet";
+
+  private static final int MAX_CACHED_COMMITS = 10000;
+  private static final int MAX_CACHED_FILES = 256;
+  private static final int MAX_CACHED_TREES = 10000;
+  private static final String TREE_MODE = "40000";
+  private static final String GITLINK_MODE = "160000";
+
+  private final File workTree;
+  private final GitObjectReader reader;
+  private final Map<String, Commit> commits = lruCache(MAX_CACHED_COMMITS);
+  private final Map<String, String[]> files = lruCache(MAX_CACHED_FILES);
+  private final Map<String, Map<String, String[]>> trees = lruCache(MAX_CACHED_TREES);
+
+  public GitBlameEngine(File workTree, GitObjectReader reader) {
+    this.workTree = workTree;
+    this.reader = reader;
+  }
+
+  public File getWorkTree() {
+    return workTree;
+  }
+
+  /**
+   * @return one line per line of the file, or <code>null</code> if the file is not committed or may have been
+   * renamed with changes
+   */
+  @CheckForNull
+  public List<BlameLine> blame(File file) throws IOException {
+    return blame(Collections.singleton(file)).get(file);
+  }
+
+  /**
+   * Blames all the files in a single walk of the history: each commit is visited once for all the files, and the
+   * walk stops as soon as all the lines are attributed.
+   *
+   * @return the blame of the committed files, except the ones which may have been renamed with changes
+   */
+  public Map<File, List<BlameLine>> blame(Collection<File> files) throws IOException {
+    Map<File, List<BlameLine>> result = Maps.newHashMap();
+    String head = reader.resolve("HEAD");
+    if (head == null) {
+      return result;
+    }
+    Commit headCommit = commit(head);
+    Walk walk = new Walk();
+    BlameLine notCommitted = new BlameLine(new Date(), NOT_COMMITTED_REVISION, NOT_COMMITTED_EMAIL, NOT_COMMITTED_EMAIL);
+
+    Map<File, Target> targets = Maps.newLinkedHashMap();
+    for (File file : files) {
+      String path = relativePath(file);
+      String headBlob = blobId(headCommit.tree, path);
+      if (headBlob != null) {
+        String[] working = lines(FileUtils.readFileToByteArray(file));
+        Target target = new Target(working.length);
+        String[] committed = lines(headBlob);
+        if (Arrays.equals(committed, working)) {
+          walk.pass(headCommit, target, path, headBlob, Lines.identity(working.length));
+        } else {
+          walk.pass(headCommit, target, path, headBlob, passUnchanged(Lines.identity(working.length), LineDiff.match(committed, working), target.blame, notCommitted));
+        }
+        targets.put(file, target);
+      }
+    }
+    walk.run();
+    for (Map.Entry<File, Target> entry : targets.entrySet()) {
+      if (!entry.getValue().renamedWithChanges) {
+        result.put(entry.getKey(), Arrays.asList(entry.getValue().blame));
+      }
+    }
+    return result;
+  }
+
+  public void close() {
+    reader.close();
+  }
+
+  private final class Walk {
+    private final Map<String, Suspect> pending = Maps.newHashMap();
+    private final PriorityQueue<Suspect> queue = new PriorityQueue<Suspect>(16, new Comparator<Suspect>() {
+      public int compare(Suspect left, Suspect right) {
+        // most recent commits first, as git does
+        return right.commit.date.compareTo(left.commit.date);
+      }
+    });
+
+    void pass(Commit commit, Target target, String path, String blob, Lines lines) {
+      if (lines.size == 0) {
+        return;
+      }
+      Suspect suspect = pending.get(commit.revision);
+      if (suspect == null) {
+        suspect = new Suspect(commit);
+        pending.put(commit.revision, suspect);
+        queue.add(suspect);
+      }
+      Origin origin = suspect.origins.get(target);
+      if (origin == null) {
+        suspect.origins.put(target, new Origin(path, blob, new Lines().addAll(lines)));
+      } else if (origin.path.equals(path)) {
+        origin.lines.addAll(lines);
+      } else {
+        // Reached under two names, through a rename on one side of a merge
+        target.renamedWithChanges = true;
+      }
+    }
+
+    void run() throws IOException {
+      while (!queue.isEmpty()) {
+        Suspect suspect = queue.poll();
+        pending.remove(suspect.commit.revision);
+        Commit[] parents = new Commit[suspect.commit.parents.length];
+        for (int i = 0; i < parents.length; i++) {
+          parents[i] = commit(suspect.commit.parents[i]);
+        }
+        for (Map.Entry<Target, Origin> entry : suspect.origins.entrySet()) {
+          if (!entry.getKey().renamedWithChanges) {
+            blame(suspect.commit, parents, entry.getKey(), entry.getValue());
+          }
+        }
+      }
+    }
+
+    private void blame(Commit commit, Commit[] parents, Target target, Origin origin) throws IOException {
+      String[] parentBlobs = new String[parents.length];
+      boolean added = true;
+      for (int i = 0; i < parents.length; i++) {
+        parentBlobs[i] = blobId(parents[i].tree, origin.path);
+        if (origin.blob.equals(parentBlobs[i])) {
+          pass(parents[i], target, origin.path, parentBlobs[i], origin.lines);
+          return;
+        }
+        added &= parentBlobs[i] == null;
+      }
+      if (parents.length > 0 && added && followRename(commit, parents, target, origin)) {
+        return;
+      }
+
+      Lines remaining = origin.lines;
+      String[] lines = lines(origin.blob);
+      for (int i = 0; i < parents.length && remaining.size > 0; i++) {
+        if (parentBlobs[i] != null) {
+          Lines unchanged = new Lines();
+          Lines changed = new Lines();
+          int[] matches = LineDiff.match(lines(parentBlobs[i]), lines);
+          for (int j = 0; j < remaining.size; j++) {
+            int match = matches[remaining.source[j]];
+            if (match >= 0) {
+              unchanged.add(remaining.target[j], match);
+            } else {
+              changed.add(remaining.target[j], remaining.source[j]);
+            }
+          }
+          pass(parents[i], target, origin.path, parentBlobs[i], unchanged);
+          remaining = changed;
+        }
+      }
+      for (int j = 0; j < remaining.size; j++) {
+        target.blame[remaining.target[j]] = commit.line;
+      }
+    }
+
+    /**
+     * Passes the lines of a file added by a commit to the file it was renamed from, if any. Like git, only files
+     * deleted by the commit are considered as sources of a rename.
+     *
+     * @return false if the file was not renamed, and so was added by the commit
+     */
+    private boolean followRename(Commit commit, Commit[] parents, Target target, Origin origin) throws IOException {
+      for (Commit parent : parents) {
+        Map<String, String> deleted = Maps.newHashMap();
+        deletedFiles(parent.tree, commit.tree, "", deleted);
+        List<String> sources = Lists.newArrayList();
+        for (Map.Entry<String, String> entry : deleted.entrySet()) {
+          if (entry.getValue().equals(origin.blob)) {
+            sources.add(entry.getKey());
+          }
+        }
+        if (sources.size() == 1) {
+          pass(parent, target, sources.get(0), origin.blob, origin.lines);
+          return true;
+        }
+        if (!deleted.isEmpty()) {
+          // Several identical sources, or a source with changes whose similarity is not computed
+          target.renamedWithChanges = true;
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Lists the files of a parent tree which are missing from a tree, with their blob id by path.
+   */
+  private void deletedFiles(String parentTreeId, @Nullable String treeId, String prefix, Map<String, String> deleted) throws IOException {
+    Map<String, String[]> entries = treeId == null ? Collections.<String, String[]>emptyMap() : tree(treeId);
+    for (Map.Entry<String, String[]> parentEntry : tree(parentTreeId).entrySet()) {
+      String[] parentValue = parentEntry.getValue();
+      String[] value = entries.get(parentEntry.getKey());
+      if (value != null && value[1].equals(parentValue[1])) {
+        continue;
+      }
+      String path = prefix + parentEntry.getKey();
+      boolean isTree = value != null && TREE_MODE.equals(value[0]);
+      if (TREE_MODE.equals(parentValue[0])) {
+        deletedFiles(parentValue[1], isTree ? value[1] : null, path + "/", deleted);
+      } else if (!GITLINK_MODE.equals(parentValue[0]) && (value == null || isTree || GITLINK_MODE.equals(value[0]))) {
+        deleted.put(path, parentValue[1]);
+      }
+    }
+  }
+
+  private static Lines passUnchanged(Lines lines, int[] matches, BlameLine[] blame, BlameLine changedLine) {
+    Lines unchanged = new Lines();
+    for (int j = 0; j < lines.size; j++) {
+      int match = matches[lines.source[j]];
+      if (match >= 0) {
+        unchanged.add(lines.target[j], match);
+      } else {
+        blame[lines.target[j]] = changedLine;
+      }
+    }
+    return unchanged;
+  }
+
+  private Commit commit(String revision) throws IOException {
+    Commit commit = commits.get(revision);
+    if (commit == null) {
+      byte[] content = reader.read(revision);
+      if (content == null) {
+        throw new IOException("Unable to read commit " + revision);
+      }
+      commit = Commit.parse(revision, new String(content, Charsets.UTF_8));
+      commits.put(revision, commit);
+    }
+    return commit;
+  }
+
+  /**
+   * @return the id of the file at the given path of the tree, or <code>null</code> if there is no such file
+   */
+  @CheckForNull
+  private String blobId(String treeId, String path) throws IOException {
+    String id = treeId;
+    int start = 0;
+    while (true) {
+      int end = path.indexOf('/', start);
+      String[] entry = tree(id).get(end < 0 ? path.substring(start) : path.substring(start, end));
+      if (entry == null) {
+        return null;
+      }
+      boolean isTree = TREE_MODE.equals(entry[0]);
+      if (end < 0) {
+        return isTree || GITLINK_MODE.equals(entry[0]) ? null : entry[1];
+      }
+      if (!isTree) {
+        return null;
+      }
+      id = entry[1];
+      start = end + 1;
+    }
+  }
+
+  /**
+   * @return the entries of the tree, by name: <code>{mode, id}</code>
+   */
+  private Map<String, String[]> tree(String id) throws IOException {
+    Map<String, String[]> tree = trees.get(id);
+    if (tree == null) {
+      byte[] content = reader.read(id);
+      if (content == null) {
+        throw new IOException("Unable to read tree " + id);
+      }
+      tree = Maps.newHashMap();
+      int i = 0;
+      while (i < content.length) {
+        int space = indexOf(content, (byte) ' ', i);
+        int nul = indexOf(content, (byte) 0, space);
+        String mode = new String(content, i, space - i, Charsets.US_ASCII);
+        String name = new String(content, space + 1, nul - space - 1, Charsets.UTF_8);
+        tree.put(name, new String[] {mode, Hex.encodeHexString(Arrays.copyOfRange(content, nul + 1, nul + 21))});
+        i = nul + 21;
+      }
+      trees.put(id, tree);
+    }
+    return tree;
+  }
+
+  private static int indexOf(byte[] content, byte b, int from) throws IOException {
+    for (int i = from; i < content.length; i++) {
+      if (content[i] == b) {
+        return i;
+      }
+    }
+    throw new IOException("Malformed tree");
+  }
+
+  private String[] lines(String blob) throws IOException {
+    String[] lines = files.get(blob);
+    if (lines == null) {
+      byte[] content = reader.read(blob);
+      if (content == null) {
+        throw new IOException("Unable to read blob " + blob);
+      }
+      lines = lines(content);
+      files.put(blob, lines);
+    }
+    return lines;
+  }
+
+  /**
+   * Splits content in lines the way git does, each line being stripped from its whitespaces as with
+   * <code>git blame -w</code>.
+   */
+  static String[] lines(byte[] content) {
+    List<String> lines = Lists.newArrayList();
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < content.length; i++) {
+      byte b = content[i];
+      if (b == '\n') {
+        lines.add(line.toString());
+        line.setLength(0);
+      } else if (!isWhitespace(b)) {
+        line.append((char) (b & 0xff));
+      }
+    }
+    if (content.length > 0 && content[content.length - 1] != '\n') {
+      lines.add(line.toString());
+    }
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0b;
+  }
+
+  private String relativePath(File file) throws IOException {
+    String root = workTree.getCanonicalPath();
+    String path = file.getCanonicalPath();
+    if (!path.startsWith(root + File.separator)) {
+      throw new IOException(file + " is not in the git work tree " + workTree);
+    }
+    return path.substring(root.length() + 1).replace(File.separatorChar, '/');
+  }
+
+  /**
+   * @return the root of the git work tree containing the file, or <code>null</code> if there is none
+   */
+  @CheckForNull
+  public static File findWorkTree(File file) throws IOException {
+    for (File dir = file.getCanonicalFile(); dir != null; dir = dir.getParentFile()) {
+      if (new File(dir, ".git").exists()) {
+        return dir;
+      }
+    }
+    return null;
+  }
+
+  private static <K, V> Map<K, V> lruCache(final int maxSize) {
+    return Collections.synchronizedMap(new LinkedHashMap<K, V>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > maxSize;
+      }
+    });
+  }
+
+  /**
+   * A blamed file
+   */
+  private static final class Target {
+    private final BlameLine[] blame;
+    private boolean renamedWithChanges;
+
+    Target(int lineCount) {
+      this.blame = new BlameLine[lineCount];
+    }
+  }
+
+  /**
+   * A commit to which lines of some files may be attributed
+   */
+  private static final class Suspect {
+    private final Commit commit;
+    private final Map<Target, Origin> origins = Maps.newLinkedHashMap();
+
+    Suspect(Commit commit) {
+      this.commit = commit;
+    }
+  }
+
+  /**
+   * Lines of a blamed file which may have been introduced by a given version of it, at a given path
+   */
+  private static final class Origin {
+    private final String path;
+    private final String blob;
+    private final Lines lines;
+
+    Origin(String path, String blob, Lines lines) {
+      this.path = path;
+      this.blob = blob;
+      this.lines = lines;
+    }
+  }
+
+  /**
+   * Lines of the blamed file (target) and their index in a given version of it (source).
+   */
+  private static final class Lines {
+    private int[] target = new int[16];
+    private int[] source = new int[16];
+    private int size;
+
+    static Lines identity(int count) {
+      Lines lines = new Lines();
+      for (int i = 0; i < count; i++) {
+        lines.add(i, i);
+      }
+      return lines;
+    }
+
+    void add(int targetLine, int sourceLine) {
+      if (size == target.length) {
+        target = Arrays.copyOf(target, size * 2);
+        source = Arrays.copyOf(source, size * 2);
+      }
+      target[size] = targetLine;
+      source[size] = sourceLine;
+      size++;
+    }
+
+    Lines addAll(Lines lines) {
+      for (int i = 0; i < lines.size; i++) {
+        add(lines.target[i], lines.source[i]);
+      }
+      return this;
+    }
+  }
+
+  private static final class Commit {
+    private final String revision;
+    private final String tree;
+    private final String[] parents;
+    private final Date date;
+    private final BlameLine line;
+
+    private Commit(String revision, String tree, String[] parents, Date date, String author, String committer) {
+      this.revision = revision;
+      this.tree = tree;
+      this.parents = parents;
+      this.date = date;
+      this.line = new BlameLine(date, revision, author, committer);
+    }
+
+    static Commit parse(String revision, String content) throws IOException {
+      String tree = null;
+      List<String> parents = Lists.newArrayList();
+      String author = null;
+      String committer = null;
+      Date date = null;
+      for (String header : content.split("\n")) {
+        if (header.length() == 0) {
+          break;
+        }
+        if (header.startsWith("tree ")) {
+          tree = header.substring("tree ".length());
+        } else if (header.startsWith("parent ")) {
+          parents.add(header.substring("parent ".length()));
+        } else if (header.startsWith("author ")) {
+          author = email(header);
+        } else if (header.startsWith("committer ")) {
+          committer = email(header);
+          date = time(header);
+        }
+      }
+      if (tree == null || date == null) {
+        throw new IOException("Unable to parse commit " + revision);
+      }
+      return new Commit(revision, tree, parents.toArray(new String[parents.size()]), date, author, committer);
+    }
+
+    @CheckForNull
+    private static String email(String ident) {
+      int start = ident.indexOf('<');
+      int end = ident.indexOf('>');
+      if (start == -1 || end == -1 || end <= start) {
+        return null;
+      }
+      return ident.substring(start + 1, end);
+    }
+
+    @CheckForNull
+    private static Date time(String ident) {
+      String[] fields = ident.substring(ident.lastIndexOf('>') + 1).trim().split(" ");
+      try {
+        return new Date(Long.parseLong(fields[0]) * 1000L);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import org.apache.commons.io.IOUtils;
+
+import javax.annotation.CheckForNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads objects of a git repository through long-lived <code>git cat-file</code> processes, so that the repository
+ * is opened once and its pack and delta caches are kept warm for all the files being blamed.
+ * <p/>
+ * Each thread gets its own pair of processes, see {@link PerThreadServers}, so a reader can be shared by all the
+ * worker threads without serializing their requests. Parsed objects are shared through the caches of
+ * {@link GitBlameEngine}. A process is registered in {@link ChildProcesses} while a request is in flight, so that
+ * it is killed after a timeout.
+ *
+ * @since 1.9
+ */
+public class GitObjectReader implements Closeable {
+
+  private final File workTree;
+  private final PerThreadServers<File, CatFiles> servers = new PerThreadServers<File, CatFiles>() {
+    @Override
+    protected CatFiles start(File workTree) throws IOException {
+      return new CatFiles(workTree);
+    }
+  };
+
+  public GitObjectReader(File workTree) {
+    this.workTree = workTree;
+  }
+
+  /**
+   * @param spec an object name, e.g. <code>HEAD</code> or <code>&lt;commit&gt;:&lt;path&gt;</code>
+   * @return the id of the object, or <code>null</code> if it does not exist
+   */
+  @CheckForNull
+  public String resolve(final String spec) throws IOException {
+    return servers.run(workTree, new PerThreadServers.Request<CatFiles, String>() {
+      public String run(CatFiles catFiles) throws IOException {
+        return catFiles.batchCheck.resolve(spec);
+      }
+    });
+  }
+
+  /**
+   * @return the content of the object, or <code>null</code> if it does not exist
+   */
+  @CheckForNull
+  public byte[] read(final String id) throws IOException {
+    return servers.run(workTree, new PerThreadServers.Request<CatFiles, byte[]>() {
+      public byte[] run(CatFiles catFiles) throws IOException {
+        return catFiles.batch.read(id);
+      }
+    });
+  }
+
+  @VisibleForTesting
+  int size() {
+    return servers.size();
+  }
+
+  /**
+   * Stops the processes. They are started again if needed.
+   */
+  public void close() {
+    servers.close();
+  }
+
+  /**
+   * The processes of a thread
+   */
+  private static final class CatFiles implements Closeable {
+    private final CatFile batchCheck;
+    private final CatFile batch;
+
+    CatFiles(File workTree) throws IOException {
+      batchCheck = new CatFile(workTree, "--batch-check");
+      try {
+        batch = new CatFile(workTree, "--batch");
+      } catch (IOException e) {
+        batchCheck.close();
+        throw e;
+      }
+    }
+
+    public void close() {
+      batchCheck.close();
+      batch.close();
+    }
+  }
+
+  private static final class CatFile {
+    private final Process process;
+    private final OutputStream input;
+    private final InputStream output;
+
+    CatFile(File workTree, String mode) throws IOException {
+      process = new ProcessBuilder("git", "cat-file", mode).directory(workTree).start();
+      input = new BufferedOutputStream(process.getOutputStream());
+      output = new BufferedInputStream(process.getInputStream());
+      PerThreadServers.discard(process.getErrorStream(), "git cat-file stderr");
+    }
+
+    /**
+     * @return the id of the object, or <code>null</code> if it does not exist
+     */
+    @CheckForNull
+    String resolve(String spec) throws IOException {
+      ChildProcesses.register(process);
+      try {
+        String[] header = request(spec);
+        return header == null ? null : header[0];
+      } finally {
+        ChildProcesses.unregister();
+      }
+    }
+
+    /**
+     * @return the content of the object, or <code>null</code> if it does not exist
+     */
+    @CheckForNull
+    byte[] read(String id) throws IOException {
+      ChildProcesses.register(process);
+      try {
+        String[] header = request(id);
+        if (header == null) {
+          return null;
+        }
+        byte[] content = new byte[Integer.parseInt(header[2])];
+        IOUtils.readFully(output, content);
+        if (output.read() != '\n') {
+          throw new IOException("Unexpected output of git cat-file for " + id);
+        }
+        return content;
+      } finally {
+        ChildProcesses.unregister();
+      }
+    }
+
+    /**
+     * @return the header fields <code>{id, type, size}</code>, or <code>null</code> if the object is missing
+     */
+    @CheckForNull
+    private String[] request(String spec) throws IOException {
+      if (spec.indexOf('\n') >= 0) {
+        return null;
+      }
+      input.write(spec.getBytes(Charsets.UTF_8));
+      input.write('\n');
+      input.flush();
+
+      String[] header = readLine().split(" ");
+      if (header.length != 3) {
+        // "<spec> missing" or "<spec> ambiguous"
+        return null;
+      }
+      return header;
+    }
+
+    private String readLine() throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+      for (int b = output.read(); b != '\n'; b = output.read()) {
+        if (b < 0) {
+          throw new EOFException("git cat-file exited unexpectedly");
+        }
+        line.write(b);
+      }
+      return new String(line.toByteArray(), Charsets.UTF_8);
+    }
+
+    void close() {
+      IOUtils.closeQuietly(input);
+      IOUtils.closeQuietly(output);
+      process.destroy();
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.log.ScmLogger;
+import org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+
+import javax.annotation.CheckForNull;
+
+import java.io.File;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Version of the installed git executable.
+ *
+ * @since 1.9
+ */
+public final class GitVersion implements Comparable<GitVersion> {
+
+  private static final Pattern VERSION = Pattern.compile("git version (\\d+)\\.(\\d+)(?:\\.(\\d+))?.*", Pattern.DOTALL);
+
+  private final int major;
+  private final int minor;
+  private final int patch;
+
+  public GitVersion(int major, int minor, int patch) {
+    this.major = major;
+    this.minor = minor;
+    this.patch = patch;
+  }
+
+  /**
+   * @param output output of <code>git --version</code>, e.g. <i>git version 1.8.3.msysgit.0</i>
+   * @return null if the output can't be parsed
+   */
+  @CheckForNull
+  public static GitVersion parse(String output) {
+    Matcher matcher = VERSION.matcher(output.trim());
+    if (!matcher.matches()) {
+      return null;
+    }
+    return new GitVersion(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)),
+      matcher.group(3) == null ? 0 : Integer.parseInt(matcher.group(3)));
+  }
+
+  /**
+   * Runs <code>git --version</code>
+   *
+   * @return null if git can't be run or its version is unknown
+   */
+  @CheckForNull
+  public static GitVersion probe(File workingDirectory, ScmLogger logger) {
+    Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "--version");
+    CommandLineUtils.StringStreamConsumer stdout = new CommandLineUtils.StringStreamConsumer();
+    CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+    try {
+      if (GitCommandLineUtils.execute(cl, stdout, stderr, logger) != 0) {
+        logger.warn("Unable to get the version of git: " + stderr.getOutput());
+        return null;
+      }
+    } catch (ScmException e) {
+      logger.warn("Unable to get the version of git", e);
+      return null;
+    }
+    return parse(stdout.getOutput());
+  }
+
+  public boolean isAtLeast(GitVersion version) {
+    return compareTo(version) >= 0;
+  }
+
+  public int compareTo(GitVersion other) {
+    if (major != other.major) {
+      return major < other.major ? -1 : 1;
+    }
+    if (minor != other.minor) {
+      return minor < other.minor ? -1 : 1;
+    }
+    return patch == other.patch ? 0 : (patch < other.patch ? -1 : 1);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof GitVersion && compareTo((GitVersion) o) == 0;
+  }
+
+  @Override
+  public int hashCode() {
+    return (major * 1000 + minor) * 1000 + patch;
+  }
+
+  @Override
+  public String toString() {
+    return major + "." + minor + "." + patch;
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Long-lived Mercurial process started with <code>hg serve --cmdserver pipe</code>, which runs commands without
+ * starting a new Python interpreter for each of them. See http://mercurial.selenic.com/wiki/CommandServer
+ * <p/>
+ * Messages are read from the channels of the server: <i>o</i> for the output, <i>e</i> for the errors and <i>r</i>
+ * for the exit code of a command. A server is not thread-safe, it must be used by a single thread at a time.
+ *
+ * @since 1.9
+ */
+public class HgCommandServer implements Closeable {
+
+  private static final int MAX_HELLO_LENGTH = 64 * 1024;
+
+  private final File root;
+  private final Process process;
+  private final DataInputStream input;
+  private final DataOutputStream output;
+
+  private HgCommandServer(File root, Process process) {
+    this.root = root;
+    this.process = process;
+    this.input = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+    this.output = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+  }
+
+  /**
+   * @param command executable and arguments starting the command server, e.g. <code>hg serve --cmdserver pipe</code>
+   * @param root root of the repository, the working directory of the server
+   */
+  public static HgCommandServer start(List<String> command, File root) throws IOException {
+    ProcessBuilder builder = new ProcessBuilder(command).directory(root);
+    // Output not affected by the configuration of the user, and decoded as UTF-8
+    builder.environment().put("HGPLAIN", "1");
+    builder.environment().put("HGENCODING", "UTF-8");
+    Process process = builder.start();
+    // Errors of the server itself, not of the commands, which are sent on the e channel
+    PerThreadServers.discard(process.getErrorStream(), "hg serve stderr");
+    HgCommandServer server = new HgCommandServer(root, process);
+    try {
+      server.readHello();
+    } catch (IOException e) {
+      server.close();
+      throw e;
+    }
+    return server;
+  }
+
+  public File getRoot() {
+    return root;
+  }
+
+  private void readHello() throws IOException {
+    char channel = (char) input.readUnsignedByte();
+    int length = input.readInt();
+    if (channel != 'o' || length < 0 || length > MAX_HELLO_LENGTH) {
+      throw new IOException("Not a Mercurial command server");
+    }
+    byte[] hello = new byte[length];
+    input.readFully(hello);
+    String message = new String(hello, Charsets.UTF_8);
+    if (!message.contains("runcommand")) {
+      throw new IOException("Not a Mercurial command server: " + message);
+    }
+  }
+
+  /**
+   * Runs a command and waits for its completion.
+   *
+   * @return exit code of the command
+   * @throws IOException if the server can not be reached, e.g. after a crash. The server must then be closed.
+   */
+  public int runCommand(OutputStream out, OutputStream err, String... args) throws IOException {
+    byte[] arguments = Joiner.on('\0').join(args).getBytes(Charsets.UTF_8);
+    output.write("runcommand\n".getBytes(Charsets.UTF_8));
+    output.writeInt(arguments.length);
+    output.write(arguments);
+    output.flush();
+
+    ChildProcesses.register(process);
+    try {
+      while (true) {
+        char channel = (char) input.readUnsignedByte();
+        int length = input.readInt();
+        switch (channel) {
+          case 'o':
+            copy(length, out);
+            break;
+          case 'e':
+            copy(length, err);
+            break;
+          case 'r':
+            return length == 4 ? input.readInt() : skipResult(length);
+          case 'I':
+          case 'L':
+            // No input is available, the command gets an end of file
+            output.writeInt(0);
+            output.flush();
+            break;
+          default:
+            if (Character.isUpperCase(channel)) {
+              throw new IOException("Unsupported required channel of the Mercurial command server: " + channel);
+            }
+            copy(length, null);
+        }
+      }
+    } finally {
+      ChildProcesses.unregister();
+    }
+  }
+
+  /**
+   * @return the output of a command, decoded as UTF-8
+   * @throws IOException if the server can not be reached or if the command fails
+   */
+  public String run(String... args) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    int exitCode = runCommand(out, err, args);
+    if (exitCode != 0) {
+      throw new HgCommandException(exitCode, new String(err.toByteArray(), Charsets.UTF_8).trim());
+    }
+    return new String(out.toByteArray(), Charsets.UTF_8);
+  }
+
+  private void copy(int length, OutputStream out) throws IOException {
+    byte[] buffer = new byte[Math.min(length, 8192)];
+    int remaining = length;
+    while (remaining > 0) {
+      int read = input.read(buffer, 0, Math.min(remaining, buffer.length));
+      if (read < 0) {
+        throw new EOFException("Mercurial command server stopped");
+      }
+      if (out != null) {
+        out.write(buffer, 0, read);
+      }
+      remaining -= read;
+    }
+  }
+
+  private int skipResult(int length) throws IOException {
+    copy(length, null);
+    throw new IOException("Invalid result of the Mercurial command server, " + length + " byte(s)");
+  }
+
+  /**
+   * Stops the server, which exits when its input is closed.
+   */
+  public void close() {
+    IOUtils.closeQuietly(output);
+    IOUtils.closeQuietly(input);
+    process.destroy();
+  }
+
+  /**
+   * Failure of a command run by a server which is still usable.
+   */
+  public static class HgCommandException extends IOException {
+    private final int exitCode;
+
+    public HgCommandException(int exitCode, String message) {
+      super(message);
+      this.exitCode = exitCode;
+    }
+
+    public int getExitCode() {
+      return exitCode;
+    }
+  }
+}
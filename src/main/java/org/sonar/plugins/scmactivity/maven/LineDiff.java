@@ -0,0 +1,135 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import java.util.Arrays;
+
+/**
+ * Line-based Myers diff, in linear space.
+ * <p/>
+ * Used to pass blame from a file version to its parent version: lines which are not matched are the ones changed
+ * by the commit.
+ */
+public final class LineDiff {
+
+  private final String[] a;
+  private final String[] b;
+  private final int[] matches;
+  private int[] forward;
+  private int[] backward;
+
+  private LineDiff(String[] a, String[] b) {
+    this.a = a;
+    this.b = b;
+    this.matches = new int[b.length];
+    Arrays.fill(matches, -1);
+  }
+
+  /**
+   * @return for each line of <code>b</code>, the index of the matching line of <code>a</code>, or -1 if the line
+   * was added or changed
+   */
+  public static int[] match(String[] a, String[] b) {
+    LineDiff diff = new LineDiff(a, b);
+    diff.compare(0, a.length, 0, b.length);
+    return diff.matches;
+  }
+
+  private void compare(int aStart, int aEnd, int bStart, int bEnd) {
+    int aLo = aStart;
+    int bLo = bStart;
+    int aHi = aEnd;
+    int bHi = bEnd;
+
+    // Common prefix and suffix
+    while (aLo < aHi && bLo < bHi && a[aLo].equals(b[bLo])) {
+      matches[bLo++] = aLo++;
+    }
+    while (aLo < aHi && bLo < bHi && a[aHi - 1].equals(b[bHi - 1])) {
+      matches[--bHi] = --aHi;
+    }
+    if (aLo == aHi || bLo == bHi) {
+      return;
+    }
+
+    int[] snake = middleSnake(aLo, aHi, bLo, bHi);
+    for (int x = snake[0], y = snake[1]; x < snake[2]; x++, y++) {
+      matches[y] = x;
+    }
+    compare(aLo, snake[0], bLo, snake[1]);
+    compare(snake[2], aHi, snake[3], bHi);
+  }
+
+  /**
+   * @return the start and end points {xStart, yStart, xEnd, yEnd} of the middle snake of an optimal edit path
+   */
+  private int[] middleSnake(int aLo, int aHi, int bLo, int bHi) {
+    int n = aHi - aLo;
+    int m = bHi - bLo;
+    int delta = n - m;
+    boolean odd = (delta & 1) != 0;
+    int max = (n + m + 1) / 2;
+    int offset = max + 1;
+    int size = 2 * max + 3;
+    if (forward == null || forward.length < size) {
+      forward = new int[size];
+      backward = new int[size];
+    }
+    int[] vf = forward;
+    int[] vb = backward;
+    vf[offset + 1] = 0;
+    vb[offset + 1] = 0;
+
+    for (int d = 0; d <= max; d++) {
+      for (int k = -d; k <= d; k += 2) {
+        int x = k == -d || (k != d && vf[offset + k - 1] < vf[offset + k + 1]) ? vf[offset + k + 1] : (vf[offset + k - 1] + 1);
+        int y = x - k;
+        int xStart = x;
+        int yStart = y;
+        while (x < n && y < m && a[aLo + x].equals(b[bLo + y])) {
+          x++;
+          y++;
+        }
+        vf[offset + k] = x;
+        int kb = delta - k;
+        if (odd && kb >= -(d - 1) && kb <= d - 1 && x + vb[offset + kb] >= n) {
+          return new int[] {aLo + xStart, bLo + yStart, aLo + x, bLo + y};
+        }
+      }
+
+      for (int k = -d; k <= d; k += 2) {
+        int x = k == -d || (k != d && vb[offset + k - 1] < vb[offset + k + 1]) ? vb[offset + k + 1] : (vb[offset + k - 1] + 1);
+        int y = x - k;
+        int xStart = x;
+        int yStart = y;
+        while (x < n && y < m && a[aHi - x - 1].equals(b[bHi - y - 1])) {
+          x++;
+          y++;
+        }
+        vb[offset + k] = x;
+        int kf = delta - k;
+        if (!odd && kf >= -d && kf <= d && x + vf[offset + kf] >= n) {
+          return new int[] {aHi - x, bHi - y, aHi - xStart, bHi - yStart};
+        }
+      }
+    }
+    throw new IllegalStateException("No middle snake found");
+  }
+}
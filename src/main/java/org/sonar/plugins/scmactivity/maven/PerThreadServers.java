@@ -0,0 +1,169 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.io.IOUtils;
+
+import javax.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Long-lived server processes, one per blame thread, started on the first request of the thread, see
+ * {@link HgCommandServer} and {@link TfsAnnotateServer}.
+ * <p/>
+ * A server which crashed is closed and the request is retried once with a new server, unless the server was killed
+ * after a timeout: the retry would run without being watched. All the servers are stopped by {@link #close()}.
+ *
+ * @param <K> what a server is started for, e.g. the root of a repository. A thread whose request needs another key
+ * gets a new server.
+ * @param <S> the server
+ * @since 1.9
+ */
+public abstract class PerThreadServers<K, S extends Closeable> {
+
+  private final Class<? extends IOException> requestFailure;
+  private final Map<Thread, Slot<K, S>> servers = new ConcurrentHashMap<Thread, Slot<K, S>>();
+
+  /**
+   * For servers whose requests either succeed or leave the server unusable
+   */
+  protected PerThreadServers() {
+    this(null);
+  }
+
+  /**
+   * @param requestFailure failure of a request reported by a server which is still usable
+   */
+  protected PerThreadServers(@Nullable Class<? extends IOException> requestFailure) {
+    this.requestFailure = requestFailure;
+  }
+
+  protected abstract S start(K key) throws IOException;
+
+  public interface Request<S, T> {
+    T run(S server) throws IOException;
+  }
+
+  /**
+   * Runs a request with the server of the current thread.
+   */
+  public <T> T run(K key, Request<S, T> request) throws IOException {
+    ChildProcesses.clearKilled();
+    try {
+      return request.run(getServer(key));
+    } catch (IOException e) {
+      if (isRequestFailure(e)) {
+        throw e;
+      }
+      closeServer();
+      if (ChildProcesses.isKilled() || Thread.currentThread().isInterrupted()) {
+        // Killed after a timeout
+        throw e;
+      }
+    }
+    // The server crashed, the request is retried once with a new one
+    try {
+      return request.run(getServer(key));
+    } catch (IOException e) {
+      if (!isRequestFailure(e)) {
+        closeServer();
+      }
+      throw e;
+    }
+  }
+
+  private boolean isRequestFailure(IOException e) {
+    return requestFailure != null && requestFailure.isInstance(e);
+  }
+
+  private S getServer(K key) throws IOException {
+    Slot<K, S> slot = servers.get(Thread.currentThread());
+    if (slot != null && !slot.key.equals(key)) {
+      closeServer();
+      slot = null;
+    }
+    if (slot == null) {
+      slot = new Slot<K, S>(key, start(key));
+      servers.put(Thread.currentThread(), slot);
+    }
+    return slot.server;
+  }
+
+  private void closeServer() {
+    Slot<K, S> slot = servers.remove(Thread.currentThread());
+    if (slot != null) {
+      IOUtils.closeQuietly(slot.server);
+    }
+  }
+
+  public int size() {
+    return servers.size();
+  }
+
+  /**
+   * Stops the servers. Servers are started again if needed.
+   */
+  public void close() {
+    for (Thread thread : Lists.newArrayList(servers.keySet())) {
+      Slot<K, S> slot = servers.remove(thread);
+      if (slot != null) {
+        IOUtils.closeQuietly(slot.server);
+      }
+    }
+  }
+
+  /**
+   * Reads and discards the messages of a server on its standard error, so that it never blocks on a full pipe.
+   */
+  public static void discard(final InputStream stream, String threadName) {
+    Thread thread = new Thread(threadName) {
+      @Override
+      public void run() {
+        try {
+          while (stream.read() >= 0) {
+            // discard
+          }
+        } catch (IOException e) {
+          // process is gone
+        } finally {
+          IOUtils.closeQuietly(stream);
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static final class Slot<K, S> {
+    private final K key;
+    private final S server;
+
+    Slot(K key, S server) {
+      this.key = key;
+      this.server = server;
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.command.blame.BlameLine;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Author and date of the changelists returned by <code>p4 annotate</code>, shared by all the files, so that each
+ * changelist is described once whatever the number of files and threads it is blamed in. A changelist which is being
+ * described by a thread is waited for by the others.
+ *
+ * @since 1.9
+ */
+public class PerforceChangelistCache {
+
+  public interface Loader {
+    /**
+     * @return author and date of the changelists, as blame lines keyed by changelist number
+     */
+    Map<String, BlameLine> describe(List<String> changelists) throws ScmException;
+  }
+
+  private final ConcurrentMap<String, SettableFuture<BlameLine>> changelists = new ConcurrentHashMap<String, SettableFuture<BlameLine>>();
+
+  /**
+   * @param loader describes the changelists which are not known yet
+   * @return author and date of the changelists
+   * @throws ScmException if a changelist can not be described
+   */
+  public Map<String, BlameLine> get(Set<String> numbers, Loader loader) throws ScmException {
+    Map<String, SettableFuture<BlameLine>> futures = Maps.newHashMap();
+    Map<String, SettableFuture<BlameLine>> missing = Maps.newLinkedHashMap();
+    for (String number : numbers) {
+      SettableFuture<BlameLine> future = SettableFuture.create();
+      SettableFuture<BlameLine> previous = changelists.putIfAbsent(number, future);
+      if (previous == null) {
+        missing.put(number, future);
+        futures.put(number, future);
+      } else {
+        futures.put(number, previous);
+      }
+    }
+    if (!missing.isEmpty()) {
+      describe(missing, loader);
+    }
+
+    Map<String, BlameLine> result = Maps.newHashMap();
+    for (Map.Entry<String, SettableFuture<BlameLine>> entry : futures.entrySet()) {
+      result.put(entry.getKey(), await(entry.getKey(), entry.getValue()));
+    }
+    return result;
+  }
+
+  private void describe(Map<String, SettableFuture<BlameLine>> missing, Loader loader) throws ScmException {
+    Map<String, BlameLine> described = null;
+    try {
+      described = loader.describe(Lists.newArrayList(missing.keySet()));
+    } finally {
+      for (Map.Entry<String, SettableFuture<BlameLine>> entry : missing.entrySet()) {
+        BlameLine changelist = described == null ? null : described.get(entry.getKey());
+        if (changelist == null) {
+          // Not cached, so that a later blame describes it again
+          changelists.remove(entry.getKey(), entry.getValue());
+          entry.getValue().setException(new ScmException("Unable to describe the changelist " + entry.getKey()));
+        } else {
+          entry.getValue().set(changelist);
+        }
+      }
+    }
+  }
+
+  private static BlameLine await(String number, SettableFuture<BlameLine> future) throws ScmException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ScmException("Interrupted while waiting for the description of the changelist " + number, e);
+    } catch (ExecutionException e) {
+      throw new ScmException("Unable to describe the changelist " + number, e.getCause());
+    }
+  }
+
+  /**
+   * Forgets the changelists, which may belong to another server in the next analysis.
+   */
+  public void clear() {
+    changelists.clear();
+  }
+
+  int size() {
+    return changelists.size();
+  }
+}
@@ -19,16 +19,24 @@
  */
 package org.sonar.plugins.scmactivity.maven;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.maven.scm.*;
+import org.apache.maven.scm.command.blame.BlameLine;
 import org.apache.maven.scm.command.blame.BlameScmResult;
 import org.apache.maven.scm.provider.ScmProviderRepository;
 import org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils;
 import org.apache.maven.scm.provider.git.gitexe.command.blame.GitBlameCommand;
+import org.codehaus.plexus.util.cli.CommandLineException;
 import org.codehaus.plexus.util.cli.CommandLineUtils;
 import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamPumper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
 
 /**
- * Overriding the default git blame command in order to use the SonarGitBlameConsumer to process the output
+ * Overriding the default git blame command in order to use the SonarGitBlameParser to process the output
  * Also used to force ignoreWhitespace option as it is badly implemented see
  * http://jira.codehaus.org/browse/SCM-681#comment-323446
  *
@@ -41,20 +49,105 @@ import org.codehaus.plexus.util.cli.Commandline;
  */
 public class SonarGitBlameCommand extends GitBlameCommand {
 
+  private final GitBlameDictionary dictionary;
+  private final boolean incremental;
+
+  public SonarGitBlameCommand() {
+    this(new GitBlameDictionary(), false);
+  }
+
+  /**
+   * @param dictionary commits and emails shared with the blame of other files
+   * @param incremental use <code>git blame --incremental</code>, whose output is much smaller than the porcelain one
+   * as it does not repeat the content and the header of every line
+   */
+  public SonarGitBlameCommand(GitBlameDictionary dictionary, boolean incremental) {
+    this.dictionary = dictionary;
+    this.incremental = incremental;
+  }
+
+  public static Commandline createIncrementalCommandLine(File workingDirectory, String filename) {
+    Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "blame");
+    cl.createArg().setValue("--incremental");
+    cl.createArg().setValue(filename);
+    cl.createArg().setValue("-w");
+    return cl;
+  }
+
+  /**
+   * <code>git blame --porcelain</code> restricted to the lines added by the hunks. Requires git 1.8.4 when there is
+   * more than one range.
+   */
+  public static Commandline createRangedCommandLine(File workingDirectory, String filename, List<DiffHunk> hunks) {
+    Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "blame");
+    cl.createArg().setValue("--porcelain");
+    cl.createArg().setValue("-w");
+    for (DiffHunk hunk : hunks) {
+      if (hunk.getNewCount() > 0) {
+        cl.createArg().setValue("-L");
+        cl.createArg().setValue(hunk.getNewStart() + ",+" + hunk.getNewCount());
+      }
+    }
+    cl.createArg().setValue("--");
+    cl.createArg().setValue(filename);
+    return cl;
+  }
+
   @Override
   protected ScmResult executeCommand(ScmProviderRepository repository, ScmFileSet workingDirectory,
                                      CommandParameters parameters)
     throws ScmException {
     String filename = parameters.getString(CommandParameter.FILE);
-    Commandline cl = createCommandLine(workingDirectory.getBasedir(), filename,
-      true);
-    SonarGitBlameConsumer consumer = new SonarGitBlameConsumer(getLogger());
+    Commandline cl = incremental ? createIncrementalCommandLine(workingDirectory.getBasedir(), filename)
+      : createCommandLine(workingDirectory.getBasedir(), filename, true);
+    return execute(cl, incremental);
+  }
+
+  /**
+   * Blames the lines of a file added by the hunks, in order.
+   */
+  public BlameScmResult blame(File file, List<DiffHunk> hunks) throws ScmException {
+    return execute(createRangedCommandLine(file.getParentFile(), file.getName(), hunks), false);
+  }
+
+  private BlameScmResult execute(Commandline cl, boolean incrementalOutput) throws ScmException {
     CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
 
-    int exitCode = GitCommandLineUtils.execute(cl, consumer, stderr, getLogger());
+    if (getLogger().isInfoEnabled()) {
+      getLogger().info("Executing: " + cl);
+      getLogger().info("Working directory: " + cl.getWorkingDirectory().getAbsolutePath());
+    }
+
+    List<BlameLine> lines;
+    int exitCode;
+    try {
+      Process process = cl.execute();
+      ChildProcesses.register(process);
+      StreamPumper errorPumper = new StreamPumper(process.getErrorStream(), stderr);
+      errorPumper.start();
+      try {
+        // Output is parsed as bytes, see SonarGitBlameParser
+        SonarGitBlameParser parser = new SonarGitBlameParser(dictionary);
+        lines = incrementalOutput ? parser.parseIncremental(process.getInputStream()) : parser.parse(process.getInputStream());
+        exitCode = process.waitFor();
+        errorPumper.waitUntilDone();
+      } finally {
+        ChildProcesses.unregister();
+        IOUtils.closeQuietly(process.getInputStream());
+        process.destroy();
+      }
+    } catch (CommandLineException e) {
+      throw new ScmException("Error while executing command.", e);
+    } catch (IOException e) {
+      throw new ScmException("Error while executing command.", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ScmException("Interrupted while executing command.", e);
+    }
+
     if (exitCode != 0) {
       return new BlameScmResult(cl.toString(), "The git blame command failed.", stderr.getOutput(), false);
     }
-    return new BlameScmResult(cl.toString(), consumer.getLines());
+    return new BlameScmResult(cl.toString(), lines);
   }
 }
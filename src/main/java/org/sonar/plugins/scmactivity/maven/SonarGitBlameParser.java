@@ -0,0 +1,306 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.maven.scm.command.blame.BlameLine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses the output of <code>git blame --porcelain</code> or <code>git blame --incremental</code> as bytes, without
+ * decoding lines into Strings.
+ * <p/>
+ * Returns the same lines as {@link SonarGitBlameConsumer}: the date is the committer time, the author and the
+ * committer are the emails. Commits and emails are looked up in a {@link GitBlameDictionary} shared by all the files,
+ * so a commit already met is not parsed again and all its lines share the same {@link BlameLine}. Commits created for
+ * the file are also kept until its end, since git only prints their headers once and the dictionary may have dropped
+ * them. Source lines are skipped without being copied.
+ *
+ * @since 1.9
+ */
+public class SonarGitBlameParser {
+
+  private static final int SHA1_LENGTH = 40;
+  private static final byte[] AUTHOR_MAIL = "author-mail ".getBytes();
+  private static final byte[] COMMITTER_MAIL = "committer-mail ".getBytes();
+  private static final byte[] COMMITTER_TIME = "committer-time ".getBytes();
+  private static final byte[] FILENAME = "filename ".getBytes();
+
+  private final GitBlameDictionary dictionary;
+
+  private InputStream input;
+  private final byte[] buffer = new byte[64 * 1024];
+  private int position;
+  private int limit;
+  private byte[] line = new byte[256];
+  private int lineLength;
+
+  public SonarGitBlameParser(GitBlameDictionary dictionary) {
+    this.dictionary = dictionary;
+  }
+
+  /**
+   * Parses the output of <code>git blame --porcelain</code>
+   */
+  public List<BlameLine> parse(InputStream output) throws IOException {
+    input = output;
+    position = 0;
+    limit = 0;
+    List<BlameLine> lines = new ArrayList<BlameLine>();
+    Map<String, BlameLine> fileCommits = new HashMap<String, BlameLine>();
+
+    BlameLine commit = null;
+    byte[] revision = new byte[SHA1_LENGTH];
+    boolean hasRevision = false;
+    String author = null;
+    String committer = null;
+    Date time = null;
+
+    int first;
+    while ((first = read()) >= 0) {
+      if (first == '\t') {
+        // Content line: the blame line is complete
+        skipLine();
+        if (!hasRevision) {
+          throw new IOException("Unexpected git blame output: content without revision");
+        }
+        if (commit == null) {
+          commit = new BlameLine(time, new String(revision, 0, SHA1_LENGTH, "US-ASCII"), author, committer);
+          dictionary.putCommit(revision, 0, commit);
+          fileCommits.put(commit.getRevision(), commit);
+        }
+        lines.add(commit);
+        hasRevision = false;
+      } else {
+        readLine(first);
+        if (!hasRevision) {
+          if (lineLength < SHA1_LENGTH) {
+            throw new IOException("Unexpected git blame output: " + new String(line, 0, lineLength));
+          }
+          if (commit == null || !startsWith(commit.getRevision())) {
+            System.arraycopy(line, 0, revision, 0, SHA1_LENGTH);
+            commit = getCommit(fileCommits);
+            author = null;
+            committer = null;
+            time = null;
+          }
+          hasRevision = true;
+        } else if (commit == null) {
+          if (startsWith(AUTHOR_MAIL)) {
+            author = email();
+          } else if (startsWith(COMMITTER_MAIL)) {
+            committer = email();
+          } else if (startsWith(COMMITTER_TIME)) {
+            time = new Date(parseLong(COMMITTER_TIME.length) * 1000L);
+          }
+        }
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Parses the output of <code>git blame --incremental</code>, which carries one record per group of consecutive
+   * lines attributed to the same commit, and no file content. Groups are expanded into one line per line.
+   */
+  public List<BlameLine> parseIncremental(InputStream output) throws IOException {
+    input = output;
+    position = 0;
+    limit = 0;
+    BlameLine[] lines = new BlameLine[256];
+    int lineCount = 0;
+    Map<String, BlameLine> fileCommits = new HashMap<String, BlameLine>();
+
+    BlameLine commit = null;
+    byte[] revision = new byte[SHA1_LENGTH];
+    boolean inGroup = false;
+    int finalLine = 0;
+    int groupSize = 0;
+    String author = null;
+    String committer = null;
+    Date time = null;
+
+    int first;
+    while ((first = read()) >= 0) {
+      readLine(first);
+      if (!inGroup) {
+        // <sha1> <line in original file> <line in final file> <lines in group>
+        int[] numbers = groupNumbers();
+        System.arraycopy(line, 0, revision, 0, SHA1_LENGTH);
+        commit = getCommit(fileCommits);
+        author = null;
+        committer = null;
+        time = null;
+        finalLine = numbers[1];
+        groupSize = numbers[2];
+        inGroup = true;
+      } else if (startsWith(FILENAME)) {
+        // Last header of a group
+        if (commit == null) {
+          commit = new BlameLine(time, new String(revision, 0, SHA1_LENGTH, "US-ASCII"), author, committer);
+          dictionary.putCommit(revision, 0, commit);
+          fileCommits.put(commit.getRevision(), commit);
+        }
+        int end = finalLine - 1 + groupSize;
+        if (end > lines.length) {
+          lines = Arrays.copyOf(lines, Math.max(end, lines.length * 2));
+        }
+        Arrays.fill(lines, finalLine - 1, end, commit);
+        lineCount = Math.max(lineCount, end);
+        inGroup = false;
+      } else if (commit == null) {
+        if (startsWith(AUTHOR_MAIL)) {
+          author = email();
+        } else if (startsWith(COMMITTER_MAIL)) {
+          committer = email();
+        } else if (startsWith(COMMITTER_TIME)) {
+          time = new Date(parseLong(COMMITTER_TIME.length) * 1000L);
+        }
+      }
+    }
+
+    for (int i = 0; i < lineCount; i++) {
+      if (lines[i] == null) {
+        throw new IOException("Unexpected git blame output: no blame for line " + (i + 1));
+      }
+    }
+    return Arrays.asList(Arrays.copyOf(lines, lineCount));
+  }
+
+  /**
+   * @return the commit of the current line, or <code>null</code> if its headers follow
+   */
+  private BlameLine getCommit(Map<String, BlameLine> fileCommits) throws IOException {
+    BlameLine commit = dictionary.getCommit(line, 0);
+    if (commit == null && !fileCommits.isEmpty()) {
+      commit = fileCommits.get(new String(line, 0, SHA1_LENGTH, "US-ASCII"));
+    }
+    return commit;
+  }
+
+  private int[] groupNumbers() throws IOException {
+    int[] numbers = new int[3];
+    int index = -1;
+    boolean valid = lineLength > SHA1_LENGTH && line[SHA1_LENGTH] == ' ';
+    for (int i = SHA1_LENGTH; valid && i < lineLength; i++) {
+      byte b = line[i];
+      if (b == ' ') {
+        index++;
+        valid = index < numbers.length;
+      } else if (b >= '0' && b <= '9') {
+        numbers[index] = numbers[index] * 10 + (b - '0');
+      } else {
+        valid = b == '\r' && i == lineLength - 1;
+      }
+    }
+    if (!valid || index != numbers.length - 1 || numbers[1] < 1) {
+      throw new IOException("Unexpected git blame output: " + new String(line, 0, lineLength));
+    }
+    return numbers;
+  }
+
+  private int read() throws IOException {
+    if (position == limit) {
+      limit = input.read(buffer);
+      position = 0;
+      if (limit <= 0) {
+        limit = 0;
+        return -1;
+      }
+    }
+    return buffer[position++] & 0xff;
+  }
+
+  private void skipLine() throws IOException {
+    while (true) {
+      for (int i = position; i < limit; i++) {
+        if (buffer[i] == '\n') {
+          position = i + 1;
+          return;
+        }
+      }
+      position = limit;
+      if (read() < 0) {
+        return;
+      }
+      position--;
+    }
+  }
+
+  private void readLine(int first) throws IOException {
+    lineLength = 0;
+    for (int b = first; b >= 0 && b != '\n'; b = read()) {
+      if (lineLength == line.length) {
+        byte[] bigger = new byte[line.length * 2];
+        System.arraycopy(line, 0, bigger, 0, lineLength);
+        line = bigger;
+      }
+      line[lineLength++] = (byte) b;
+    }
+  }
+
+  private boolean startsWith(byte[] prefix) {
+    if (lineLength < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (line[i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean startsWith(String revision) {
+    for (int i = 0; i < SHA1_LENGTH; i++) {
+      if (line[i] != revision.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String email() {
+    int start = -1;
+    for (int i = 0; i < lineLength; i++) {
+      if (line[i] == '<' && start < 0) {
+        start = i + 1;
+      } else if (line[i] == '>') {
+        return start < 0 || i < start ? null : dictionary.getEmail(line, start, i - start);
+      }
+    }
+    return null;
+  }
+
+  private long parseLong(int offset) {
+    long value = 0;
+    for (int i = offset; i < lineLength && line[i] >= '0' && line[i] <= '9'; i++) {
+      value = value * 10 + (line[i] - '0');
+    }
+    return value;
+  }
+}
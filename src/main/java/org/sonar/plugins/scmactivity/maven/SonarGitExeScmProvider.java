@@ -19,8 +19,26 @@
  */
 package org.sonar.plugins.scmactivity.maven;
 
+import org.apache.maven.scm.CommandParameters;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.ScmResult;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.command.blame.BlameScmResult;
+import org.apache.maven.scm.provider.ScmProviderRepository;
 import org.apache.maven.scm.provider.git.command.GitCommand;
 import org.apache.maven.scm.provider.git.gitexe.GitExeScmProvider;
+import org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Overriding the default git exe provider in order to use the SonarGitBlameCommand to retrieve the blame data
@@ -32,10 +50,110 @@ import org.apache.maven.scm.provider.git.gitexe.GitExeScmProvider;
  * <a href="http://jira.sonarsource.com/browse/DEVACT-103">DEVACT-103</a>
  * @since 1.5.1
  */
-public class SonarGitExeScmProvider extends GitExeScmProvider {
+public class SonarGitExeScmProvider extends GitExeScmProvider implements Closeable {
+
+  /**
+   * First version with <code>git blame --incremental</code>
+   */
+  static final GitVersion INCREMENTAL_BLAME_VERSION = new GitVersion(1, 5, 0);
+
+  /**
+   * First version with several <code>-L</code> options in <code>git blame</code>
+   */
+  static final GitVersion RANGED_BLAME_VERSION = new GitVersion(1, 8, 4);
+
+  private final GitBlameDictionary dictionary = new GitBlameDictionary();
+  private boolean versionProbed;
+  private GitVersion version;
 
   @Override
   protected GitCommand getBlameCommand() {
-    return new SonarGitBlameCommand();
+    return new SonarGitBlameCommand(dictionary, isIncrementalBlameSupported());
+  }
+
+  /**
+   * Forgets the commits met during the analysis.
+   */
+  public void close() {
+    dictionary.clear();
+  }
+
+  /**
+   * Blames a file with the git executable, for the files the in-process engine can not blame.
+   */
+  ScmResult executeExeBlame(ScmProviderRepository repository, ScmFileSet fileSet, CommandParameters parameters) throws ScmException {
+    GitCommand command = new SonarGitBlameCommand(dictionary, isIncrementalBlameSupported());
+    command.setLogger(getLogger());
+    return command.execute(repository, fileSet, parameters);
+  }
+
+  boolean isIncrementalBlameSupported() {
+    GitVersion gitVersion = getVersion();
+    return gitVersion != null && gitVersion.isAtLeast(INCREMENTAL_BLAME_VERSION);
+  }
+
+  /**
+   * @return true if {@link #blame(File, List)} is supported
+   */
+  public boolean isRangedBlameSupported() {
+    GitVersion gitVersion = getVersion();
+    return gitVersion != null && gitVersion.isAtLeast(RANGED_BLAME_VERSION);
+  }
+
+  /**
+   * Version of git already probed, so that it is not probed again
+   */
+  public synchronized void setVersion(@Nullable GitVersion version) {
+    this.version = version;
+    versionProbed = true;
+  }
+
+  /**
+   * Checks the version of git once
+   */
+  private synchronized GitVersion getVersion() {
+    if (!versionProbed) {
+      version = GitVersion.probe(new File("."), getLogger());
+      versionProbed = true;
+    }
+    return version;
+  }
+
+  /**
+   * Changes of a file since a revision, including the uncommitted ones.
+   *
+   * @return null if the changes are not a text diff
+   */
+  @CheckForNull
+  public List<DiffHunk> diff(File file, String revision) throws ScmException {
+    Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(file.getParentFile(), "diff");
+    cl.addArguments(new String[] {"--no-color", "--no-ext-diff", "--no-textconv", "--no-renames", "-U0", revision, "--", file.getName()});
+    CommandLineUtils.StringStreamConsumer stdout = new CommandLineUtils.StringStreamConsumer();
+    CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+    int exitCode = GitCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+    if (exitCode != 0) {
+      throw new ScmException("The git diff command failed: " + stderr.getOutput());
+    }
+    return DiffHunk.parse(stdout.getOutput());
+  }
+
+  /**
+   * Blames the lines of a file added by the hunks, in order.
+   */
+  public List<BlameLine> blame(File file, List<DiffHunk> hunks) throws ScmException {
+    int added = 0;
+    for (DiffHunk hunk : hunks) {
+      added += hunk.getNewCount();
+    }
+    if (added == 0) {
+      return Collections.emptyList();
+    }
+    SonarGitBlameCommand command = new SonarGitBlameCommand(dictionary, false);
+    command.setLogger(getLogger());
+    BlameScmResult result = command.blame(file, hunks);
+    if (!result.isSuccess()) {
+      throw new ScmException(result.getProviderMessage() + " " + result.getCommandOutput());
+    }
+    return result.getLines();
   }
 }
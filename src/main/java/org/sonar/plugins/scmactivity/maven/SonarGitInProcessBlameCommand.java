@@ -0,0 +1,72 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.maven.scm.CommandParameter;
+import org.apache.maven.scm.CommandParameters;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.ScmResult;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.command.blame.BlameScmResult;
+import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.provider.git.gitexe.command.blame.GitBlameCommand;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Blame command of {@link SonarGitInProcessScmProvider}. Returns the same data as {@link SonarGitBlameCommand}, which
+ * blames the files the engine can not blame, such as the ones renamed with changes.
+ *
+ * @since 1.9
+ */
+public class SonarGitInProcessBlameCommand extends GitBlameCommand {
+
+  private final SonarGitInProcessScmProvider provider;
+
+  public SonarGitInProcessBlameCommand(SonarGitInProcessScmProvider provider) {
+    this.provider = provider;
+  }
+
+  @Override
+  protected ScmResult executeCommand(ScmProviderRepository repository, ScmFileSet workingDirectory,
+                                     CommandParameters parameters)
+    throws ScmException {
+    String filename = parameters.getString(CommandParameter.FILE);
+    File file = new File(workingDirectory.getBasedir(), filename);
+    String commandLine = "in-process git blame " + file;
+    try {
+      GitBlameEngine engine = provider.getEngine(file);
+      if (engine == null) {
+        return new BlameScmResult(commandLine, "The file is not in a git work tree.", "", false);
+      }
+      List<BlameLine> lines = engine.blame(file);
+      if (lines == null) {
+        // Not committed, or renamed with changes
+        return provider.executeExeBlame(repository, workingDirectory, parameters);
+      }
+      return new BlameScmResult(commandLine, lines);
+    } catch (IOException e) {
+      throw new ScmException("Unable to blame " + file, e);
+    }
+  }
+}
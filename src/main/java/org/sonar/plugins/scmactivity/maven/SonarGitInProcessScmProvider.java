@@ -0,0 +1,109 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.provider.git.command.GitCommand;
+
+import javax.annotation.CheckForNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Git provider computing blame in-process with a {@link GitBlameEngine} instead of forking <code>git blame</code>
+ * for each file. Other commands are the ones of the git exe provider.
+ * <p/>
+ * One engine, and so one repository reader and one set of caches, is kept per git work tree and shared by all the
+ * files and threads.
+ *
+ * @since 1.9
+ */
+public class SonarGitInProcessScmProvider extends SonarGitExeScmProvider {
+
+  public static final String SCM_TYPE = "gitinprocess";
+
+  private final Map<File, GitBlameEngine> engines = Maps.newHashMap();
+
+  @Override
+  public String getScmType() {
+    return SCM_TYPE;
+  }
+
+  @Override
+  protected GitCommand getBlameCommand() {
+    return new SonarGitInProcessBlameCommand(this);
+  }
+
+  /**
+   * @return the engine of the work tree containing the file, or <code>null</code> if the file is not in a work tree
+   */
+  @CheckForNull
+  public synchronized GitBlameEngine getEngine(File file) throws IOException {
+    File workTree = GitBlameEngine.findWorkTree(file);
+    if (workTree == null) {
+      return null;
+    }
+    GitBlameEngine engine = engines.get(workTree);
+    if (engine == null) {
+      engine = new GitBlameEngine(workTree, new GitObjectReader(workTree));
+      engines.put(workTree, engine);
+    }
+    return engine;
+  }
+
+  /**
+   * Blames files with a single walk of the history of each work tree.
+   *
+   * @return the blame of the committed files
+   */
+  public Map<File, List<BlameLine>> blame(Collection<File> files) throws IOException {
+    Multimap<GitBlameEngine, File> filesByEngine = LinkedHashMultimap.create();
+    for (File file : files) {
+      GitBlameEngine engine = getEngine(file);
+      if (engine != null) {
+        filesByEngine.put(engine, file);
+      }
+    }
+    Map<File, List<BlameLine>> result = Maps.newHashMap();
+    for (Map.Entry<GitBlameEngine, Collection<File>> entry : filesByEngine.asMap().entrySet()) {
+      result.putAll(entry.getKey().blame(entry.getValue()));
+    }
+    return result;
+  }
+
+  /**
+   * Stops the <code>git cat-file</code> processes. Engines are started again if needed.
+   */
+  @Override
+  public synchronized void close() {
+    for (GitBlameEngine engine : engines.values()) {
+      engine.close();
+    }
+    engines.clear();
+    super.close();
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.command.blame.BlameScmResult;
+import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.provider.hg.command.blame.HgBlameCommand;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Blame command of {@link SonarHgCommandServerScmProvider}. Returns the same data as the blame command of the hg
+ * provider.
+ *
+ * @since 1.9
+ */
+public class SonarHgCommandServerBlameCommand extends HgBlameCommand {
+
+  private final SonarHgCommandServerScmProvider provider;
+
+  public SonarHgCommandServerBlameCommand(SonarHgCommandServerScmProvider provider) {
+    this.provider = provider;
+  }
+
+  @Override
+  public BlameScmResult executeBlameCommand(ScmProviderRepository repository, ScmFileSet workingDirectory, String filename) throws ScmException {
+    File file = new File(workingDirectory.getBasedir(), filename);
+    String commandLine = "hg annotate " + file + " over command server";
+    try {
+      List<BlameLine> lines = provider.blame(file);
+      if (lines == null) {
+        return new BlameScmResult(commandLine, "The file is not in a Mercurial repository.", "", false);
+      }
+      return new BlameScmResult(commandLine, lines);
+    } catch (HgCommandServer.HgCommandException e) {
+      return new BlameScmResult(commandLine, "The hg annotate command failed.", e.getMessage(), false);
+    } catch (IOException e) {
+      throw new ScmException("Unable to blame " + file + " with the Mercurial command server", e);
+    }
+  }
+}
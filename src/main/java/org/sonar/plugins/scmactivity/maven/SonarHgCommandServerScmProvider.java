@@ -0,0 +1,142 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.apache.maven.scm.CommandParameters;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.command.blame.BlameScmResult;
+import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.provider.hg.HgScmProvider;
+
+import javax.annotation.CheckForNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Mercurial provider running <code>hg annotate</code> over long-lived command servers, see {@link HgCommandServer},
+ * instead of starting a new Python interpreter for each file. Other commands are the ones of the hg provider.
+ * <p/>
+ * Each blame thread has its own server, see {@link PerThreadServers}. All the servers are stopped at the end of the
+ * analysis by {@link #close()}.
+ *
+ * @since 1.9
+ */
+public class SonarHgCommandServerScmProvider extends HgScmProvider implements Closeable {
+
+  public static final String SCM_TYPE = "hgcmdserver";
+
+  /**
+   * Same data as <code>hg annotate --user --changeset --date</code>, with the date as a timestamp
+   */
+  static final String TEMPLATE = "{lines % '{node|short} {date|hgdate} {user|user}\\n'}";
+
+  private final PerThreadServers<File, HgCommandServer> servers;
+
+  public SonarHgCommandServerScmProvider() {
+    this(ImmutableList.of("hg", "serve", "--cmdserver", "pipe", "--config", "ui.interactive=False"));
+  }
+
+  @VisibleForTesting
+  SonarHgCommandServerScmProvider(final List<String> command) {
+    this.servers = new PerThreadServers<File, HgCommandServer>(HgCommandServer.HgCommandException.class) {
+      @Override
+      protected HgCommandServer start(File root) throws IOException {
+        return HgCommandServer.start(command, root);
+      }
+    };
+  }
+
+  @Override
+  public String getScmType() {
+    return SCM_TYPE;
+  }
+
+  @Override
+  protected BlameScmResult blame(ScmProviderRepository repository, ScmFileSet fileSet, CommandParameters parameters) throws ScmException {
+    SonarHgCommandServerBlameCommand blameCommand = new SonarHgCommandServerBlameCommand(this);
+    blameCommand.setLogger(getLogger());
+    return (BlameScmResult) blameCommand.execute(repository, fileSet, parameters);
+  }
+
+  /**
+   * @return the blame of the committed lines of the file, or <code>null</code> if the file is not in a repository
+   * @throws HgCommandServer.HgCommandException if <code>hg annotate</code> fails
+   */
+  @CheckForNull
+  public List<BlameLine> blame(File file) throws IOException {
+    File root = findRoot(file);
+    if (root == null) {
+      return null;
+    }
+    final String[] args = {"annotate", "-T", TEMPLATE, "--", file.getAbsolutePath()};
+    return parse(servers.run(root, new PerThreadServers.Request<HgCommandServer, String>() {
+      public String run(HgCommandServer server) throws IOException {
+        return server.run(args);
+      }
+    }));
+  }
+
+  @VisibleForTesting
+  static List<BlameLine> parse(String output) {
+    List<BlameLine> lines = Lists.newArrayList();
+    for (String line : Splitter.on('\n').omitEmptyStrings().split(output)) {
+      // <changeset> <timestamp> <offset> <user>
+      String[] fields = line.split(" ", 4);
+      if (fields.length < 3) {
+        throw new IllegalArgumentException("Unexpected output of hg annotate: " + line);
+      }
+      Date date = new Date(Long.parseLong(fields[1]) * 1000L);
+      lines.add(new BlameLine(date, fields[0], fields.length == 4 ? fields[3] : ""));
+    }
+    return lines;
+  }
+
+  @CheckForNull
+  private static File findRoot(File file) {
+    for (File dir = file.getAbsoluteFile().getParentFile(); dir != null; dir = dir.getParentFile()) {
+      if (new File(dir, ".hg").isDirectory()) {
+        return dir;
+      }
+    }
+    return null;
+  }
+
+  @VisibleForTesting
+  int getServerCount() {
+    return servers.size();
+  }
+
+  /**
+   * Stops the command servers. Servers are started again if needed.
+   */
+  public void close() {
+    servers.close();
+  }
+}
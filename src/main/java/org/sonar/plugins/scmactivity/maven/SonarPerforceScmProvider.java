@@ -0,0 +1,332 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.scm.CommandParameters;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.command.blame.BlameScmResult;
+import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.provider.perforce.PerforceScmProvider;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Perforce provider which blames several files of a directory with a single <code>p4 -x annotate -c</code>, and
+ * looks up the author and date of the changelists with batched <code>p4 describe -s</code>, whose result is shared by
+ * all the files, see {@link PerforceChangelistCache}. The clientspec is the one of the repository, see
+ * {@link SonarPerforceScmProviderRepository}. Other commands are the ones of the Perforce provider.
+ * <p/>
+ * Unlike the Perforce provider, the revision of a line is its changelist number, not the revision of the file.
+ *
+ * @since 1.9
+ */
+public class SonarPerforceScmProvider extends PerforceScmProvider implements Closeable {
+
+  public static final String SCM_TYPE = "perforcebatch";
+
+  /**
+   * Changelists described by each <code>p4 describe</code>
+   */
+  static final int MAX_DESCRIBED_CHANGELISTS = 100;
+
+  private final String executable;
+  private final PerforceChangelistCache changelists = new PerforceChangelistCache();
+
+  public SonarPerforceScmProvider() {
+    this("p4");
+  }
+
+  @VisibleForTesting
+  SonarPerforceScmProvider(String executable) {
+    this.executable = executable;
+  }
+
+  @Override
+  public String getScmType() {
+    return SCM_TYPE;
+  }
+
+  @Override
+  protected BlameScmResult blame(ScmProviderRepository repository, ScmFileSet fileSet, CommandParameters parameters) throws ScmException {
+    SonarPerforceBlameCommand blameCommand = new SonarPerforceBlameCommand(this);
+    blameCommand.setLogger(getLogger());
+    return (BlameScmResult) blameCommand.execute(repository, fileSet, parameters);
+  }
+
+  /**
+   * @param files files of the directory
+   * @return the blame of the files, without the files which could not be blamed
+   * @throws PerforceCommandException if none of the files could be blamed
+   * @throws ScmException if the command can not be run, or if a changelist can not be described
+   */
+  public Map<File, List<BlameLine>> blame(SonarPerforceScmProviderRepository repository, File dir, List<File> files) throws ScmException {
+    String clientspec = getClientspec(repository, dir);
+    List<String> paths = Lists.newArrayList();
+    for (File file : files) {
+      paths.add(escape(file.getName()));
+    }
+    AnnotateConsumer annotate = new AnnotateConsumer(files);
+    CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+    int exitCode = execute(repository, dir, clientspec, paths, annotate, stderr, "annotate", "-c");
+    // A non-zero exit code only means that some files could not be blamed, they are missing from the output
+    Map<File, List<String>> changelistsByFile = annotate.getChangelists();
+    if (changelistsByFile.isEmpty() && exitCode != 0) {
+      throw new PerforceCommandException(exitCode, stderr.getOutput());
+    }
+
+    Set<String> numbers = Sets.newHashSet();
+    for (List<String> lineChangelists : changelistsByFile.values()) {
+      numbers.addAll(lineChangelists);
+    }
+    Map<String, BlameLine> described = changelists.get(numbers, new Describer(repository, dir, clientspec));
+
+    Map<File, List<BlameLine>> result = Maps.newHashMap();
+    for (Map.Entry<File, List<String>> entry : changelistsByFile.entrySet()) {
+      List<BlameLine> lines = Lists.newArrayList();
+      for (String number : entry.getValue()) {
+        BlameLine changelist = described.get(number);
+        lines.add(new BlameLine(changelist.getDate(), number, changelist.getAuthor()));
+      }
+      result.put(entry.getKey(), lines);
+    }
+    return result;
+  }
+
+  private String getClientspec(SonarPerforceScmProviderRepository repository, File dir) {
+    String clientspec = repository.getClientspec();
+    return clientspec != null ? clientspec : getClientspecName(getLogger(), repository, dir);
+  }
+
+  /**
+   * Runs a command on arguments read from a file, see <code>p4 help usage</code>, so that the length of the command
+   * line does not depend on their number.
+   *
+   * @return exit code of the command
+   */
+  private int execute(SonarPerforceScmProviderRepository repository, File dir, String clientspec, List<String> args,
+    StreamConsumer stdout, StreamConsumer stderr, String... command) throws ScmException {
+    File argsFile = null;
+    try {
+      argsFile = File.createTempFile("p4-args", ".txt");
+      FileUtils.writeLines(argsFile, args);
+      Commandline cl = createCommandLine(repository, dir, clientspec, argsFile, command);
+      if (getLogger().isInfoEnabled()) {
+        getLogger().info("Executing: " + clean(cl.toString()));
+      }
+      return CommandLineUtils.executeCommandLine(cl, stdout, stderr);
+    } catch (IOException e) {
+      throw new ScmException("Unable to write the arguments of the perforce command", e);
+    } catch (CommandLineException e) {
+      throw new ScmException("Error while executing command.", e);
+    } finally {
+      FileUtils.deleteQuietly(argsFile);
+    }
+  }
+
+  private Commandline createCommandLine(SonarPerforceScmProviderRepository repository, File dir, String clientspec, File argsFile, String... command) {
+    Commandline cl = new Commandline();
+    cl.setExecutable(executable);
+    cl.setWorkingDirectory(dir);
+    cl.createArg().setValue("-d");
+    cl.createArg().setValue(dir.getAbsolutePath());
+    if (StringUtils.isNotEmpty(repository.getHost())) {
+      cl.createArg().setValue("-p");
+      cl.createArg().setValue(repository.getPort() == 0 ? repository.getHost() : (repository.getHost() + ":" + repository.getPort()));
+    }
+    if (StringUtils.isNotEmpty(repository.getUser())) {
+      cl.createArg().setValue("-u");
+      cl.createArg().setValue(repository.getUser());
+    }
+    if (StringUtils.isNotEmpty(repository.getPassword())) {
+      cl.createArg().setValue("-P");
+      cl.createArg().setValue(repository.getPassword());
+    }
+    cl.createArg().setValue("-c");
+    cl.createArg().setValue(clientspec);
+    cl.createArg().setValue("-x");
+    cl.createArg().setValue(argsFile.getAbsolutePath());
+    cl.addArguments(command);
+    return cl;
+  }
+
+  /**
+   * Escapes the characters of a file name which are revision specifiers or wildcards for Perforce.
+   */
+  static String escape(String name) {
+    return name.replace("%", "%25").replace("@", "%40").replace("#", "%23").replace("*", "%2A");
+  }
+
+  static String unescape(String name) {
+    return name.replace("%40", "@").replace("%23", "#").replace("%2A", "*").replace("%25", "%");
+  }
+
+  /**
+   * Forgets the changelists described during the analysis.
+   */
+  public void close() {
+    changelists.clear();
+  }
+
+  @VisibleForTesting
+  PerforceChangelistCache getChangelists() {
+    return changelists;
+  }
+
+  private class Describer implements PerforceChangelistCache.Loader {
+    private final SonarPerforceScmProviderRepository repository;
+    private final File dir;
+    private final String clientspec;
+
+    Describer(SonarPerforceScmProviderRepository repository, File dir, String clientspec) {
+      this.repository = repository;
+      this.dir = dir;
+      this.clientspec = clientspec;
+    }
+
+    public Map<String, BlameLine> describe(List<String> numbers) throws ScmException {
+      DescribeConsumer describe = new DescribeConsumer();
+      for (List<String> chunk : Lists.partition(numbers, MAX_DESCRIBED_CHANGELISTS)) {
+        CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+        int exitCode = execute(repository, dir, clientspec, chunk, describe, stderr, "-ztag", "describe", "-s");
+        if (exitCode != 0) {
+          // Changelists which are not described are reported by the cache
+          getLogger().warn("Unable to describe some changelists: " + stderr.getOutput());
+        }
+      }
+      return describe.getChangelists();
+    }
+  }
+
+  /**
+   * Reads the output of <code>p4 annotate -c</code> on several files: a header for each file, followed by one line
+   * prefixed by its changelist number for each line of the file.
+   */
+  static class AnnotateConsumer implements StreamConsumer {
+    private static final Pattern HEADER = Pattern.compile("(//.*)#\\d+ - .*");
+    private static final Pattern LINE = Pattern.compile("(\\d+):.*");
+
+    private final Map<String, File> filesByName = Maps.newHashMap();
+    private final Map<File, List<String>> changelists = Maps.newLinkedHashMap();
+    private List<String> current;
+
+    AnnotateConsumer(List<File> files) {
+      for (File file : files) {
+        filesByName.put(file.getName(), file);
+      }
+    }
+
+    public void consumeLine(String line) {
+      if (line.startsWith("//")) {
+        Matcher matcher = HEADER.matcher(line);
+        current = null;
+        if (matcher.matches()) {
+          File file = filesByName.get(unescape(StringUtils.substringAfterLast(matcher.group(1), "/")));
+          if (file != null) {
+            current = Lists.newArrayList();
+            changelists.put(file, current);
+          }
+        }
+      } else if (current != null) {
+        Matcher matcher = LINE.matcher(line);
+        if (matcher.matches()) {
+          current.add(matcher.group(1));
+        }
+      }
+    }
+
+    /**
+     * @return changelist of each line of the files which were annotated
+     */
+    Map<File, List<String>> getChangelists() {
+      return changelists;
+    }
+  }
+
+  /**
+   * Reads the tagged output of <code>p4 describe -s</code>, whose dates are timestamps unlike the ones of the
+   * untagged output, which are in the time zone of the server.
+   */
+  static class DescribeConsumer implements StreamConsumer {
+    private final Map<String, BlameLine> changelists = Maps.newHashMap();
+    private String change;
+    private String user;
+    private Date date;
+
+    public void consumeLine(String line) {
+      if (line.startsWith("... change ")) {
+        change = line.substring("... change ".length()).trim();
+        user = null;
+        date = null;
+      } else if (line.startsWith("... user ")) {
+        user = line.substring("... user ".length()).trim();
+      } else if (line.startsWith("... time ")) {
+        String time = line.substring("... time ".length()).trim();
+        date = StringUtils.isNotEmpty(time) && StringUtils.isNumeric(time) ? new Date(Long.parseLong(time) * 1000L) : null;
+      }
+      if (change != null && user != null && date != null) {
+        changelists.put(change, new BlameLine(date, change, user));
+        change = null;
+      }
+    }
+
+    /**
+     * @return author and date of the changelists, keyed by number
+     */
+    Map<String, BlameLine> getChangelists() {
+      return changelists;
+    }
+  }
+
+  /**
+   * Failure of a Perforce command, whose message is the error output.
+   */
+  public static class PerforceCommandException extends ScmException {
+    private final int exitCode;
+
+    public PerforceCommandException(int exitCode, String message) {
+      super(message);
+      this.exitCode = exitCode;
+    }
+
+    public int getExitCode() {
+      return exitCode;
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.maven.scm.provider.perforce.repository.PerforceScmProviderRepository;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+/**
+ * Perforce repository which carries the clientspec of its commands, instead of the
+ * <code>maven.scm.perforce.clientspec.name</code> system property read by the Perforce provider, which is shared by
+ * the whole JVM.
+ *
+ * @since 1.9
+ */
+public class SonarPerforceScmProviderRepository extends PerforceScmProviderRepository {
+
+  private final String clientspec;
+
+  /**
+   * @param clientspec name of the clientspec, null to use the one of the Perforce provider
+   */
+  public SonarPerforceScmProviderRepository(PerforceScmProviderRepository repository, @Nullable String clientspec) {
+    super(repository.getHost(), repository.getPort(), repository.getPath(), repository.getUser(), repository.getPassword());
+    this.clientspec = clientspec;
+  }
+
+  @CheckForNull
+  public String getClientspec() {
+    return clientspec;
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.command.blame.AbstractBlameCommand;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.command.blame.BlameScmResult;
+import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.provider.svn.command.SvnCommand;
+import org.tmatesoft.svn.core.SVNException;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Blame command of {@link SonarSvnInProcessScmProvider}. Returns the same data as the blame command of the svn exe
+ * provider.
+ *
+ * @since 1.9
+ */
+public class SonarSvnInProcessBlameCommand extends AbstractBlameCommand implements SvnCommand {
+
+  private final SonarSvnInProcessScmProvider provider;
+
+  public SonarSvnInProcessBlameCommand(SonarSvnInProcessScmProvider provider) {
+    this.provider = provider;
+  }
+
+  @Override
+  public BlameScmResult executeBlameCommand(ScmProviderRepository repository, ScmFileSet workingDirectory, String filename) throws ScmException {
+    File file = new File(workingDirectory.getBasedir(), filename);
+    String commandLine = "in-process svn blame " + file;
+    try {
+      List<BlameLine> lines = provider.getEngine().blame(file, repository.getUser(), repository.getPassword());
+      if (lines == null) {
+        return new BlameScmResult(commandLine, "The file is not committed.", "", false);
+      }
+      return new BlameScmResult(commandLine, lines);
+    } catch (SVNException e) {
+      return new BlameScmResult(commandLine, "The in-process svn blame failed.", e.getErrorMessage().getFullMessage(), false);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ScmException("Interrupted while blaming " + file, e);
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.maven.scm.provider.svn.command.SvnCommand;
+import org.apache.maven.scm.provider.svn.svnexe.SvnExeScmProvider;
+
+import javax.annotation.CheckForNull;
+
+import java.io.Closeable;
+import java.io.File;
+
+/**
+ * Subversion provider computing blame in-process with SVNKit instead of forking <code>svn blame</code> for each file,
+ * see {@link SvnKitBlameEngine}. Other commands are the ones of the svn exe provider.
+ * <p/>
+ * SVNKit 1.8 reads the working copies of Subversion 1.7 and later.
+ *
+ * @since 1.9
+ */
+public class SonarSvnInProcessScmProvider extends SvnExeScmProvider implements Closeable {
+
+  public static final String SCM_TYPE = "svninprocess";
+
+  private int maxSessions = 1;
+  private SvnKitBlameEngine engine;
+
+  @Override
+  public String getScmType() {
+    return SCM_TYPE;
+  }
+
+  @Override
+  protected SvnCommand getBlameCommand() {
+    return new SonarSvnInProcessBlameCommand(this);
+  }
+
+  /**
+   * @param maxSessions maximum number of sessions opened on each repository
+   */
+  public synchronized void setMaxSessions(int maxSessions) {
+    this.maxSessions = maxSessions;
+    if (engine != null) {
+      engine.setMaxSessions(maxSessions);
+    }
+  }
+
+  public synchronized SvnKitBlameEngine getEngine() {
+    if (engine == null) {
+      engine = new SvnKitBlameEngine();
+      engine.setMaxSessions(maxSessions);
+    }
+    return engine;
+  }
+
+  /**
+   * @return an error message if the working copy of the directory can not be read, null otherwise
+   */
+  @CheckForNull
+  public String checkWorkingCopy(File dir) {
+    return getEngine().checkWorkingCopy(dir);
+  }
+
+  /**
+   * Closes the sessions. Sessions are opened again if needed.
+   */
+  public void close() {
+    SvnKitBlameEngine toClose;
+    synchronized (this) {
+      toClose = engine;
+    }
+    if (toClose != null) {
+      toClose.close();
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.command.blame.BlameScmResult;
+import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.provider.tfs.command.blame.TfsBlameCommand;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Blame command of {@link SonarTfsServerScmProvider}. Returns the same data as {@link SonarTfsBlameCommand}.
+ *
+ * @since 1.9
+ */
+public class SonarTfsServerBlameCommand extends TfsBlameCommand {
+
+  private final SonarTfsServerScmProvider provider;
+
+  public SonarTfsServerBlameCommand(SonarTfsServerScmProvider provider) {
+    this.provider = provider;
+  }
+
+  @Override
+  public BlameScmResult executeBlameCommand(ScmProviderRepository repository, ScmFileSet workingDirectory, String filename) throws ScmException {
+    File file = new File(workingDirectory.getBasedir(), filename);
+    String commandLine = "SonarTfsAnnotate " + file + " over server";
+    try {
+      return new BlameScmResult(commandLine, provider.blame(file));
+    } catch (TfsAnnotateServer.TfsAnnotateException e) {
+      return new BlameScmResult(commandLine, "The SonarTfsAnnotate command failed.", e.getMessage(), false);
+    } catch (IOException e) {
+      throw new ScmException("Unable to blame " + file + " with the SonarTfsAnnotate server. "
+        + "Did you install a version of https://github.com/SonarCommunity/sonar-tfs supporting the server mode?", e);
+    }
+  }
+}
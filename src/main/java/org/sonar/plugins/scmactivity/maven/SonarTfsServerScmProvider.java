@@ -0,0 +1,111 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import org.apache.maven.scm.CommandParameters;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.command.blame.BlameScmResult;
+import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.provider.tfs.command.blame.TfsBlameConsumer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * TFS provider annotating files with long-lived <code>SonarTfsAnnotate</code> servers, see {@link TfsAnnotateServer},
+ * instead of starting SonarTfsAnnotate for each file. Other commands are the ones of {@link SonarTfsScmProvider}.
+ * <p/>
+ * Each blame thread has its own server, see {@link PerThreadServers}. All the servers are stopped at the end of the
+ * analysis by {@link #close()}.
+ *
+ * @since 1.9
+ */
+public class SonarTfsServerScmProvider extends SonarTfsScmProvider implements Closeable {
+
+  public static final String SCM_TYPE = "tfsserver";
+
+  private final List<String> command;
+  private final PerThreadServers<List<String>, TfsAnnotateServer> servers =
+    new PerThreadServers<List<String>, TfsAnnotateServer>(TfsAnnotateServer.TfsAnnotateException.class) {
+      @Override
+      protected TfsAnnotateServer start(List<String> command) throws IOException {
+        return TfsAnnotateServer.start(command);
+      }
+    };
+
+  public SonarTfsServerScmProvider() {
+    this(ImmutableList.of("SonarTfsAnnotate", "--server"));
+  }
+
+  @VisibleForTesting
+  SonarTfsServerScmProvider(List<String> command) {
+    this.command = command;
+  }
+
+  @Override
+  public String getScmType() {
+    return SCM_TYPE;
+  }
+
+  @Override
+  protected BlameScmResult blame(ScmProviderRepository repository, ScmFileSet fileSet, CommandParameters parameters) throws ScmException {
+    SonarTfsServerBlameCommand blameCommand = new SonarTfsServerBlameCommand(this);
+    blameCommand.setLogger(getLogger());
+    return (BlameScmResult) blameCommand.execute(repository, fileSet, parameters);
+  }
+
+  /**
+   * @return the same blame as <code>SonarTfsAnnotate &lt;file&gt;</code>
+   * @throws TfsAnnotateServer.TfsAnnotateException if the file can not be annotated
+   */
+  public List<BlameLine> blame(final File file) throws IOException {
+    return parse(servers.run(command, new PerThreadServers.Request<TfsAnnotateServer, List<String>>() {
+      public List<String> run(TfsAnnotateServer server) throws IOException {
+        return server.annotate(file);
+      }
+    }));
+  }
+
+  private List<BlameLine> parse(List<String> output) {
+    TfsBlameConsumer consumer = new TfsBlameConsumer(getLogger());
+    for (String line : output) {
+      consumer.consumeLine(line);
+    }
+    return consumer.getLines();
+  }
+
+  @VisibleForTesting
+  int getServerCount() {
+    return servers.size();
+  }
+
+  /**
+   * Stops the servers. Servers are started again if needed.
+   */
+  public void close() {
+    servers.close();
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.provider.svn.repository.SvnScmProviderRepository;
+import org.apache.maven.scm.provider.svn.svnexe.command.SvnCommandLineUtils;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamPumper;
+
+import javax.xml.stream.XMLStreamException;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Blames several files of a directory with a single <code>svn blame --xml</code>, so that the files share the start
+ * of the process and the authentication on the server. The output is parsed while it is read, see
+ * {@link SvnBlameXmlParser}.
+ *
+ * @since 1.9
+ */
+public class SvnBatchBlame {
+
+  /**
+   * @param files files of the directory
+   * @return the blame of the files, without the files which could not be blamed
+   * @throws ScmException if the command can not be run or its output can not be read
+   */
+  public Map<File, List<BlameLine>> blame(SvnScmProviderRepository repository, File dir, List<File> files) throws ScmException {
+    Commandline cl = createCommandLine(repository, dir, files);
+    CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+    Map<String, List<BlameLine>> linesByPath = new HashMap<String, List<BlameLine>>();
+    try {
+      Process process = cl.execute();
+      ChildProcesses.register(process);
+      StreamPumper errorPumper = new StreamPumper(process.getErrorStream(), stderr);
+      errorPumper.start();
+      try {
+        new SvnBlameXmlParser().parse(process.getInputStream(), linesByPath);
+        // A non-zero exit code only means that some files could not be blamed, they are missing from the output
+        process.waitFor();
+        errorPumper.waitUntilDone();
+      } finally {
+        ChildProcesses.unregister();
+        IOUtils.closeQuietly(process.getInputStream());
+        process.destroy();
+      }
+    } catch (CommandLineException e) {
+      throw new ScmException("Error while executing command.", e);
+    } catch (XMLStreamException e) {
+      if (!linesByPath.isEmpty()) {
+        // Truncated output, the files whose blame is incomplete are missing from the result
+        return result(files, linesByPath);
+      }
+      throw new ScmException("Unable to parse the output of " + SvnCommandLineUtils.cryptPassword(cl) + ": " + stderr.getOutput(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ScmException("Interrupted while executing command.", e);
+    }
+
+    return result(files, linesByPath);
+  }
+
+  private static Map<File, List<BlameLine>> result(List<File> files, Map<String, List<BlameLine>> linesByPath) {
+    Map<File, List<BlameLine>> result = new HashMap<File, List<BlameLine>>();
+    for (File file : files) {
+      List<BlameLine> lines = linesByPath.get(file.getName());
+      if (lines != null) {
+        result.put(file, lines);
+      }
+    }
+    return result;
+  }
+
+  static Commandline createCommandLine(SvnScmProviderRepository repository, File dir, List<File> files) {
+    Commandline cl = SvnCommandLineUtils.getBaseSvnCommandLine(dir, repository);
+    cl.createArg().setValue("blame");
+    cl.createArg().setValue("--xml");
+    for (File file : files) {
+      String name = file.getName();
+      // Empty peg revision, so that a name containing @ is not taken for a peg revision
+      cl.createArg().setValue(name.indexOf('@') >= 0 ? name + "@" : name);
+    }
+    return cl;
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.maven.scm.command.blame.BlameLine;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Parses the output of <code>svn blame --xml</code> while it is read, for one or several targets. As with the svnexe
+ * provider, lines without commit, i.e. changed in the working copy, are skipped.
+ *
+ * @since 1.9
+ */
+public class SvnBlameXmlParser {
+  private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+
+  private final SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+
+  public SvnBlameXmlParser() {
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+  }
+
+  /**
+   * @param result receives the blame of each target by path, as given on the command line, as soon as the target is
+   *               complete, so that it is kept if the output is truncated
+   */
+  public void parse(InputStream input, Map<String, List<BlameLine>> result) throws XMLStreamException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    XMLStreamReader reader = factory.createXMLStreamReader(input);
+    try {
+      parse(reader, result);
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void parse(XMLStreamReader reader, Map<String, List<BlameLine>> result) throws XMLStreamException {
+    String path = null;
+    List<BlameLine> lines = null;
+    String revision = null;
+    String author = null;
+    Date date = null;
+    while (reader.hasNext()) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        String name = reader.getLocalName();
+        if ("target".equals(name)) {
+          path = reader.getAttributeValue(null, "path");
+          lines = new ArrayList<BlameLine>();
+        } else if ("entry".equals(name)) {
+          revision = null;
+          author = null;
+          date = null;
+        } else if ("commit".equals(name)) {
+          revision = reader.getAttributeValue(null, "revision");
+        } else if ("author".equals(name)) {
+          author = reader.getElementText();
+        } else if ("date".equals(name)) {
+          date = parseDate(reader.getElementText());
+        }
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        String name = reader.getLocalName();
+        if ("entry".equals(name) && lines != null && date != null) {
+          lines.add(new BlameLine(date, revision, author == null ? "" : author));
+        } else if ("target".equals(name) && path != null) {
+          result.put(path, lines);
+          path = null;
+          lines = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * @param date e.g. <i>2013-07-01T13:35:27.431578Z</i>
+   */
+  private Date parseDate(String date) throws XMLStreamException {
+    try {
+      return dateFormat.parse(date.trim());
+    } catch (ParseException e) {
+      throw new XMLStreamException("Invalid date: " + date, e);
+    }
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.tmatesoft.svn.core.SVNAnnotationGenerator;
+import org.tmatesoft.svn.core.SVNCancelException;
+import org.tmatesoft.svn.core.SVNErrorCode;
+import org.tmatesoft.svn.core.SVNErrorMessage;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.auth.ISVNAuthenticationManager;
+import org.tmatesoft.svn.core.auth.ISVNAuthenticationProvider;
+import org.tmatesoft.svn.core.auth.SVNAuthentication;
+import org.tmatesoft.svn.core.internal.io.dav.DAVRepositoryFactory;
+import org.tmatesoft.svn.core.internal.io.fs.FSRepositoryFactory;
+import org.tmatesoft.svn.core.internal.io.svn.SVNRepositoryFactoryImpl;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.wc.ISVNAnnotateHandler;
+import org.tmatesoft.svn.core.wc.ISVNEventHandler;
+import org.tmatesoft.svn.core.wc.SVNEvent;
+import org.tmatesoft.svn.core.wc.SVNInfo;
+import org.tmatesoft.svn.core.wc.SVNRevision;
+import org.tmatesoft.svn.core.wc.SVNWCClient;
+import org.tmatesoft.svn.core.wc.SVNWCUtil;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Blame computed with SVNKit, see {@link SonarSvnInProcessScmProvider}.
+ * <p/>
+ * Requests are sent over the sessions of a {@link SvnSessionPool}, one pool per repository shared by all the files
+ * and threads, so that the connection and the authentication are negotiated once per session rather than once per
+ * file. As with <code>svn --trust-server-cert</code>, see SONARPLUGINS-1082, server certificates are trusted.
+ *
+ * @since 1.9
+ */
+public class SvnKitBlameEngine {
+
+  static {
+    DAVRepositoryFactory.setup();
+    SVNRepositoryFactoryImpl.setup();
+    FSRepositoryFactory.setup();
+  }
+
+  private final Map<SVNURL, SvnSessionPool> pools = Maps.newHashMap();
+  private int maxSessions = 1;
+
+  /**
+   * @param maxSessions maximum number of sessions opened on each repository
+   */
+  public synchronized void setMaxSessions(int maxSessions) {
+    this.maxSessions = maxSessions;
+  }
+
+  /**
+   * Blames the revision of the working copy of a file, like <code>svn blame</code>.
+   *
+   * @return null if the file is not committed
+   */
+  @CheckForNull
+  public List<BlameLine> blame(File file, @Nullable String user, @Nullable String password) throws SVNException, InterruptedException {
+    SVNInfo info = new SVNWCClient((ISVNAuthenticationManager) null, null).doInfo(file, SVNRevision.UNDEFINED);
+    long revision = info.getRevision().getNumber();
+    if (revision < 0 || info.getCommittedRevision().getNumber() < 0 || info.getRepositoryRootURL() == null) {
+      return null;
+    }
+    SvnSessionPool pool = getPool(info.getRepositoryRootURL(), user, password);
+    String path = info.getURL().getPath().substring(pool.getUrl().getPath().length());
+
+    SVNRepository repository = pool.take();
+    boolean reusable = false;
+    SVNAnnotationGenerator generator = new SVNAnnotationGenerator(path, tmpDirectory(), 0, false, new InterruptionHandler());
+    try {
+      repository.getFileRevisions(path, 0, revision, generator);
+      BlameLineHandler handler = new BlameLineHandler();
+      generator.reportAnnotations(handler, null);
+      reusable = true;
+      return handler.lines;
+    } finally {
+      generator.dispose();
+      pool.release(repository, reusable);
+    }
+  }
+
+  /**
+   * @return an error message if the working copy of the directory can not be read, null otherwise
+   */
+  @CheckForNull
+  public String checkWorkingCopy(File dir) {
+    try {
+      new SVNWCClient((ISVNAuthenticationManager) null, null).doInfo(dir, SVNRevision.UNDEFINED);
+      return null;
+    } catch (SVNException e) {
+      return dir + " can not be read by the in-process Subversion blame engine: " + e.getErrorMessage().getFullMessage();
+    }
+  }
+
+  @VisibleForTesting
+  synchronized SvnSessionPool getPool(SVNURL root, @Nullable String user, @Nullable String password) {
+    SvnSessionPool pool = pools.get(root);
+    if (pool == null) {
+      ISVNAuthenticationManager authenticationManager = SVNWCUtil.createDefaultAuthenticationManager(user, password);
+      authenticationManager.setAuthenticationProvider(new TrustingAuthenticationProvider());
+      pool = new SvnSessionPool(root, authenticationManager, maxSessions);
+      pools.put(root, pool);
+    }
+    return pool;
+  }
+
+  /**
+   * Closes the sessions. Pools are created again if needed.
+   */
+  public void close() {
+    List<SvnSessionPool> toClose;
+    synchronized (this) {
+      toClose = Lists.newArrayList(pools.values());
+      pools.clear();
+    }
+    for (SvnSessionPool pool : toClose) {
+      pool.close();
+    }
+  }
+
+  /**
+   * @return directory which does not exist yet, created and deleted by {@link SVNAnnotationGenerator}
+   */
+  private static File tmpDirectory() throws SVNException {
+    try {
+      File dir = File.createTempFile("svn-blame", "");
+      if (!dir.delete()) {
+        throw new IOException("Unable to delete " + dir);
+      }
+      return dir;
+    } catch (IOException e) {
+      throw new SVNException(SVNErrorMessage.create(SVNErrorCode.IO_ERROR, e.getMessage()), e);
+    }
+  }
+
+  private static class BlameLineHandler implements ISVNAnnotateHandler {
+    private final List<BlameLine> lines = Lists.newArrayList();
+
+    public void handleLine(Date date, long revision, String author, String line) {
+      lines.add(new BlameLine(date, String.valueOf(revision), author == null ? "" : author));
+    }
+
+    public void handleLine(Date date, long revision, String author, String line, Date mergedDate, long mergedRevision, String mergedAuthor,
+      String mergedPath, int lineNumber) {
+      handleLine(date, revision, author, line);
+    }
+
+    public boolean handleRevision(Date date, long revision, String author, File contents) {
+      return false;
+    }
+
+    public void handleEOF() {
+      // nothing to do
+    }
+  }
+
+  /**
+   * Stops the blame when the thread is interrupted, for instance after a timeout.
+   */
+  private static class InterruptionHandler implements ISVNEventHandler {
+    public void handleEvent(SVNEvent event, double progress) {
+      // nothing to do
+    }
+
+    public void checkCancelled() throws SVNCancelException {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new SVNCancelException();
+      }
+    }
+  }
+
+  private static class TrustingAuthenticationProvider implements ISVNAuthenticationProvider {
+    public SVNAuthentication requestClientAuthentication(String kind, SVNURL url, String realm, SVNErrorMessage errorMessage,
+      SVNAuthentication previousAuth, boolean authMayBeStored) {
+      // Credentials are the configured or stored ones
+      return null;
+    }
+
+    public int acceptServerAuthentication(SVNURL url, String realm, Object certificate, boolean resultMayBeStored) {
+      return ACCEPTED_TEMPORARY;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.auth.ISVNAuthenticationManager;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+
+import java.util.LinkedList;
+
+/**
+ * Sessions opened on a Subversion repository, shared by the blame threads. A session keeps its connection and its
+ * authentication between requests, so that they are not negotiated again for each file. At most
+ * <code>maxSessions</code> sessions are opened, a thread waits for a session when they are all in use.
+ *
+ * @since 1.9
+ */
+public class SvnSessionPool {
+
+  private final SVNURL url;
+  private final ISVNAuthenticationManager authenticationManager;
+  private final int maxSessions;
+  private final LinkedList<SVNRepository> idle = new LinkedList<SVNRepository>();
+  private int opened;
+  private boolean closed;
+
+  /**
+   * @param url root of the repository, so that any of its paths can be requested
+   */
+  public SvnSessionPool(SVNURL url, ISVNAuthenticationManager authenticationManager, int maxSessions) {
+    this.url = url;
+    this.authenticationManager = authenticationManager;
+    this.maxSessions = Math.max(1, maxSessions);
+  }
+
+  public SVNURL getUrl() {
+    return url;
+  }
+
+  /**
+   * @return an idle session, or a new one if less than <code>maxSessions</code> are opened
+   */
+  public SVNRepository take() throws SVNException, InterruptedException {
+    synchronized (this) {
+      while (idle.isEmpty() && opened >= maxSessions && !closed) {
+        wait();
+      }
+      if (closed) {
+        throw new IllegalStateException("Subversion sessions of " + url + " are closed");
+      }
+      if (!idle.isEmpty()) {
+        return idle.removeFirst();
+      }
+      opened++;
+    }
+    try {
+      SVNRepository repository = SVNRepositoryFactory.create(url);
+      repository.setAuthenticationManager(authenticationManager);
+      return repository;
+    } catch (SVNException e) {
+      discarded();
+      throw e;
+    } catch (RuntimeException e) {
+      discarded();
+      throw e;
+    }
+  }
+
+  /**
+   * Gives back a session taken with {@link #take()}.
+   *
+   * @param reusable false if the session failed, so that it is closed rather than kept with a broken connection
+   */
+  public void release(SVNRepository repository, boolean reusable) {
+    synchronized (this) {
+      if (reusable && !closed) {
+        idle.addFirst(repository);
+        notifyAll();
+        return;
+      }
+    }
+    repository.closeSession();
+    discarded();
+  }
+
+  private synchronized void discarded() {
+    opened--;
+    notifyAll();
+  }
+
+  synchronized int getOpened() {
+    return opened;
+  }
+
+  /**
+   * Closes the idle sessions. Sessions still in use are closed when they are released.
+   */
+  public void close() {
+    LinkedList<SVNRepository> toClose;
+    synchronized (this) {
+      closed = true;
+      toClose = new LinkedList<SVNRepository>(idle);
+      idle.clear();
+      opened -= toClose.size();
+      notifyAll();
+    }
+    for (SVNRepository repository : toClose) {
+      repository.closeSession();
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Long-lived <code>SonarTfsAnnotate --server</code> process, which loads the TFS client libraries and authenticates
+ * once for all the files it annotates.
+ * <p/>
+ * The protocol is made of UTF-8 lines. The server starts by writing <code>SonarTfsAnnotate server &lt;version&gt;</code>.
+ * Then for each path written on its input, it writes either <code>ANNOTATE &lt;n&gt;</code> followed by the
+ * <i>n</i> lines which <code>SonarTfsAnnotate &lt;file&gt;</code> would write, or <code>ERROR &lt;message&gt;</code>
+ * if the file can not be annotated, in which case the server stays usable. A server is not thread-safe, it must be
+ * used by a single thread at a time.
+ *
+ * @since 1.9
+ */
+public class TfsAnnotateServer implements Closeable {
+
+  static final String HELLO = "SonarTfsAnnotate server ";
+  static final String ANNOTATE = "ANNOTATE ";
+  static final String ERROR = "ERROR ";
+
+  private final Process process;
+  private final BufferedReader input;
+  private final Writer output;
+
+  private TfsAnnotateServer(Process process) {
+    this.process = process;
+    this.input = new BufferedReader(new InputStreamReader(process.getInputStream(), Charsets.UTF_8));
+    this.output = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), Charsets.UTF_8));
+  }
+
+  /**
+   * @param command executable and arguments starting the server, e.g. <code>SonarTfsAnnotate --server</code>
+   */
+  public static TfsAnnotateServer start(List<String> command) throws IOException {
+    Process process = new ProcessBuilder(command).start();
+    // Messages of the server itself, the errors of the files are sent on its output
+    PerThreadServers.discard(process.getErrorStream(), "SonarTfsAnnotate stderr");
+    TfsAnnotateServer server = new TfsAnnotateServer(process);
+    try {
+      server.readHello();
+    } catch (IOException e) {
+      server.close();
+      throw e;
+    }
+    return server;
+  }
+
+  private void readHello() throws IOException {
+    String hello = input.readLine();
+    if (hello == null || !hello.startsWith(HELLO)) {
+      throw new IOException("SonarTfsAnnotate does not support the server mode: " + StringUtils.abbreviate(hello, 200));
+    }
+  }
+
+  /**
+   * @return the lines written by SonarTfsAnnotate for the file
+   * @throws TfsAnnotateException if the file can not be annotated
+   * @throws IOException if the server can not be reached, e.g. after a crash, or if its answer is invalid. The server
+   * must then be closed.
+   */
+  public List<String> annotate(File file) throws IOException {
+    String path = file.getAbsolutePath();
+    if (path.indexOf('\n') >= 0 || path.indexOf('\r') >= 0) {
+      throw new TfsAnnotateException("Unable to send a path containing a line break: " + path);
+    }
+    output.write(path);
+    output.write('\n');
+    output.flush();
+
+    ChildProcesses.register(process);
+    try {
+      String header = readLine();
+      if (header.startsWith(ERROR)) {
+        throw new TfsAnnotateException(header.substring(ERROR.length()));
+      }
+      int count = header.startsWith(ANNOTATE) ? parseCount(header.substring(ANNOTATE.length())) : -1;
+      if (count < 0) {
+        throw new IOException("Invalid answer of SonarTfsAnnotate for " + path + ": " + StringUtils.abbreviate(header, 200));
+      }
+      List<String> lines = Lists.newArrayListWithCapacity(count);
+      for (int i = 0; i < count; i++) {
+        lines.add(readLine());
+      }
+      return lines;
+    } finally {
+      ChildProcesses.unregister();
+    }
+  }
+
+  private String readLine() throws IOException {
+    String line = input.readLine();
+    if (line == null) {
+      throw new EOFException("SonarTfsAnnotate server stopped");
+    }
+    return line;
+  }
+
+  private static int parseCount(String count) {
+    String trimmed = count.trim();
+    if (trimmed.isEmpty() || trimmed.length() > 9 || !StringUtils.isNumeric(trimmed)) {
+      return -1;
+    }
+    return Integer.parseInt(trimmed);
+  }
+
+  /**
+   * Stops the server, which exits when its input is closed.
+   */
+  public void close() {
+    IOUtils.closeQuietly(output);
+    IOUtils.closeQuietly(input);
+    process.destroy();
+  }
+
+  /**
+   * Failure to annotate a file, reported by a server which is still usable.
+   */
+  public static class TfsAnnotateException extends IOException {
+    public TfsAnnotateException(String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import java.util.Random;
+
+/**
+ * Compares the normalization of authors without cache, as done before {@link AuthorNormalizer}, with the cached
+ * normalization, in the manner of a JMH average time benchmark: warm-up iterations, then measured iterations, with
+ * results consumed so that the work is not eliminated.
+ * <p/>
+ * Usage: <code>AuthorNormalizerBenchmark [authors] [lines] [iterations]</code>
+ */
+public final class AuthorNormalizerBenchmark {
+
+  private AuthorNormalizerBenchmark() {
+  }
+
+  public static void main(String[] args) {
+    int authorCount = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+    int lineCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+    int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+    System.out.println(String.format("%d authors, %d lines, %d iterations", authorCount, lineCount, iterations));
+    for (String kind : new String[] {"email", "name", "accented"}) {
+      String[] lines = lines(authors(authorCount, kind), lineCount);
+      System.out.println(String.format("%-9s uncached %,8.1f ns/line   cached %,8.1f ns/line", kind,
+        nanosPerLine(null, lines, iterations), nanosPerLine(new AuthorNormalizer(), lines, iterations)));
+    }
+  }
+
+  private static double nanosPerLine(AuthorNormalizer authorNormalizer, String[] lines, int iterations) {
+    // warm-up
+    int sink = run(authorNormalizer, lines);
+    sink += run(authorNormalizer, lines);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      sink += run(authorNormalizer, lines);
+    }
+    long elapsed = System.nanoTime() - start;
+    if (sink == 42) {
+      System.out.println();
+    }
+    return (double) elapsed / iterations / lines.length;
+  }
+
+  private static int run(AuthorNormalizer authorNormalizer, String[] lines) {
+    int sink = 0;
+    for (String line : lines) {
+      String normalized = authorNormalizer == null ? AuthorNormalizer.normalize(line) : authorNormalizer.normalizeAuthor(line);
+      sink += normalized.length();
+    }
+    return sink;
+  }
+
+  /**
+   * @param kind <i>email</i> as with git, <i>name</i> as with svn, or <i>accented</i>
+   */
+  private static String[] authors(int count, String kind) {
+    String[] authors = new String[count];
+    for (int i = 0; i < count; i++) {
+      if ("email".equals(kind)) {
+        authors[i] = "developer" + i + "@example.com";
+      } else if ("name".equals(kind)) {
+        authors[i] = "Developer" + i;
+      } else {
+        authors[i] = "Développeur" + i;
+      }
+    }
+    return authors;
+  }
+
+  /**
+   * Authors of the lines, as distinct strings like when they are read from the SCM
+   */
+  private static String[] lines(String[] authors, int count) {
+    Random random = new Random(42);
+    String[] lines = new String[count];
+    for (int i = 0; i < count; i++) {
+      lines[i] = new String(authors[random.nextInt(authors.length)]);
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class AuthorNormalizerTest {
+  AuthorNormalizer authorNormalizer = new AuthorNormalizer();
+
+  @Test
+  public void should_lowercase_and_remove_accents() {
+    assertThat(authorNormalizer.normalizeAuthor("Émilie.Martin@Example.com")).isEqualTo("emilie.martin@example.com");
+    assertThat(authorNormalizer.normalizeAuthor("Ulrich Müller")).isEqualTo("ulrich muller");
+  }
+
+  @Test
+  public void should_replace_non_ascii_characters() {
+    assertThat(authorNormalizer.normalizeAuthor("张三")).isEqualTo("__");
+  }
+
+  @Test
+  public void should_return_normalized_author_as_is() {
+    String author = "godin@example.com";
+
+    assertThat(authorNormalizer.normalizeAuthor(author)).isSameAs(author);
+    assertThat(AuthorNormalizer.isNormalized(author)).isTrue();
+    assertThat(AuthorNormalizer.isNormalized("")).isTrue();
+    assertThat(AuthorNormalizer.isNormalized("Godin")).isFalse();
+    assertThat(AuthorNormalizer.isNormalized("godiné")).isFalse();
+  }
+
+  @Test
+  public void should_normalize_each_author_once() {
+    String first = authorNormalizer.normalizeAuthor("Godin");
+
+    assertThat(authorNormalizer.normalizeAuthor(new String("Godin"))).isSameAs(first);
+  }
+
+  @Test
+  public void should_match_uncached_normalization() {
+    String[] authors = {"", "a", "Z", "@", "~", "\u007f", "\u0080", "É", "ǅ", "İ", "ß", "Ω", "é", "😀", "Simon.Brandhof"};
+    for (String author : authors) {
+      assertThat(authorNormalizer.normalizeAuthor(author)).as(author).isEqualTo(AuthorNormalizer.normalize(author));
+    }
+  }
+
+  @Test
+  public void should_be_thread_safe() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Future<?>[] futures = new Future<?>[8];
+      for (int t = 0; t < futures.length; t++) {
+        futures[t] = executor.submit(new Callable<Void>() {
+          public Void call() {
+            for (int i = 0; i < 20000; i++) {
+              String author = "Author" + (i % 500) + "é";
+              assertThat(authorNormalizer.normalizeAuthor(author)).isEqualTo("author" + (i % 500) + "e");
+            }
+            return null;
+          }
+        });
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
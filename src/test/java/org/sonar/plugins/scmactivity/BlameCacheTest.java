@@ -0,0 +1,230 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.plugins.scmactivity.test.TemporaryFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BlameCacheTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Rule
+  public TemporaryFile temporaryFile = new TemporaryFile();
+
+  ScmConfiguration conf = mock(ScmConfiguration.class);
+  ScmChanges scmChanges = mock(ScmChanges.class);
+  ProjectScmResources projectResources = mock(ProjectScmResources.class);
+  BlameCache blameCache;
+  File cacheDir;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheDir = temp.newFolder();
+    when(conf.getCacheDir()).thenReturn(cacheDir);
+    when(conf.getCacheMaxSize()).thenReturn(1024L * 1024);
+    when(conf.getScmProvider()).thenReturn("git");
+    when(scmChanges.isLastCommitSupported()).thenReturn(true);
+    when(scmChanges.getLastCommit(any(File.class))).thenReturn("abc src/source.java");
+    blameCache = new BlameCache(conf, scmChanges, projectResources);
+  }
+
+  @Test
+  public void should_compute_git_blob_id() throws IOException {
+    File file = temporaryFile.create("source.java", "foo\n");
+
+    assertThat(BlameCache.blobId(file)).isEqualTo("257cc5642cb1a054f08cc83f2d943e56fd3ebe99");
+  }
+
+  @Test
+  public void should_write_and_read_lines() throws IOException {
+    File entry = temp.newFile();
+    List<BlameLine> lines = Arrays.asList(
+      new BlameLine(new Date(13), "20", "godin", "henryju"),
+      new BlameLine(new Date(10), "21", "Frédéric"),
+      new BlameLine(new Date(13), "20", "godin", "henryju"),
+      new BlameLine(null, null, null));
+
+    BlameCache.write(entry, lines);
+    List<BlameLine> read = BlameCache.read(entry);
+
+    assertThat(read).hasSize(4);
+    assertThat(read.get(0).getRevision()).isEqualTo("20");
+    assertThat(read.get(0).getAuthor()).isEqualTo("godin");
+    assertThat(read.get(0).getCommitter()).isEqualTo("henryju");
+    assertThat(read.get(0).getDate()).isEqualTo(new Date(13));
+    assertThat(read.get(1).getAuthor()).isEqualTo("Frédéric");
+    assertThat(read.get(2)).isSameAs(read.get(0));
+    assertThat(read.get(3).getRevision()).isNull();
+    assertThat(read.get(3).getDate()).isNull();
+  }
+
+  @Test
+  public void should_miss_then_hit() throws IOException {
+    File file = temporaryFile.create("source.java", "foo\n");
+
+    assertThat(blameCache.get(file)).isNull();
+    blameCache.put(file, Arrays.asList(new BlameLine(new Date(13), "20", "godin")));
+    List<BlameLine> lines = blameCache.get(file);
+
+    assertThat(lines).hasSize(1);
+    assertThat(lines.get(0).getRevision()).isEqualTo("20");
+    assertThat(blameCache.getHits()).isEqualTo(1);
+    assertThat(blameCache.getMisses()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_miss_when_content_changed() throws IOException {
+    File file = temporaryFile.create("source.java", "foo\n");
+    blameCache.put(file, Arrays.asList(new BlameLine(new Date(13), "20", "godin")));
+
+    org.apache.commons.io.FileUtils.write(file, "bar\n");
+
+    assertThat(blameCache.get(file)).isNull();
+  }
+
+  @Test
+  public void should_miss_when_last_commit_changed() throws IOException {
+    File file = temporaryFile.create("source.java", "foo\n");
+    blameCache.put(file, Arrays.asList(new BlameLine(new Date(13), "20", "godin")));
+
+    // Same content brought back by a revert
+    when(scmChanges.getLastCommit(file)).thenReturn("def src/source.java");
+
+    assertThat(blameCache.get(file)).isNull();
+  }
+
+  @Test
+  public void should_miss_in_other_repository() throws IOException {
+    File file = temporaryFile.create("source.java", "foo\n");
+    blameCache.put(file, Arrays.asList(new BlameLine(new Date(13), "20", "godin")));
+
+    when(scmChanges.getLastCommit(file)).thenReturn("uuid 20 /trunk/src/source.java");
+
+    assertThat(blameCache.get(file)).isNull();
+  }
+
+  @Test
+  public void should_not_cache_uncommitted_lines() throws IOException {
+    File file = temporaryFile.create("source.java", "foo\nbar\n");
+
+    assertThat(blameCache.get(file)).isNull();
+    blameCache.put(file, Arrays.asList(
+      new BlameLine(new Date(13), "20", "godin"),
+      new BlameLine(new Date(14), "0000000000000000000000000000000000000000", "not.committed.yet")));
+
+    assertThat(blameCache.get(file)).isNull();
+    assertThat(cacheDir.list()).isEmpty();
+  }
+
+  @Test
+  public void should_not_cache_file_never_committed() throws IOException {
+    File file = temporaryFile.create("source.java", "foo\n");
+    when(scmChanges.getLastCommit(file)).thenReturn(null);
+
+    blameCache.put(file, Arrays.asList(new BlameLine(new Date(13), "20", "godin")));
+
+    assertThat(blameCache.get(file)).isNull();
+    assertThat(cacheDir.list()).isEmpty();
+  }
+
+  @Test
+  public void should_ask_last_commit_once_per_missed_file() throws IOException {
+    File file = temporaryFile.create("source.java", "foo\n");
+
+    blameCache.get(file);
+    blameCache.put(file, Arrays.asList(new BlameLine(new Date(13), "20", "godin")));
+
+    verify(scmChanges, times(1)).getLastCommit(file);
+  }
+
+  @Test
+  public void should_detect_uncommitted_revisions() {
+    assertThat(BlameCache.isCommitted(Arrays.asList(new BlameLine(new Date(13), "20", "godin")))).isTrue();
+    assertThat(BlameCache.isCommitted(Arrays.asList(new BlameLine(new Date(13), "-", "-")))).isFalse();
+    assertThat(BlameCache.isCommitted(Arrays.asList(new BlameLine(new Date(13), "-1", "godin")))).isFalse();
+    assertThat(BlameCache.isCommitted(Arrays.asList(new BlameLine(new Date(13), null, "godin")))).isFalse();
+  }
+
+  @Test
+  public void should_be_disabled_for_scm_without_last_commit() {
+    when(scmChanges.isLastCommitSupported()).thenReturn(false);
+
+    assertThat(blameCache.isEnabled()).isFalse();
+  }
+
+  @Test
+  public void should_do_nothing_when_disabled() throws IOException {
+    when(conf.getCacheDir()).thenReturn(null);
+    File file = temporaryFile.create("source.java", "foo\n");
+
+    blameCache.put(file, Arrays.asList(new BlameLine(new Date(13), "20", "godin")));
+
+    assertThat(blameCache.get(file)).isNull();
+    assertThat(blameCache.getMisses()).isEqualTo(0);
+    assertThat(cacheDir.list()).isEmpty();
+  }
+
+  @Test
+  public void should_evict_entries_at_the_end_of_the_analysis() {
+    blameCache.close();
+
+    verify(projectResources).evictBlameCacheOnStop(cacheDir, 1024L * 1024);
+  }
+
+  @Test
+  public void should_evict_least_recently_used_entries() throws IOException {
+    File subDir = new File(cacheDir, "ab");
+    subDir.mkdir();
+    File oldest = entry(subDir, "old", 1000L);
+    File recent = entry(subDir, "recent", 3000L);
+    File middle = entry(subDir, "middle", 2000L);
+
+    BlameCache.evict(cacheDir, recent.length() + middle.length());
+
+    assertThat(oldest).doesNotExist();
+    assertThat(middle).exists();
+    assertThat(recent).exists();
+  }
+
+  static File entry(File dir, String name, long lastModified) throws IOException {
+    File file = new File(dir, name);
+    BlameCache.write(file, Arrays.asList(new BlameLine(new Date(13), "20", "godin")));
+    file.setLastModified(lastModified);
+    return file;
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.apache.maven.scm.ScmException;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class BlameCircuitBreakerTest {
+  static final String NOT_A_WORKING_COPY = "svn: E155007: '%s' is not a working copy";
+
+  @Test
+  public void should_open_after_consecutive_failures_with_same_cause() throws Exception {
+    BlameCircuitBreaker circuitBreaker = new BlameCircuitBreaker(3, 0);
+
+    failures(circuitBreaker, 2);
+    circuitBreaker.failure(new File("src/Other.java"), "svn: E170001: Authentication failed");
+    failures(circuitBreaker, 2);
+
+    assertThat(circuitBreaker.isOpen()).isFalse();
+
+    circuitBreaker.success();
+    failures(circuitBreaker, 3);
+
+    assertThat(circuitBreaker.isOpen()).isTrue();
+    try {
+      circuitBreaker.check(new File("src/Next.java"));
+      fail();
+    } catch (BlameCircuitBreaker.CircuitOpenException e) {
+      assertThat(e).hasMessage("SCM blame is stopped after systematic failures, not blaming " + new File("src/Next.java"));
+    }
+    circuitBreaker.report();
+  }
+
+  @Test
+  public void should_open_on_failure_rate_with_same_cause() throws Exception {
+    BlameCircuitBreaker circuitBreaker = new BlameCircuitBreaker(0, 50);
+
+    for (int i = 0; i < 9; i++) {
+      circuitBreaker.success();
+      failures(circuitBreaker, 1);
+    }
+    assertThat(circuitBreaker.isOpen()).isFalse();
+
+    circuitBreaker.success();
+    failures(circuitBreaker, 1);
+    assertThat(circuitBreaker.isOpen()).isTrue();
+  }
+
+  @Test
+  public void should_never_open_if_disabled() throws Exception {
+    BlameCircuitBreaker circuitBreaker = new BlameCircuitBreaker(0, 0);
+
+    failures(circuitBreaker, 100);
+
+    assertThat(circuitBreaker.isOpen()).isFalse();
+    circuitBreaker.check(new File("src/Next.java"));
+  }
+
+  @Test
+  public void should_be_disabled_before_any_blame() throws Exception {
+    BlameCircuitBreaker circuitBreaker = new BlameCircuitBreaker(10, 0);
+
+    circuitBreaker.disable("The svn executable can not be run.");
+
+    assertThat(circuitBreaker.isOpen()).isTrue();
+    try {
+      circuitBreaker.check(new File("src/Foo.java"));
+      fail();
+    } catch (BlameCircuitBreaker.CircuitOpenException e) {
+      // expected
+    }
+    circuitBreaker.report();
+  }
+
+  @Test
+  public void should_match_root_causes_of_exceptions() {
+    BlameCircuitBreaker circuitBreaker = new BlameCircuitBreaker(2, 0);
+
+    circuitBreaker.failure(new File("src/Foo.java"), new ScmException("Error while executing command.", new IOException("Cannot run program \"svn\"")));
+    circuitBreaker.failure(new File("src/Bar.java"), new ScmException("Error while executing command.", new IOException("Cannot run program \"svn\"")));
+
+    assertThat(circuitBreaker.isOpen()).isTrue();
+  }
+
+  @Test
+  public void should_replace_file_in_cause() {
+    File file = new File("src/Foo.java");
+
+    assertThat(BlameCircuitBreaker.normalize(file, "svn: '" + file.getAbsolutePath() + "' is not\n under version control"))
+      .isEqualTo("svn: '<file>' is not under version control");
+    assertThat(BlameCircuitBreaker.normalize(file, "fatal: no such path Foo.java in HEAD")).isEqualTo("fatal: no such path <file> in HEAD");
+    assertThat(BlameCircuitBreaker.normalize(file, null)).isEmpty();
+  }
+
+  @Test
+  public void should_only_replace_whole_short_file_name_in_cause() {
+    File file = new File("src/c");
+
+    assertThat(BlameCircuitBreaker.normalize(file, "fatal: cannot access src/c: No such file")).isEqualTo("fatal: cannot access <file>: No such file");
+    assertThat(BlameCircuitBreaker.normalize(file, "fatal: no such path c in HEAD.")).isEqualTo("fatal: no such path <file> in HEAD.");
+    assertThat(BlameCircuitBreaker.normalize(file, "fatal: no such path c.java in HEAD")).isEqualTo("fatal: no such path c.java in HEAD");
+  }
+
+  private static void failures(BlameCircuitBreaker circuitBreaker, int count) {
+    for (int i = 0; i < count; i++) {
+      File file = new File("src/File" + i + ".java");
+      circuitBreaker.failure(file, String.format(NOT_A_WORKING_COPY, file.getAbsolutePath()));
+    }
+  }
+}
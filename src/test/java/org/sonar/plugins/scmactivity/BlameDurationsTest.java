@@ -0,0 +1,110 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultFileSystem;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
+
+import java.io.File;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class BlameDurationsTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  DefaultFileSystem fs = new DefaultFileSystem();
+  File baseDir;
+  File workDir;
+  BlameDurations durations;
+
+  @Before
+  public void setUp() throws Exception {
+    baseDir = temp.newFolder("base");
+    workDir = temp.newFolder("work");
+    fs.setBaseDir(baseDir);
+    fs.setWorkDir(workDir);
+    durations = new BlameDurations(fs);
+  }
+
+  @Test
+  public void should_sort_by_number_of_lines_if_never_blamed() {
+    InputFile small = file("Small.java", 10);
+    InputFile large = file("Large.java", 1000);
+    List<InputFile> files = Lists.newArrayList(small, large);
+
+    durations.sortLongestFirst(files);
+
+    assertThat(files).containsExactly(large, small);
+  }
+
+  @Test
+  public void should_sort_by_previous_duration() throws Exception {
+    InputFile small = file("Small.java", 10);
+    InputFile large = file("Large.java", 1000);
+    InputFile unknown = file("Unknown.java", 100);
+    FileUtils.write(new File(workDir, BlameDurations.FILENAME), "5000\tSmall.java\n1000\tLarge.java\n");
+    List<InputFile> files = Lists.newArrayList(unknown, large, small);
+
+    durations.sortLongestFirst(files);
+
+    // 1010 lines blamed in 6000 ms, so 100 lines are expected to last about 600 ms
+    assertThat(files).containsExactly(small, large, unknown);
+  }
+
+  @Test
+  public void should_keep_durations_of_files_of_module() throws Exception {
+    InputFile source = file("src/Source.java", 10);
+    fs.add(source);
+    FileUtils.write(new File(workDir, BlameDurations.FILENAME), "5000\tsrc/Source.java\n7000\tsrc/Deleted.java\n");
+    durations.record(new File(baseDir, "src/Source.java"), 42);
+    durations.record(new File(temp.getRoot(), "Other.java"), 42);
+
+    durations.save();
+
+    assertThat(FileUtils.readFileToString(new File(workDir, BlameDurations.FILENAME))).isEqualTo("42\tsrc/Source.java\n");
+  }
+
+  @Test
+  public void should_ignore_corrupted_file() throws Exception {
+    InputFile small = file("Small.java", 10);
+    InputFile large = file("Large.java", 1000);
+    FileUtils.write(new File(workDir, BlameDurations.FILENAME), "abc\tSmall.java\n-1\tLarge.java\n\n99999999999999999999\tSmall.java\n2\tLarge.java\n1\n");
+    List<InputFile> files = Lists.newArrayList(small, large);
+
+    durations.sortLongestFirst(files);
+
+    // Only the duration of Large.java is valid
+    assertThat(files).containsExactly(large, small);
+  }
+
+  private DefaultInputFile file(String path, int lines) {
+    return new DefaultInputFile(path).setFile(new File(baseDir, path)).setLines(lines);
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.junit.Test;
+import org.sonar.api.measures.CoreMetrics;
+import org.sonar.api.measures.Metric;
+import org.sonar.api.measures.PropertiesBuilder;
+import org.sonar.api.resources.Resource;
+import org.sonar.api.utils.DateUtils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class BlameEncoderTest {
+  Resource resource = new org.sonar.api.resources.File("source.java");
+  AuthorNormalizer authorNormalizer = new AuthorNormalizer();
+
+  @Test
+  public void should_encode_like_properties_builder() {
+    Random random = new Random(42);
+    for (int run = 0; run < 200; run++) {
+      List<BlameLine> lines = randomLines(random, random.nextInt(300), 1 + random.nextInt(10));
+      int lineCount = lines.size() + random.nextInt(3);
+
+      assertSameEncoding(lines, lineCount);
+    }
+  }
+
+  @Test
+  public void should_add_missing_blame_line() {
+    List<BlameLine> lines = Arrays.asList(new BlameLine(new Date(13), "20", "godin"), new BlameLine(new Date(10), "21", "Simon"));
+
+    SaveNewMeasures measures = BlameEncoder.encode(resource, lines, 3, authorNormalizer);
+
+    assertThat(measures.getAuthors().getData()).isEqualTo("1=godin;2=simon;3=simon");
+    assertThat(measures.getRevisions().getData()).isEqualTo("1=20;2=21;3=21");
+    assertSameEncoding(lines, 3);
+  }
+
+  @Test
+  public void should_encode_empty_blame() {
+    SaveNewMeasures measures = BlameEncoder.encode(resource, Collections.<BlameLine>emptyList(), 1, authorNormalizer);
+
+    assertThat(measures.getAuthors().getData()).isEmpty();
+    assertThat(measures.getDates().getData()).isEmpty();
+    assertThat(measures.getRevisions().getData()).isEmpty();
+  }
+
+  @Test
+  public void should_not_share_revision_with_other_author_or_date() {
+    List<BlameLine> lines = Arrays.asList(
+      new BlameLine(new Date(13), "20", "godin"),
+      new BlameLine(new Date(13), "20", "simon"),
+      new BlameLine(new Date(14000), "20", "simon"),
+      new BlameLine(new Date(14000), null, "simon"));
+
+    assertSameEncoding(lines, 4);
+    assertThat(BlameEncoder.encode(resource, lines, 4, authorNormalizer).getRevisions().getData()).isEqualTo("1=20;2=20;3=20;4=");
+  }
+
+  @Test
+  public void should_allocate_less_than_properties_builders() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+    List<BlameLine> lines = randomLines(new Random(42), 20000, 5);
+    long threadId = Thread.currentThread().getId();
+
+    // warm-up
+    propertiesBuilders(lines, lines.size());
+    BlameEncoder.encode(resource, lines, lines.size(), authorNormalizer);
+
+    long start = allocations.getThreadAllocatedBytes(threadId);
+    propertiesBuilders(lines, lines.size());
+    long buildersBytes = allocations.getThreadAllocatedBytes(threadId) - start;
+
+    start = allocations.getThreadAllocatedBytes(threadId);
+    BlameEncoder.encode(resource, lines, lines.size(), authorNormalizer);
+    long encoderBytes = allocations.getThreadAllocatedBytes(threadId) - start;
+
+    assertThat(encoderBytes * 5).isLessThan(buildersBytes);
+  }
+
+  private void assertSameEncoding(List<BlameLine> lines, int lineCount) {
+    String[] expected = propertiesBuilders(lines, lineCount);
+    SaveNewMeasures measures = BlameEncoder.encode(resource, lines, lineCount, authorNormalizer);
+
+    assertThat(measures.getAuthors().getData()).isEqualTo(expected[0]);
+    assertThat(measures.getDates().getData()).isEqualTo(expected[1]);
+    assertThat(measures.getRevisions().getData()).isEqualTo(expected[2]);
+  }
+
+  /**
+   * Previous implementation of {@link Blame#save}
+   */
+  private static String[] propertiesBuilders(List<BlameLine> lines, int lineCount) {
+    PropertiesBuilder<Integer, String> authors = propertiesBuilder(CoreMetrics.SCM_AUTHORS_BY_LINE);
+    PropertiesBuilder<Integer, String> dates = propertiesBuilder(CoreMetrics.SCM_LAST_COMMIT_DATETIMES_BY_LINE);
+    PropertiesBuilder<Integer, String> revisions = propertiesBuilder(CoreMetrics.SCM_REVISIONS_BY_LINE);
+
+    int lineNumber = 1;
+    for (BlameLine line : lines) {
+      authors.add(lineNumber, AuthorNormalizer.normalize(line.getAuthor()));
+      dates.add(lineNumber, DateUtils.formatDateTime(line.getDate()));
+      revisions.add(lineNumber, line.getRevision());
+
+      lineNumber++;
+      if (lineNumber > lines.size() && lineNumber == lineCount) {
+        authors.add(lineNumber, AuthorNormalizer.normalize(line.getAuthor()));
+        dates.add(lineNumber, DateUtils.formatDateTime(line.getDate()));
+        revisions.add(lineNumber, line.getRevision());
+      }
+    }
+    return new String[] {authors.buildData(), dates.buildData(), revisions.buildData()};
+  }
+
+  private static PropertiesBuilder<Integer, String> propertiesBuilder(Metric metric) {
+    return new PropertiesBuilder<Integer, String>(metric);
+  }
+
+  /**
+   * Lines of a few commits, whose BlameLine are not shared like with most SCM providers
+   */
+  private static List<BlameLine> randomLines(Random random, int lineCount, int commitCount) {
+    String[] authors = {"godin", "Simon.Brandhof@SonarSource.com", "Émilie", "julien"};
+    List<BlameLine> lines = new ArrayList<BlameLine>(lineCount);
+    for (int i = 0; i < lineCount; i++) {
+      int commit = random.nextInt(commitCount);
+      lines.add(new BlameLine(new Date(1390000000000L + commit * 3600000L), "rev" + commit, authors[commit % authors.length]));
+    }
+    return lines;
+  }
+}
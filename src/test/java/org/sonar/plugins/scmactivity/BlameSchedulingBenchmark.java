@@ -0,0 +1,102 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.io.FileUtils;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultFileSystem;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Simulates the blame of a module by a pool of threads, each thread taking the next file as soon as it is free, and
+ * prints the time at which the last blame ends: with the files in index order, ordered by {@link BlameDurations}
+ * from their number of lines only, and from the durations of a previous analysis (which vary by 20%). Durations
+ * follow a long-tailed distribution, as few files have a long history.
+ * <p/>
+ * Usage: <code>BlameSchedulingBenchmark [files] [threads]</code>
+ */
+public final class BlameSchedulingBenchmark {
+
+  private BlameSchedulingBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+    File workDir = new File(FileUtils.getTempDirectory(), "blame-scheduling-benchmark");
+    FileUtils.forceMkdir(workDir);
+    DefaultFileSystem fs = new DefaultFileSystem();
+    fs.setBaseDir(workDir);
+    fs.setWorkDir(workDir);
+    try {
+      Random random = new Random(42);
+      List<InputFile> files = Lists.newArrayList();
+      Map<InputFile, Long> durations = Maps.newHashMap();
+      StringBuilder previous = new StringBuilder();
+      long total = 0;
+      for (int i = 0; i < fileCount; i++) {
+        long duration = (long) (5 / Math.pow(1 - random.nextDouble(), 1.2));
+        String path = "File" + i + ".java";
+        // The number of lines is loosely related to the duration of the blame
+        InputFile file = new DefaultInputFile(path).setFile(new File(workDir, path)).setLines(10 + random.nextInt(200) + (int) duration);
+        files.add(file);
+        durations.put(file, duration);
+        previous.append((long) (duration * (0.8 + 0.4 * random.nextDouble()))).append('\t').append(path).append('\n');
+        total += duration;
+      }
+
+      List<InputFile> byLines = Lists.newArrayList(files);
+      new BlameDurations(fs).sortLongestFirst(byLines);
+      FileUtils.write(new File(workDir, BlameDurations.FILENAME), previous);
+      List<InputFile> byDurations = Lists.newArrayList(files);
+      new BlameDurations(fs).sortLongestFirst(byDurations);
+
+      System.out.println(String.format("%d files, %d threads, %,d ms of blame, at least %,d ms", fileCount, threadCount, total, total / threadCount));
+      System.out.println(String.format("index order       %,8d ms", makespan(files, durations, threadCount)));
+      System.out.println(String.format("longest by lines  %,8d ms", makespan(byLines, durations, threadCount)));
+      System.out.println(String.format("longest by stats  %,8d ms", makespan(byDurations, durations, threadCount)));
+    } finally {
+      FileUtils.deleteQuietly(workDir);
+    }
+  }
+
+  private static long makespan(List<InputFile> files, Map<InputFile, Long> durations, int threadCount) {
+    PriorityQueue<Long> freeAt = new PriorityQueue<Long>();
+    for (int i = 0; i < threadCount; i++) {
+      freeAt.add(0L);
+    }
+    long end = 0;
+    for (InputFile file : files) {
+      long done = freeAt.poll() + durations.get(file);
+      freeAt.add(done);
+      end = Math.max(end, done);
+    }
+    return end;
+  }
+}
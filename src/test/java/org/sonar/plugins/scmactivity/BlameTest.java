@@ -19,21 +19,40 @@
  */
 package org.sonar.plugins.scmactivity;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import org.apache.maven.scm.ScmException;
 import org.apache.maven.scm.command.blame.BlameLine;
 import org.apache.maven.scm.command.blame.BlameScmResult;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
 import org.sonar.api.measures.CoreMetrics;
 import org.sonar.api.measures.Measure;
 import org.sonar.api.resources.Resource;
+import org.sonar.api.utils.DateUtils;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.sonar.plugins.scmactivity.test.MoreConditions.reflectionEqualTo;
 
@@ -44,10 +63,15 @@ public class BlameTest {
   Blame blame;
 
   ScmFacade scmFacade = mock(ScmFacade.class);
+  BlameCache blameCache = mock(BlameCache.class);
+  ProjectBlamePrefetch projectPrefetch = mock(ProjectBlamePrefetch.class);
+  BlameDurations durations = mock(BlameDurations.class);
 
   @Before
-  public void setUp() {
-    blame = new Blame(scmFacade);
+  public void setUp() throws Exception {
+    blame = new Blame(scmFacade, blameCache, new AuthorNormalizer(), projectPrefetch, durations);
+    when(blameCache.get(any(File.class))).thenReturn(null);
+    when(projectPrefetch.take(any(File.class), any(ScmFacade.class))).thenReturn(null);
   }
 
   @Test
@@ -75,6 +99,28 @@ public class BlameTest {
     assertThat(((SaveNewMeasures) update).getRevisions()).is(reflectionEqualTo(new Measure(CoreMetrics.SCM_REVISIONS_BY_LINE, "1=20;2=21;3=21")));
   }
 
+  @Test
+  public void should_save_cached_blame_measures() throws Exception {
+    when(blameCache.get(file(FILENAME))).thenReturn(Arrays.asList(
+      new BlameLine(new Date(13), "20", "godin"),
+      new BlameLine(new Date(10), "21", "godin")));
+
+    MeasureUpdate update = blame.save(file(FILENAME), resource(FILENAME), 2);
+
+    assertThat(((SaveNewMeasures) update).getRevisions()).is(reflectionEqualTo(new Measure(CoreMetrics.SCM_REVISIONS_BY_LINE, "1=20;2=21")));
+    verifyZeroInteractions(scmFacade);
+  }
+
+  @Test
+  public void should_cache_blame() throws Exception {
+    List<BlameLine> lines = Arrays.asList(new BlameLine(new Date(13), "20", "godin"));
+    when(scmFacade.blame(file(FILENAME))).thenReturn(new BlameScmResult("fake", lines));
+
+    blame.save(file(FILENAME), resource(FILENAME), 1);
+
+    verify(blameCache).put(file(FILENAME), lines);
+  }
+
   /**
    * See SONARPLUGINS-368 - can occur with generated sources
    * @throws ScmException
@@ -131,4 +177,347 @@ public class BlameTest {
   static Resource resource(String name) {
     return new org.sonar.api.resources.File(name);
   }
+
+  @Test
+  public void should_save_blame_retrieved_in_a_single_pass() throws Exception {
+    List<BlameLine> lines = Arrays.asList(new BlameLine(new Date(13), "20", "godin"));
+    when(scmFacade.isSinglePassBlameEnabled()).thenReturn(true);
+    when(scmFacade.blame(Arrays.asList(file(FILENAME)))).thenReturn(Collections.singletonMap(file(FILENAME), lines));
+
+    blame.prefetch(Arrays.asList(file(FILENAME)));
+    MeasureUpdate update = blame.save(file(FILENAME), resource(FILENAME), 1);
+
+    assertThat(((SaveNewMeasures) update).getRevisions()).is(reflectionEqualTo(new Measure(CoreMetrics.SCM_REVISIONS_BY_LINE, "1=20")));
+    verify(scmFacade, never()).blame(file(FILENAME));
+    verify(blameCache).put(file(FILENAME), lines);
+  }
+
+  @Test
+  public void should_not_retrieve_cached_blame_in_a_single_pass() throws Exception {
+    when(scmFacade.isSinglePassBlameEnabled()).thenReturn(true);
+    when(blameCache.get(file(FILENAME))).thenReturn(Arrays.asList(new BlameLine(new Date(13), "20", "godin")));
+
+    blame.prefetch(Arrays.asList(file(FILENAME)));
+
+    verify(scmFacade, never()).blame(anyCollectionOf(File.class));
+  }
+
+  @Test
+  public void should_blame_file_by_file_when_single_pass_fails() throws Exception {
+    when(scmFacade.isSinglePassBlameEnabled()).thenReturn(true);
+    when(scmFacade.blame(anyCollectionOf(File.class))).thenThrow(new ScmException("BUG"));
+    when(scmFacade.blame(file(FILENAME))).thenReturn(new BlameScmResult("fake", Arrays.asList(new BlameLine(new Date(13), "20", "godin"))));
+
+    blame.prefetch(Arrays.asList(file(FILENAME)));
+    MeasureUpdate update = blame.save(file(FILENAME), resource(FILENAME), 1);
+
+    assertThat(update).isInstanceOf(SaveNewMeasures.class);
+  }
+
+  @Test
+  public void should_copy_previous_measures_when_single_pass_times_out() throws Exception {
+    when(scmFacade.isSinglePassBlameEnabled()).thenReturn(true);
+    when(scmFacade.blame(anyCollectionOf(File.class))).thenThrow(new BlameTimeouts.BlameTimeoutException("timeout", true));
+
+    blame.prefetch(Arrays.asList(file(FILENAME)));
+    MeasureUpdate update = blame.save(file(FILENAME), resource(FILENAME), 1);
+
+    assertThat(update).isInstanceOf(CopyPreviousMeasures.class);
+    verify(scmFacade, never()).blame(file(FILENAME));
+  }
+
+  @Test
+  public void should_not_prefetch_if_single_pass_is_disabled() throws Exception {
+    blame.prefetch(Arrays.asList(file(FILENAME)));
+
+    verify(scmFacade, never()).blame(anyCollectionOf(File.class));
+  }
+
+  @Test
+  public void should_only_blame_lines_changed_since_previous_revision() throws Exception {
+    List<BlameLine> lines = Arrays.asList(new BlameLine(new Date(13), "20", "godin"), new BlameLine(new Date(14), "21", "simon"));
+    when(scmFacade.reblame(eq(file(FILENAME)), eq("abc"), anyListOf(BlameLine.class))).thenReturn(lines);
+
+    blame.setPreviousBlame(file(FILENAME), "abc", previousMeasures());
+    MeasureUpdate update = blame.save(file(FILENAME), resource(FILENAME), 2);
+
+    assertThat(((SaveNewMeasures) update).getRevisions()).is(reflectionEqualTo(new Measure(CoreMetrics.SCM_REVISIONS_BY_LINE, "1=20;2=21")));
+    verify(scmFacade, never()).blame(file(FILENAME));
+    verify(blameCache).put(file(FILENAME), lines);
+    ArgumentCaptor<List> previous = ArgumentCaptor.forClass(List.class);
+    verify(scmFacade).reblame(eq(file(FILENAME)), eq("abc"), previous.capture());
+    BlameLine line = (BlameLine) previous.getValue().get(0);
+    assertThat(previous.getValue()).hasSize(1);
+    assertThat(line.getRevision()).isEqualTo("10");
+    assertThat(line.getAuthor()).isEqualTo("godin");
+    assertThat(line.getDate()).isEqualTo(DateUtils.parseDateTime("2014-03-01T10:00:00+0100"));
+  }
+
+  @Test
+  public void should_fully_blame_if_changes_do_not_match_line_count() throws Exception {
+    when(scmFacade.reblame(eq(file(FILENAME)), eq("abc"), anyListOf(BlameLine.class)))
+      .thenReturn(Arrays.asList(new BlameLine(new Date(13), "20", "godin")));
+    when(scmFacade.blame(file(FILENAME))).thenReturn(new BlameScmResult("fake", Arrays.asList(
+      new BlameLine(new Date(13), "20", "godin"),
+      new BlameLine(new Date(10), "21", "godin"),
+      new BlameLine(new Date(10), "22", "godin"))));
+
+    blame.setPreviousBlame(file(FILENAME), "abc", previousMeasures());
+    MeasureUpdate update = blame.save(file(FILENAME), resource(FILENAME), 3);
+
+    assertThat(((SaveNewMeasures) update).getRevisions()).is(reflectionEqualTo(new Measure(CoreMetrics.SCM_REVISIONS_BY_LINE, "1=20;2=21;3=22")));
+  }
+
+  @Test
+  public void should_fully_blame_if_changes_can_not_be_retrieved() throws Exception {
+    when(scmFacade.reblame(eq(file(FILENAME)), eq("abc"), anyListOf(BlameLine.class))).thenThrow(new ScmException("BUG"));
+    when(scmFacade.blame(file(FILENAME))).thenReturn(new BlameScmResult("fake", Arrays.asList(new BlameLine(new Date(13), "20", "godin"))));
+
+    blame.setPreviousBlame(file(FILENAME), "abc", previousMeasures());
+    MeasureUpdate update = blame.save(file(FILENAME), resource(FILENAME), 1);
+
+    assertThat(((SaveNewMeasures) update).getRevisions()).is(reflectionEqualTo(new Measure(CoreMetrics.SCM_REVISIONS_BY_LINE, "1=20")));
+  }
+
+  @Test
+  public void should_fully_blame_if_previous_measures_are_incomplete() throws Exception {
+    when(scmFacade.blame(file(FILENAME))).thenReturn(new BlameScmResult("fake", Arrays.asList(new BlameLine(new Date(13), "20", "godin"))));
+
+    blame.setPreviousBlame(file(FILENAME), "abc", Arrays.asList(
+      new Measure(CoreMetrics.SCM_AUTHORS_BY_LINE, "1=godin;2=godin"),
+      new Measure(CoreMetrics.SCM_LAST_COMMIT_DATETIMES_BY_LINE, "1=2014-03-01T10:00:00+0100"),
+      new Measure(CoreMetrics.SCM_REVISIONS_BY_LINE, "1=10;2=11")));
+    blame.save(file(FILENAME), resource(FILENAME), 1);
+
+    verify(scmFacade, never()).reblame(any(File.class), anyString(), anyListOf(BlameLine.class));
+  }
+
+  @Test
+  public void should_save_blame_prefetched_with_all_modules() throws Exception {
+    when(projectPrefetch.isScheduled(file(FILENAME))).thenReturn(true);
+    when(projectPrefetch.take(file(FILENAME), scmFacade)).thenReturn(Arrays.asList(new BlameLine(new Date(13), "20", "godin")));
+
+    blame.setPreviousBlame(file(FILENAME), "abc", previousMeasures());
+    MeasureUpdate update = blame.save(file(FILENAME), resource(FILENAME), 1);
+
+    assertThat(((SaveNewMeasures) update).getRevisions()).is(reflectionEqualTo(new Measure(CoreMetrics.SCM_REVISIONS_BY_LINE, "1=20")));
+    verify(scmFacade, never()).blame(file(FILENAME));
+    verify(scmFacade, never()).reblame(any(File.class), anyString(), anyListOf(BlameLine.class));
+    verify(blameCache, never()).get(file(FILENAME));
+  }
+
+  @Test
+  public void should_not_save_measures_if_blame_prefetched_with_all_modules_failed() throws Exception {
+    when(projectPrefetch.isScheduled(file(FILENAME))).thenReturn(true);
+    when(projectPrefetch.take(file(FILENAME), scmFacade)).thenThrow(new ScmException("BUG"));
+
+    MeasureUpdate update = blame.save(file(FILENAME), resource(FILENAME), 1);
+
+    assertThat(update).isInstanceOf(CopyPreviousMeasures.class);
+  }
+
+  @Test
+  public void should_prefetch_all_modules() {
+    ScmChanges scmChanges = mock(ScmChanges.class);
+    Executor executor = mock(Executor.class);
+
+    ScmFacade prefetchFacade = mock(ScmFacade.class);
+    when(scmFacade.withUnreportedTimeouts()).thenReturn(prefetchFacade);
+    File baseDir = new File("base");
+
+    blame.prefetchAllModules(baseDir, scmChanges, "abc", executor, 10);
+
+    verify(projectPrefetch).start(baseDir, prefetchFacade, scmChanges, blameCache, "abc", executor, 10);
+  }
+
+  @Test
+  public void should_not_prefetch_all_modules_in_a_single_pass() {
+    when(scmFacade.isSinglePassBlameEnabled()).thenReturn(true);
+
+    blame.prefetchAllModules(new File("base"), mock(ScmChanges.class), "abc", mock(Executor.class), 10);
+
+    verifyZeroInteractions(projectPrefetch);
+  }
+
+  @Test
+  public void should_save_blame_warmed_up_in_background() throws Exception {
+    List<Runnable> started = Lists.newArrayList();
+    InputFile inputFile = inputFile(FILENAME, 1);
+    when(scmFacade.blame(inputFile.file())).thenReturn(new BlameScmResult("fake", Arrays.asList(new BlameLine(new Date(13), "20", "godin"))));
+
+    blame.warmUp(Arrays.asList(inputFile), collectingExecutor(started), 10);
+    assertThat(started).hasSize(1);
+    started.get(0).run();
+    MeasureUpdate update = blame.save(inputFile.file(), resource(FILENAME), 1);
+
+    assertThat(((SaveNewMeasures) update).getRevisions()).is(reflectionEqualTo(new Measure(CoreMetrics.SCM_REVISIONS_BY_LINE, "1=20")));
+    verify(scmFacade, times(1)).blame(inputFile.file());
+  }
+
+  @Test
+  public void should_only_warm_up_max_pending_files_ahead() throws Exception {
+    List<Runnable> started = Lists.newArrayList();
+    InputFile a = inputFile("A.java", 1);
+    InputFile b = inputFile("B.java", 1);
+    InputFile c = inputFile("C.java", 1);
+    when(scmFacade.blame(any(File.class))).thenReturn(new BlameScmResult("fake", Arrays.asList(new BlameLine(new Date(13), "20", "godin"))));
+
+    blame.warmUp(Arrays.asList(a, b, c), collectingExecutor(started), 1);
+    assertThat(started).hasSize(1);
+
+    // Not started yet, so blamed by the caller
+    blame.save(c.file(), resource("C.java"), 1);
+    assertThat(started).hasSize(2);
+    blame.save(a.file(), resource("A.java"), 1);
+
+    // C.java is not blamed again
+    assertThat(started).hasSize(2);
+    for (Runnable runnable : started) {
+      runnable.run();
+    }
+    verify(scmFacade, times(1)).blame(a.file());
+    verify(scmFacade, times(1)).blame(b.file());
+    verify(scmFacade, times(1)).blame(c.file());
+  }
+
+  @Test
+  public void should_warm_up_in_a_single_pass() throws Exception {
+    List<Runnable> started = Lists.newArrayList();
+    InputFile inputFile = inputFile(FILENAME, 1);
+    List<BlameLine> lines = Arrays.asList(new BlameLine(new Date(13), "20", "godin"));
+    when(scmFacade.isSinglePassBlameEnabled()).thenReturn(true);
+    when(scmFacade.blame(Arrays.asList(inputFile.file()))).thenReturn(Collections.singletonMap(inputFile.file(), lines));
+
+    blame.warmUp(Arrays.asList(inputFile), collectingExecutor(started), 10);
+    MeasureUpdate update = blame.save(inputFile.file(), resource(FILENAME), 1);
+
+    assertThat(((SaveNewMeasures) update).getRevisions()).is(reflectionEqualTo(new Measure(CoreMetrics.SCM_REVISIONS_BY_LINE, "1=20")));
+    verify(scmFacade, never()).blame(inputFile.file());
+  }
+
+  @Test
+  public void should_warm_up_files_of_a_directory_in_a_batch() throws Exception {
+    List<Runnable> started = Lists.newArrayList();
+    InputFile a = inputFile("A.java", 1);
+    InputFile b = inputFile("B.java", 1);
+    List<BlameLine> lines = Arrays.asList(new BlameLine(new Date(13), "20", "godin"));
+    when(scmFacade.isBatchBlameEnabled()).thenReturn(true);
+    when(scmFacade.blame(a.file().getParentFile(), Arrays.asList(a.file(), b.file()))).thenReturn(ImmutableMap.of(a.file(), lines, b.file(), lines));
+
+    blame.warmUp(Arrays.asList(a, b), collectingExecutor(started), 10);
+    // Only the first file of the batch is warmed up
+    assertThat(started).hasSize(1);
+    started.get(0).run();
+    MeasureUpdate update = blame.save(b.file(), resource("B.java"), 1);
+    blame.save(a.file(), resource("A.java"), 1);
+
+    assertThat(((SaveNewMeasures) update).getRevisions()).is(reflectionEqualTo(new Measure(CoreMetrics.SCM_REVISIONS_BY_LINE, "1=20")));
+    verify(scmFacade, times(1)).blame(any(File.class), anyListOf(File.class));
+    verify(scmFacade, never()).blame(any(File.class));
+    verify(blameCache).put(b.file(), lines);
+  }
+
+  @Test
+  public void should_blame_file_by_file_when_missing_from_batch() throws Exception {
+    InputFile a = inputFile("A.java", 1);
+    InputFile b = inputFile("B.java", 1);
+    InputFile c = inputFile("C.java", 1);
+    List<BlameLine> lines = Arrays.asList(new BlameLine(new Date(13), "20", "godin"));
+    when(scmFacade.isBatchBlameEnabled()).thenReturn(true);
+    when(scmFacade.blame(a.file().getParentFile(), Arrays.asList(a.file(), b.file()))).thenReturn(Collections.singletonMap(a.file(), lines));
+    when(scmFacade.blame(b.file())).thenReturn(new BlameScmResult("fake", lines));
+    when(scmFacade.blame(c.file())).thenReturn(new BlameScmResult("fake", lines));
+    when(projectPrefetch.isScheduled(c.file())).thenReturn(true);
+
+    blame.warmUp(Arrays.asList(a, b, c), collectingExecutor(Lists.<Runnable>newArrayList()), 10);
+
+    assertThat(blame.save(b.file(), resource("B.java"), 1)).isInstanceOf(SaveNewMeasures.class);
+    assertThat(blame.save(a.file(), resource("A.java"), 1)).isInstanceOf(SaveNewMeasures.class);
+    assertThat(blame.save(c.file(), resource("C.java"), 1)).isInstanceOf(SaveNewMeasures.class);
+    verify(scmFacade, never()).blame(a.file());
+    verify(scmFacade).blame(b.file());
+  }
+
+  @Test
+  public void should_blame_file_by_file_when_batch_fails() throws Exception {
+    InputFile a = inputFile("A.java", 1);
+    InputFile b = inputFile("B.java", 1);
+    when(scmFacade.isBatchBlameEnabled()).thenReturn(true);
+    when(scmFacade.blame(any(File.class), anyListOf(File.class))).thenThrow(new ScmException("svn: E155007: not a working copy"));
+    when(scmFacade.blame(any(File.class))).thenReturn(new BlameScmResult("fake", Arrays.asList(new BlameLine(new Date(13), "20", "godin"))));
+
+    blame.warmUp(Arrays.asList(a, b), collectingExecutor(Lists.<Runnable>newArrayList()), 10);
+
+    assertThat(blame.save(a.file(), resource("A.java"), 1)).isInstanceOf(SaveNewMeasures.class);
+    assertThat(blame.save(b.file(), resource("B.java"), 1)).isInstanceOf(SaveNewMeasures.class);
+    verify(scmFacade, times(1)).blame(any(File.class), anyListOf(File.class));
+  }
+
+  @Test
+  public void should_keep_previous_measures_if_blame_times_out() throws Exception {
+    when(scmFacade.reblame(eq(file(FILENAME)), eq("abc"), anyListOf(BlameLine.class))).thenThrow(new BlameTimeouts.BlameTimeoutException("timeout"));
+
+    blame.setPreviousBlame(file(FILENAME), "abc", previousMeasures());
+    MeasureUpdate update = blame.save(file(FILENAME), resource(FILENAME), 1);
+
+    assertThat(update).isInstanceOf(CopyPreviousMeasures.class);
+    verify(scmFacade, never()).blame(file(FILENAME));
+  }
+
+  @Test
+  public void should_keep_previous_measures_if_blame_is_stopped() throws Exception {
+    when(scmFacade.blame(file(FILENAME))).thenThrow(new BlameCircuitBreaker.CircuitOpenException("stopped"));
+
+    MeasureUpdate update = blame.save(file(FILENAME), resource(FILENAME), 1);
+
+    assertThat(update).isInstanceOf(CopyPreviousMeasures.class);
+    verify(durations, never()).record(eq(file(FILENAME)), anyLong());
+  }
+
+  @Test
+  public void should_record_duration_of_scm_blame() throws Exception {
+    when(scmFacade.blame(file(FILENAME))).thenReturn(new BlameScmResult("fake", Arrays.asList(new BlameLine(new Date(13), "20", "godin"))));
+
+    blame.save(file(FILENAME), resource(FILENAME), 1);
+
+    verify(durations).record(eq(file(FILENAME)), anyLong());
+  }
+
+  @Test
+  public void should_not_record_duration_of_cached_blame() throws Exception {
+    when(blameCache.get(file(FILENAME))).thenReturn(Arrays.asList(new BlameLine(new Date(13), "20", "godin")));
+
+    blame.save(file(FILENAME), resource(FILENAME), 1);
+
+    verify(durations, never()).record(any(File.class), anyLong());
+  }
+
+  @Test
+  public void should_not_record_wait_for_prefetched_blame() throws Exception {
+    when(projectPrefetch.isScheduled(file(FILENAME))).thenReturn(true);
+    when(projectPrefetch.take(file(FILENAME), scmFacade)).thenReturn(Arrays.asList(new BlameLine(new Date(13), "20", "godin")));
+
+    blame.save(file(FILENAME), resource(FILENAME), 1);
+
+    verify(durations, never()).record(any(File.class), anyLong());
+  }
+
+  private static InputFile inputFile(String name, int lines) {
+    return new DefaultInputFile(name).setFile(file(name)).setLines(lines);
+  }
+
+  private static Executor collectingExecutor(final List<Runnable> started) {
+    return new Executor() {
+      public void execute(Runnable command) {
+        started.add(command);
+      }
+    };
+  }
+
+  private static List<Measure> previousMeasures() {
+    return Arrays.asList(
+      new Measure(CoreMetrics.SCM_AUTHORS_BY_LINE, "1=godin"),
+      new Measure(CoreMetrics.SCM_LAST_COMMIT_DATETIMES_BY_LINE, "1=2014-03-01T10:00:00+0100"),
+      new Measure(CoreMetrics.SCM_REVISIONS_BY_LINE, "1=10"));
+  }
 }
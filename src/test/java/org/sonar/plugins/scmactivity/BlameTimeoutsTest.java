@@ -0,0 +1,120 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BlameTimeoutsTest {
+  ScmConfiguration configuration = mock(ScmConfiguration.class);
+  ProjectScmResources projectResources = new ProjectScmResources(mock(SonarScmManager.class));
+  BlameTimeouts timeouts = new BlameTimeouts(configuration, projectResources);
+  File file = new File("src/source.java");
+
+  @After
+  public void tearDown() {
+    projectResources.stop();
+  }
+
+  @Test
+  public void should_not_interrupt_blame_completed_in_time() throws Exception {
+    when(configuration.getBlameTimeout()).thenReturn(60);
+
+    BlameTimeouts.Watch watch = timeouts.start(file);
+    watch.stop();
+    watch.run();
+
+    assertThat(Thread.currentThread().isInterrupted()).isFalse();
+  }
+
+  @Test
+  public void should_not_watch_without_timeout_nor_deadline() throws Exception {
+    timeouts.start(file).stop();
+
+    assertThat(Thread.interrupted()).isFalse();
+  }
+
+  @Test(timeout = 5000)
+  public void should_interrupt_blame_lasting_more_than_timeout() throws Exception {
+    when(configuration.getBlameTimeout()).thenReturn(1);
+
+    BlameTimeouts.Watch watch = timeouts.start(file);
+    try {
+      Thread.sleep(60000L);
+      fail();
+    } catch (InterruptedException e) {
+      // expected
+    }
+
+    try {
+      watch.stop();
+      fail();
+    } catch (BlameTimeouts.BlameTimeoutException e) {
+      assertThat(e).hasMessage("SCM blame of " + file + " did not complete within 1 second(s)");
+      assertThat(e.isKilled()).isTrue();
+    }
+    assertThat(Thread.currentThread().isInterrupted()).isFalse();
+    timeouts.report();
+  }
+
+  @Test(timeout = 5000)
+  public void should_interrupt_blame_at_deadline() throws Exception {
+    when(configuration.getBlameTimeout()).thenReturn(60);
+    when(configuration.getBlameDeadline()).thenReturn(1);
+
+    BlameTimeouts.Watch watch = timeouts.start(file);
+    try {
+      Thread.sleep(60000L);
+      fail();
+    } catch (InterruptedException e) {
+      // expected
+    }
+
+    try {
+      watch.stop();
+      fail();
+    } catch (BlameTimeouts.BlameTimeoutException e) {
+      assertThat(e).hasMessage("SCM blame of " + file + " did not complete before the deadline");
+    }
+  }
+
+  @Test
+  public void should_not_start_blame_once_deadline_is_reached() throws Exception {
+    when(configuration.getBlameDeadline()).thenReturn(1);
+    projectResources.getBlameDeadline(1L);
+    Thread.sleep(10L);
+
+    try {
+      timeouts.start(file);
+      fail();
+    } catch (BlameTimeouts.BlameTimeoutException e) {
+      assertThat(e).hasMessage("SCM blame deadline reached, not blaming " + file);
+      assertThat(e.isKilled()).isFalse();
+    }
+    timeouts.report();
+  }
+}
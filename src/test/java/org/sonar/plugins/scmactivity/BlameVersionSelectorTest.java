@@ -45,10 +45,11 @@ public class BlameVersionSelectorTest {
   SensorContext context = mock(SensorContext.class);
   org.sonar.api.resources.File resource = mock(org.sonar.api.resources.File.class);
   MeasureUpdate saveBlame = mock(MeasureUpdate.class);
+  ChangedFiles changedFiles = new ChangedFiles(mock(ScmChanges.class), mock(PreviousMeasures.class));
 
   @Before
   public void setUp() {
-    blameVersionSelector = new BlameVersionSelector(blameSensor);
+    blameVersionSelector = new BlameVersionSelector(blameSensor, changedFiles);
   }
 
   @Test
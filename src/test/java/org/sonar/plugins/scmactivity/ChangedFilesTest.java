@@ -0,0 +1,133 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.junit.Test;
+import org.sonar.api.batch.SensorContext;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
+import org.sonar.api.measures.Measure;
+import org.sonar.api.resources.Resource;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.refEq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ChangedFilesTest {
+  ScmChanges scmChanges = mock(ScmChanges.class);
+  PreviousMeasures previousMeasures = mock(PreviousMeasures.class);
+  Resource module = mock(Resource.class);
+  SensorContext context = mock(SensorContext.class);
+
+  ChangedFiles changedFiles = new ChangedFiles(scmChanges, previousMeasures);
+
+  DefaultInputFile same = file("same.java", InputFile.Status.SAME);
+  DefaultInputFile changed = file("changed.java", InputFile.Status.CHANGED);
+  DefaultInputFile touched = file("touched.java", InputFile.Status.CHANGED);
+
+  @Test
+  public void should_rely_on_file_status_without_previous_revision() {
+    when(scmChanges.getRevision()).thenReturn("2");
+
+    changedFiles.detect(module);
+
+    assertThat(changedFiles.isUnchanged(same)).isTrue();
+    assertThat(changedFiles.isUnchanged(changed)).isFalse();
+    verify(scmChanges, never()).getChangedFiles(any(String.class));
+  }
+
+  @Test
+  public void should_rely_on_file_status_when_changes_are_unknown() {
+    when(scmChanges.getRevision()).thenReturn("2");
+    when(previousMeasures.getRevision(module)).thenReturn("1");
+    when(scmChanges.getChangedFiles("1")).thenReturn(null);
+
+    changedFiles.detect(module);
+
+    assertThat(changedFiles.isUnchanged(same)).isTrue();
+    assertThat(changedFiles.isUnchanged(touched)).isFalse();
+  }
+
+  @Test
+  public void should_only_consider_files_changed_in_scm() {
+    when(scmChanges.getRevision()).thenReturn("2");
+    when(previousMeasures.getRevision(module)).thenReturn("1");
+    when(scmChanges.getChangedFiles("1")).thenReturn(Collections.singleton(changed.file()));
+
+    changedFiles.detect(module);
+
+    assertThat(changedFiles.isUnchanged(same)).isTrue();
+    assertThat(changedFiles.isUnchanged(changed)).isFalse();
+    assertThat(changedFiles.isUnchanged(touched)).isTrue();
+  }
+
+  @Test
+  public void should_consider_all_files_unchanged_when_revision_has_not_moved() {
+    when(scmChanges.getRevision()).thenReturn("1");
+    when(previousMeasures.getRevision(module)).thenReturn("1");
+    when(scmChanges.getChangedFiles("1")).thenReturn(Collections.<File>emptySet());
+
+    changedFiles.detect(module);
+
+    assertThat(changedFiles.isUnchanged(changed)).isTrue();
+    assertThat(changedFiles.isUnchanged(touched)).isTrue();
+  }
+
+  @Test
+  public void should_save_revision_of_clean_working_copy() {
+    when(scmChanges.getRevision()).thenReturn("2");
+    when(scmChanges.getChangedFiles("2")).thenReturn(Collections.<File>emptySet());
+
+    changedFiles.detect(module);
+    changedFiles.saveRevision(context);
+
+    verify(context).saveMeasure(refEq(new Measure(ScmActivityMetrics.SCM_ANALYSED_REVISION, "2")));
+  }
+
+  @Test
+  public void should_not_save_revision_of_modified_working_copy() {
+    when(scmChanges.getRevision()).thenReturn("2");
+    when(scmChanges.getChangedFiles("2")).thenReturn(Collections.singleton(changed.file()));
+
+    changedFiles.detect(module);
+    changedFiles.saveRevision(context);
+
+    verify(context, never()).saveMeasure(any(Measure.class));
+  }
+
+  @Test
+  public void should_not_save_unknown_revision() {
+    changedFiles.detect(module);
+    changedFiles.saveRevision(context);
+
+    verify(context, never()).saveMeasure(any(Measure.class));
+  }
+
+  private static DefaultInputFile file(String name, InputFile.Status status) {
+    return new DefaultInputFile(name).setFile(new File(name)).setStatus(status);
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ConcurrencyLimiterTest {
+
+  @Test
+  public void should_use_maximum_when_not_adaptive() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, false);
+
+    assertThat(limiter.getLimit()).isEqualTo(8);
+
+    limiter.setMax(0);
+
+    assertThat(limiter.getLimit()).isEqualTo(1);
+  }
+
+  @Test(timeout = 5000)
+  public void should_wait_for_a_running_blame() throws Exception {
+    final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, false);
+    final CountDownLatch acquired = new CountDownLatch(1);
+    limiter.acquire();
+
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          limiter.acquire();
+          acquired.countDown();
+        } catch (InterruptedException e) {
+          // test fails
+        }
+      }
+    };
+    thread.start();
+
+    assertThat(acquired.await(100, TimeUnit.MILLISECONDS)).isFalse();
+    limiter.release(10, true);
+    assertThat(acquired.await(5, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  public void should_raise_limit_while_throughput_improves() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, true);
+    assertThat(limiter.getLimit()).isEqualTo(4);
+
+    // 4 blames of 100ms in 100ms
+    complete(limiter, 4, 100, 100, true);
+    assertThat(limiter.getLimit()).isEqualTo(5);
+
+    // 5 blames of 100ms in 100ms
+    complete(limiter, 5, 200, 100, true);
+    assertThat(limiter.getLimit()).isEqualTo(6);
+
+    // Same throughput
+    complete(limiter, 6, 320, 100, true);
+    assertThat(limiter.getLimit()).isEqualTo(6);
+  }
+
+  @Test
+  public void should_not_raise_limit_above_maximum() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(5, true);
+
+    complete(limiter, 4, 100, 100, true);
+    complete(limiter, 4, 150, 50, true);
+    complete(limiter, 5, 175, 25, true);
+
+    assertThat(limiter.getLimit()).isEqualTo(5);
+  }
+
+  @Test
+  public void should_halve_limit_on_failure() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(16, true);
+
+    complete(limiter, 8, 100, 100, false);
+
+    assertThat(limiter.getLimit()).isEqualTo(4);
+  }
+
+  @Test
+  public void should_lower_limit_when_latency_doubles() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(16, true);
+
+    complete(limiter, 8, 100, 100, true);
+    assertThat(limiter.getLimit()).isEqualTo(9);
+
+    complete(limiter, 9, 400, 300, true);
+    assertThat(limiter.getLimit()).isEqualTo(8);
+  }
+
+  private static void complete(ConcurrencyLimiter limiter, int count, long now, long latency, boolean success) throws InterruptedException {
+    for (int i = 0; i < count; i++) {
+      limiter.acquire();
+      limiter.release(now, latency, success);
+    }
+  }
+}
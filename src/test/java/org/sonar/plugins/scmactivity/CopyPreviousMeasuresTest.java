@@ -50,7 +50,7 @@ public class CopyPreviousMeasuresTest {
       measure(CoreMetrics.SCM_AUTHORS_BY_LINE, "measure3")));
 
     CopyPreviousMeasures copy = new CopyPreviousMeasures(resource);
-    copy.execute(timeMachine, context);
+    copy.execute(new PreviousMeasures(timeMachine, mock(ScmConfiguration.class)), context);
 
     verify(context).saveMeasure(same(resource), refEq(measure(CoreMetrics.SCM_LAST_COMMIT_DATETIMES_BY_LINE, "measure1").setPersistenceMode(PersistenceMode.DATABASE)));
     verify(context).saveMeasure(same(resource), refEq(measure(CoreMetrics.SCM_REVISIONS_BY_LINE, "measure2").setPersistenceMode(PersistenceMode.DATABASE)));
@@ -0,0 +1,164 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.sonar.api.batch.SensorContext;
+import org.sonar.api.measures.CoreMetrics;
+import org.sonar.api.measures.Measure;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class MeasureUpdatePipelineTest {
+  ExecutorService executor = Executors.newFixedThreadPool(4);
+  PreviousMeasures previousMeasures = mock(PreviousMeasures.class);
+  SensorContext context = mock(SensorContext.class);
+
+  @After
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Test(timeout = 5000)
+  public void should_execute_all_updates() {
+    MeasureUpdate update = mock(MeasureUpdate.class);
+    MeasureUpdatePipeline pipeline = new MeasureUpdatePipeline(executor, previousMeasures, context, 2, 1000);
+
+    for (int i = 0; i < 10; i++) {
+      pipeline.submit(task(update));
+    }
+    pipeline.finish();
+
+    verify(update, times(10)).execute(previousMeasures, context);
+  }
+
+  @Test(timeout = 5000)
+  public void should_bound_pending_updates() {
+    final AtomicInteger pending = new AtomicInteger();
+    final AtomicInteger maxPending = new AtomicInteger();
+    MeasureUpdatePipeline pipeline = new MeasureUpdatePipeline(executor, previousMeasures, context, 3, 1000);
+
+    for (int i = 0; i < 50; i++) {
+      pipeline.submit(new Callable<MeasureUpdate>() {
+        public MeasureUpdate call() {
+          int count = pending.incrementAndGet();
+          synchronized (maxPending) {
+            maxPending.set(Math.max(maxPending.get(), count));
+          }
+          return new CountingUpdate(pending);
+        }
+      });
+    }
+    pipeline.finish();
+
+    assertThat(pending.get()).isEqualTo(0);
+    assertThat(maxPending.get()).isLessThanOrEqualTo(3);
+  }
+
+  @Test(timeout = 5000)
+  public void should_bound_pending_data_size() {
+    ExecutorService singleThread = Executors.newSingleThreadExecutor();
+    final AtomicInteger pending = new AtomicInteger();
+    final AtomicInteger maxPending = new AtomicInteger();
+    // room for two updates of 100 bytes, plus one built by the worker while waiting for room
+    MeasureUpdatePipeline pipeline = new MeasureUpdatePipeline(singleThread, previousMeasures, context, 100, 250);
+
+    for (int i = 0; i < 50; i++) {
+      pipeline.submit(new Callable<MeasureUpdate>() {
+        public MeasureUpdate call() {
+          int count = pending.incrementAndGet();
+          synchronized (maxPending) {
+            maxPending.set(Math.max(maxPending.get(), count));
+          }
+          return new CountingUpdate(pending);
+        }
+      });
+    }
+    pipeline.finish();
+    singleThread.shutdown();
+
+    assertThat(pending.get()).isEqualTo(0);
+    assertThat(maxPending.get()).isLessThanOrEqualTo(3);
+  }
+
+  @Test(timeout = 5000)
+  public void should_accept_update_larger_than_data_budget() {
+    AtomicInteger pending = new AtomicInteger(2);
+    MeasureUpdatePipeline pipeline = new MeasureUpdatePipeline(executor, previousMeasures, context, 10, 10);
+
+    pipeline.submit(task(new CountingUpdate(pending)));
+    pipeline.submit(task(new CountingUpdate(pending)));
+    pipeline.finish();
+
+    assertThat(pending.get()).isEqualTo(0);
+  }
+
+  @Test(timeout = 5000)
+  public void should_carry_on_after_error() {
+    MeasureUpdate update = mock(MeasureUpdate.class);
+    MeasureUpdatePipeline pipeline = new MeasureUpdatePipeline(executor, previousMeasures, context, 1, 1000);
+
+    pipeline.submit(new Callable<MeasureUpdate>() {
+      public MeasureUpdate call() {
+        throw new IllegalStateException("BUG");
+      }
+    });
+    pipeline.submit(task(update));
+    pipeline.finish();
+
+    verify(update).execute(previousMeasures, context);
+  }
+
+  static Callable<MeasureUpdate> task(final MeasureUpdate update) {
+    return new Callable<MeasureUpdate>() {
+      public MeasureUpdate call() {
+        return update;
+      }
+    };
+  }
+
+  /**
+   * Holds 100 bytes of data
+   */
+  static class CountingUpdate extends SaveNewMeasures {
+    private final AtomicInteger pending;
+
+    CountingUpdate(AtomicInteger pending) {
+      super(null, new Measure(CoreMetrics.SCM_AUTHORS_BY_LINE, StringUtils.repeat("a", 50)),
+        new Measure(CoreMetrics.SCM_LAST_COMMIT_DATETIMES_BY_LINE), new Measure(CoreMetrics.SCM_REVISIONS_BY_LINE));
+      this.pending = pending;
+    }
+
+    @Override
+    public void execute(PreviousMeasures previousMeasures, SensorContext context) {
+      pending.decrementAndGet();
+    }
+  }
+}
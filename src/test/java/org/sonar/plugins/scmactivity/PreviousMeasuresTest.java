@@ -0,0 +1,128 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.batch.TimeMachine;
+import org.sonar.api.batch.TimeMachineQuery;
+import org.sonar.api.measures.CoreMetrics;
+import org.sonar.api.measures.Measure;
+import org.sonar.api.resources.Resource;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.refEq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PreviousMeasuresTest {
+  TimeMachine timeMachine = mock(TimeMachine.class);
+  Resource resource = mock(Resource.class);
+
+  ScmConfiguration configuration = mock(ScmConfiguration.class);
+  PreviousMeasures previousMeasures;
+
+  @Before
+  public void setUp() {
+    when(configuration.getMaxPendingDataSize()).thenReturn(1024L);
+    previousMeasures = new PreviousMeasures(timeMachine, configuration);
+  }
+
+  @Test
+  public void should_prefetch_all_metrics_with_one_query() {
+    when(timeMachine.getMeasures(refEq(CopyPreviousMeasuresTest.expectedQuery(resource)))).thenReturn(Arrays.asList(
+      new Measure(CoreMetrics.SCM_AUTHORS_BY_LINE, "1=godin"),
+      new Measure(CoreMetrics.SCM_REVISIONS_BY_LINE, "1=20")));
+
+    assertThat(previousMeasures.prefetch(resource)).isTrue();
+    List<Measure> measures = previousMeasures.take(resource);
+
+    assertThat(measures).hasSize(2);
+    assertThat(measures.get(0).getMetric()).isEqualTo(CoreMetrics.SCM_REVISIONS_BY_LINE);
+    assertThat(measures.get(0).getData()).isEqualTo("1=20");
+    assertThat(measures.get(1).getMetric()).isEqualTo(CoreMetrics.SCM_AUTHORS_BY_LINE);
+    assertThat(measures.get(1).getData()).isEqualTo("1=godin");
+    verify(timeMachine, times(1)).getMeasures(any(TimeMachineQuery.class));
+  }
+
+  @Test
+  public void should_not_find_measures_of_new_file() {
+    when(timeMachine.getMeasures(any(TimeMachineQuery.class))).thenReturn(Collections.<Measure>emptyList());
+
+    assertThat(previousMeasures.prefetch(resource)).isFalse();
+  }
+
+  @Test
+  public void should_query_measures_not_prefetched() {
+    when(timeMachine.getMeasures(any(TimeMachineQuery.class))).thenReturn(Arrays.asList(new Measure(CoreMetrics.SCM_AUTHORS_BY_LINE, "1=godin")));
+
+    assertThat(previousMeasures.take(resource)).hasSize(1);
+    verify(timeMachine).getMeasures(refEq(CopyPreviousMeasuresTest.expectedQuery(resource)));
+  }
+
+  @Test
+  public void should_forget_measures_once_taken() {
+    when(timeMachine.getMeasures(any(TimeMachineQuery.class))).thenReturn(Arrays.asList(new Measure(CoreMetrics.SCM_AUTHORS_BY_LINE, "1=godin")));
+
+    previousMeasures.prefetch(resource);
+    previousMeasures.take(resource);
+    previousMeasures.take(resource);
+
+    verify(timeMachine, times(2)).getMeasures(any(TimeMachineQuery.class));
+  }
+
+  @Test
+  public void should_not_keep_measures_beyond_max_size() {
+    Resource other = mock(Resource.class);
+    when(timeMachine.getMeasures(any(TimeMachineQuery.class))).thenReturn(Arrays.asList(
+      new Measure(CoreMetrics.SCM_AUTHORS_BY_LINE, StringUtils.repeat("x", 300))));
+
+    assertThat(previousMeasures.prefetch(resource)).isTrue();
+    assertThat(previousMeasures.prefetch(other)).isTrue();
+    previousMeasures.take(resource);
+    previousMeasures.take(other);
+
+    // The second file exceeds 1024 bytes and is queried again
+    verify(timeMachine, times(3)).getMeasures(any(TimeMachineQuery.class));
+
+    previousMeasures.prefetch(other);
+    previousMeasures.take(other);
+
+    verify(timeMachine, times(4)).getMeasures(any(TimeMachineQuery.class));
+  }
+
+  @Test
+  public void should_get_revision_of_previous_analysis() {
+    when(timeMachine.getMeasures(any(TimeMachineQuery.class)))
+      .thenReturn(Arrays.asList(new Measure(ScmActivityMetrics.SCM_ANALYSED_REVISION, "abc")))
+      .thenReturn(Collections.<Measure>emptyList());
+
+    assertThat(previousMeasures.getRevision(resource)).isEqualTo("abc");
+    assertThat(previousMeasures.getRevision(resource)).isNull();
+  }
+}
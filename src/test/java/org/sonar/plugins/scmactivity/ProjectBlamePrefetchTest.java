@@ -0,0 +1,309 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.command.blame.BlameScmResult;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.batch.bootstrap.ProjectDefinition;
+import org.sonar.api.batch.bootstrap.ProjectReactor;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ProjectBlamePrefetchTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  ScmFacade scmFacade = mock(ScmFacade.class);
+  ScmChanges scmChanges = mock(ScmChanges.class);
+  BlameCache blameCache = mock(BlameCache.class);
+  List<Runnable> scheduled = Lists.newArrayList();
+  Executor executor = new Executor() {
+    public void execute(Runnable command) {
+      scheduled.add(command);
+    }
+  };
+  File rootDir;
+  File moduleDir;
+  ProjectDefinition root;
+  ProjectDefinition module;
+  ProjectBlamePrefetch prefetch;
+
+  @Before
+  public void setUp() throws Exception {
+    rootDir = temp.newFolder("root").getCanonicalFile();
+    moduleDir = new File(rootDir, "module");
+    root = ProjectDefinition.create().setBaseDir(rootDir).setSourceDirs("src");
+    module = ProjectDefinition.create().setBaseDir(moduleDir).setSourceDirs("src").setTestDirs(new File(moduleDir, "test"));
+    root.addSubProject(module);
+    ProjectReactor reactor = new ProjectReactor(root);
+    prefetch = new ProjectBlamePrefetch(reactor, new TrackedFiles(reactor));
+
+    Set<File> files = Sets.newHashSet(
+      file(rootDir, "src/A.java"),
+      file(moduleDir, "src/B.java"),
+      file(moduleDir, "test/BTest.java"),
+      file(moduleDir, "pom.xml"));
+    when(scmChanges.getTrackedFiles(rootDir)).thenReturn(files);
+    when(scmChanges.getChangedFiles(rootDir, "abc")).thenReturn(files);
+    when(blameCache.get(any(File.class))).thenReturn(null);
+    when(scmFacade.blame(any(File.class))).thenReturn(new BlameScmResult("fake", Arrays.asList(new BlameLine(new Date(13), "20", "godin"))));
+  }
+
+  @Test
+  public void should_blame_sources_and_tests_of_all_modules() throws Exception {
+    start(moduleDir, 10);
+
+    assertThat(scheduled).hasSize(3);
+    assertThat(prefetch.isScheduled(file(rootDir, "src/A.java"))).isTrue();
+    assertThat(prefetch.isScheduled(file(moduleDir, "src/B.java"))).isTrue();
+    assertThat(prefetch.isScheduled(file(moduleDir, "test/BTest.java"))).isTrue();
+    assertThat(prefetch.isScheduled(file(moduleDir, "pom.xml"))).isFalse();
+  }
+
+  @Test
+  public void should_only_schedule_once() {
+    start(moduleDir, 10);
+    start(moduleDir, 10);
+
+    assertThat(scheduled).hasSize(3);
+    verify(scmChanges, times(1)).getTrackedFiles(rootDir);
+  }
+
+  @Test
+  public void should_only_blame_files_changed_since_previous_revision() {
+    when(scmChanges.getChangedFiles(rootDir, "abc")).thenReturn(Sets.newHashSet(file(moduleDir, "src/B.java"), file(moduleDir, "src/Deleted.java")));
+
+    start(moduleDir, 10);
+
+    assertThat(scheduled).hasSize(1);
+    assertThat(prefetch.isScheduled(file(moduleDir, "src/B.java"))).isTrue();
+  }
+
+  @Test
+  public void should_not_schedule_without_previous_revision() {
+    prefetch.start(moduleDir, scmFacade, scmChanges, blameCache, null, executor, 10);
+
+    assertThat(scheduled).isEmpty();
+    assertThat(prefetch.isScheduled(file(moduleDir, "src/B.java"))).isFalse();
+  }
+
+  @Test
+  public void should_not_schedule_if_files_can_not_be_listed() {
+    when(scmChanges.getTrackedFiles(rootDir)).thenReturn(null);
+
+    start(moduleDir, 10);
+
+    assertThat(scheduled).isEmpty();
+  }
+
+  @Test
+  public void should_not_schedule_if_changed_files_can_not_be_listed() {
+    when(scmChanges.getChangedFiles(rootDir, "abc")).thenReturn(null);
+
+    start(moduleDir, 10);
+
+    assertThat(scheduled).isEmpty();
+  }
+
+  @Test
+  public void should_not_blame_excluded_files() {
+    root.setProperty(CoreProperties.PROJECT_EXCLUSIONS_PROPERTY, "**/B.java");
+    module.setProperty(CoreProperties.PROJECT_TEST_EXCLUSIONS_PROPERTY, "test/**");
+
+    start(moduleDir, 10);
+
+    assertThat(scheduled).hasSize(1);
+    assertThat(prefetch.isScheduled(file(rootDir, "src/A.java"))).isTrue();
+  }
+
+  @Test
+  public void should_attribute_file_to_deepest_source_dir() {
+    File generated = file(moduleDir, "src/gen/G.java");
+    root.setSourceDirs("src", "module/src/gen");
+    // Excluded from the module, not from the root module whose source dir is deeper
+    module.setProperty(CoreProperties.PROJECT_EXCLUSIONS_PROPERTY, "src/gen/**");
+    when(scmChanges.getTrackedFiles(rootDir)).thenReturn(Sets.newHashSet(generated));
+    when(scmChanges.getChangedFiles(rootDir, "abc")).thenReturn(Sets.newHashSet(generated));
+
+    start(moduleDir, 10);
+
+    assertThat(prefetch.isScheduled(generated)).isTrue();
+  }
+
+  @Test
+  public void should_not_blame_files_of_modules_with_other_scm_settings() {
+    module.setProperty(ScmActivityPlugin.URL, "scm:svn:http://other");
+
+    start(moduleDir, 10);
+
+    assertThat(scheduled).hasSize(2);
+    assertThat(prefetch.isScheduled(file(rootDir, "src/A.java"))).isFalse();
+    assertThat(prefetch.isScheduled(file(moduleDir, "src/B.java"))).isTrue();
+  }
+
+  @Test
+  public void should_start_at_most_max_pending_blames_in_order_of_analysis() throws Exception {
+    start(moduleDir, 1);
+
+    assertThat(scheduled).hasSize(1);
+    scheduled.get(0).run();
+    verify(scmFacade, never()).blame(file(rootDir, "src/A.java"));
+
+    prefetch.take(file(moduleDir, "src/B.java"), scmFacade);
+    prefetch.take(file(moduleDir, "test/BTest.java"), scmFacade);
+
+    assertThat(scheduled).hasSize(3);
+    scheduled.get(2).run();
+    verify(scmFacade).blame(file(rootDir, "src/A.java"));
+  }
+
+  @Test
+  public void should_blame_in_calling_thread_if_not_started() throws Exception {
+    File file = file(moduleDir, "src/B.java");
+    start(moduleDir, 0);
+
+    List<BlameLine> lines = prefetch.take(file, scmFacade);
+
+    assertThat(lines).hasSize(1);
+    assertThat(prefetch.isScheduled(file)).isFalse();
+    assertThat(prefetch.take(file, scmFacade)).isNull();
+    verify(blameCache).put(file, lines);
+  }
+
+  @Test
+  public void should_take_blame_run_by_blame_thread() throws Exception {
+    File file = file(rootDir, "src/A.java");
+    start(moduleDir, 10);
+    for (Runnable runnable : scheduled) {
+      runnable.run();
+    }
+
+    assertThat(prefetch.take(file, scmFacade)).hasSize(1);
+    verify(scmFacade, times(1)).blame(file);
+  }
+
+  @Test
+  public void should_take_blame_of_file_with_non_canonical_path() throws Exception {
+    File file = file(moduleDir, "src/B.java");
+    start(moduleDir, 0);
+
+    File nonCanonical = file(moduleDir, "../module/src/B.java");
+    assertThat(prefetch.isScheduled(nonCanonical)).isTrue();
+    assertThat(prefetch.take(nonCanonical, scmFacade)).hasSize(1);
+    assertThat(prefetch.isScheduled(file)).isFalse();
+    verify(scmFacade).blame(file);
+  }
+
+  @Test
+  public void should_use_cache() throws Exception {
+    File file = file(moduleDir, "src/B.java");
+    List<BlameLine> cached = Arrays.asList(new BlameLine(new Date(13), "20", "godin"));
+    when(blameCache.get(file)).thenReturn(cached);
+    start(moduleDir, 10);
+
+    assertThat(prefetch.take(file, scmFacade)).isSameAs(cached);
+    verify(scmFacade, never()).blame(file);
+  }
+
+  @Test
+  public void should_rethrow_blame_failure() throws Exception {
+    File file = file(moduleDir, "src/B.java");
+    when(scmFacade.blame(file)).thenThrow(new ScmException("BUG"));
+    start(moduleDir, 10);
+
+    try {
+      prefetch.take(file, scmFacade);
+      fail();
+    } catch (ScmException e) {
+      assertThat(e).hasMessage("BUG");
+    }
+  }
+
+  @Test
+  public void should_report_timeout_with_module_taking_blame() throws Exception {
+    File file = file(rootDir, "src/A.java");
+    BlameTimeouts.BlameTimeoutException timeout = new BlameTimeouts.BlameTimeoutException("timeout", true);
+    when(scmFacade.blame(file)).thenThrow(timeout);
+    ScmFacade rootFacade = mock(ScmFacade.class);
+    start(moduleDir, 10);
+
+    try {
+      prefetch.take(file, rootFacade);
+      fail();
+    } catch (BlameTimeouts.BlameTimeoutException e) {
+      assertThat(e).isSameAs(timeout);
+    }
+    verify(rootFacade).reportTimeout(file, timeout);
+  }
+
+  @Test
+  public void should_fail_on_unsuccessful_blame() throws Exception {
+    File file = file(moduleDir, "src/B.java");
+    when(scmFacade.blame(file)).thenReturn(new BlameScmResult("fake", "Unable to blame", "output", false));
+    start(moduleDir, 10);
+
+    try {
+      prefetch.take(file, scmFacade);
+      fail();
+    } catch (ScmException e) {
+      assertThat(e.getMessage()).contains("Unable to blame");
+    }
+  }
+
+  @Test
+  public void should_discard_unused_blames_on_stop() {
+    start(moduleDir, 10);
+
+    prefetch.stop();
+
+    assertThat(prefetch.isScheduled(file(rootDir, "src/A.java"))).isFalse();
+  }
+
+  private void start(File moduleBaseDir, int maxPending) {
+    prefetch.start(moduleBaseDir, scmFacade, scmChanges, blameCache, "abc", executor, maxPending);
+  }
+
+  private static File file(File dir, String path) {
+    return new File(dir, path);
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.repository.ScmRepository;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ProjectScmResourcesTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  SonarScmManager scmManager = mock(SonarScmManager.class);
+  ProjectScmResources projectResources = new ProjectScmResources(scmManager);
+
+  @After
+  public void tearDown() {
+    projectResources.stop();
+  }
+
+  @Test
+  public void should_share_executor_between_modules() {
+    ExecutorService executor = projectResources.getExecutor(4);
+
+    assertThat(projectResources.getExecutor(4)).isSameAs(executor);
+    assertThat(projectResources.getExecutor(8)).isSameAs(executor);
+    assertThat(projectResources.getExecutor().getMaximumPoolSize()).isEqualTo(8);
+    assertThat(projectResources.getExecutor().getCorePoolSize()).isEqualTo(8);
+    assertThat(projectResources.getExecutor(2)).isSameAs(executor);
+    assertThat(projectResources.getExecutor().getMaximumPoolSize()).isEqualTo(2);
+    assertThat(projectResources.getExecutor().getCorePoolSize()).isEqualTo(2);
+  }
+
+  @Test
+  public void should_share_concurrency_limiter_between_modules() {
+    ConcurrencyLimiter limiter = projectResources.getLimiter(16, false);
+
+    assertThat(projectResources.getLimiter(4, false)).isSameAs(limiter);
+    assertThat(limiter.getLimit()).isEqualTo(4);
+  }
+
+  @Test
+  public void should_shutdown_executor_on_stop() {
+    ExecutorService executor = projectResources.getExecutor(1);
+
+    projectResources.stop();
+
+    assertThat(executor.isShutdown()).isTrue();
+    assertThat(projectResources.getExecutor(1)).isNotSameAs(executor);
+  }
+
+  @Test
+  public void should_cancel_blames() {
+    ExecutorService executor = projectResources.getExecutor(1);
+
+    projectResources.cancelBlames();
+
+    assertThat(executor.isShutdown()).isTrue();
+    assertThat(projectResources.getExecutor(1)).isNotSameAs(executor);
+  }
+
+  @Test
+  public void should_shutdown_watchdog_on_stop() {
+    ScheduledExecutorService watchdog = projectResources.getWatchdog();
+    assertThat(projectResources.getWatchdog()).isSameAs(watchdog);
+
+    projectResources.stop();
+
+    assertThat(watchdog.isShutdown()).isTrue();
+  }
+
+  @Test
+  public void should_compute_blame_deadline_once() {
+    long before = System.currentTimeMillis();
+    long deadline = projectResources.getBlameDeadline(60000L);
+
+    assertThat(deadline).isGreaterThanOrEqualTo(before + 60000L);
+    assertThat(projectResources.getBlameDeadline(1000L)).isEqualTo(deadline);
+  }
+
+  @Test
+  public void should_not_have_blame_deadline_by_default() {
+    assertThat(projectResources.getBlameDeadline(0L)).isEqualTo(Long.MAX_VALUE);
+  }
+
+  @Test
+  public void should_resolve_repository_once() throws ScmException {
+    ScmRepository repository = mock(ScmRepository.class);
+    ScmProviderRepository providerRepository = mock(ScmProviderRepository.class);
+    when(scmManager.makeScmRepository("scm:svn:http://url")).thenReturn(repository);
+    when(repository.getProviderRepository()).thenReturn(providerRepository);
+
+    assertThat(projectResources.getRepository("scm:svn:http://url", "godin", "pass")).isSameAs(repository);
+    assertThat(projectResources.getRepository("scm:svn:http://url", "godin", "pass")).isSameAs(repository);
+
+    verify(scmManager, times(1)).makeScmRepository("scm:svn:http://url");
+    verify(providerRepository).setUser("godin");
+    verify(providerRepository).setPassword("pass");
+  }
+
+  @Test
+  public void should_resolve_repository_per_credentials() throws ScmException {
+    when(scmManager.makeScmRepository("scm:svn:http://url")).thenReturn(mock(ScmRepository.class));
+
+    projectResources.getRepository("scm:svn:http://url", null, null);
+    projectResources.getRepository("scm:svn:http://url", "", null);
+
+    verify(scmManager, times(2)).makeScmRepository("scm:svn:http://url");
+  }
+
+  @Test
+  public void should_evict_blame_cache_on_stop() throws Exception {
+    File cacheDir = temp.newFolder();
+    File entry = new File(cacheDir, "ab/cdef");
+    FileUtils.write(entry, "entry");
+
+    projectResources.evictBlameCacheOnStop(cacheDir, 1);
+    assertThat(entry).exists();
+
+    projectResources.stop();
+    assertThat(entry).doesNotExist();
+  }
+}
@@ -31,6 +31,7 @@ import static org.mockito.Mockito.verify;
 public class SaveNewMeasuresTest {
   Resource resource = mock(Resource.class);
   SensorContext context = mock(SensorContext.class);
+  PreviousMeasures previousMeasures = mock(PreviousMeasures.class);
 
   @Test
   public void should_save_new_measures() {
@@ -39,11 +40,12 @@ public class SaveNewMeasuresTest {
     Measure revisions = measure("key3");
 
     SaveNewMeasures saveNewMeasures = new SaveNewMeasures(resource, authors, dates, revisions);
-    saveNewMeasures.execute(null, context);
+    saveNewMeasures.execute(previousMeasures, context);
 
     verify(context).saveMeasure(resource, authors.setPersistenceMode(PersistenceMode.DATABASE));
     verify(context).saveMeasure(resource, dates.setPersistenceMode(PersistenceMode.DATABASE));
     verify(context).saveMeasure(resource, revisions.setPersistenceMode(PersistenceMode.DATABASE));
+    verify(previousMeasures).forget(resource);
   }
 
   static Measure measure(String key) {
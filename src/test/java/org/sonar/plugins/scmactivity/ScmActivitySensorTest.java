@@ -19,10 +19,14 @@
  */
 package org.sonar.plugins.scmactivity;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.sonar.api.batch.SensorContext;
 import org.sonar.api.batch.TimeMachine;
 import org.sonar.api.batch.TimeMachineQuery;
@@ -36,13 +40,24 @@ import org.sonar.api.resources.Project;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import static org.fest.assertions.Assertions.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.refEq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.only;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -56,10 +71,20 @@ public class ScmActivitySensorTest {
   BlameVersionSelector blameVersionSelector = mock(BlameVersionSelector.class);
   ScmConfiguration conf = mock(ScmConfiguration.class);
   UrlChecker urlChecker = mock(UrlChecker.class);
+  ScmPreflight preflight = mock(ScmPreflight.class);
   DefaultFileSystem fs = new DefaultFileSystem();
   Project project = mock(Project.class);
   SensorContext context = mock(SensorContext.class);
   TimeMachine timeMachine = mock(TimeMachine.class);
+  PreviousMeasures previousMeasures = new PreviousMeasures(timeMachine, conf);
+  BlameCache blameCache = mock(BlameCache.class);
+  Blame blame = mock(Blame.class);
+  ScmChanges scmChanges = mock(ScmChanges.class);
+  TrackedFiles trackedFiles = mock(TrackedFiles.class);
+  ChangedFiles changedFiles = new ChangedFiles(scmChanges, previousMeasures);
+  ProjectScmResources projectResources = new ProjectScmResources(new SonarScmManager());
+  BlameTimeouts timeouts = mock(BlameTimeouts.class);
+  BlameDurations durations = mock(BlameDurations.class);
   org.sonar.api.resources.File file = mock(org.sonar.api.resources.File.class);
   MeasureUpdate measureUpdate = mock(MeasureUpdate.class);
   File baseDir;
@@ -68,7 +93,15 @@ public class ScmActivitySensorTest {
   public void before() throws IOException {
     baseDir = temp.newFolder();
     fs.setBaseDir(baseDir);
-    scmActivitySensor = new ScmActivitySensor(conf, blameVersionSelector, urlChecker, timeMachine, fs);
+    when(conf.getMaxPendingUpdates()).thenReturn(10);
+    when(conf.getMaxPendingDataSize()).thenReturn(1024L);
+    when(trackedFiles.isTracked(eq(scmChanges), any(File.class))).thenReturn(true);
+    scmActivitySensor = new ScmActivitySensor(conf, blameVersionSelector, urlChecker, preflight, previousMeasures, blameCache, blame, changedFiles, scmChanges, trackedFiles, projectResources, timeouts, durations, fs);
+  }
+
+  @After
+  public void after() {
+    projectResources.stop();
   }
 
   @Test
@@ -98,19 +131,21 @@ public class ScmActivitySensorTest {
 
   @Test(timeout = 2000)
   public void should_check_url() {
-    when(conf.getThreadCount()).thenReturn(1);
+    when(conf.getBlameThreadCount()).thenReturn(1);
     when(conf.getUrl()).thenReturn("scm:url");
 
     scmActivitySensor.analyse(project, context);
 
-    verify(urlChecker).check("scm:url");
+    InOrder inOrder = inOrder(urlChecker, preflight);
+    inOrder.verify(urlChecker).check("scm:url");
+    inOrder.verify(preflight).check();
   }
 
   @Test
   public void should_execute_measure_update_for_known_files() {
     InputFile source = file("source.java");
     InputFile test = file("UNKNOWN.java");
-    when(conf.getThreadCount()).thenReturn(1);
+    when(conf.getBlameThreadCount()).thenReturn(1);
     fs.add(source);
     fs.add(test);
     when(timeMachine.getMeasures(any(TimeMachineQuery.class))).thenReturn(Arrays.asList(new Measure()));
@@ -118,14 +153,30 @@ public class ScmActivitySensorTest {
     when(context.getResource(any(org.sonar.api.resources.File.class))).thenReturn(file).thenReturn(null);
     scmActivitySensor.analyse(project, context);
 
-    verify(measureUpdate, only()).execute(timeMachine, context);
+    verify(measureUpdate, only()).execute(previousMeasures, context);
+  }
+
+  @Test
+  public void should_not_blame_untracked_files() {
+    InputFile generated = file("Generated.java");
+    when(conf.getBlameThreadCount()).thenReturn(1);
+    fs.add(generated);
+    when(context.getResource(any(org.sonar.api.resources.File.class))).thenReturn(file);
+    when(trackedFiles.isTracked(scmChanges, generated.file())).thenReturn(false);
+    when(blameVersionSelector.shouldBlame(generated, false)).thenReturn(true);
+
+    scmActivitySensor.analyse(project, context);
+
+    verify(blame).warmUp(Collections.<InputFile>emptyList(), projectResources.getExecutor(), 10);
+    verify(blameVersionSelector, never()).detect(any(org.sonar.api.resources.File.class), eq(generated), eq(context), anyBoolean());
+    verify(timeMachine).getMeasures(any(TimeMachineQuery.class));
   }
 
   @Test
   public void should_carry_on_after_error() {
     InputFile first = file("source.java");
     InputFile second = file("UNKNOWN.java");
-    when(conf.getThreadCount()).thenReturn(1);
+    when(conf.getBlameThreadCount()).thenReturn(1);
     fs.add(first);
     fs.add(second);
     when(timeMachine.getMeasures(any(TimeMachineQuery.class))).thenReturn(Arrays.asList(new Measure()));
@@ -135,7 +186,155 @@ public class ScmActivitySensorTest {
 
     scmActivitySensor.analyse(project, context);
 
-    verify(measureUpdate).execute(timeMachine, context);
+    verify(measureUpdate).execute(previousMeasures, context);
+  }
+
+  @Test
+  public void should_not_query_previous_measures_of_changed_files() {
+    DefaultInputFile source = file("source.java").setStatus(InputFile.Status.CHANGED);
+    when(conf.getBlameThreadCount()).thenReturn(1);
+    fs.add(source);
+    when(context.getResource(any(org.sonar.api.resources.File.class))).thenReturn(file);
+    when(blameVersionSelector.detect(file, source, context, false)).thenReturn(measureUpdate);
+
+    scmActivitySensor.analyse(project, context);
+
+    verify(measureUpdate).execute(previousMeasures, context);
+    verify(timeMachine, never()).getMeasures(any(TimeMachineQuery.class));
+  }
+
+  @Test
+  public void should_warm_up_blame_of_files_to_blame() {
+    DefaultInputFile changed = file("changed.java").setStatus(InputFile.Status.CHANGED);
+    DefaultInputFile same = file("same.java");
+    when(conf.getBlameThreadCount()).thenReturn(1);
+    fs.add(changed);
+    fs.add(same);
+    when(context.getResource(any(org.sonar.api.resources.File.class))).thenReturn(file);
+    when(timeMachine.getMeasures(any(TimeMachineQuery.class))).thenReturn(Arrays.asList(new Measure()));
+    when(blameVersionSelector.shouldBlame(changed, false)).thenReturn(true);
+    when(blameVersionSelector.detect(any(org.sonar.api.resources.File.class), any(InputFile.class), eq(context), anyBoolean())).thenReturn(measureUpdate);
+
+    scmActivitySensor.analyse(project, context);
+
+    InOrder inOrder = inOrder(blame, blameVersionSelector);
+    inOrder.verify(blame).warmUp(Arrays.<InputFile>asList(changed), projectResources.getExecutor(), 10);
+    inOrder.verify(blameVersionSelector, times(2)).detect(any(org.sonar.api.resources.File.class), any(InputFile.class), eq(context), anyBoolean());
+  }
+
+  @Test
+  public void should_copy_files_not_changed_in_scm_since_previous_analysis() {
+    DefaultInputFile changed = file("changed.java").setStatus(InputFile.Status.CHANGED);
+    DefaultInputFile touched = file("touched.java").setStatus(InputFile.Status.CHANGED);
+    when(conf.getBlameThreadCount()).thenReturn(1);
+    fs.add(changed);
+    fs.add(touched);
+    when(scmChanges.getRevision()).thenReturn("abc");
+    when(scmChanges.getChangedFiles("abc")).thenReturn(Collections.<File>emptySet());
+    when(scmChanges.getChangedFiles("123")).thenReturn(Collections.singleton(changed.file()));
+    when(timeMachine.getMeasures(any(TimeMachineQuery.class))).thenReturn(Arrays.asList(new Measure(ScmActivityMetrics.SCM_ANALYSED_REVISION, "123")));
+    when(context.getResource(any(org.sonar.api.resources.File.class))).thenReturn(file);
+    when(blameVersionSelector.detect(any(org.sonar.api.resources.File.class), any(InputFile.class), eq(context), anyBoolean())).thenReturn(measureUpdate);
+
+    scmActivitySensor.analyse(project, context);
+
+    verify(blameVersionSelector).detect(file, changed, context, false);
+    verify(blameVersionSelector).detect(file, touched, context, true);
+    verify(context).saveMeasure(refEq(new Measure(ScmActivityMetrics.SCM_ANALYSED_REVISION, "abc")));
+  }
+
+  @Test
+  public void should_provide_previous_blame_of_files_changed_in_scm() {
+    DefaultInputFile changed = file("changed.java").setStatus(InputFile.Status.CHANGED);
+    when(conf.getBlameThreadCount()).thenReturn(1);
+    fs.add(changed);
+    when(scmChanges.getRevision()).thenReturn("abc");
+    when(scmChanges.getChangedFiles("123")).thenReturn(Collections.singleton(changed.file()));
+    List<Measure> measures = Arrays.asList(new Measure(ScmActivityMetrics.SCM_ANALYSED_REVISION, "123"));
+    when(timeMachine.getMeasures(any(TimeMachineQuery.class))).thenReturn(measures);
+    when(context.getResource(any(org.sonar.api.resources.File.class))).thenReturn(file);
+    when(blame.isIncrementalEnabled()).thenReturn(true);
+    when(blameVersionSelector.shouldBlame(changed, false)).thenReturn(true);
+    when(blameVersionSelector.detect(file, changed, context, false)).thenReturn(measureUpdate);
+
+    scmActivitySensor.analyse(project, context);
+
+    verify(blame).setPreviousBlame(changed.file(), "123", measures);
+  }
+
+  @Test
+  public void should_only_save_measures_once_warmed_up() {
+    InputFile source = file("source.java");
+    when(conf.getBlameThreadCount()).thenReturn(1);
+    when(conf.getUrl()).thenReturn("scm:url");
+    fs.add(source);
+    when(context.getResource(any(org.sonar.api.resources.File.class))).thenReturn(file);
+    when(blameVersionSelector.shouldBlame(source, false)).thenReturn(true);
+    when(blameVersionSelector.detect(file, source, context, false)).thenReturn(measureUpdate);
+
+    scmActivitySensor.warmUp(project, context);
+    verify(blame).warmUp(Arrays.asList(source), projectResources.getExecutor(), 10);
+    verify(blameVersionSelector, never()).detect(file, source, context, false);
+
+    scmActivitySensor.analyse(project, context);
+
+    verify(urlChecker, times(1)).check("scm:url");
+    verify(context, times(1)).getResource(any(org.sonar.api.resources.File.class));
+    verify(blame, times(1)).warmUp(anyListOf(InputFile.class), any(Executor.class), anyInt());
+    verify(measureUpdate).execute(previousMeasures, context);
+  }
+
+  @Test
+  public void should_blame_and_save_longest_files_first() {
+    DefaultInputFile first = file("first.java").setStatus(InputFile.Status.CHANGED);
+    DefaultInputFile second = file("second.java").setStatus(InputFile.Status.CHANGED);
+    DefaultInputFile copied = file("copied.java");
+    when(conf.getBlameThreadCount()).thenReturn(1);
+    fs.add(copied);
+    fs.add(first);
+    fs.add(second);
+    when(context.getResource(any(org.sonar.api.resources.File.class))).thenReturn(file);
+    when(timeMachine.getMeasures(any(TimeMachineQuery.class))).thenReturn(Arrays.asList(new Measure()));
+    when(blameVersionSelector.shouldBlame(first, false)).thenReturn(true);
+    when(blameVersionSelector.shouldBlame(second, false)).thenReturn(true);
+    when(blameVersionSelector.detect(any(org.sonar.api.resources.File.class), any(InputFile.class), eq(context), anyBoolean())).thenReturn(measureUpdate);
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) {
+        Collections.reverse((List<?>) invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(durations).sortLongestFirst(anyListOf(InputFile.class));
+
+    scmActivitySensor.analyse(project, context);
+
+    verify(blame).warmUp(Arrays.<InputFile>asList(second, first), projectResources.getExecutor(), 10);
+    InOrder inOrder = inOrder(blameVersionSelector, durations);
+    inOrder.verify(blameVersionSelector).detect(file, second, context, false);
+    inOrder.verify(blameVersionSelector).detect(file, first, context, false);
+    inOrder.verify(blameVersionSelector).detect(file, copied, context, true);
+    inOrder.verify(durations).save();
+  }
+
+  @Test
+  public void should_prefetch_blame_of_all_modules() {
+    when(conf.getBlameThreadCount()).thenReturn(1);
+    when(conf.isPrefetchAllModulesEnabled()).thenReturn(true);
+    when(scmChanges.getRevision()).thenReturn("abc");
+    when(scmChanges.getChangedFiles("123")).thenReturn(Collections.<File>emptySet());
+    when(timeMachine.getMeasures(any(TimeMachineQuery.class))).thenReturn(Arrays.asList(new Measure(ScmActivityMetrics.SCM_ANALYSED_REVISION, "123")));
+
+    scmActivitySensor.analyse(project, context);
+
+    verify(blame).prefetchAllModules(fs.baseDir(), scmChanges, "123", projectResources.getExecutor(), 10);
+  }
+
+  @Test
+  public void should_not_prefetch_blame_of_all_modules_by_default() {
+    when(conf.getBlameThreadCount()).thenReturn(1);
+
+    scmActivitySensor.analyse(project, context);
+
+    verify(blame, never()).prefetchAllModules(any(File.class), any(ScmChanges.class), anyString(), any(Executor.class), anyInt());
   }
 
   @Test
@@ -145,8 +344,9 @@ public class ScmActivitySensorTest {
     assertThat(debugName).isEqualTo("ScmActivitySensor");
   }
 
-  InputFile file(String name) {
+  DefaultInputFile file(String name) {
     return new DefaultInputFile(name)
-      .setFile(new File(baseDir, name));
+      .setFile(new File(baseDir, name))
+      .setStatus(InputFile.Status.SAME);
   }
 }
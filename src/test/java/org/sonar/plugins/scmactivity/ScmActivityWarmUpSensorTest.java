@@ -0,0 +1,70 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.junit.Test;
+import org.sonar.api.batch.Phase;
+import org.sonar.api.batch.SensorContext;
+import org.sonar.api.resources.Project;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ScmActivityWarmUpSensorTest {
+  ScmConfiguration configuration = mock(ScmConfiguration.class);
+  ScmActivitySensor scmActivitySensor = mock(ScmActivitySensor.class);
+  ScmActivityWarmUpSensor warmUpSensor = new ScmActivityWarmUpSensor(configuration, scmActivitySensor);
+
+  @Test
+  public void should_execute_if_enabled() {
+    when(configuration.isEnabled()).thenReturn(true);
+
+    assertThat(warmUpSensor.shouldExecuteOnProject(mock(Project.class))).isTrue();
+  }
+
+  @Test
+  public void should_not_execute_if_disabled() {
+    when(configuration.isEnabled()).thenReturn(false);
+
+    assertThat(warmUpSensor.shouldExecuteOnProject(mock(Project.class))).isFalse();
+  }
+
+  @Test
+  public void should_execute_before_other_sensors() {
+    assertThat(ScmActivityWarmUpSensor.class.getAnnotation(Phase.class).name()).isEqualTo(Phase.Name.PRE);
+  }
+
+  @Test
+  public void should_warm_up_blame() {
+    Project module = mock(Project.class);
+    SensorContext context = mock(SensorContext.class);
+
+    warmUpSensor.analyse(module, context);
+
+    verify(scmActivitySensor).warmUp(module, context);
+  }
+
+  @Test
+  public void should_have_debug_name() {
+    assertThat(warmUpSensor.toString()).isEqualTo("ScmActivityWarmUpSensor");
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.codehaus.plexus.util.cli.Commandline;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.internal.DefaultFileSystem;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ScmChangesTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  ScmConfiguration configuration = mock(ScmConfiguration.class);
+  DefaultFileSystem fs = new DefaultFileSystem();
+  File workTree;
+
+  ScmChanges scmChanges = new ScmChanges(configuration, fs);
+
+  @Before
+  public void setUp() throws Exception {
+    workTree = temp.newFolder("repo");
+    fs.setBaseDir(workTree);
+  }
+
+  @Test
+  public void should_list_git_files_changed_since_revision() throws Exception {
+    assumeTrue(isGitAvailable());
+    when(configuration.getScmProvider()).thenReturn("git");
+    git("init", "-q");
+    write("a.txt", "a");
+    write("b.txt", "b");
+    git("add", ".");
+    git("commit", "-q", "-m", "first");
+    String first = scmChanges.getRevision();
+
+    write("b.txt", "b2");
+    git("commit", "-q", "-a", "-m", "second");
+    write("c.txt", "c");
+    git("add", "c.txt");
+
+    assertThat(first).hasSize(40);
+    assertThat(scmChanges.getRevision()).isNotEqualTo(first);
+    assertThat(scmChanges.getChangedFiles(first)).containsOnly(new File(workTree, "b.txt"), new File(workTree, "c.txt"));
+    assertThat(scmChanges.getChangedFiles(scmChanges.getRevision())).containsOnly(new File(workTree, "c.txt"));
+    assertThat(scmChanges.getChangedFiles("unknown")).isNull();
+  }
+
+  @Test
+  public void should_list_git_tracked_files_of_directory() throws Exception {
+    assumeTrue(isGitAvailable());
+    when(configuration.getScmProvider()).thenReturn("git");
+    git("init", "-q");
+    write("a.txt", "a");
+    write("module/b.txt", "b");
+    git("add", ".");
+    git("commit", "-q", "-m", "first");
+    write("module/untracked.txt", "u");
+
+    assertThat(scmChanges.getTrackedFiles(workTree)).containsOnly(new File(workTree, "a.txt"), new File(workTree, "module/b.txt"));
+    File module = new File(workTree, "module");
+    assertThat(scmChanges.getTrackedFiles(module)).containsOnly(new File(module, "b.txt"));
+  }
+
+  @Test
+  public void should_identify_last_git_commit_of_file() throws Exception {
+    assumeTrue(isGitAvailable());
+    when(configuration.getScmProvider()).thenReturn("git");
+    git("init", "-q");
+    write("module/a.txt", "a");
+    write("b.txt", "b");
+    git("add", ".");
+    git("commit", "-q", "-m", "first");
+    String first = scmChanges.getRevision();
+    write("b.txt", "b2");
+    git("commit", "-q", "-a", "-m", "second");
+    write("c.txt", "c");
+
+    assertThat(scmChanges.isLastCommitSupported()).isTrue();
+    assertThat(scmChanges.getLastCommit(new File(workTree, "module/a.txt"))).isEqualTo(first + " module/a.txt");
+    assertThat(scmChanges.getLastCommit(new File(workTree, "b.txt"))).isEqualTo(scmChanges.getRevision() + " b.txt");
+    assertThat(scmChanges.getLastCommit(new File(workTree, "c.txt"))).isNull();
+  }
+
+  @Test
+  public void should_not_support_other_scm() {
+    when(configuration.getScmProvider()).thenReturn("cvs");
+
+    assertThat(scmChanges.getRevision()).isNull();
+    assertThat(scmChanges.getChangedFiles("1")).isNull();
+    assertThat(scmChanges.getTrackedFiles(workTree)).isNull();
+    assertThat(scmChanges.isLastCommitSupported()).isFalse();
+    assertThat(scmChanges.getLastCommit(new File(workTree, "a.txt"))).isNull();
+  }
+
+  @Test
+  public void should_not_fail_outside_of_working_copy() {
+    when(configuration.getScmProvider()).thenReturn("hg");
+
+    assertThat(scmChanges.getRevision()).isNull();
+    assertThat(scmChanges.getChangedFiles("1")).isNull();
+  }
+
+  @Test
+  public void should_parse_git_diff() {
+    File baseDir = new File("base");
+
+    assertThat(ScmChanges.gitFiles(baseDir, "src/A.java\u0000src/dir with space/B.java\u0000"))
+      .containsOnly(new File(baseDir, "src/A.java"), new File(baseDir, "src/dir with space/B.java"));
+  }
+
+  @Test
+  public void should_parse_svn_log() {
+    File baseDir = new File("base");
+    String log = "------------------------------------------------------------------------\n"
+      + "r12 | godin | 2014-03-01 10:00:00 +0100 (Sat, 01 Mar 2014)\n"
+      + "Changed paths:\n"
+      + "   M /trunk/module/src/A.java\n"
+      + "   A /trunk/module/src/B.java (from /trunk/module/src/Old.java:11)\n"
+      + "   M /trunk/other/C.java\n"
+      + "   M /trunk/module2/D.java\n"
+      + "------------------------------------------------------------------------\n";
+
+    assertThat(ScmChanges.svnLogChangedFiles(baseDir, "/trunk/module", log))
+      .containsOnly(new File(baseDir, "src/A.java"), new File(baseDir, "src/B.java"));
+  }
+
+  @Test
+  public void should_parse_svn_status() {
+    File baseDir = new File("base");
+    String status = "M       src/A.java\r\n"
+      + "A  +    src/B.java\r\n"
+      + "        > moved from src/Old.java\r\n";
+
+    assertThat(ScmChanges.svnStatusChangedFiles(baseDir, status))
+      .containsOnly(new File(baseDir, "src/A.java"), new File(baseDir, "src/B.java"));
+  }
+
+  @Test
+  public void should_parse_hg_status() {
+    File root = new File("root");
+
+    assertThat(ScmChanges.relativeFiles(root, "module/A.java\nmodule/B.java\n"))
+      .containsOnly(new File(root, "module/A.java"), new File(root, "module/B.java"));
+  }
+
+  @Test
+  public void should_parse_svn_tracked_files() {
+    File dir = new File("project");
+    String output = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<status>\n<target path=\".\">\n"
+      + "<entry\n   path=\"src/A&amp;B.java\">\n<wc-status\n   props=\"none\"\n   item=\"normal\"\n   revision=\"3\">\n</wc-status>\n</entry>\n"
+      + "<entry\n   path=\"src/C.java\">\n<wc-status\n   props=\"none\"\n   item=\"modified\"\n   revision=\"3\">\n</wc-status>\n</entry>\n"
+      + "<entry\n   path=\"src/New.java\">\n<wc-status\n   props=\"none\"\n   item=\"added\"\n   revision=\"-1\">\n</wc-status>\n</entry>\n"
+      + "<entry\n   path=\"target/Generated.java\">\n<wc-status\n   props=\"none\"\n   item=\"unversioned\">\n</wc-status>\n</entry>\n"
+      + "</target>\n</status>\n";
+
+    assertThat(ScmChanges.svnFiles(dir, output)).containsOnly(new File(dir, "src/A&B.java"), new File(dir, "src/C.java"));
+  }
+
+  @Test
+  public void should_parse_hg_tracked_files_under_directory() throws Exception {
+    File root = temp.newFolder();
+    File module = new File(root, "module");
+
+    assertThat(ScmChanges.hgFiles(module, root, "module/A.java\nmodule/sub/B.java\nother/C.java\nmodule.txt\n"))
+      .containsOnly(new File(module, "A.java"), new File(module, "sub/B.java"));
+    assertThat(ScmChanges.hgFiles(root, root, "A.java\r\n")).containsOnly(new File(root, "A.java"));
+    assertThat(ScmChanges.hgFiles(root, module, "A.java\n")).isEmpty();
+  }
+
+  private void write(String name, String content) throws Exception {
+    org.apache.commons.io.FileUtils.write(new File(workTree, name), content);
+  }
+
+  private void git(String... args) throws Exception {
+    String[] command = new String[args.length + 1];
+    command[0] = "git";
+    System.arraycopy(args, 0, command, 1, args.length);
+    ProcessBuilder builder = new ProcessBuilder(command).directory(workTree).redirectErrorStream(true);
+    Map<String, String> env = builder.environment();
+    env.put("GIT_AUTHOR_NAME", "godin");
+    env.put("GIT_AUTHOR_EMAIL", "godin@example.com");
+    env.put("GIT_COMMITTER_NAME", "godin");
+    env.put("GIT_COMMITTER_EMAIL", "godin@example.com");
+    Process process = builder.start();
+    InputStream output = process.getInputStream();
+    String message = org.apache.commons.io.IOUtils.toString(output);
+    assertThat(process.waitFor()).as(message).isEqualTo(0);
+  }
+
+  @Test
+  public void should_run_svn_with_credentials_and_without_prompt() {
+    when(configuration.getUrl()).thenReturn("scm:svn:https://svn.example.com/repo/trunk");
+    when(configuration.getUser()).thenReturn("godin");
+    when(configuration.getPassword()).thenReturn("secret");
+
+    Commandline cl = scmChanges.svnCommandLine(workTree, "log", "-r", "2:BASE");
+
+    assertThat(cl.getExecutable()).isEqualTo("svn");
+    assertThat(cl.getArguments()).contains("--username", "godin", "--password", "secret", "--non-interactive", "log", "-r", "2:BASE");
+    assertThat(cl.getWorkingDirectory()).isEqualTo(workTree);
+  }
+
+  @Test
+  public void should_stop_command_lasting_too_long() {
+    assumeTrue(!System.getProperty("os.name").startsWith("Windows"));
+    Commandline cl = new Commandline();
+    cl.setExecutable("sleep");
+    cl.addArguments(new String[] {"30"});
+
+    long start = System.currentTimeMillis();
+    assertThat(ScmChanges.run(cl, 1)).isNull();
+    assertThat(System.currentTimeMillis() - start).isLessThan(20000L);
+  }
+
+  private static boolean isGitAvailable() {
+    try {
+      return new ProcessBuilder("git", "--version").start().waitFor() == 0;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+}
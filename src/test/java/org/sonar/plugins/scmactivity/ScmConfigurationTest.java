@@ -27,6 +27,8 @@ import org.sonar.api.config.PropertyDefinitions;
 import org.sonar.api.config.Settings;
 import org.sonar.api.utils.SonarException;
 
+import java.io.File;
+
 import static org.fest.assertions.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
@@ -117,6 +119,180 @@ public class ScmConfigurationTest {
     assertThat(scmConfiguration.getThreadCount()).isEqualTo(1000);
   }
 
+  @Test
+  public void should_use_thread_count_for_local_scm() {
+    settings.setProperty(ScmActivityPlugin.URL, "scm:git:git@github.com:SonarCommunity/sonar-scm-activity.git");
+    settings.setProperty(ScmActivityPlugin.THREAD_COUNT, 2);
+    settings.setProperty(ScmActivityPlugin.MAX_SERVER_REQUESTS, 32);
+
+    assertThat(scmConfiguration.getMaxServerRequests()).isEqualTo(0);
+    assertThat(scmConfiguration.getBlameThreadCount()).isEqualTo(2);
+    assertThat(scmConfiguration.getMaxConcurrentBlames()).isEqualTo(2);
+  }
+
+  @Test
+  public void should_get_default_max_server_requests_of_scm() {
+    settings.setProperty(ScmActivityPlugin.URL, "scm:svn:https://svn.codehaus.org/sonar-plugins");
+    settings.setProperty(ScmActivityPlugin.THREAD_COUNT, 2);
+
+    assertThat(scmConfiguration.getMaxServerRequests()).isEqualTo(16);
+    assertThat(scmConfiguration.getBlameThreadCount()).isEqualTo(16);
+    assertThat(scmConfiguration.getMaxConcurrentBlames()).isEqualTo(16);
+  }
+
+  @Test
+  public void should_get_max_server_requests() {
+    settings.setProperty(ScmActivityPlugin.URL, "scm:perforce://depot/project");
+    settings.setProperty(ScmActivityPlugin.THREAD_COUNT, 8);
+    settings.setProperty(ScmActivityPlugin.MAX_SERVER_REQUESTS, 2);
+
+    assertThat(scmConfiguration.getMaxServerRequests()).isEqualTo(2);
+    assertThat(scmConfiguration.getBlameThreadCount()).isEqualTo(8);
+    assertThat(scmConfiguration.getMaxConcurrentBlames()).isEqualTo(2);
+  }
+
+  @Test
+  public void should_fail_on_invalid_max_server_requests() {
+    settings.setProperty(ScmActivityPlugin.URL, "scm:svn:https://svn.codehaus.org/sonar-plugins");
+    settings.setProperty(ScmActivityPlugin.MAX_SERVER_REQUESTS, 0);
+
+    exception.expect(SonarException.class);
+    exception.expectMessage("SCM Activity Plugin is configured to send at most [0] concurrent server request(s). The minimum is 1.");
+
+    scmConfiguration.getMaxServerRequests();
+  }
+
+  @Test
+  public void should_enable_adaptive_concurrency() {
+    assertThat(scmConfiguration.isAdaptiveConcurrencyEnabled()).isFalse();
+
+    settings.setProperty(ScmActivityPlugin.ADAPTIVE_CONCURRENCY, true);
+
+    assertThat(scmConfiguration.isAdaptiveConcurrencyEnabled()).isTrue();
+  }
+
+  @Test
+  public void should_get_default_max_pending_updates() {
+    assertThat(scmConfiguration.getMaxPendingUpdates()).isEqualTo(256);
+  }
+
+  @Test
+  public void should_fail_on_invalid_max_pending_updates() {
+    settings.setProperty(ScmActivityPlugin.MAX_PENDING_UPDATES, 0);
+
+    exception.expect(SonarException.class);
+    exception.expectMessage("SCM Activity Plugin is configured to keep at most [0] pending update(s). The minimum is 1.");
+
+    scmConfiguration.getMaxPendingUpdates();
+  }
+
+  @Test
+  public void should_get_max_pending_data_size_in_bytes() {
+    settings.setProperty(ScmActivityPlugin.MAX_PENDING_DATA_SIZE, 2);
+
+    assertThat(scmConfiguration.getMaxPendingDataSize()).isEqualTo(2L * 1024 * 1024);
+  }
+
+  @Test
+  public void should_disable_cache_by_default() {
+    assertThat(scmConfiguration.getCacheDir()).isNull();
+  }
+
+  @Test
+  public void should_get_cache_dir() {
+    settings.setProperty(ScmActivityPlugin.CACHE_PATH, "/tmp/scm-cache");
+
+    assertThat(scmConfiguration.getCacheDir()).isEqualTo(new File("/tmp/scm-cache"));
+    assertThat(scmConfiguration.getCacheMaxSize()).isEqualTo(256L * 1024 * 1024);
+  }
+
+  @Test
+  public void should_enable_incremental_blame() {
+    assertThat(scmConfiguration.isIncrementalBlameEnabled()).isFalse();
+
+    settings.setProperty(ScmActivityPlugin.INCREMENTAL_BLAME, true);
+
+    assertThat(scmConfiguration.isIncrementalBlameEnabled()).isTrue();
+  }
+
+  @Test
+  public void should_get_blame_timeout_and_deadline() {
+    settings.setProperty(ScmActivityPlugin.BLAME_TIMEOUT, 60);
+    settings.setProperty(ScmActivityPlugin.BLAME_DEADLINE, 3600);
+
+    assertThat(scmConfiguration.getBlameTimeout()).isEqualTo(60);
+    assertThat(scmConfiguration.getBlameDeadline()).isEqualTo(3600);
+  }
+
+  @Test
+  public void should_fail_on_negative_blame_timeout() {
+    settings.setProperty(ScmActivityPlugin.BLAME_TIMEOUT, -1);
+
+    exception.expect(SonarException.class);
+    exception.expectMessage("SCM Activity Plugin is configured with a blame timeout of [-1] second(s). The minimum is 0.");
+
+    scmConfiguration.getBlameTimeout();
+  }
+
+  @Test
+  public void should_get_circuit_breaker_thresholds() {
+    assertThat(scmConfiguration.getCircuitBreakerFailures()).isEqualTo(10);
+    assertThat(scmConfiguration.getCircuitBreakerFailureRate()).isEqualTo(50);
+
+    settings.setProperty(ScmActivityPlugin.CIRCUIT_BREAKER_FAILURES, 0);
+
+    assertThat(scmConfiguration.getCircuitBreakerFailures()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_get_blame_engines() {
+    assertThat(scmConfiguration.getGitBlameEngine()).isEqualTo("exe");
+    assertThat(scmConfiguration.getSvnBlameEngine()).isEqualTo("exe");
+    assertThat(scmConfiguration.getHgBlameEngine()).isEqualTo("exe");
+    assertThat(scmConfiguration.getPerforceBlameEngine()).isEqualTo("exe");
+    assertThat(scmConfiguration.getTfsBlameEngine()).isEqualTo("exe");
+
+    settings.setProperty(ScmActivityPlugin.GIT_BLAME_ENGINE, "verify");
+    settings.setProperty(ScmActivityPlugin.SVN_BLAME_ENGINE, "inprocess");
+    settings.setProperty(ScmActivityPlugin.HG_BLAME_ENGINE, "cmdserver");
+    settings.setProperty(ScmActivityPlugin.PERFORCE_BLAME_ENGINE, "batch");
+    settings.setProperty(ScmActivityPlugin.TFS_BLAME_ENGINE, "server");
+
+    assertThat(scmConfiguration.getGitBlameEngine()).isEqualTo("verify");
+    assertThat(scmConfiguration.getSvnBlameEngine()).isEqualTo("inprocess");
+    assertThat(scmConfiguration.getHgBlameEngine()).isEqualTo("cmdserver");
+    assertThat(scmConfiguration.getPerforceBlameEngine()).isEqualTo("batch");
+    assertThat(scmConfiguration.getTfsBlameEngine()).isEqualTo("server");
+  }
+
+  @Test
+  public void should_fail_on_unknown_blame_engine() {
+    settings.setProperty(ScmActivityPlugin.HG_BLAME_ENGINE, "hglib");
+
+    exception.expect(SonarException.class);
+    exception.expectMessage("SCM Activity Plugin is configured to use an unknown blame engine [hglib] in sonar.scm.hg.blameEngine.");
+
+    scmConfiguration.getHgBlameEngine();
+  }
+
+  @Test
+  public void should_enable_svn_batch_blame() {
+    assertThat(scmConfiguration.isSvnBatchBlameEnabled()).isFalse();
+
+    settings.setProperty(ScmActivityPlugin.SVN_BATCH_BLAME, true);
+
+    assertThat(scmConfiguration.isSvnBatchBlameEnabled()).isTrue();
+  }
+
+  @Test
+  public void should_enable_prefetch_of_all_modules() {
+    assertThat(scmConfiguration.isPrefetchAllModulesEnabled()).isFalse();
+
+    settings.setProperty(ScmActivityPlugin.PREFETCH_ALL_MODULES, true);
+
+    assertThat(scmConfiguration.isPrefetchAllModulesEnabled()).isTrue();
+  }
+
   @Test
   public void shouldGetMavenDeveloperUrlIfCredentials() {
     when(mavenConf.getDeveloperUrl()).thenReturn("scm:svn:https:writable");
@@ -20,25 +20,46 @@
 package org.sonar.plugins.scmactivity;
 
 import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.command.blame.BlameLine;
 import org.apache.maven.scm.command.blame.BlameScmRequest;
 import org.apache.maven.scm.command.blame.BlameScmResult;
 import org.apache.maven.scm.command.status.StatusScmResult;
 import org.apache.maven.scm.manager.NoSuchScmProviderException;
 import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.provider.perforce.repository.PerforceScmProviderRepository;
+import org.apache.maven.scm.provider.svn.repository.SvnScmProviderRepository;
 import org.apache.maven.scm.provider.svn.util.SvnUtil;
 import org.apache.maven.scm.repository.ScmRepository;
 import org.apache.maven.scm.repository.ScmRepositoryException;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sonar.plugins.scmactivity.maven.DiffHunk;
+import org.sonar.plugins.scmactivity.maven.SonarGitExeScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarGitInProcessScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarPerforceScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarPerforceScmProviderRepository;
+import org.sonar.plugins.scmactivity.maven.SonarSvnInProcessScmProvider;
 import org.sonar.api.utils.SonarException;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -51,10 +72,16 @@ public class ScmFacadeTest {
   ScmProviderRepository provider = mock(ScmProviderRepository.class);
   BlameScmResult blameScmResult = mock(BlameScmResult.class);
   StatusScmResult statusScmResult = mock(StatusScmResult.class);
+  ProjectScmResources projectResources = new ProjectScmResources(manager);
 
   @Before
   public void setUp() {
-    scmFacade = new ScmFacade(manager, conf);
+    scmFacade = new ScmFacade(manager, conf, projectResources, new BlameTimeouts(conf, projectResources));
+  }
+
+  @After
+  public void tearDown() {
+    projectResources.stop();
   }
 
   @Test
@@ -136,6 +163,444 @@ public class ScmFacadeTest {
     assertThat(result).isSameAs(blameScmResult);
   }
 
+  @Test(timeout = 5000)
+  public void should_release_concurrency_limit_after_failure() throws ScmException {
+    when(conf.getMaxConcurrentBlames()).thenReturn(1);
+    when(manager.blame(any(BlameScmRequest.class))).thenThrow(new ScmException("BUG")).thenReturn(blameScmResult);
+
+    try {
+      scmFacade.blame(new File("src/source.java"));
+      fail();
+    } catch (ScmException e) {
+      assertThat(e).hasMessage("BUG");
+    }
+
+    assertThat(scmFacade.blame(new File("src/source.java"))).isSameAs(blameScmResult);
+  }
+
+  @Test
+  public void should_stop_blame_after_consecutive_failures() throws ScmException {
+    when(conf.getCircuitBreakerFailures()).thenReturn(2);
+    when(manager.blame(any(BlameScmRequest.class))).thenReturn(new BlameScmResult("svn blame", "The svn command failed.", "svn: E155007: '/src' is not a working copy", false));
+
+    assertThat(scmFacade.blame(new File("src/Foo.java")).isSuccess()).isFalse();
+    assertThat(scmFacade.blame(new File("src/Bar.java")).isSuccess()).isFalse();
+    try {
+      scmFacade.blame(new File("src/Baz.java"));
+      fail();
+    } catch (BlameCircuitBreaker.CircuitOpenException e) {
+      assertThat(e).hasMessage("SCM blame is stopped after systematic failures, not blaming " + new File("src/Baz.java"));
+    }
+    verify(manager, times(2)).blame(any(BlameScmRequest.class));
+  }
+
+  @Test
+  public void should_not_stop_blame_after_failures_with_different_causes() throws ScmException {
+    when(conf.getCircuitBreakerFailures()).thenReturn(2);
+    when(manager.blame(any(BlameScmRequest.class))).thenThrow(new ScmException("BUG"))
+      .thenReturn(new BlameScmResult("svn blame", "The svn command failed.", "svn: E170001: Authentication failed", false))
+      .thenReturn(blameScmResult);
+
+    try {
+      scmFacade.blame(new File("src/Foo.java"));
+      fail();
+    } catch (ScmException e) {
+      assertThat(e).hasMessage("BUG");
+    }
+    scmFacade.blame(new File("src/Bar.java"));
+
+    assertThat(scmFacade.blame(new File("src/Baz.java"))).isSameAs(blameScmResult);
+  }
+
+  @Test(timeout = 5000)
+  public void should_kill_blame_lasting_more_than_timeout() throws ScmException {
+    when(conf.getBlameTimeout()).thenReturn(1);
+    when(manager.blame(any(BlameScmRequest.class))).thenAnswer(new Answer<BlameScmResult>() {
+      public BlameScmResult answer(InvocationOnMock invocation) throws Throwable {
+        Thread.sleep(60000L);
+        return blameScmResult;
+      }
+    });
+
+    try {
+      scmFacade.blame(new File("src/source.java"));
+      fail();
+    } catch (BlameTimeouts.BlameTimeoutException e) {
+      assertThat(e).hasMessage("SCM blame of " + new File("src/source.java") + " did not complete within 1 second(s)");
+    }
+    assertThat(Thread.currentThread().isInterrupted()).isFalse();
+  }
+
+  @Test
+  public void should_blame_git_file_in_process() throws ScmException {
+    when(conf.getScmProvider()).thenReturn("git");
+    when(conf.getGitBlameEngine()).thenReturn(ScmActivityPlugin.GIT_BLAME_ENGINE_IN_PROCESS);
+
+    assertBlamedBy("gitinprocess", "scm:git:/url");
+  }
+
+  @Test
+  public void should_blame_svn_file_in_process() throws ScmException {
+    when(conf.getScmProvider()).thenReturn("svn");
+    when(conf.getSvnBlameEngine()).thenReturn(ScmActivityPlugin.SVN_BLAME_ENGINE_IN_PROCESS);
+    when(conf.getMaxConcurrentBlames()).thenReturn(4);
+    SonarSvnInProcessScmProvider inProcessProvider = mock(SonarSvnInProcessScmProvider.class);
+    when(manager.getProviderByType("svninprocess")).thenReturn(inProcessProvider);
+
+    assertBlamedBy("svninprocess", "scm:svn:https://svn/repo");
+    verify(inProcessProvider).setMaxSessions(4);
+  }
+
+  @Test
+  public void should_blame_svn_file_with_exe_after_fallback() throws ScmException {
+    when(conf.getUrl()).thenReturn("scm:svn:https://svn/repo");
+    when(conf.getScmProvider()).thenReturn("svn");
+    when(conf.getSvnBlameEngine()).thenReturn(ScmActivityPlugin.SVN_BLAME_ENGINE_IN_PROCESS);
+    when(manager.makeScmRepository("scm:svn:https://svn/repo")).thenReturn(repository);
+    when(manager.blame(any(BlameScmRequest.class))).thenReturn(blameScmResult);
+    projectResources.fallBackToSvnExe();
+
+    assertThat(scmFacade.blame(new File("src/source.java"))).isSameAs(blameScmResult);
+
+    ArgumentCaptor<BlameScmRequest> request = ArgumentCaptor.forClass(BlameScmRequest.class);
+    verify(manager).blame(request.capture());
+    assertThat(request.getValue().getScmRepository()).isSameAs(repository);
+  }
+
+  @Test
+  public void should_blame_hg_file_with_command_server() throws ScmException {
+    when(conf.getScmProvider()).thenReturn("hg");
+    when(conf.getHgBlameEngine()).thenReturn(ScmActivityPlugin.HG_BLAME_ENGINE_COMMAND_SERVER);
+
+    assertBlamedBy("hgcmdserver", "scm:hg:/url");
+  }
+
+  @Test
+  public void should_blame_tfs_file_with_server() throws ScmException {
+    when(conf.getScmProvider()).thenReturn("tfs");
+    when(conf.getTfsBlameEngine()).thenReturn(ScmActivityPlugin.TFS_BLAME_ENGINE_SERVER);
+
+    assertBlamedBy("tfsserver", "scm:tfs:/url");
+  }
+
+  private void assertBlamedBy(String scmType, String url) throws ScmException {
+    when(conf.getUrl()).thenReturn(url);
+    when(manager.makeScmRepository(url)).thenReturn(repository);
+    when(repository.getProviderRepository()).thenReturn(provider);
+    when(manager.blame(any(BlameScmRequest.class))).thenReturn(blameScmResult);
+
+    assertThat(scmFacade.blame(new File("src/source.java"))).isSameAs(blameScmResult);
+
+    ArgumentCaptor<BlameScmRequest> request = ArgumentCaptor.forClass(BlameScmRequest.class);
+    verify(manager).blame(request.capture());
+    assertThat(request.getValue().getScmRepository().getProvider()).isEqualTo(scmType);
+    assertThat(request.getValue().getScmRepository().getProviderRepository()).isSameAs(provider);
+  }
+
+  @Test
+  public void should_not_batch_blame_with_in_process_svn() {
+    when(conf.getScmProvider()).thenReturn("svn");
+    when(conf.isSvnBatchBlameEnabled()).thenReturn(true);
+    when(conf.getSvnBlameEngine()).thenReturn(ScmActivityPlugin.SVN_BLAME_ENGINE_IN_PROCESS);
+
+    assertThat(scmFacade.isBatchBlameEnabled()).isFalse();
+  }
+
+  @Test
+  public void should_verify_in_process_git_blame() throws ScmException {
+    when(conf.getUrl()).thenReturn("scm:git:/url");
+    when(conf.getScmProvider()).thenReturn("git");
+    when(conf.getGitBlameEngine()).thenReturn(ScmActivityPlugin.GIT_BLAME_ENGINE_VERIFY);
+    when(manager.makeScmRepository("scm:git:/url")).thenReturn(repository);
+    when(repository.getProviderRepository()).thenReturn(provider);
+    BlameScmResult inProcessResult = new BlameScmResult("", Arrays.asList(new BlameLine(new Date(0), "rev", "author", "author")));
+    when(manager.blame(any(BlameScmRequest.class))).thenReturn(blameScmResult, inProcessResult);
+
+    BlameScmResult result = scmFacade.blame(new File("src/source.java"));
+
+    assertThat(result).isSameAs(blameScmResult);
+    verify(manager, times(2)).blame(any(BlameScmRequest.class));
+  }
+
+  @Test
+  public void should_keep_git_blame_when_in_process_blame_fails() throws ScmException {
+    when(conf.getUrl()).thenReturn("scm:git:/url");
+    when(conf.getScmProvider()).thenReturn("git");
+    when(conf.getGitBlameEngine()).thenReturn(ScmActivityPlugin.GIT_BLAME_ENGINE_VERIFY);
+    when(manager.makeScmRepository("scm:git:/url")).thenReturn(repository);
+    when(repository.getProviderRepository()).thenReturn(provider);
+    when(manager.blame(any(BlameScmRequest.class))).thenReturn(blameScmResult).thenThrow(new ScmException("BUG"));
+
+    BlameScmResult result = scmFacade.blame(new File("src/source.java"));
+
+    assertThat(result).isSameAs(blameScmResult);
+  }
+
+  @Test
+  public void should_count_differences_of_in_process_git_blame() {
+    BlameLine line1 = new BlameLine(new Date(1000), "rev1", "alice", "alice");
+    BlameLine line2 = new BlameLine(new Date(2000), "rev2", "bob", "bob");
+    BlameLine uncommitted = new BlameLine(new Date(3000), "0000000000000000000000000000000000000000", "not.committed.yet", "not.committed.yet");
+    BlameLine uncommittedLater = new BlameLine(new Date(4000), "0000000000000000000000000000000000000000", "not.committed.yet", "not.committed.yet");
+    File file = new File("src/source.java");
+
+    assertThat(ScmFacade.verify(file, result(line1, line2, uncommitted), result(line1, line2, uncommittedLater))).isEqualTo(0);
+    assertThat(ScmFacade.verify(file, result(line1, line2), result(line1, line1))).isEqualTo(1);
+    assertThat(ScmFacade.verify(file, result(line1, line2), result(line2, line1, line1))).isEqualTo(3);
+    assertThat(ScmFacade.verify(file, result(line1), new BlameScmResult("", "failed", "", false))).isEqualTo(1);
+  }
+
+  @Test
+  public void should_blame_git_files_in_a_single_pass() throws Exception {
+    when(conf.getScmProvider()).thenReturn("git");
+    when(conf.getGitBlameEngine()).thenReturn(ScmActivityPlugin.GIT_BLAME_ENGINE_IN_PROCESS);
+    SonarGitInProcessScmProvider inProcessProvider = mock(SonarGitInProcessScmProvider.class);
+    when(manager.getProviderByType("gitinprocess")).thenReturn(inProcessProvider);
+    List<File> files = Arrays.asList(new File("src/source.java"));
+    Map<File, List<BlameLine>> blame = Collections.emptyMap();
+    when(inProcessProvider.blame(files)).thenReturn(blame);
+
+    assertThat(scmFacade.isSinglePassBlameEnabled()).isTrue();
+    assertThat(scmFacade.blame(files)).isSameAs(blame);
+  }
+
+  @Test
+  public void should_stop_single_pass_blame_after_consecutive_failures() throws Exception {
+    when(conf.getScmProvider()).thenReturn("git");
+    when(conf.getGitBlameEngine()).thenReturn(ScmActivityPlugin.GIT_BLAME_ENGINE_IN_PROCESS);
+    when(conf.getCircuitBreakerFailures()).thenReturn(2);
+    SonarGitInProcessScmProvider inProcessProvider = mock(SonarGitInProcessScmProvider.class);
+    when(manager.getProviderByType("gitinprocess")).thenReturn(inProcessProvider);
+    List<File> files = Arrays.asList(new File("src/source.java"));
+    when(inProcessProvider.blame(files)).thenThrow(new IOException("fatal: bad object HEAD"));
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        scmFacade.blame(files);
+        fail();
+      } catch (ScmException e) {
+        assertThat(e).hasMessage("Unable to blame 1 file(s)");
+      }
+    }
+
+    assertThat(scmFacade.blame(files)).isEmpty();
+    verify(inProcessProvider, times(2)).blame(files);
+  }
+
+  @Test(timeout = 5000)
+  public void should_kill_single_pass_blame_lasting_more_than_timeout() throws Exception {
+    when(conf.getScmProvider()).thenReturn("git");
+    when(conf.getGitBlameEngine()).thenReturn(ScmActivityPlugin.GIT_BLAME_ENGINE_IN_PROCESS);
+    when(conf.getBlameTimeout()).thenReturn(1);
+    SonarGitInProcessScmProvider inProcessProvider = mock(SonarGitInProcessScmProvider.class);
+    when(manager.getProviderByType("gitinprocess")).thenReturn(inProcessProvider);
+    List<File> files = Arrays.asList(new File("src/source.java"));
+    when(inProcessProvider.blame(files)).thenAnswer(new Answer<Map<File, List<BlameLine>>>() {
+      public Map<File, List<BlameLine>> answer(InvocationOnMock invocation) throws Throwable {
+        Thread.sleep(60000L);
+        return Collections.emptyMap();
+      }
+    });
+
+    try {
+      scmFacade.blame(files);
+      fail();
+    } catch (BlameTimeouts.BlameTimeoutException e) {
+      assertThat(e.isKilled()).isTrue();
+    }
+    assertThat(Thread.currentThread().isInterrupted()).isFalse();
+  }
+
+  @Test
+  public void should_find_common_dir_of_files() {
+    File dir = new File("src/main").getAbsoluteFile();
+
+    assertThat(ScmFacade.commonDir(Arrays.asList(new File(dir, "java/Foo.java"), new File(dir, "resources/foo.properties")))).isEqualTo(dir);
+    assertThat(ScmFacade.commonDir(Arrays.asList(new File(dir, "java/Foo.java")))).isEqualTo(new File(dir, "java"));
+  }
+
+  @Test
+  public void should_not_blame_in_a_single_pass_with_git_exe() throws Exception {
+    when(conf.getScmProvider()).thenReturn("git");
+    when(conf.getGitBlameEngine()).thenReturn(ScmActivityPlugin.GIT_BLAME_ENGINE_EXE);
+
+    assertThat(scmFacade.isSinglePassBlameEnabled()).isFalse();
+    assertThat(scmFacade.blame(Arrays.asList(new File("src/source.java")))).isEmpty();
+    verify(manager, never()).getProviderByType(anyString());
+  }
+
+  @Test
+  public void should_enable_incremental_blame_with_git_exe() throws Exception {
+    when(conf.isIncrementalBlameEnabled()).thenReturn(true);
+    when(conf.getScmProvider()).thenReturn("git");
+    when(conf.getGitBlameEngine()).thenReturn(ScmActivityPlugin.GIT_BLAME_ENGINE_EXE);
+    SonarGitExeScmProvider exeProvider = mock(SonarGitExeScmProvider.class);
+    when(manager.getProviderByType("git")).thenReturn(exeProvider);
+    when(exeProvider.isRangedBlameSupported()).thenReturn(true);
+
+    assertThat(scmFacade.isIncrementalBlameEnabled()).isTrue();
+
+    when(exeProvider.isRangedBlameSupported()).thenReturn(false);
+    assertThat(scmFacade.isIncrementalBlameEnabled()).isFalse();
+  }
+
+  @Test
+  public void should_not_enable_incremental_blame() throws Exception {
+    when(conf.getScmProvider()).thenReturn("git");
+    when(conf.getGitBlameEngine()).thenReturn(ScmActivityPlugin.GIT_BLAME_ENGINE_EXE);
+    assertThat(scmFacade.isIncrementalBlameEnabled()).isFalse();
+
+    when(conf.isIncrementalBlameEnabled()).thenReturn(true);
+    when(conf.getGitBlameEngine()).thenReturn(ScmActivityPlugin.GIT_BLAME_ENGINE_IN_PROCESS);
+    assertThat(scmFacade.isIncrementalBlameEnabled()).isFalse();
+
+    when(conf.getScmProvider()).thenReturn("svn");
+    assertThat(scmFacade.isIncrementalBlameEnabled()).isFalse();
+    verify(manager, never()).getProviderByType(anyString());
+  }
+
+  @Test
+  public void should_enable_batch_blame_with_svn() {
+    when(conf.getScmProvider()).thenReturn("svn");
+    assertThat(scmFacade.isBatchBlameEnabled()).isFalse();
+
+    when(conf.isSvnBatchBlameEnabled()).thenReturn(true);
+    assertThat(scmFacade.isBatchBlameEnabled()).isTrue();
+
+    when(conf.getScmProvider()).thenReturn("git");
+    assertThat(scmFacade.isBatchBlameEnabled()).isFalse();
+  }
+
+  @Test
+  public void should_enable_batch_blame_with_batch_perforce() {
+    when(conf.getScmProvider()).thenReturn("perforce");
+    assertThat(scmFacade.isBatchBlameEnabled()).isFalse();
+
+    when(conf.getPerforceBlameEngine()).thenReturn(ScmActivityPlugin.PERFORCE_BLAME_ENGINE_BATCH);
+    assertThat(scmFacade.isBatchBlameEnabled()).isTrue();
+  }
+
+  @Test
+  public void should_batch_blame_perforce_files_with_clientspec_of_repository() throws Exception {
+    File dir = new File("src");
+    List<File> files = Arrays.asList(new File(dir, "Foo.java"), new File(dir, "Bar.java"));
+    when(conf.getUrl()).thenReturn("scm:perforce://depot/project");
+    when(conf.getScmProvider()).thenReturn("perforce");
+    when(conf.getPerforceBlameEngine()).thenReturn(ScmActivityPlugin.PERFORCE_BLAME_ENGINE_BATCH);
+    when(conf.getPerforceClientspecName()).thenReturn("batchclientspec");
+    when(manager.makeScmRepository("scm:perforce://depot/project")).thenReturn(repository);
+    when(repository.getProviderRepository()).thenReturn(new PerforceScmProviderRepository("perforce", 1666, "//depot/project", null, null));
+    SonarPerforceScmProvider perforceProvider = mock(SonarPerforceScmProvider.class);
+    when(manager.getProviderByType("perforcebatch")).thenReturn(perforceProvider);
+    Map<File, List<BlameLine>> blame = Collections.emptyMap();
+    ArgumentCaptor<SonarPerforceScmProviderRepository> perforceRepository = ArgumentCaptor.forClass(SonarPerforceScmProviderRepository.class);
+    when(perforceProvider.blame(perforceRepository.capture(), any(File.class), any(List.class))).thenReturn(blame);
+
+    try {
+      scmFacade.blame(dir, files);
+    } catch (ScmException e) {
+      // nothing blamed
+    }
+
+    verify(perforceProvider).blame(any(SonarPerforceScmProviderRepository.class), any(File.class), any(List.class));
+    assertThat(perforceRepository.getValue().getClientspec()).isEqualTo("batchclientspec");
+    assertThat(perforceRepository.getValue().getPath()).isEqualTo("//depot/project");
+    assertThat(System.getProperty("maven.scm.perforce.clientspec.name")).isNotEqualTo("batchclientspec");
+  }
+
+  @Test
+  public void should_blame_perforce_file_with_batch_engine() throws ScmException {
+    when(conf.getUrl()).thenReturn("scm:perforce://depot/project");
+    when(conf.getScmProvider()).thenReturn("perforce");
+    when(conf.getPerforceBlameEngine()).thenReturn(ScmActivityPlugin.PERFORCE_BLAME_ENGINE_BATCH);
+    when(manager.makeScmRepository("scm:perforce://depot/project")).thenReturn(repository);
+    when(repository.getProviderRepository()).thenReturn(new PerforceScmProviderRepository("perforce", 1666, "//depot/project", null, null));
+    when(manager.blame(any(BlameScmRequest.class))).thenReturn(blameScmResult);
+
+    assertThat(scmFacade.blame(new File("src/source.java"))).isSameAs(blameScmResult);
+
+    ArgumentCaptor<BlameScmRequest> request = ArgumentCaptor.forClass(BlameScmRequest.class);
+    verify(manager).blame(request.capture());
+    assertThat(request.getValue().getScmRepository().getProvider()).isEqualTo("perforcebatch");
+    assertThat(request.getValue().getScmRepository().getProviderRepository()).isInstanceOf(SonarPerforceScmProviderRepository.class);
+  }
+
+  @Test
+  public void should_count_failed_batch_blame() throws Exception {
+    File dir = new File("target/unknown");
+    when(conf.getUrl()).thenReturn("scm:svn:file:///repo");
+    when(conf.getCircuitBreakerFailures()).thenReturn(1);
+    when(manager.makeScmRepository("scm:svn:file:///repo")).thenReturn(repository);
+    when(repository.getProviderRepository()).thenReturn(new SvnScmProviderRepository("file:///repo"));
+
+    try {
+      scmFacade.blame(dir, Arrays.asList(new File(dir, "Foo.java"), new File(dir, "Bar.java")));
+      fail();
+    } catch (ScmException e) {
+      assertThat(e instanceof BlameCircuitBreaker.CircuitOpenException).isFalse();
+    }
+    try {
+      scmFacade.blame(dir, Arrays.asList(new File(dir, "Foo.java"), new File(dir, "Bar.java")));
+      fail();
+    } catch (BlameCircuitBreaker.CircuitOpenException e) {
+      assertThat(e).hasMessage("SCM blame is stopped after systematic failures, not blaming " + dir);
+    }
+  }
+
+  @Test
+  public void should_reblame_changed_lines() throws Exception {
+    File file = new File("src/source.java");
+    SonarGitExeScmProvider exeProvider = mock(SonarGitExeScmProvider.class);
+    when(manager.getProviderByType("git")).thenReturn(exeProvider);
+    List<DiffHunk> hunks = Arrays.asList(new DiffHunk(1, 1, 1, 1));
+    when(exeProvider.diff(file, "abc")).thenReturn(hunks);
+    when(exeProvider.blame(file, hunks)).thenReturn(Arrays.asList(new BlameLine(new Date(), "2", "simon")));
+
+    List<BlameLine> lines = scmFacade.reblame(file, "abc", Arrays.asList(new BlameLine(new Date(), "1", "godin"), new BlameLine(new Date(), "1", "godin")));
+
+    assertThat(lines).hasSize(2);
+    assertThat(lines.get(0).getRevision()).isEqualTo("2");
+    assertThat(lines.get(1).getRevision()).isEqualTo("1");
+  }
+
+  @Test
+  public void should_not_reblame_binary_changes() throws Exception {
+    File file = new File("src/source.java");
+    SonarGitExeScmProvider exeProvider = mock(SonarGitExeScmProvider.class);
+    when(manager.getProviderByType("git")).thenReturn(exeProvider);
+    when(exeProvider.diff(file, "abc")).thenReturn(null);
+
+    assertThat(scmFacade.reblame(file, "abc", Collections.<BlameLine>emptyList())).isNull();
+  }
+
+  @Test
+  public void should_count_failed_reblame() throws Exception {
+    File file = new File("src/source.java");
+    when(conf.getCircuitBreakerFailures()).thenReturn(2);
+    SonarGitExeScmProvider exeProvider = mock(SonarGitExeScmProvider.class);
+    when(manager.getProviderByType("git")).thenReturn(exeProvider);
+    when(exeProvider.diff(file, "abc")).thenThrow(new ScmException("fatal: bad revision 'abc'"));
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        scmFacade.reblame(file, "abc", Collections.<BlameLine>emptyList());
+        fail();
+      } catch (ScmException e) {
+        assertThat(e instanceof BlameCircuitBreaker.CircuitOpenException).isFalse();
+      }
+    }
+    try {
+      scmFacade.reblame(file, "abc", Collections.<BlameLine>emptyList());
+      fail();
+    } catch (BlameCircuitBreaker.CircuitOpenException e) {
+      assertThat(e).hasMessage("SCM blame is stopped after systematic failures, not blaming " + file);
+    }
+  }
+
+  private static BlameScmResult result(BlameLine... lines) {
+    return new BlameScmResult("", Arrays.asList(lines));
+  }
+
   // SONARPLUGINS-2940
   @Test
   public void should_set_clientspec_property_for_erforce() throws ScmException {
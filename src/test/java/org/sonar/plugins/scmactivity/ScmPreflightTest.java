@@ -0,0 +1,201 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.bootstrap.ProjectDefinition;
+import org.sonar.api.batch.bootstrap.ProjectReactor;
+import org.sonar.plugins.scmactivity.maven.SonarSvnInProcessScmProvider;
+
+import java.io.File;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ScmPreflightTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  ScmConfiguration configuration = mock(ScmConfiguration.class);
+  SonarScmManager scmManager = mock(SonarScmManager.class);
+  ProjectScmResources projectResources = new ProjectScmResources(scmManager);
+  File baseDir;
+  ScmPreflight preflight;
+
+  @Before
+  public void setUp() throws Exception {
+    baseDir = temp.newFolder();
+    preflight = new ScmPreflight(configuration, projectResources, scmManager, new ProjectReactor(ProjectDefinition.create().setBaseDir(baseDir)));
+  }
+
+  @After
+  public void tearDown() {
+    projectResources.stop();
+  }
+
+  @Test
+  public void should_accept_git_working_copy() throws Exception {
+    assumeTrue(isGitAvailable());
+    when(configuration.getScmProvider()).thenReturn("git");
+    git("init", "-q");
+
+    preflight.check();
+
+    assertThat(circuitBreaker().isOpen()).isFalse();
+    verify(scmManager).getProviderByType("git");
+  }
+
+  @Test
+  public void should_disable_blame_outside_of_working_copy() throws Exception {
+    assumeTrue(isGitAvailable());
+    when(configuration.getScmProvider()).thenReturn("git");
+
+    preflight.check();
+
+    assertThat(circuitBreaker().isOpen()).isTrue();
+    assertThat(preflight.probe(baseDir)).isEqualTo(baseDir + " is not in a git working copy.");
+  }
+
+  @Test
+  public void should_disable_blame_of_shallow_clone() throws Exception {
+    assumeTrue(isGitAvailable());
+    when(configuration.getScmProvider()).thenReturn("git");
+    git("init", "-q");
+    new File(baseDir, ".git/shallow").createNewFile();
+
+    preflight.check();
+
+    assertThat(circuitBreaker().isOpen()).isTrue();
+    assertThat(preflight.probe(baseDir)).contains("is a shallow clone");
+  }
+
+  @Test
+  public void should_fall_back_to_svn_exe_when_in_process_engine_can_not_read_working_copy() throws Exception {
+    when(configuration.getScmProvider()).thenReturn("svn");
+    when(configuration.getSvnBlameEngine()).thenReturn(ScmActivityPlugin.SVN_BLAME_ENGINE_IN_PROCESS);
+    when(scmManager.getProviderByType("svninprocess")).thenReturn(new SonarSvnInProcessScmProvider());
+
+    String failure = preflight.probe(baseDir);
+
+    assertThat(projectResources.isSvnExeFallback()).isTrue();
+    // Checked again with svn, which can not read it either
+    assertThat(failure).doesNotContain("in-process");
+    assertThat(failure).contains("svn");
+  }
+
+  @Test
+  public void should_probe_git_with_in_process_engine() throws Exception {
+    assumeTrue(isGitAvailable());
+    when(configuration.getScmProvider()).thenReturn("git");
+    when(configuration.getGitBlameEngine()).thenReturn(ScmActivityPlugin.GIT_BLAME_ENGINE_IN_PROCESS);
+    new File(baseDir, ".git").mkdir();
+    File moduleDir = new File(baseDir, "module");
+
+    assertThat(preflight.probe(moduleDir)).isNull();
+
+    new File(baseDir, ".git/shallow").createNewFile();
+
+    assertThat(preflight.probe(moduleDir)).contains("is a shallow clone");
+    verify(scmManager, times(2)).getProviderByType("gitinprocess");
+  }
+
+  @Test
+  public void should_find_git_dir_of_linked_work_tree() throws Exception {
+    File commonDir = new File(baseDir, "main/.git");
+    File worktreeGitDir = new File(commonDir, "worktrees/feature");
+    worktreeGitDir.mkdirs();
+    FileUtils.write(new File(worktreeGitDir, "commondir"), "../..\n");
+    File worktree = new File(baseDir, "feature");
+    FileUtils.write(new File(worktree, ".git"), "gitdir: " + worktreeGitDir.getAbsolutePath() + "\n");
+
+    assertThat(ScmPreflight.findGitDir(new File(worktree, "src")).getCanonicalFile()).isEqualTo(commonDir.getCanonicalFile());
+  }
+
+  @Test
+  public void should_find_git_dir_of_submodule() throws Exception {
+    File moduleGitDir = new File(baseDir, ".git/modules/lib");
+    moduleGitDir.mkdirs();
+    File submodule = new File(baseDir, "lib");
+    FileUtils.write(new File(submodule, ".git"), "gitdir: ../.git/modules/lib\n");
+
+    assertThat(ScmPreflight.findGitDir(submodule).getCanonicalFile()).isEqualTo(moduleGitDir.getCanonicalFile());
+  }
+
+  @Test
+  public void should_disable_blame_of_shallow_linked_work_tree() throws Exception {
+    assumeTrue(isGitAvailable());
+    when(configuration.getScmProvider()).thenReturn("git");
+    git("init", "-q");
+    git("-c", "user.name=godin", "-c", "user.email=godin@example.com", "commit", "-q", "--allow-empty", "-m", "init");
+    File worktree = new File(temp.getRoot(), "feature");
+    // git worktree requires git 2.5
+    Process process = new ProcessBuilder("git", "worktree", "add", "-q", worktree.getAbsolutePath()).directory(baseDir).redirectErrorStream(true).start();
+    assumeTrue(process.waitFor() == 0);
+    new File(baseDir, ".git/shallow").createNewFile();
+
+    assertThat(preflight.probe(worktree)).contains("is a shallow clone");
+  }
+
+  @Test
+  public void should_not_probe_other_scms() {
+    when(configuration.getScmProvider()).thenReturn("cvs");
+
+    assertThat(preflight.probe(baseDir)).isNull();
+  }
+
+  @Test
+  public void should_probe_once() {
+    when(configuration.getScmProvider()).thenReturn("cvs");
+
+    preflight.check();
+    preflight.check();
+
+    verify(configuration, times(1)).getScmProvider();
+  }
+
+  private BlameCircuitBreaker circuitBreaker() {
+    return projectResources.getCircuitBreaker(0, 0);
+  }
+
+  private void git(String... args) throws Exception {
+    String[] command = new String[args.length + 1];
+    command[0] = "git";
+    System.arraycopy(args, 0, command, 1, args.length);
+    Process process = new ProcessBuilder(command).directory(baseDir).redirectErrorStream(true).start();
+    assertThat(process.waitFor()).isEqualTo(0);
+  }
+
+  private static boolean isGitAvailable() {
+    try {
+      return new ProcessBuilder("git", "--version").start().waitFor() == 0;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+}
@@ -19,6 +19,7 @@
  */
 package org.sonar.plugins.scmactivity;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.maven.scm.provider.ScmUrlUtils;
 import org.junit.Before;
 import org.junit.Rule;
@@ -34,13 +35,14 @@ import static org.fest.assertions.Assertions.assertThat;
 public class ScmUrlGuessTest {
   ScmUrlGuess scmUrlGuess;
   DefaultFileSystem fs = new DefaultFileSystem();
+  ProjectScmResources projectResources = new ProjectScmResources(new SonarScmManager());
 
   @Rule
   public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
   @Before
   public void setUp() {
-    scmUrlGuess = new ScmUrlGuess(fs);
+    scmUrlGuess = new ScmUrlGuess(fs, projectResources);
   }
 
   @Test
@@ -126,6 +128,21 @@ public class ScmUrlGuessTest {
     assertThat(ScmUrlUtils.isValid(url)).isTrue();
   }
 
+  @Test
+  public void should_reuse_guess_of_other_module() throws IOException {
+    File rootDir = project(".git", "module1", "module2");
+    fs.setBaseDir(new File(rootDir, "module1"));
+    scmUrlGuess.guess();
+    FileUtils.deleteDirectory(new File(rootDir, ".git"));
+
+    DefaultFileSystem otherModule = new DefaultFileSystem();
+    otherModule.setBaseDir(new File(rootDir, "module2"));
+    String url = new ScmUrlGuess(otherModule, projectResources).guess();
+
+    assertThat(url).isEqualTo("scm:git:");
+    assertThat(projectResources.getGuessedUrls().get(new File(rootDir, "module2"))).isEqualTo("scm:git:");
+  }
+
   @Test
   public void guess_from_directory_not_file() throws IOException {
     File fileWithMisleadingName = temporaryFolder.newFile(".git");
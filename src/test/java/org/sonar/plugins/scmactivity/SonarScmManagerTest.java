@@ -34,10 +34,15 @@ import org.junit.Test;
 import org.mockito.InOrder;
 import org.mockito.Mockito;
 import org.slf4j.Logger;
+import org.sonar.plugins.scmactivity.maven.SonarGitInProcessScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarHgCommandServerScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarSvnInProcessScmProvider;
 import org.sonar.plugins.scmactivity.maven.SonarTfsScmProvider;
+import org.sonar.plugins.scmactivity.maven.SonarTfsServerScmProvider;
 
 import static org.fest.assertions.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class SonarScmManagerTest {
@@ -64,6 +69,27 @@ public class SonarScmManagerTest {
     assertThat(scmManager.getProviderByType("integrity")).isInstanceOf(IntegrityScmProvider.class);
   }
 
+  @Test
+  public void should_register_blame_engines() throws NoSuchScmProviderException {
+    SonarScmManager scmManager = new SonarScmManager();
+
+    assertThat(scmManager.getProviderByType("gitinprocess")).isInstanceOf(SonarGitInProcessScmProvider.class);
+    assertThat(scmManager.getProviderByType("svninprocess")).isInstanceOf(SonarSvnInProcessScmProvider.class);
+    assertThat(scmManager.getProviderByType("hgcmdserver")).isInstanceOf(SonarHgCommandServerScmProvider.class);
+    assertThat(scmManager.getProviderByType("tfsserver")).isInstanceOf(SonarTfsServerScmProvider.class);
+  }
+
+  @Test
+  public void should_close_engines() {
+    SonarScmManager scmManager = new SonarScmManager();
+    SonarHgCommandServerScmProvider engine = mock(SonarHgCommandServerScmProvider.class);
+    scmManager.setScmProvider("fake", engine);
+
+    scmManager.closeEngines();
+
+    verify(engine).close();
+  }
+
   @Test
   public void should_log() {
     when(error.getMessage()).thenReturn("errorMessage");
@@ -0,0 +1,85 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity;
+
+import com.google.common.collect.Sets;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.bootstrap.ProjectDefinition;
+import org.sonar.api.batch.bootstrap.ProjectReactor;
+
+import java.io.File;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TrackedFilesTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  ScmChanges scmChanges = mock(ScmChanges.class);
+  File rootDir;
+  TrackedFiles trackedFiles;
+
+  @Before
+  public void setUp() throws Exception {
+    rootDir = temp.newFolder().getCanonicalFile();
+    trackedFiles = new TrackedFiles(new ProjectReactor(ProjectDefinition.create().setBaseDir(rootDir)));
+  }
+
+  @Test
+  public void should_list_tracked_files_once() {
+    when(scmChanges.getTrackedFiles(rootDir)).thenReturn(Sets.newHashSet(new File(rootDir, "src/A.java")));
+
+    assertThat(trackedFiles.get(scmChanges)).containsOnly(new File(rootDir, "src/A.java"));
+    assertThat(trackedFiles.isTracked(scmChanges, new File(rootDir, "src/A.java"))).isTrue();
+    assertThat(trackedFiles.isTracked(scmChanges, new File(rootDir, "target/generated-sources/B.java"))).isFalse();
+    verify(scmChanges, times(1)).getTrackedFiles(any(File.class));
+  }
+
+  @Test
+  public void should_match_non_canonical_paths() {
+    when(scmChanges.getTrackedFiles(rootDir)).thenReturn(Sets.newHashSet(new File(rootDir, "src/A.java")));
+
+    assertThat(trackedFiles.isTracked(scmChanges, new File(rootDir, "src/../src/A.java"))).isTrue();
+  }
+
+  @Test
+  public void should_consider_files_tracked_if_unknown() {
+    when(scmChanges.getTrackedFiles(rootDir)).thenReturn(null);
+
+    assertThat(trackedFiles.get(scmChanges)).isNull();
+    assertThat(trackedFiles.isTracked(scmChanges, new File(rootDir, "src/A.java"))).isTrue();
+    verify(scmChanges, times(1)).getTrackedFiles(any(File.class));
+  }
+
+  @Test
+  public void should_consider_files_outside_of_project_tracked() throws Exception {
+    when(scmChanges.getTrackedFiles(rootDir)).thenReturn(Sets.<File>newHashSet());
+
+    assertThat(trackedFiles.isTracked(scmChanges, new File(temp.newFolder(), "A.java"))).isTrue();
+  }
+}
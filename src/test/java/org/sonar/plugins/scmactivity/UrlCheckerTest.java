@@ -62,6 +62,15 @@ public class UrlCheckerTest {
     checker.check("scm:synergy:foo");
   }
 
+  @Test
+  public void shouldFailIfProviderIsBlameEngine() {
+    exception.expect(SonarException.class);
+    exception.expectMessage("Unsupported SCM");
+    exception.expectMessage("[gitinprocess]");
+
+    checker.check("scm:gitinprocess:foo");
+  }
+
   @Test
   public void shouldAcceptSvnUrl() {
     checker.check("scm:svn:https://codehaus.org");
@@ -0,0 +1,64 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class ChildProcessesTest {
+
+  @Test(timeout = 5000)
+  public void should_kill_process_of_thread() throws Exception {
+    assumeTrue(!System.getProperty("os.name").startsWith("Windows"));
+    Process process = new ProcessBuilder("sleep", "60").start();
+
+    ChildProcesses.register(process);
+    ChildProcesses.kill(Thread.currentThread());
+
+    assertThat(process.waitFor()).isNotEqualTo(0);
+    assertThat(ChildProcesses.isKilled()).isTrue();
+
+    ChildProcesses.register(new ProcessBuilder("true").start());
+
+    assertThat(ChildProcesses.isKilled()).isFalse();
+    ChildProcesses.unregister();
+  }
+
+  @Test(timeout = 5000)
+  public void should_not_kill_unregistered_process() throws Exception {
+    assumeTrue(!System.getProperty("os.name").startsWith("Windows"));
+    Process process = new ProcessBuilder("sleep", "60").start();
+
+    ChildProcesses.register(process);
+    ChildProcesses.unregister();
+    ChildProcesses.killAll();
+
+    try {
+      process.exitValue();
+      assertThat(false).as("process should still be running").isTrue();
+    } catch (IllegalThreadStateException e) {
+      // still running
+    } finally {
+      process.destroy();
+    }
+  }
+}
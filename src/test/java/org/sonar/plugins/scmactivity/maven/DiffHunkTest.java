@@ -0,0 +1,127 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class DiffHunkTest {
+
+  @Test
+  public void should_parse_hunk_headers() {
+    String diff = "diff --git a/Foo.java b/Foo.java\n"
+      + "index 1234567..89abcde 100644\n"
+      + "--- a/Foo.java\n"
+      + "+++ b/Foo.java\n"
+      + "@@ -3 +3 @@ class Foo {\n"
+      + "-a\n"
+      + "+b\n"
+      + "@@ -10,2 +9,0 @@\n"
+      + "-c\n"
+      + "-d\n"
+      + "@@ -20,0 +19,3 @@\n"
+      + "+e\n"
+      + "+@@ -1 +1 @@\n"
+      + "+f\n";
+
+    assertThat(DiffHunk.parse(diff)).isEqualTo(Arrays.asList(
+      new DiffHunk(3, 1, 3, 1),
+      new DiffHunk(10, 2, 9, 0),
+      new DiffHunk(20, 0, 19, 3)));
+  }
+
+  @Test
+  public void should_not_parse_binary_diff() {
+    assertThat(DiffHunk.parse("diff --git a/a.png b/a.png\nBinary files a/a.png and b/a.png differ\n")).isNull();
+  }
+
+  @Test
+  public void should_parse_empty_diff() {
+    assertThat(DiffHunk.parse("")).isEmpty();
+  }
+
+  @Test
+  public void should_shift_previous_lines() {
+    List<BlameLine> previous = lines("a", "b", "c", "d", "e");
+
+    // b replaced by x and y, d removed, z added at the end
+    List<BlameLine> lines = DiffHunk.apply(previous,
+      Arrays.asList(new DiffHunk(2, 1, 2, 2), new DiffHunk(4, 1, 4, 0), new DiffHunk(5, 0, 6, 1)),
+      lines("x", "y", "z"));
+
+    assertThat(revisions(lines)).isEqualTo(Arrays.asList("a", "x", "y", "c", "e", "z"));
+  }
+
+  @Test
+  public void should_insert_at_beginning() {
+    List<BlameLine> lines = DiffHunk.apply(lines("a"), Arrays.asList(new DiffHunk(0, 0, 1, 1)), lines("x"));
+
+    assertThat(revisions(lines)).isEqualTo(Arrays.asList("x", "a"));
+  }
+
+  @Test
+  public void should_return_previous_lines_without_hunk() {
+    List<BlameLine> lines = DiffHunk.apply(lines("a", "b"), Collections.<DiffHunk>emptyList(), Collections.<BlameLine>emptyList());
+
+    assertThat(revisions(lines)).isEqualTo(Arrays.asList("a", "b"));
+  }
+
+  @Test
+  public void should_not_apply_hunks_beyond_previous_lines() {
+    assertThat(DiffHunk.apply(lines("a"), Arrays.asList(new DiffHunk(2, 1, 2, 1)), lines("x"))).isNull();
+  }
+
+  @Test
+  public void should_not_apply_hunks_inconsistent_with_new_lines() {
+    assertThat(DiffHunk.apply(lines("a", "b"), Arrays.asList(new DiffHunk(2, 1, 3, 1)), lines("x"))).isNull();
+    assertThat(DiffHunk.apply(lines("a", "b"), Arrays.asList(new DiffHunk(2, 1, 2, 2)), lines("x"))).isNull();
+    assertThat(DiffHunk.apply(lines("a", "b"), Arrays.asList(new DiffHunk(2, 1, 2, 1)), lines("x", "y"))).isNull();
+  }
+
+  @Test
+  public void should_not_apply_unordered_hunks() {
+    List<DiffHunk> hunks = Arrays.asList(new DiffHunk(3, 1, 3, 1), new DiffHunk(1, 1, 1, 1));
+
+    assertThat(DiffHunk.apply(lines("a", "b", "c"), hunks, lines("x", "y"))).isNull();
+  }
+
+  private static List<BlameLine> lines(String... revisions) {
+    BlameLine[] lines = new BlameLine[revisions.length];
+    for (int i = 0; i < revisions.length; i++) {
+      lines[i] = new BlameLine(new Date(0), revisions[i], "godin", "godin");
+    }
+    return Arrays.asList(lines);
+  }
+
+  private static List<String> revisions(List<BlameLine> lines) {
+    String[] revisions = new String[lines.size()];
+    for (int i = 0; i < revisions.length; i++) {
+      revisions[i] = lines.get(i).getRevision();
+    }
+    return Arrays.asList(revisions);
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class GitBlameDictionaryTest {
+
+  GitBlameDictionary dictionary = new GitBlameDictionary(Charsets.UTF_8);
+
+  @Test
+  public void should_not_keep_uncommitted_lines() {
+    byte[] zero = Strings.repeat("0", 40).getBytes(Charsets.UTF_8);
+    dictionary.putCommit(zero, 0, new BlameLine(new Date(), new String(zero, Charsets.UTF_8), "foo", "foo"));
+
+    assertThat(dictionary.getCommit(zero, 0)).isNull();
+    assertThat(dictionary.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_be_bounded() {
+    for (int i = 0; i <= GitBlameDictionary.MAX_ENTRIES; i++) {
+      byte[] revision = Strings.padStart(Integer.toString(i), 40, 'a').getBytes(Charsets.UTF_8);
+      dictionary.putCommit(revision, 0, new BlameLine(new Date(), new String(revision, Charsets.UTF_8), "foo", "foo"));
+    }
+
+    assertThat(dictionary.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_clear() {
+    byte[] revision = Strings.repeat("a", 40).getBytes(Charsets.UTF_8);
+    dictionary.putCommit(revision, 0, new BlameLine(new Date(), "a", "foo", "foo"));
+    dictionary.getEmail("foo@bar.com".getBytes(Charsets.UTF_8), 0, 11);
+
+    dictionary.clear();
+
+    assertThat(dictionary.getCommit(revision, 0)).isNull();
+    assertThat(dictionary.size()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.base.Charsets;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.command.blame.BlameScmRequest;
+import org.apache.maven.scm.command.blame.BlameScmResult;
+import org.apache.maven.scm.provider.git.repository.GitScmProviderRepository;
+import org.apache.maven.scm.repository.ScmRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class GitBlameEngineTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  File workTree;
+  SonarGitInProcessScmProvider provider = new SonarGitInProcessScmProvider();
+
+  @Before
+  public void setUp() throws Exception {
+    assumeTrue(isGitAvailable());
+    workTree = temp.newFolder("repo");
+    git(null, 0, "init", "-q");
+  }
+
+  @After
+  public void tearDown() {
+    provider.close();
+  }
+
+  @Test
+  public void should_blame_history_with_merge_and_uncommitted_changes() throws Exception {
+    write("Foo.java", "a\nb\nc\nd\ne\n");
+    commit("alice", 1300000000L);
+    write("Foo.java", "a\nB\nc\nd\ne\nf\n");
+    commit("bob", 1310000000L);
+    git(null, 0, "checkout", "-q", "-b", "side");
+    write("Foo.java", "a\nB\nc\nD\ne\nf\n");
+    commit("carol", 1320000000L);
+    git(null, 0, "checkout", "-q", "-");
+    write("Foo.java", "A\nB\nc\nd\ne\nf\n");
+    commit("dave", 1330000000L);
+    git("erin", 1340000000L, "merge", "-q", "--no-edit", "side");
+    write("Foo.java", "A\nB\n  c\nD\ne\nf\n");
+    commit("frank", 1350000000L);
+    write("Foo.java", "A\nB\n  c\nD\nE\nf\n");
+
+    List<BlameLine> lines = engineBlame("Foo.java");
+
+    assertThat(authors(lines)).isEqualTo(new String[] {"dave@example.com", "bob@example.com", "alice@example.com", "carol@example.com",
+      GitBlameEngine.NOT_COMMITTED_EMAIL, "bob@example.com"});
+    assertThat(lines.get(0).getDate()).isEqualTo(new Date(1330000000L * 1000L));
+    assertThat(lines.get(4).getRevision()).isEqualTo(GitBlameEngine.NOT_COMMITTED_REVISION);
+    assertSameAsGitExe("Foo.java", lines);
+  }
+
+  @Test
+  public void should_blame_file_without_trailing_newline() throws Exception {
+    write("Foo.java", "a\nb");
+    commit("alice", 1300000000L);
+    write("Foo.java", "a\nc\nb");
+    commit("bob", 1310000000L);
+
+    List<BlameLine> lines = engineBlame("Foo.java");
+
+    assertThat(authors(lines)).isEqualTo(new String[] {"alice@example.com", "bob@example.com", "alice@example.com"});
+    assertSameAsGitExe("Foo.java", lines);
+  }
+
+  @Test
+  public void should_blame_all_files_in_a_single_pass() throws Exception {
+    write("Foo.java", "a\nb\n");
+    write("src/Bar.java", "x\ny\n");
+    commit("alice", 1300000000L);
+    write("src/Bar.java", "x\nY\n");
+    commit("bob", 1310000000L);
+    write("Foo.java", "a\nb\nc\n");
+    commit("carol", 1320000000L);
+    write("Baz.java", "z\n");
+
+    File foo = new File(workTree, "Foo.java");
+    File bar = new File(workTree, "src/Bar.java");
+    File baz = new File(workTree, "Baz.java");
+    Map<File, List<BlameLine>> blame = provider.blame(Arrays.asList(foo, bar, baz));
+
+    assertThat(blame.keySet()).containsOnly(foo, bar);
+    assertThat(authors(blame.get(foo))).isEqualTo(new String[] {"alice@example.com", "alice@example.com", "carol@example.com"});
+    assertThat(authors(blame.get(bar))).isEqualTo(new String[] {"alice@example.com", "bob@example.com"});
+    assertSameAsGitExe("Foo.java", blame.get(foo));
+    assertSameAsGitExe("src/Bar.java", blame.get(bar));
+  }
+
+  @Test
+  public void should_follow_rename_without_changes() throws Exception {
+    write("Foo.java", "a\nb\n");
+    commit("alice", 1300000000L);
+    git(null, 0, "mv", "Foo.java", "src/Bar.java");
+    commit("bob", 1310000000L);
+    write("src/Bar.java", "a\nb\nc\n");
+    commit("carol", 1320000000L);
+
+    List<BlameLine> lines = engineBlame("src/Bar.java");
+
+    assertThat(authors(lines)).isEqualTo(new String[] {"alice@example.com", "alice@example.com", "carol@example.com"});
+    assertSameAsGitExe("src/Bar.java", lines);
+  }
+
+  @Test
+  public void should_blame_with_git_exe_file_renamed_with_changes() throws Exception {
+    write("Foo.java", "a\nb\nc\nd\n");
+    commit("alice", 1300000000L);
+    git(null, 0, "mv", "Foo.java", "Bar.java");
+    write("Bar.java", "a\nb\nc\nD\n");
+    commit("bob", 1310000000L);
+
+    File bar = new File(workTree, "Bar.java");
+    assertThat(provider.getEngine(bar).blame(bar)).isNull();
+    assertThat(provider.blame(Arrays.asList(bar))).isEmpty();
+
+    List<BlameLine> lines = engineBlame("Bar.java");
+
+    assertThat(authors(lines)).isEqualTo(new String[] {"alice@example.com", "alice@example.com", "alice@example.com", "bob@example.com"});
+    assertSameAsGitExe("Bar.java", lines);
+  }
+
+  @Test
+  public void should_blame_file_added_without_deletion() throws Exception {
+    write("Foo.java", "a\n");
+    commit("alice", 1300000000L);
+    write("Bar.java", "a\n");
+    commit("bob", 1310000000L);
+
+    File bar = new File(workTree, "Bar.java");
+    List<BlameLine> lines = provider.getEngine(bar).blame(bar);
+
+    assertThat(authors(lines)).isEqualTo(new String[] {"bob@example.com"});
+    assertSameAsGitExe("Bar.java", lines);
+  }
+
+  @Test
+  public void should_blame_empty_file() throws Exception {
+    write("Empty.java", "");
+    commit("alice", 1300000000L);
+
+    assertThat(engineBlame("Empty.java")).isEmpty();
+  }
+
+  @Test
+  public void should_not_blame_uncommitted_file() throws Exception {
+    write("Foo.java", "a\n");
+    commit("alice", 1300000000L);
+    write("Bar.java", "a\n");
+
+    assertThat(engineBlame("Bar.java")).isNull();
+    assertThat(blame(provider, "Bar.java").isSuccess()).isFalse();
+  }
+
+  @Test
+  public void should_share_engine_of_work_tree() throws Exception {
+    File dir = new File(workTree, "src");
+    dir.mkdirs();
+
+    assertThat(provider.getEngine(new File(dir, "Foo.java"))).isSameAs(provider.getEngine(new File(workTree, "Bar.java")));
+    assertThat(provider.getEngine(new File(dir, "Foo.java")).getWorkTree()).isEqualTo(workTree.getCanonicalFile());
+  }
+
+  @Test
+  public void should_read_objects_with_processes_of_each_thread() throws Exception {
+    write("Foo.java", "a\n");
+    commit("alice", 1300000000L);
+    final GitObjectReader reader = new GitObjectReader(workTree);
+    try {
+      final String head = reader.resolve("HEAD");
+      final String[] otherHead = new String[1];
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            otherHead[0] = reader.resolve("HEAD");
+          } catch (IOException e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      };
+      thread.start();
+      thread.join();
+
+      assertThat(otherHead[0]).isEqualTo(head);
+      assertThat(new String(reader.read(head), Charsets.UTF_8)).contains("alice");
+      assertThat(reader.resolve("HEAD:Bar.java")).isNull();
+      assertThat(reader.size()).isEqualTo(2);
+    } finally {
+      reader.close();
+    }
+    assertThat(reader.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_split_lines_ignoring_whitespaces() {
+    assertThat(GitBlameEngine.lines("a b\r\n\tc\n\n".getBytes(Charsets.UTF_8))).isEqualTo(new String[] {"ab", "c", ""});
+    assertThat(GitBlameEngine.lines("a\nb".getBytes(Charsets.UTF_8))).isEqualTo(new String[] {"a", "b"});
+    assertThat(GitBlameEngine.lines(new byte[0])).isEmpty();
+  }
+
+  private List<BlameLine> engineBlame(String filename) throws Exception {
+    BlameScmResult result = blame(provider, filename);
+    return result.isSuccess() ? result.getLines() : null;
+  }
+
+  /**
+   * Verification against the git executable
+   */
+  private void assertSameAsGitExe(String filename, List<BlameLine> lines) throws Exception {
+    List<BlameLine> expected = blame(new SonarGitExeScmProvider(), filename).getLines();
+
+    assertThat(lines).hasSize(expected.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertThat(lines.get(i).getRevision()).isEqualTo(expected.get(i).getRevision());
+      assertThat(lines.get(i).getAuthor()).isEqualTo(expected.get(i).getAuthor());
+      assertThat(lines.get(i).getCommitter()).isEqualTo(expected.get(i).getCommitter());
+      if (!GitBlameEngine.NOT_COMMITTED_REVISION.equals(expected.get(i).getRevision())) {
+        assertThat(lines.get(i).getDate()).isEqualTo(expected.get(i).getDate());
+      }
+    }
+  }
+
+  private BlameScmResult blame(SonarGitExeScmProvider gitProvider, String filename) throws Exception {
+    ScmRepository repository = new ScmRepository(gitProvider.getScmType(), new GitScmProviderRepository(workTree.toURI().toString()));
+    BlameScmRequest request = new BlameScmRequest(repository, new ScmFileSet(workTree));
+    request.setFilename(filename);
+    return gitProvider.blame(request);
+  }
+
+  private static String[] authors(List<BlameLine> lines) {
+    String[] authors = new String[lines.size()];
+    for (int i = 0; i < authors.length; i++) {
+      authors[i] = lines.get(i).getAuthor();
+    }
+    return authors;
+  }
+
+  private void write(String filename, String content) throws IOException {
+    FileUtils.write(new File(workTree, filename), content, Charsets.UTF_8.name());
+  }
+
+  private void commit(String author, long time) throws Exception {
+    git(author, time, "add", "-A");
+    git(author, time, "commit", "-q", "-m", "by " + author);
+  }
+
+  private void git(String author, long time, String... args) throws Exception {
+    String[] command = new String[args.length + 1];
+    command[0] = "git";
+    System.arraycopy(args, 0, command, 1, args.length);
+    ProcessBuilder builder = new ProcessBuilder(command).directory(workTree).redirectErrorStream(true);
+    if (author != null) {
+      Map<String, String> env = builder.environment();
+      env.put("GIT_AUTHOR_NAME", author);
+      env.put("GIT_AUTHOR_EMAIL", author + "@example.com");
+      env.put("GIT_AUTHOR_DATE", "@" + time + " +0000");
+      env.put("GIT_COMMITTER_NAME", author);
+      env.put("GIT_COMMITTER_EMAIL", author + "@example.com");
+      env.put("GIT_COMMITTER_DATE", "@" + time + " +0000");
+    }
+    Process process = builder.start();
+    String output = IOUtils.toString(process.getInputStream());
+    if (process.waitFor() != 0) {
+      throw new IllegalStateException("git " + args[0] + " failed: " + output);
+    }
+  }
+
+  private static boolean isGitAvailable() {
+    try {
+      return new ProcessBuilder("git", "--version").start().waitFor() == 0;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.base.Charsets;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.maven.scm.CommandParameter;
+import org.apache.maven.scm.CommandParameters;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.command.blame.BlameScmResult;
+import org.apache.maven.scm.log.DefaultLog;
+import org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils;
+import org.apache.maven.scm.provider.git.repository.GitScmProviderRepository;
+import org.codehaus.plexus.util.cli.Commandline;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares <code>git blame --porcelain</code> and <code>git blame --incremental</code> on a generated repository:
+ * bytes read from git and wall time of the blame command.
+ * <p/>
+ * Usage: <code>GitBlameModesBenchmark [lines] [commits] [runs]</code>
+ */
+public final class GitBlameModesBenchmark {
+
+  private GitBlameModesBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int lineCount = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    int commitCount = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    int runs = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+    File workTree = createRepository(lineCount, commitCount);
+    try {
+      System.out.println(String.format("%d lines, %d commits, %d runs", lineCount, commitCount, runs));
+      for (boolean incremental : new boolean[] {false, true}) {
+        String mode = incremental ? "incremental" : "porcelain";
+        System.out.println(String.format("%-12s %,12d bytes read", mode, bytesRead(workTree, incremental)));
+      }
+      for (boolean incremental : new boolean[] {false, true, false, true}) {
+        String mode = incremental ? "incremental" : "porcelain";
+        System.out.println(String.format("%-12s %,8d ms per file", mode, wallTime(workTree, incremental, runs)));
+      }
+    } finally {
+      FileUtils.deleteQuietly(workTree);
+    }
+  }
+
+  static long bytesRead(File workTree, boolean incremental) throws Exception {
+    Commandline cl = incremental ? SonarGitBlameCommand.createIncrementalCommandLine(workTree, "Foo.java") : porcelainCommandLine(workTree, "Foo.java");
+    Process process = cl.execute();
+    CountingOutputStream counter = new CountingOutputStream(new NullOutputStream());
+    IOUtils.copy(process.getInputStream(), counter);
+    process.waitFor();
+    return counter.getByteCount();
+  }
+
+  static Commandline porcelainCommandLine(File workTree, String filename) {
+    // Same as GitBlameCommand#createCommandLine
+    Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workTree, "blame");
+    cl.createArg().setValue("--porcelain");
+    cl.createArg().setValue(filename);
+    cl.createArg().setValue("-w");
+    return cl;
+  }
+
+  static List<BlameLine> blame(File workTree, boolean incremental) throws Exception {
+    SonarGitBlameCommand command = new SonarGitBlameCommand(new GitBlameDictionary(), incremental);
+    command.setLogger(new DefaultLog());
+    CommandParameters parameters = new CommandParameters();
+    parameters.setString(CommandParameter.FILE, "Foo.java");
+    BlameScmResult result = (BlameScmResult) command.execute(new GitScmProviderRepository(workTree.toURI().toString()),
+      new ScmFileSet(workTree), parameters);
+    if (!result.isSuccess()) {
+      throw new IllegalStateException(result.getCommandOutput());
+    }
+    return result.getLines();
+  }
+
+  private static long wallTime(File workTree, boolean incremental, int runs) throws Exception {
+    long start = System.nanoTime();
+    for (int i = 0; i < runs; i++) {
+      blame(workTree, incremental);
+    }
+    return (System.nanoTime() - start) / runs / 1000000L;
+  }
+
+  /**
+   * Each commit changes a block of consecutive lines
+   */
+  static File createRepository(int lineCount, int commitCount) throws Exception {
+    File workTree = File.createTempFile("git-blame-benchmark", "");
+    workTree.delete();
+    workTree.mkdirs();
+    git(workTree, 0, "init", "-q");
+    String[] lines = new String[lineCount];
+    for (int i = 0; i < lineCount; i++) {
+      lines[i] = "    private static final String FIELD_" + i + " = \"some value of the field\";";
+    }
+    for (int commit = 0; commit < commitCount; commit++) {
+      int blockSize = Math.max(1, lineCount / commitCount);
+      for (int i = commit * blockSize; i < Math.min(lineCount, (commit + 1) * blockSize); i++) {
+        lines[i] = lines[i] + " // changed by " + commit;
+      }
+      StringBuilder content = new StringBuilder();
+      for (String line : lines) {
+        content.append(line).append('\n');
+      }
+      FileUtils.write(new File(workTree, "Foo.java"), content, Charsets.UTF_8.name());
+      git(workTree, commit, "add", "Foo.java");
+      git(workTree, commit, "commit", "-q", "-m", "commit " + commit);
+    }
+    return workTree;
+  }
+
+  private static void git(File workTree, int commit, String... args) throws Exception {
+    String[] command = new String[args.length + 1];
+    command[0] = "git";
+    System.arraycopy(args, 0, command, 1, args.length);
+    ProcessBuilder builder = new ProcessBuilder(command).directory(workTree).redirectErrorStream(true);
+    Map<String, String> env = builder.environment();
+    String author = "dev" + (commit % 7);
+    env.put("GIT_AUTHOR_NAME", author);
+    env.put("GIT_AUTHOR_EMAIL", author + "@example.com");
+    env.put("GIT_AUTHOR_DATE", "@" + (1300000000L + commit * 3600L) + " +0000");
+    env.put("GIT_COMMITTER_NAME", author);
+    env.put("GIT_COMMITTER_EMAIL", author + "@example.com");
+    env.put("GIT_COMMITTER_DATE", "@" + (1300000000L + commit * 3600L) + " +0000");
+    Process process = builder.start();
+    String output = IOUtils.toString(process.getInputStream());
+    if (process.waitFor() != 0) {
+      throw new IllegalStateException("git " + args[0] + " failed: " + output);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.maven.scm.log.DefaultLog;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class GitVersionTest {
+
+  @Test
+  public void should_parse_version() {
+    assertThat(GitVersion.parse("git version 2.39.5\n")).isEqualTo(new GitVersion(2, 39, 5));
+    assertThat(GitVersion.parse("git version 1.8.3.msysgit.0")).isEqualTo(new GitVersion(1, 8, 3));
+    assertThat(GitVersion.parse("git version 2.0")).isEqualTo(new GitVersion(2, 0, 0));
+    assertThat(GitVersion.parse("git version 2.39.3 (Apple Git-145)")).isEqualTo(new GitVersion(2, 39, 3));
+  }
+
+  @Test
+  public void should_not_parse_unknown_output() {
+    assertThat(GitVersion.parse("")).isNull();
+    assertThat(GitVersion.parse("git: command not found")).isNull();
+  }
+
+  @Test
+  public void should_compare_versions() {
+    assertThat(new GitVersion(1, 7, 10).isAtLeast(new GitVersion(1, 5, 0))).isTrue();
+    assertThat(new GitVersion(1, 5, 0).isAtLeast(new GitVersion(1, 5, 0))).isTrue();
+    assertThat(new GitVersion(1, 4, 9).isAtLeast(new GitVersion(1, 5, 0))).isFalse();
+    assertThat(new GitVersion(2, 0, 0).compareTo(new GitVersion(1, 9, 9))).isEqualTo(1);
+    assertThat(new GitVersion(1, 8, 3).toString()).isEqualTo("1.8.3");
+  }
+
+  @Test
+  public void should_probe_installed_git() {
+    GitVersion version = GitVersion.probe(new File("."), new DefaultLog());
+
+    if (version != null) {
+      assertThat(version.isAtLeast(new GitVersion(1, 0, 0))).isTrue();
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class HgCommandServerTest {
+
+  static final List<String> FAKE_SERVER = ImmutableList.of("python3", new File("src/test/resources/hg/fake-cmdserver.py").getAbsolutePath());
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  HgCommandServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    assumeTrue(isPythonAvailable());
+    server = HgCommandServer.start(FAKE_SERVER, temp.getRoot());
+  }
+
+  @After
+  public void tearDown() {
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  @Test
+  public void should_run_several_commands_with_the_same_process() throws Exception {
+    File file = temp.newFile("Foo.java");
+    FileUtils.write(file, "a\nb\n");
+
+    String pid = server.run("debugpid");
+    assertThat(server.run("annotate", "--", file.getAbsolutePath())).isEqualTo("1234567890ab 1373000000 -7200 godin0\n1234567890ab 1373000000 -7200 godin1\n");
+    assertThat(server.run("debugpid")).isEqualTo(pid);
+  }
+
+  @Test
+  public void should_keep_server_after_failed_command() throws Exception {
+    try {
+      server.run("annotate", "--", new File(temp.getRoot(), "Unknown.java").getAbsolutePath());
+      fail();
+    } catch (HgCommandServer.HgCommandException e) {
+      assertThat(e.getExitCode()).isEqualTo(255);
+      assertThat(e.getMessage()).isEqualTo("abort: Unknown.java: no such file in rev 1234567890ab");
+    }
+    assertThat(server.run("debugpid")).isNotEmpty();
+  }
+
+  @Test
+  public void should_fail_when_server_crashes() throws Exception {
+    File file = temp.newFile("crash.java");
+
+    try {
+      server.run("annotate", "--", file.getAbsolutePath());
+      fail();
+    } catch (IOException e) {
+      assertThat(e instanceof HgCommandServer.HgCommandException).isFalse();
+    }
+  }
+
+  @Test
+  public void should_not_start_other_process() throws Exception {
+    try {
+      HgCommandServer.start(ImmutableList.of("python3", "-c", "print('hello')"), temp.getRoot());
+      fail();
+    } catch (IOException e) {
+      // not a command server
+    }
+  }
+
+  static boolean isPythonAvailable() {
+    try {
+      return new ProcessBuilder("python3", "--version").start().waitFor() == 0;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+}
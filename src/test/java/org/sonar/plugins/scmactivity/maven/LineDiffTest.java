@@ -0,0 +1,91 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class LineDiffTest {
+
+  @Test
+  public void should_match_identical_lines() {
+    assertThat(LineDiff.match(lines("a", "b", "c"), lines("a", "b", "c"))).isEqualTo(new int[] {0, 1, 2});
+  }
+
+  @Test
+  public void should_not_match_added_lines() {
+    assertThat(LineDiff.match(lines("a", "c"), lines("a", "b", "c"))).isEqualTo(new int[] {0, -1, 1});
+    assertThat(LineDiff.match(new String[0], lines("a", "b"))).isEqualTo(new int[] {-1, -1});
+  }
+
+  @Test
+  public void should_match_around_removed_and_changed_lines() {
+    assertThat(LineDiff.match(lines("a", "b", "c", "d"), lines("a", "x", "d"))).isEqualTo(new int[] {0, -1, 3});
+    assertThat(LineDiff.match(lines("a", "b"), new String[0])).isEmpty();
+  }
+
+  @Test
+  public void should_find_a_longest_common_subsequence() {
+    Random random = new Random(42);
+    for (int i = 0; i < 500; i++) {
+      String[] a = randomLines(random);
+      String[] b = randomLines(random);
+
+      int[] matches = LineDiff.match(a, b);
+
+      int matched = 0;
+      int previous = -1;
+      for (int j = 0; j < b.length; j++) {
+        if (matches[j] >= 0) {
+          assertThat(matches[j]).isGreaterThan(previous);
+          assertThat(a[matches[j]]).isEqualTo(b[j]);
+          previous = matches[j];
+          matched++;
+        }
+      }
+      assertThat(matched).isEqualTo(lcsLength(a, b));
+    }
+  }
+
+  private static String[] lines(String... lines) {
+    return lines;
+  }
+
+  private static String[] randomLines(Random random) {
+    String[] lines = new String[random.nextInt(30)];
+    for (int i = 0; i < lines.length; i++) {
+      lines[i] = String.valueOf((char) ('a' + random.nextInt(4)));
+    }
+    return lines;
+  }
+
+  private static int lcsLength(String[] a, String[] b) {
+    int[][] lengths = new int[a.length + 1][b.length + 1];
+    for (int i = a.length - 1; i >= 0; i--) {
+      for (int j = b.length - 1; j >= 0; j--) {
+        lengths[i][j] = a[i].equals(b[j]) ? (lengths[i + 1][j + 1] + 1) : Math.max(lengths[i + 1][j], lengths[i][j + 1]);
+      }
+    }
+    return lengths[0][0];
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class PerThreadServersTest {
+
+  PerThreadServers<String, FakeServer> servers = new PerThreadServers<String, FakeServer>(RequestFailure.class) {
+    @Override
+    protected FakeServer start(String key) {
+      return new FakeServer(key);
+    }
+  };
+
+  @After
+  public void tearDown() {
+    servers.close();
+  }
+
+  @Test
+  public void should_reuse_server_of_thread() throws Exception {
+    FakeServer first = servers.run("a", new Echo());
+
+    assertThat(servers.run("a", new Echo())).isSameAs(first);
+    assertThat(servers.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_start_new_server_for_other_key() throws Exception {
+    FakeServer first = servers.run("a", new Echo());
+
+    FakeServer second = servers.run("b", new Echo());
+
+    assertThat(second.key).isEqualTo("b");
+    assertThat(first.closed).isTrue();
+    assertThat(servers.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_retry_once_after_crash() throws Exception {
+    Crashing request = new Crashing(1);
+
+    FakeServer server = servers.run("a", request);
+
+    assertThat(request.calls).isEqualTo(2);
+    assertThat(request.crashed.closed).isTrue();
+    assertThat(server.closed).isFalse();
+  }
+
+  @Test
+  public void should_keep_server_after_request_failure() throws Exception {
+    final FakeServer server = servers.run("a", new Echo());
+    try {
+      servers.run("a", new PerThreadServers.Request<FakeServer, Void>() {
+        public Void run(FakeServer s) throws IOException {
+          throw new RequestFailure();
+        }
+      });
+      fail();
+    } catch (RequestFailure e) {
+      assertThat(server.closed).isFalse();
+      assertThat(servers.size()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void should_not_retry_after_kill() throws Exception {
+    assumeTrue(!System.getProperty("os.name").startsWith("Windows"));
+    final Process process = new ProcessBuilder("sleep", "60").start();
+    Crashing request = new Crashing(1) {
+      @Override
+      void crash() {
+        // What the watch of BlameTimeouts does, without interrupting the thread
+        ChildProcesses.register(process);
+        ChildProcesses.kill(Thread.currentThread());
+      }
+    };
+
+    try {
+      servers.run("a", request);
+      fail();
+    } catch (EOFException e) {
+      assertThat(request.calls).isEqualTo(1);
+      assertThat(servers.size()).isEqualTo(0);
+    } finally {
+      ChildProcesses.unregister();
+    }
+  }
+
+  static class RequestFailure extends IOException {
+  }
+
+  static class FakeServer implements Closeable {
+    final String key;
+    boolean closed;
+
+    FakeServer(String key) {
+      this.key = key;
+    }
+
+    public void close() {
+      closed = true;
+    }
+  }
+
+  static class Echo implements PerThreadServers.Request<FakeServer, FakeServer> {
+    public FakeServer run(FakeServer server) {
+      return server;
+    }
+  }
+
+  static class Crashing implements PerThreadServers.Request<FakeServer, FakeServer> {
+    private final int crashes;
+    int calls;
+    FakeServer crashed;
+
+    Crashing(int crashes) {
+      this.crashes = crashes;
+    }
+
+    public FakeServer run(FakeServer server) throws IOException {
+      calls++;
+      if (calls <= crashes) {
+        crashed = server;
+        crash();
+        throw new EOFException("server stopped");
+      }
+      return server;
+    }
+
+    void crash() {
+      // the server exits
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class PerforceChangelistCacheTest {
+
+  PerforceChangelistCache cache = new PerforceChangelistCache();
+
+  @Test
+  public void should_describe_only_unknown_changelists() throws Exception {
+    RecordingLoader loader = new RecordingLoader();
+
+    cache.get(ImmutableSet.of("1", "2"), loader);
+    Map<String, BlameLine> changelists = cache.get(ImmutableSet.of("2", "3"), loader);
+
+    assertThat(changelists.get("2").getAuthor()).isEqualTo("user2");
+    assertThat(changelists.get("3").getAuthor()).isEqualTo("user3");
+    assertThat(loader.described).hasSize(2);
+    assertThat(loader.described.get(1)).isEqualTo(Collections.singletonList("3"));
+  }
+
+  @Test
+  public void should_not_keep_changelists_which_are_not_described() throws Exception {
+    PerforceChangelistCache.Loader failing = new PerforceChangelistCache.Loader() {
+      public Map<String, BlameLine> describe(List<String> changelists) throws ScmException {
+        return ImmutableMap.of("1", new BlameLine(new Date(1000L), "1", "user1"));
+      }
+    };
+
+    try {
+      cache.get(ImmutableSet.of("1", "2"), failing);
+      fail();
+    } catch (ScmException e) {
+      assertThat(e.getMessage()).contains("changelist 2");
+    }
+    assertThat(cache.size()).isEqualTo(1);
+
+    assertThat(cache.get(ImmutableSet.of("2"), new RecordingLoader()).get("2").getAuthor()).isEqualTo("user2");
+  }
+
+  @Test
+  public void should_not_keep_changelists_when_description_fails() throws Exception {
+    try {
+      cache.get(ImmutableSet.of("1"), new PerforceChangelistCache.Loader() {
+        public Map<String, BlameLine> describe(List<String> changelists) throws ScmException {
+          throw new ScmException("p4 failed");
+        }
+      });
+      fail();
+    } catch (ScmException e) {
+      assertThat(e.getMessage()).isEqualTo("p4 failed");
+    }
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_wait_for_changelists_described_by_another_thread() throws Exception {
+    final CountDownLatch describing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final RecordingLoader loader = new RecordingLoader() {
+      @Override
+      public Map<String, BlameLine> describe(List<String> changelists) throws ScmException {
+        describing.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new ScmException("interrupted", e);
+        }
+        return super.describe(changelists);
+      }
+    };
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Map<String, BlameLine>> first = executor.submit(new Callable<Map<String, BlameLine>>() {
+        public Map<String, BlameLine> call() throws Exception {
+          return cache.get(ImmutableSet.of("1"), loader);
+        }
+      });
+      describing.await();
+      release.countDown();
+
+      assertThat(cache.get(ImmutableSet.of("1"), loader).get("1").getAuthor()).isEqualTo("user1");
+      assertThat(first.get().get("1").getAuthor()).isEqualTo("user1");
+      assertThat(loader.described).hasSize(1);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void should_clear() throws Exception {
+    cache.get(ImmutableSet.of("1"), new RecordingLoader());
+
+    cache.clear();
+
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  static class RecordingLoader implements PerforceChangelistCache.Loader {
+    final List<List<String>> described = Collections.synchronizedList(Lists.<List<String>>newArrayList());
+
+    public Map<String, BlameLine> describe(List<String> changelists) throws ScmException {
+      described.add(changelists);
+      ImmutableMap.Builder<String, BlameLine> result = ImmutableMap.builder();
+      for (String changelist : changelists) {
+        result.put(changelist, new BlameLine(new Date(Long.parseLong(changelist) * 1000L), changelist, "user" + changelist));
+      }
+      return result.build();
+    }
+  }
+}
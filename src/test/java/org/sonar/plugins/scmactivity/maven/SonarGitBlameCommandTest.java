@@ -0,0 +1,81 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assume.assumeNotNull;
+
+public class SonarGitBlameCommandTest {
+
+  static File workTree;
+
+  @BeforeClass
+  public static void createRepository() throws Exception {
+    try {
+      workTree = GitBlameModesBenchmark.createRepository(200, 10);
+    } catch (Exception e) {
+      // git is not installed
+      workTree = null;
+    }
+  }
+
+  @AfterClass
+  public static void deleteRepository() {
+    FileUtils.deleteQuietly(workTree);
+  }
+
+  @Test
+  public void should_return_same_lines_in_porcelain_and_incremental_modes() throws Exception {
+    assumeNotNull(workTree);
+
+    List<BlameLine> porcelain = GitBlameModesBenchmark.blame(workTree, false);
+    List<BlameLine> incremental = GitBlameModesBenchmark.blame(workTree, true);
+
+    assertThat(incremental).hasSize(200);
+    assertThat(porcelain).hasSize(200);
+    for (int i = 0; i < porcelain.size(); i++) {
+      assertThat(incremental.get(i).getRevision()).isEqualTo(porcelain.get(i).getRevision());
+      assertThat(incremental.get(i).getAuthor()).isEqualTo(porcelain.get(i).getAuthor());
+      assertThat(incremental.get(i).getCommitter()).isEqualTo(porcelain.get(i).getCommitter());
+      assertThat(incremental.get(i).getDate()).isEqualTo(porcelain.get(i).getDate());
+    }
+    assertThat(incremental.get(0).getAuthor()).isEqualTo("dev0@example.com");
+    assertThat(incremental.get(40).getAuthor()).isEqualTo("dev2@example.com");
+  }
+
+  @Test
+  public void should_read_fewer_bytes_in_incremental_mode() throws Exception {
+    assumeNotNull(workTree);
+
+    long porcelain = GitBlameModesBenchmark.bytesRead(workTree, false);
+    long incremental = GitBlameModesBenchmark.bytesRead(workTree, true);
+
+    assertThat(incremental * 3).isLessThan(porcelain);
+  }
+}
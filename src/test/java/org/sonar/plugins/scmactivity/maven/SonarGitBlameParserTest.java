@@ -0,0 +1,240 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.base.Charsets;
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.log.DefaultLog;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Date;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class SonarGitBlameParserTest {
+
+  GitBlameDictionary dictionary = new GitBlameDictionary(Charsets.UTF_8);
+
+  @Test
+  public void should_parse_like_consumer() throws Exception {
+    for (String name : new String[] {"git-blame.out", "git-blame-3.out", "git-blame-different-author.out", "git-blame-new-file.out", "git-blame-empty.out"}) {
+      byte[] output = FileUtils.readFileToByteArray(new File("src/test/resources/git/blame/" + name));
+
+      List<BlameLine> expected = consume(output);
+      List<BlameLine> lines = parse(output);
+
+      assertThat(lines).hasSize(expected.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertThat(lines.get(i).getRevision()).isEqualTo(expected.get(i).getRevision());
+        assertThat(lines.get(i).getAuthor()).isEqualTo(expected.get(i).getAuthor());
+        assertThat(lines.get(i).getCommitter()).isEqualTo(expected.get(i).getCommitter());
+        assertThat(lines.get(i).getDate()).isEqualTo(expected.get(i).getDate());
+      }
+    }
+  }
+
+  @Test
+  public void should_share_commits_across_files() throws Exception {
+    List<BlameLine> first = parse(FileUtils.readFileToByteArray(new File("src/test/resources/git/blame/git-blame.out")));
+    List<BlameLine> second = parse(FileUtils.readFileToByteArray(new File("src/test/resources/git/blame/git-blame-3.out")));
+
+    assertThat(first.get(11).getRevision()).isEqualTo("e670863b2b03e158c59f34af1fee20f91b2bd852");
+    assertThat(second.get(11)).isSameAs(first.get(11));
+    assertThat(second.get(0)).isSameAs(second.get(1));
+  }
+
+  @Test
+  public void should_parse_commit_data() throws Exception {
+    String output = "1234567890123456789012345678901234567890 1 1 2\r\n"
+      + "author Dave\r\n"
+      + "author-mail <déveloper@company.net>\r\n"
+      + "author-time 1000\r\n"
+      + "committer Other\r\n"
+      + "committer-mail <other@company.net>\r\n"
+      + "committer-time 1332152193\r\n"
+      + "\tfirst line\r\n"
+      + "1234567890123456789012345678901234567890 2 2\r\n"
+      + "\tsecond line";
+
+    List<BlameLine> lines = parse(output.getBytes(Charsets.UTF_8));
+
+    assertThat(lines).hasSize(2);
+    assertThat(lines.get(0).getRevision()).isEqualTo("1234567890123456789012345678901234567890");
+    assertThat(lines.get(0).getAuthor()).isEqualTo("déveloper@company.net");
+    assertThat(lines.get(0).getCommitter()).isEqualTo("other@company.net");
+    assertThat(lines.get(0).getDate()).isEqualTo(new Date(1332152193000L));
+    assertThat(lines.get(1)).isSameAs(lines.get(0));
+  }
+
+  @Test
+  public void should_expand_incremental_groups_like_porcelain() throws Exception {
+    List<BlameLine> expected = parse(FileUtils.readFileToByteArray(new File("src/test/resources/git/blame/git-blame-incremental-porcelain.out")));
+    List<BlameLine> lines = new SonarGitBlameParser(new GitBlameDictionary(Charsets.UTF_8))
+      .parseIncremental(new ByteArrayInputStream(FileUtils.readFileToByteArray(new File("src/test/resources/git/blame/git-blame-incremental.out"))));
+
+    assertThat(lines).hasSize(6);
+    for (int i = 0; i < expected.size(); i++) {
+      assertThat(lines.get(i).getRevision()).isEqualTo(expected.get(i).getRevision());
+      assertThat(lines.get(i).getAuthor()).isEqualTo(expected.get(i).getAuthor());
+      assertThat(lines.get(i).getCommitter()).isEqualTo(expected.get(i).getCommitter());
+    }
+    assertThat(lines.get(1).getAuthor()).isEqualTo("another-email@struct.at");
+    assertThat(lines.get(1).getDate()).isEqualTo(new Date(1196292561000L));
+    assertThat(lines.get(3).getAuthor()).isEqualTo("not.committed.yet");
+    assertThat(lines.get(5)).isSameAs(lines.get(1));
+  }
+
+  @Test
+  public void should_not_share_uncommitted_lines_between_files() throws Exception {
+    String zero = "0000000000000000000000000000000000000000";
+    List<BlameLine> first = parse((zero + " 1 1 1\ncommitter-mail <not.committed.yet>\ncommitter-time 1000\n\tfoo\n").getBytes(Charsets.UTF_8));
+    List<BlameLine> second = parse((zero + " 1 1 1\ncommitter-mail <not.committed.yet>\ncommitter-time 2000\n\tbar\n").getBytes(Charsets.UTF_8));
+
+    assertThat(first.get(0).getDate()).isEqualTo(new Date(1000000L));
+    assertThat(second.get(0).getDate()).isEqualTo(new Date(2000000L));
+    assertThat(dictionary.getCommit(zero.getBytes(Charsets.UTF_8), 0)).isNull();
+  }
+
+  @Test
+  public void should_keep_commits_of_file_when_dictionary_is_cleared() throws Exception {
+    String output = "1234567890123456789012345678901234567890 1 1 1\n"
+      + "committer-mail <foo@bar.com>\n"
+      + "committer-time 1000\n"
+      + "filename Foo.java\n"
+      + "0000000000000000000000000000000000000000 2 2 1\n"
+      + "committer-mail <not.committed.yet>\n"
+      + "committer-time 2000\n"
+      + "filename Foo.java\n"
+      + "1234567890123456789012345678901234567890 3 3 1\n"
+      + "filename Foo.java\n"
+      + "0000000000000000000000000000000000000000 4 4 1\n"
+      + "filename Foo.java\n";
+    GitBlameDictionary cleared = new GitBlameDictionary(Charsets.UTF_8) {
+      @Override
+      public synchronized BlameLine getCommit(byte[] bytes, int offset) {
+        return null;
+      }
+    };
+
+    List<BlameLine> lines = new SonarGitBlameParser(cleared).parseIncremental(new ByteArrayInputStream(output.getBytes(Charsets.UTF_8)));
+
+    assertThat(lines.get(2)).isSameAs(lines.get(0));
+    assertThat(lines.get(2).getCommitter()).isEqualTo("foo@bar.com");
+    assertThat(lines.get(3)).isSameAs(lines.get(1));
+    assertThat(lines.get(3).getDate()).isEqualTo(new Date(2000000L));
+  }
+
+  @Test
+  public void should_parse_empty_incremental_output() throws Exception {
+    assertThat(new SonarGitBlameParser(dictionary).parseIncremental(new ByteArrayInputStream(new byte[0]))).isEmpty();
+  }
+
+  @Test(expected = IOException.class)
+  public void should_fail_on_missing_incremental_group() throws Exception {
+    String output = "1234567890123456789012345678901234567890 1 2 1\n"
+      + "committer-time 1332152193\n"
+      + "filename Foo.java\n";
+
+    new SonarGitBlameParser(dictionary).parseIncremental(new ByteArrayInputStream(output.getBytes(Charsets.UTF_8)));
+  }
+
+  @Test(expected = IOException.class)
+  public void should_fail_on_unexpected_incremental_output() throws Exception {
+    new SonarGitBlameParser(dictionary).parseIncremental(new ByteArrayInputStream("usage: git blame [<options>]\n".getBytes(Charsets.UTF_8)));
+  }
+
+  @Test(expected = IOException.class)
+  public void should_fail_on_unexpected_output() throws Exception {
+    parse("fatal: no such path 'foo' in HEAD\n".getBytes(Charsets.UTF_8));
+  }
+
+  @Test
+  public void should_allocate_less_than_consumer() throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+    byte[] output = largeOutput(20000, 50);
+    long threadId = Thread.currentThread().getId();
+
+    // warm-up
+    consume(output);
+    parse(output);
+
+    long start = allocations.getThreadAllocatedBytes(threadId);
+    consume(output);
+    long consumerBytes = allocations.getThreadAllocatedBytes(threadId) - start;
+
+    start = allocations.getThreadAllocatedBytes(threadId);
+    parse(output);
+    long parserBytes = allocations.getThreadAllocatedBytes(threadId) - start;
+
+    assertThat(parserBytes * 5).isLessThan(consumerBytes);
+  }
+
+  private List<BlameLine> parse(byte[] output) throws IOException {
+    return new SonarGitBlameParser(dictionary).parse(new ByteArrayInputStream(output));
+  }
+
+  /**
+   * Same decoding as plexus CommandLineUtils
+   */
+  private static List<BlameLine> consume(byte[] output) throws IOException {
+    SonarGitBlameConsumer consumer = new SonarGitBlameConsumer(new DefaultLog());
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(output), Charsets.UTF_8));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      consumer.consumeLine(line);
+    }
+    return consumer.getLines();
+  }
+
+  private static byte[] largeOutput(int lineCount, int commitCount) {
+    StringBuilder output = new StringBuilder();
+    for (int line = 1; line <= lineCount; line++) {
+      int commit = line % commitCount;
+      output.append(String.format("%040d", commit)).append(' ').append(line).append(' ').append(line).append('\n');
+      if (line <= commitCount) {
+        output.append("author Dev ").append(commit).append('\n')
+          .append("author-mail <dev").append(commit).append("@company.net>\n")
+          .append("author-time 1332152193\n")
+          .append("author-tz +0100\n")
+          .append("committer Dev ").append(commit).append('\n')
+          .append("committer-mail <dev").append(commit).append("@company.net>\n")
+          .append("committer-time 1332152193\n")
+          .append("committer-tz +0100\n")
+          .append("summary Change ").append(commit).append('\n')
+          .append("filename Foo.java\n");
+      }
+      output.append("\t    private static final String FIELD_").append(line).append(" = \"some value of the field\";\n");
+    }
+    return output.toString().getBytes(Charsets.UTF_8);
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assume.assumeNotNull;
+import static org.junit.Assume.assumeTrue;
+
+public class SonarGitExeScmProviderTest {
+
+  SonarGitExeScmProvider provider = new SonarGitExeScmProvider();
+  File workTree;
+  File file;
+
+  @Before
+  public void createRepository() throws Exception {
+    try {
+      workTree = GitBlameModesBenchmark.createRepository(200, 10);
+    } catch (Exception e) {
+      // git is not installed
+      workTree = null;
+    }
+    file = new File(workTree, "Foo.java");
+  }
+
+  @After
+  public void deleteRepository() {
+    FileUtils.deleteQuietly(workTree);
+  }
+
+  @Test
+  public void should_reblame_changed_lines_only() throws Exception {
+    assumeNotNull(workTree);
+    assumeTrue(provider.isRangedBlameSupported());
+    String head = head();
+    List<BlameLine> previous = GitBlameModesBenchmark.blame(workTree, false);
+
+    List<String> lines = new ArrayList<String>(FileUtils.readLines(file));
+    lines.set(49, "changed");
+    lines.set(50, "changed");
+    lines.add(100, "added");
+    lines.remove(150);
+    // Only whitespaces are changed
+    lines.set(170, "  " + lines.get(170));
+    FileUtils.writeLines(file, lines);
+
+    List<DiffHunk> hunks = provider.diff(file, head);
+    List<BlameLine> reblamed = DiffHunk.apply(previous, hunks, provider.blame(file, hunks));
+    List<BlameLine> expected = GitBlameModesBenchmark.blame(workTree, false);
+
+    assertThat(hunks).hasSize(4);
+    assertThat(reblamed).hasSize(expected.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertThat(reblamed.get(i).getRevision()).as("line " + (i + 1)).isEqualTo(expected.get(i).getRevision());
+      assertThat(reblamed.get(i).getAuthor()).isEqualTo(expected.get(i).getAuthor());
+      assertThat(reblamed.get(i).getDate()).isEqualTo(expected.get(i).getDate());
+    }
+  }
+
+  @Test
+  public void should_not_blame_when_lines_are_only_removed() throws Exception {
+    assumeNotNull(workTree);
+    String head = head();
+
+    List<String> lines = new ArrayList<String>(FileUtils.readLines(file));
+    lines.remove(10);
+    FileUtils.writeLines(file, lines);
+
+    List<DiffHunk> hunks = provider.diff(file, head);
+
+    assertThat(hunks).isEqualTo(Arrays.asList(new DiffHunk(11, 1, 10, 0)));
+    assertThat(provider.blame(file, hunks)).isEmpty();
+  }
+
+  @Test
+  public void should_find_no_change_since_head() throws Exception {
+    assumeNotNull(workTree);
+
+    assertThat(provider.diff(file, head())).isEmpty();
+  }
+
+  @Test(expected = ScmException.class)
+  public void should_fail_to_diff_since_unknown_revision() throws Exception {
+    assumeNotNull(workTree);
+
+    provider.diff(file, "0123456789012345678901234567890123456789");
+  }
+
+  private String head() throws Exception {
+    Process process = new ProcessBuilder("git", "rev-parse", "HEAD").directory(workTree).start();
+    String output = IOUtils.toString(process.getInputStream()).trim();
+    process.waitFor();
+    return output;
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.command.blame.BlameScmResult;
+import org.apache.maven.scm.provider.hg.repository.HgScmProviderRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class SonarHgCommandServerScmProviderTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  SonarHgCommandServerScmProvider provider = new SonarHgCommandServerScmProvider(HgCommandServerTest.FAKE_SERVER);
+  File root;
+
+  @Before
+  public void setUp() throws Exception {
+    root = temp.newFolder("repo");
+    new File(root, ".hg").mkdir();
+  }
+
+  @After
+  public void tearDown() {
+    provider.close();
+  }
+
+  @Test
+  public void should_parse_templated_annotate() {
+    List<BlameLine> lines = SonarHgCommandServerScmProvider.parse("1234567890ab 1373000000 -7200 godin\nabcdefabcdef 1000 0 \n");
+
+    assertThat(lines).hasSize(2);
+    assertThat(lines.get(0).getRevision()).isEqualTo("1234567890ab");
+    assertThat(lines.get(0).getAuthor()).isEqualTo("godin");
+    assertThat(lines.get(0).getDate()).isEqualTo(new Date(1373000000000L));
+    assertThat(lines.get(1).getAuthor()).isEqualTo("");
+  }
+
+  @Test
+  public void should_blame_with_command_server() throws Exception {
+    assumeTrue(HgCommandServerTest.isPythonAvailable());
+    File file = file("src/Foo.java", "a\nb\n");
+
+    BlameScmResult result = new SonarHgCommandServerBlameCommand(provider)
+      .executeBlameCommand(new HgScmProviderRepository("scm:hg:" + root), new ScmFileSet(file.getParentFile()), "Foo.java");
+
+    assertThat(result.isSuccess()).isTrue();
+    assertThat(result.getLines()).hasSize(2);
+    assertThat(result.getLines().get(1).getAuthor()).isEqualTo("godin1");
+    assertThat(provider.getServerCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_not_blame_file_outside_of_repository() throws Exception {
+    File dir = temp.newFolder("other");
+
+    BlameScmResult result = new SonarHgCommandServerBlameCommand(provider)
+      .executeBlameCommand(new HgScmProviderRepository("scm:hg:" + root), new ScmFileSet(dir), "Foo.java");
+
+    assertThat(result.isSuccess()).isFalse();
+    assertThat(provider.getServerCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_report_failed_annotate() throws Exception {
+    assumeTrue(HgCommandServerTest.isPythonAvailable());
+
+    BlameScmResult result = new SonarHgCommandServerBlameCommand(provider)
+      .executeBlameCommand(new HgScmProviderRepository("scm:hg:" + root), new ScmFileSet(root), "Unknown.java");
+
+    assertThat(result.isSuccess()).isFalse();
+    assertThat(result.getCommandOutput()).contains("no such file");
+    assertThat(provider.getServerCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_restart_crashed_server() throws Exception {
+    assumeTrue(HgCommandServerTest.isPythonAvailable());
+    File file = file("crash-once.java", "a\n");
+
+    assertThat(provider.blame(file)).hasSize(1);
+    assertThat(provider.getServerCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_fail_when_server_crashes_again() throws Exception {
+    assumeTrue(HgCommandServerTest.isPythonAvailable());
+    File crash = file("crash.java", "a\n");
+
+    try {
+      provider.blame(crash);
+      fail();
+    } catch (IOException e) {
+      assertThat(provider.getServerCount()).isEqualTo(0);
+    }
+    assertThat(provider.blame(file("Foo.java", "a\n"))).hasSize(1);
+  }
+
+  @Test
+  public void should_start_one_server_per_thread_and_stop_them() throws Exception {
+    assumeTrue(HgCommandServerTest.isPythonAvailable());
+    final File file = file("Foo.java", "a\n");
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      assertThat(provider.blame(file)).hasSize(1);
+      assertThat(executor.submit(new Callable<List<BlameLine>>() {
+        public List<BlameLine> call() throws Exception {
+          return provider.blame(file);
+        }
+      }).get()).hasSize(1);
+      assertThat(provider.blame(file)).hasSize(1);
+    } finally {
+      executor.shutdown();
+    }
+    assertThat(provider.getServerCount()).isEqualTo(2);
+
+    provider.close();
+
+    assertThat(provider.getServerCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_blame_with_mercurial() throws Exception {
+    assumeTrue(isHgAvailable());
+    provider = new SonarHgCommandServerScmProvider();
+    File repo = temp.newFolder("hg");
+    hg(repo, "init");
+    File file = new File(repo, "Foo.java");
+    FileUtils.write(file, "a\nb\n");
+    hg(repo, "add", "Foo.java");
+    hg(repo, "commit", "-m", "init", "-u", "Godin <godin@example.com>");
+
+    List<BlameLine> lines = provider.blame(file);
+
+    assertThat(lines).hasSize(2);
+    assertThat(lines.get(0).getAuthor()).isEqualTo("godin");
+    assertThat(lines.get(0).getRevision()).hasSize(12);
+  }
+
+  private File file(String path, String content) throws IOException {
+    File file = new File(root, path);
+    FileUtils.write(file, content);
+    return file;
+  }
+
+  private static boolean isHgAvailable() {
+    try {
+      return new ProcessBuilder("hg", "--version").start().waitFor() == 0;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  private static void hg(File dir, String... args) throws Exception {
+    String[] command = new String[args.length + 1];
+    command[0] = "hg";
+    System.arraycopy(args, 0, command, 1, args.length);
+    assertThat(new ProcessBuilder(command).directory(dir).start().waitFor()).isEqualTo(0);
+  }
+}
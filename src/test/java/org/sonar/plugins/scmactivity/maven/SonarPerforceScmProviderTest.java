@@ -0,0 +1,201 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.command.blame.BlameScmResult;
+import org.apache.maven.scm.provider.perforce.repository.PerforceScmProviderRepository;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class SonarPerforceScmProviderTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  SonarPerforceScmProvider provider;
+  SonarPerforceScmProviderRepository repository = new SonarPerforceScmProviderRepository(
+    new PerforceScmProviderRepository("perforce", 1666, "//depot/project", "godin", null), "ws");
+  File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    assumeTrue(HgCommandServerTest.isPythonAvailable());
+    File p4 = new File("src/test/resources/perforce/fake-p4.py").getAbsoluteFile();
+    p4.setExecutable(true);
+    provider = new SonarPerforceScmProvider(p4.getPath());
+    dir = temp.newFolder("project");
+  }
+
+  @Test
+  public void should_blame_files_of_directory_with_a_single_annotate() throws Exception {
+    File a = file("A.java", "10", "20", "10");
+    File b = file("B@2.java", "20", "30");
+
+    Map<File, List<BlameLine>> result = provider.blame(repository, dir, ImmutableList.of(a, b));
+
+    assertThat(result).hasSize(2);
+    List<BlameLine> lines = result.get(a);
+    assertThat(lines).hasSize(3);
+    assertThat(lines.get(0).getRevision()).isEqualTo("10");
+    assertThat(lines.get(0).getAuthor()).isEqualTo("user10");
+    assertThat(lines.get(0).getDate()).isEqualTo(new Date(1370000010000L));
+    assertThat(lines.get(1).getAuthor()).isEqualTo("user20");
+    assertThat(result.get(b).get(1).getAuthor()).isEqualTo("user30");
+    assertThat(log()).isEqualTo(Arrays.asList("annotate ws 2", "describe ws 3"));
+  }
+
+  @Test
+  public void should_describe_changelists_once() throws Exception {
+    File a = file("A.java", "10", "20");
+    File b = file("B.java", "20", "30");
+
+    provider.blame(repository, dir, ImmutableList.of(a));
+    provider.blame(repository, dir, ImmutableList.of(b));
+    provider.blame(repository, dir, ImmutableList.of(a, b));
+
+    assertThat(log()).isEqualTo(Arrays.asList("annotate ws 1", "describe ws 2", "annotate ws 1", "describe ws 1", "annotate ws 2"));
+  }
+
+  @Test
+  public void should_describe_changelists_by_chunks() throws Exception {
+    String[] changelists = new String[SonarPerforceScmProvider.MAX_DESCRIBED_CHANGELISTS + 1];
+    for (int i = 0; i < changelists.length; i++) {
+      changelists[i] = String.valueOf(i + 1);
+    }
+    File a = file("A.java", changelists);
+
+    assertThat(provider.blame(repository, dir, ImmutableList.of(a)).get(a)).hasSize(changelists.length);
+
+    assertThat(log()).isEqualTo(Arrays.asList("annotate ws 1", "describe ws 100", "describe ws 1"));
+  }
+
+  @Test
+  public void should_describe_changelists_again_after_close() throws Exception {
+    File a = file("A.java", "10");
+
+    provider.blame(repository, dir, ImmutableList.of(a));
+    provider.close();
+    provider.blame(repository, dir, ImmutableList.of(a));
+
+    assertThat(log()).isEqualTo(Arrays.asList("annotate ws 1", "describe ws 1", "annotate ws 1", "describe ws 1"));
+  }
+
+  @Test
+  public void should_not_return_files_which_can_not_be_annotated() throws Exception {
+    File a = file("A.java", "10");
+
+    Map<File, List<BlameLine>> result = provider.blame(repository, dir, ImmutableList.of(a, new File(dir, "Unknown.java")));
+
+    assertThat(result.keySet()).containsOnly(a);
+  }
+
+  @Test
+  public void should_fail_when_no_file_can_be_annotated() throws Exception {
+    try {
+      provider.blame(repository, dir, ImmutableList.of(new File(dir, "Unknown.java")));
+      fail();
+    } catch (SonarPerforceScmProvider.PerforceCommandException e) {
+      assertThat(e.getExitCode()).isEqualTo(1);
+      assertThat(e.getMessage()).contains("Unknown.java - no such file(s).");
+    }
+  }
+
+  @Test
+  public void should_fail_when_changelist_can_not_be_described() throws Exception {
+    File a = file("A.java", "10", "666");
+
+    try {
+      provider.blame(repository, dir, ImmutableList.of(a));
+      fail();
+    } catch (ScmException e) {
+      assertThat(e.getMessage()).contains("666");
+    }
+    // Described changelists are kept
+    assertThat(provider.getChangelists().size()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_blame_single_file() throws Exception {
+    file("A.java", "10", "20");
+
+    BlameScmResult result = new SonarPerforceBlameCommand(provider).executeBlameCommand(repository, new ScmFileSet(dir), "A.java");
+
+    assertThat(result.isSuccess()).isTrue();
+    assertThat(result.getLines()).hasSize(2);
+    assertThat(result.getLines().get(1).getAuthor()).isEqualTo("user20");
+  }
+
+  @Test
+  public void should_report_failed_annotate() throws Exception {
+    BlameScmResult result = new SonarPerforceBlameCommand(provider).executeBlameCommand(repository, new ScmFileSet(dir), "Unknown.java");
+
+    assertThat(result.isSuccess()).isFalse();
+    assertThat(result.getCommandOutput()).contains("no such file");
+  }
+
+  @Test
+  public void should_escape_names() {
+    assertThat(SonarPerforceScmProvider.escape("a%b@c#d*e.java")).isEqualTo("a%25b%40c%23d%2Ae.java");
+    assertThat(SonarPerforceScmProvider.unescape("a%25b%40c%23d%2Ae.java")).isEqualTo("a%b@c#d*e.java");
+    assertThat(SonarPerforceScmProvider.unescape(SonarPerforceScmProvider.escape("%40.java"))).isEqualTo("%40.java");
+  }
+
+  @Test
+  public void should_parse_tagged_describe() {
+    SonarPerforceScmProvider.DescribeConsumer consumer = new SonarPerforceScmProvider.DescribeConsumer();
+    for (String line : Arrays.asList("... change 12", "... user godin", "... client ws", "... time 1370000000", "... desc Fix",
+      "... time of the description", "", "... change 13", "... user julien", "... time")) {
+      consumer.consumeLine(line);
+    }
+
+    assertThat(consumer.getChangelists()).hasSize(1);
+    assertThat(consumer.getChangelists().get("12").getAuthor()).isEqualTo("godin");
+    assertThat(consumer.getChangelists().get("12").getDate()).isEqualTo(new Date(1370000000000L));
+  }
+
+  private File file(String name, String... lines) throws IOException {
+    File file = new File(dir, name);
+    FileUtils.writeLines(file, Arrays.asList(lines));
+    return file;
+  }
+
+  private List<String> log() throws IOException {
+    return Lists.newArrayList(FileUtils.readLines(new File(dir, "p4.log")));
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.command.blame.BlameScmResult;
+import org.apache.maven.scm.provider.svn.repository.SvnScmProviderRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tmatesoft.svn.core.SVNDepth;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+import org.tmatesoft.svn.core.wc.SVNClientManager;
+import org.tmatesoft.svn.core.wc.SVNRevision;
+import org.tmatesoft.svn.core.wc.SVNWCUtil;
+
+import java.io.File;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class SonarSvnInProcessScmProviderTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  SonarSvnInProcessScmProvider provider = new SonarSvnInProcessScmProvider();
+  SVNURL url;
+  File workingCopy;
+
+  @Before
+  public void setUp() throws Exception {
+    url = SVNRepositoryFactory.createLocalRepository(temp.newFolder("repo"), true, false);
+    workingCopy = new File(temp.getRoot(), "wc");
+    client("godin").getUpdateClient().doCheckout(url, workingCopy, SVNRevision.UNDEFINED, SVNRevision.HEAD, SVNDepth.INFINITY, false);
+  }
+
+  @After
+  public void tearDown() {
+    provider.close();
+  }
+
+  @Test
+  public void should_blame_revision_of_working_copy() throws Exception {
+    File src = new File(workingCopy, "src");
+    File file = new File(src, "Foo.java");
+    FileUtils.write(file, "a\nb\n");
+    client("godin").getWCClient().doAdd(src, false, false, false, SVNDepth.INFINITY, false, false);
+    commit("godin", src);
+    FileUtils.write(file, "a\nc\nd\n");
+    commit("simon", file);
+    // Not committed
+    FileUtils.write(file, "changed\na\nc\nd\n");
+
+    List<BlameLine> lines = provider.getEngine().blame(file, null, null);
+
+    assertThat(lines).hasSize(3);
+    assertThat(lines.get(0).getRevision()).isEqualTo("1");
+    assertThat(lines.get(0).getAuthor()).isEqualTo("godin");
+    assertThat(lines.get(1).getRevision()).isEqualTo("2");
+    assertThat(lines.get(1).getAuthor()).isEqualTo("simon");
+    assertThat(lines.get(2).getDate()).isNotNull();
+  }
+
+  @Test
+  public void should_reuse_sessions() throws Exception {
+    File foo = new File(workingCopy, "Foo.java");
+    File bar = new File(workingCopy, "Bar.java");
+    FileUtils.write(foo, "a\n");
+    FileUtils.write(bar, "b\n");
+    client("godin").getWCClient().doAdd(new File[] {foo, bar}, false, false, false, SVNDepth.EMPTY, false, false, false);
+    commit("godin", foo, bar);
+
+    assertThat(provider.getEngine().blame(foo, null, null)).hasSize(1);
+    assertThat(provider.getEngine().blame(bar, null, null)).hasSize(1);
+
+    assertThat(provider.getEngine().getPool(url, null, null).getOpened()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_not_blame_added_file() throws Exception {
+    File file = new File(workingCopy, "Foo.java");
+    FileUtils.write(file, "a\n");
+    client("godin").getWCClient().doAdd(file, false, false, false, SVNDepth.EMPTY, false, false);
+
+    assertThat(provider.getEngine().blame(file, null, null)).isNull();
+
+    BlameScmResult result = (BlameScmResult) new SonarSvnInProcessBlameCommand(provider)
+      .executeBlameCommand(new SvnScmProviderRepository(url.toString()), new ScmFileSet(workingCopy), "Foo.java");
+    assertThat(result.isSuccess()).isFalse();
+    assertThat(result.getProviderMessage()).isEqualTo("The file is not committed.");
+  }
+
+  @Test
+  public void should_fail_to_blame_file_outside_of_working_copy() throws Exception {
+    File dir = temp.newFolder("other");
+    FileUtils.write(new File(dir, "Foo.java"), "a\n");
+
+    BlameScmResult result = new SonarSvnInProcessBlameCommand(provider)
+      .executeBlameCommand(new SvnScmProviderRepository(url.toString()), new ScmFileSet(dir), "Foo.java");
+
+    assertThat(result.isSuccess()).isFalse();
+    assertThat(result.getCommandOutput()).contains("not a working copy");
+  }
+
+  @Test
+  public void should_check_working_copy() throws Exception {
+    assertThat(provider.checkWorkingCopy(workingCopy)).isNull();
+    assertThat(provider.checkWorkingCopy(temp.newFolder("other"))).contains("can not be read by the in-process Subversion blame engine");
+  }
+
+  private void commit(String author, File... files) throws Exception {
+    client(author).getCommitClient().doCommit(files, false, "commit", null, null, false, false, SVNDepth.INFINITY);
+  }
+
+  private static SVNClientManager client(String author) {
+    return SVNClientManager.newInstance(SVNWCUtil.createDefaultOptions(true), SVNWCUtil.createDefaultAuthenticationManager(author, ""));
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.command.blame.BlameScmResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class SonarTfsServerScmProviderTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  SonarTfsServerScmProvider provider = new SonarTfsServerScmProvider(TfsAnnotateServerTest.FAKE_SERVER);
+
+  @Before
+  public void setUp() {
+    assumeTrue(HgCommandServerTest.isPythonAvailable());
+  }
+
+  @After
+  public void tearDown() {
+    provider.close();
+  }
+
+  @Test
+  public void should_blame_with_server() throws Exception {
+    file("Foo.java", "a\nb\n");
+
+    BlameScmResult result = new SonarTfsServerBlameCommand(provider).executeBlameCommand(null, new ScmFileSet(temp.getRoot()), "Foo.java");
+
+    assertThat(result.isSuccess()).isTrue();
+    List<BlameLine> lines = result.getLines();
+    assertThat(lines).hasSize(2);
+    assertThat(lines.get(0).getRevision()).isEqualTo("1");
+    assertThat(lines.get(1).getAuthor()).isEqualTo("godin1");
+    assertThat(lines.get(1).getDate()).isEqualTo(new SimpleDateFormat("MM/dd/yyyy").parse("07/01/2013"));
+    assertThat(provider.getServerCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_report_failed_file_and_keep_server() throws Exception {
+    BlameScmResult result = new SonarTfsServerBlameCommand(provider).executeBlameCommand(null, new ScmFileSet(temp.getRoot()), "Unknown.java");
+
+    assertThat(result.isSuccess()).isFalse();
+    assertThat(result.getCommandOutput()).contains("in a TFS workspace");
+    assertThat(provider.getServerCount()).isEqualTo(1);
+    assertThat(provider.blame(file("Foo.java", "a\n")).get(0).getRevision()).isEqualTo("1");
+  }
+
+  @Test
+  public void should_restart_crashed_server() throws Exception {
+    assertThat(provider.blame(file("Foo.java", "a\n")).get(0).getRevision()).isEqualTo("1");
+
+    List<BlameLine> lines = provider.blame(file("crash-once.java", "a\n"));
+
+    // Annotated by a new server
+    assertThat(lines.get(0).getRevision()).isEqualTo("1");
+    assertThat(provider.getServerCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_fail_when_server_crashes_again() throws Exception {
+    try {
+      provider.blame(file("crash.java", "a\n"));
+      fail();
+    } catch (IOException e) {
+      assertThat(provider.getServerCount()).isEqualTo(0);
+    }
+    assertThat(provider.blame(file("Foo.java", "a\n"))).hasSize(1);
+  }
+
+  @Test
+  public void should_fail_when_server_mode_is_not_supported() throws Exception {
+    provider = new SonarTfsServerScmProvider(TfsAnnotateServerTest.FAKE_SERVER.subList(0, 2));
+    file("Foo.java", "a\n");
+
+    try {
+      new SonarTfsServerBlameCommand(provider).executeBlameCommand(null, new ScmFileSet(temp.getRoot()), "Foo.java");
+      fail();
+    } catch (org.apache.maven.scm.ScmException e) {
+      assertThat(e.getMessage()).contains("supporting the server mode");
+    }
+  }
+
+  @Test
+  public void should_start_one_server_per_thread_and_stop_them() throws Exception {
+    final File file = file("Foo.java", "a\n");
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      assertThat(provider.blame(file).get(0).getRevision()).isEqualTo("1");
+      assertThat(executor.submit(new Callable<List<BlameLine>>() {
+        public List<BlameLine> call() throws Exception {
+          return provider.blame(file);
+        }
+      }).get().get(0).getRevision()).isEqualTo("1");
+      assertThat(provider.blame(file).get(0).getRevision()).isEqualTo("2");
+    } finally {
+      executor.shutdown();
+    }
+    assertThat(provider.getServerCount()).isEqualTo(2);
+
+    provider.close();
+
+    assertThat(provider.getServerCount()).isEqualTo(0);
+  }
+
+  private File file(String name, String content) throws IOException {
+    File file = new File(temp.getRoot(), name);
+    FileUtils.write(file, content);
+    return file;
+  }
+}
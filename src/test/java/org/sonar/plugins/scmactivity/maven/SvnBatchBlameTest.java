@@ -0,0 +1,95 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.provider.svn.repository.SvnScmProviderRepository;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class SvnBatchBlameTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void should_blame_all_files_with_one_command() {
+    File dir = new File("src");
+    Commandline cl = SvnBatchBlame.createCommandLine(new SvnScmProviderRepository("file:///repo"), dir,
+      Arrays.asList(new File(dir, "Foo.java"), new File(dir, "R&D@2.java")));
+
+    assertThat(cl.getWorkingDirectory()).isEqualTo(dir.getAbsoluteFile());
+    String[] args = cl.getArguments();
+    assertThat(Arrays.asList(args).subList(args.length - 4, args.length)).isEqualTo(Arrays.asList("blame", "--xml", "Foo.java", "R&D@2.java@"));
+  }
+
+  @Test
+  public void should_blame_files_of_working_copy() throws Exception {
+    assumeTrue(isSvnAvailable());
+    File repo = temp.newFolder("repo");
+    File wc = new File(temp.getRoot(), "wc");
+    svn(temp.getRoot(), "svnadmin", "create", repo.getAbsolutePath());
+    String url = repo.toURI().toString().replace("file:/", "file:///");
+    svn(temp.getRoot(), "svn", "checkout", url, wc.getAbsolutePath());
+    File foo = new File(wc, "Foo.java");
+    File bar = new File(wc, "Bar.java");
+    FileUtils.write(foo, "a\nb\n");
+    FileUtils.write(bar, "c\n");
+    svn(wc, "svn", "add", "Foo.java", "Bar.java");
+    svn(wc, "svn", "commit", "-m", "init", "--username", "godin");
+
+    Map<File, List<BlameLine>> result = new SvnBatchBlame().blame(new SvnScmProviderRepository(url), wc,
+      Arrays.asList(foo, bar, new File(wc, "Unknown.java")));
+
+    assertThat(result).hasSize(2);
+    assertThat(result.get(foo)).hasSize(2);
+    assertThat(result.get(bar).get(0).getAuthor()).isEqualTo("godin");
+  }
+
+  private static boolean isSvnAvailable() {
+    try {
+      return CommandLineUtils.executeCommandLine(new Commandline("svn --version --quiet"), new CommandLineUtils.StringStreamConsumer(),
+        new CommandLineUtils.StringStreamConsumer()) == 0;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  private static void svn(File dir, String executable, String... args) throws Exception {
+    Commandline cl = new Commandline();
+    cl.setExecutable(executable);
+    cl.setWorkingDirectory(dir);
+    cl.addArguments(args);
+    CommandLineUtils.StringStreamConsumer err = new CommandLineUtils.StringStreamConsumer();
+    assertThat(CommandLineUtils.executeCommandLine(cl, new CommandLineUtils.StringStreamConsumer(), err)).as(err.getOutput()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.scm.command.blame.BlameLine;
+import org.apache.maven.scm.log.DefaultLog;
+import org.apache.maven.scm.provider.svn.svnexe.command.blame.SvnBlameConsumer;
+import org.junit.Test;
+
+import javax.xml.stream.XMLStreamException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class SvnBlameXmlParserTest {
+
+  @Test
+  public void should_parse_like_consumer() throws Exception {
+    File output = new File("src/test/resources/svn/blame/svn-blame.xml");
+    SvnBlameConsumer consumer = new SvnBlameConsumer(new DefaultLog());
+    for (String line : FileUtils.readLines(output, "UTF-8")) {
+      consumer.consumeLine(line);
+    }
+    List<BlameLine> expected = consumer.getLines();
+
+    List<BlameLine> lines = parse(FileUtils.readFileToByteArray(output)).get("Foo.java");
+
+    assertThat(lines).hasSize(expected.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertThat(lines.get(i).getRevision()).isEqualTo(expected.get(i).getRevision());
+      assertThat(lines.get(i).getAuthor()).isEqualTo(expected.get(i).getAuthor());
+      assertThat(lines.get(i).getDate()).isEqualTo(expected.get(i).getDate());
+    }
+  }
+
+  @Test
+  public void should_parse_several_targets() throws Exception {
+    Map<String, List<BlameLine>> result = new LinkedHashMap<String, List<BlameLine>>();
+    try {
+      new SvnBlameXmlParser().parse(new ByteArrayInputStream(FileUtils.readFileToByteArray(new File("src/test/resources/svn/blame/svn-blame-batch.xml"))), result);
+      fail();
+    } catch (XMLStreamException e) {
+      // truncated
+    }
+
+    // Complete targets are kept
+    assertThat(Lists.newArrayList(result.keySet())).isEqualTo(Arrays.asList("Foo.java", "R&D@2.java"));
+    // Line changed in the working copy
+    assertThat(result.get("Foo.java")).hasSize(1);
+    List<BlameLine> lines = result.get("R&D@2.java");
+    assertThat(lines).hasSize(2);
+    assertThat(lines.get(0).getRevision()).isEqualTo("7");
+    assertThat(lines.get(0).getAuthor()).isEqualTo("");
+    assertThat(lines.get(1).getAuthor()).isEqualTo("déveloper");
+    assertThat(lines.get(1).getDate().getTime()).isEqualTo(1328868000000L);
+  }
+
+  @Test
+  public void should_fail_on_invalid_date() throws Exception {
+    String output = "<blame><target path=\"Foo.java\"><entry line-number=\"1\"><commit revision=\"1\"><author>godin</author>"
+      + "<date>yesterday</date></commit></entry></target></blame>";
+    try {
+      parse(output.getBytes("UTF-8"));
+      fail();
+    } catch (XMLStreamException e) {
+      assertThat(e.getMessage()).contains("Invalid date: yesterday");
+    }
+  }
+
+  @Test
+  public void should_not_resolve_external_entities() throws Exception {
+    String output = "<?xml version=\"1.0\"?><!DOCTYPE blame [<!ENTITY x SYSTEM \"file:///etc/passwd\">]>"
+      + "<blame><target path=\"Foo.java\"><entry line-number=\"1\"><commit revision=\"1\"><author>&x;</author>"
+      + "<date>2013-07-01T13:35:27.431578Z</date></commit></entry></target></blame>";
+    try {
+      Map<String, List<BlameLine>> result = parse(output.getBytes("UTF-8"));
+      assertThat(result.get("Foo.java").get(0).getAuthor()).doesNotContain("root");
+    } catch (XMLStreamException e) {
+      // Undeclared entity
+    }
+  }
+
+  private static Map<String, List<BlameLine>> parse(byte[] output) throws XMLStreamException {
+    Map<String, List<BlameLine>> result = new LinkedHashMap<String, List<BlameLine>>();
+    new SvnBlameXmlParser().parse(new ByteArrayInputStream(output), result);
+    return result;
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tmatesoft.svn.core.internal.io.fs.FSRepositoryFactory;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+import org.tmatesoft.svn.core.wc.SVNWCUtil;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class SvnSessionPoolTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  SvnSessionPool pool;
+  ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  @Before
+  public void setUp() throws Exception {
+    FSRepositoryFactory.setup();
+    pool = new SvnSessionPool(SVNRepositoryFactory.createLocalRepository(temp.newFolder("repo"), true, false),
+      SVNWCUtil.createDefaultAuthenticationManager(), 1);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    pool.close();
+  }
+
+  @Test
+  public void should_reuse_released_session() throws Exception {
+    SVNRepository session = pool.take();
+    assertThat(session.getLatestRevision()).isEqualTo(0);
+    pool.release(session, true);
+
+    assertThat(pool.take()).isSameAs(session);
+    assertThat(pool.getOpened()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_wait_for_a_session_when_all_are_in_use() throws Exception {
+    SVNRepository session = pool.take();
+    Future<SVNRepository> other = executor.submit(new Callable<SVNRepository>() {
+      public SVNRepository call() throws Exception {
+        return pool.take();
+      }
+    });
+    try {
+      other.get(200, TimeUnit.MILLISECONDS);
+      fail();
+    } catch (TimeoutException e) {
+      // waiting
+    }
+
+    pool.release(session, true);
+
+    assertThat(other.get(10, TimeUnit.SECONDS)).isSameAs(session);
+  }
+
+  @Test
+  public void should_open_new_session_after_failure() throws Exception {
+    SVNRepository session = pool.take();
+    pool.release(session, false);
+
+    SVNRepository other = pool.take();
+    assertThat(other).isNotSameAs(session);
+    assertThat(pool.getOpened()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_close_idle_sessions() throws Exception {
+    pool.release(pool.take(), true);
+
+    pool.close();
+
+    assertThat(pool.getOpened()).isEqualTo(0);
+    try {
+      pool.take();
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage()).contains("closed");
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * SonarQube SCM Activity Plugin
+ * Copyright (C) 2010 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.scmactivity.maven;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class TfsAnnotateServerTest {
+
+  static final List<String> FAKE_SERVER = ImmutableList.of("python3", new File("src/test/resources/tfs/fake-tfs-annotate.py").getAbsolutePath(), "--server");
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  TfsAnnotateServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    assumeTrue(HgCommandServerTest.isPythonAvailable());
+    server = TfsAnnotateServer.start(FAKE_SERVER);
+  }
+
+  @After
+  public void tearDown() {
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  @Test
+  public void should_annotate_several_files_with_the_same_process() throws Exception {
+    File foo = file("Foo.java", "a\nb\n");
+    File bar = file("Bar.java", "a\n");
+
+    assertThat(server.annotate(foo)).isEqualTo(Arrays.asList("1 godin0 07/01/2013", "1 godin1 07/01/2013"));
+    assertThat(server.annotate(bar)).isEqualTo(Arrays.asList("2 godin0 07/01/2013"));
+  }
+
+  @Test
+  public void should_annotate_empty_file() throws Exception {
+    assertThat(server.annotate(file("Empty.java", ""))).isEmpty();
+  }
+
+  @Test
+  public void should_keep_server_after_failed_file() throws Exception {
+    try {
+      server.annotate(new File(temp.getRoot(), "Unknown.java"));
+      fail();
+    } catch (TfsAnnotateServer.TfsAnnotateException e) {
+      assertThat(e.getMessage()).startsWith("Unable to find ").endsWith("Unknown.java in a TFS workspace");
+    }
+    assertThat(server.annotate(file("Foo.java", "a\n"))).hasSize(1);
+  }
+
+  @Test
+  public void should_not_send_path_with_line_break() throws Exception {
+    try {
+      server.annotate(new File(temp.getRoot(), "Foo\n.java"));
+      fail();
+    } catch (TfsAnnotateServer.TfsAnnotateException e) {
+      assertThat(e.getMessage()).contains("line break");
+    }
+    assertThat(server.annotate(file("Foo.java", "a\n"))).hasSize(1);
+  }
+
+  @Test
+  public void should_fail_on_invalid_answer() throws Exception {
+    try {
+      server.annotate(file("garbage.java", "a\n"));
+      fail();
+    } catch (IOException e) {
+      assertThat(e instanceof TfsAnnotateServer.TfsAnnotateException).isFalse();
+      assertThat(e.getMessage()).contains("Unhandled exception");
+    }
+  }
+
+  @Test
+  public void should_fail_when_server_crashes() throws Exception {
+    try {
+      server.annotate(file("crash.java", "a\n"));
+      fail();
+    } catch (IOException e) {
+      assertThat(e instanceof TfsAnnotateServer.TfsAnnotateException).isFalse();
+    }
+  }
+
+  @Test
+  public void should_not_start_executable_without_server_mode() throws Exception {
+    try {
+      TfsAnnotateServer.start(FAKE_SERVER.subList(0, 2));
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("does not support the server mode");
+    }
+  }
+
+  private File file(String name, String content) throws IOException {
+    File file = new File(temp.getRoot(), name);
+    FileUtils.write(file, content);
+    return file;
+  }
+}
@@ -0,0 +1,53 @@
+#!/usr/bin/env python3
+# Fake Mercurial command server for the tests of HgCommandServer: hg serve --cmdserver pipe
+# "hg annotate -T <template> -- <file>" returns one line per line of the file, as if committed by godin.
+# A file whose name contains "crash" kills the server, "crash-once" only if <file>.crashed does not exist yet.
+import os
+import struct
+import sys
+
+out = sys.stdout.buffer
+inp = sys.stdin.buffer
+
+
+def write(channel, data):
+    out.write(channel + struct.pack('>I', len(data)) + data)
+    out.flush()
+
+
+def result(code):
+    out.write(b'r' + struct.pack('>I', 4) + struct.pack('>i', code))
+    out.flush()
+
+
+write(b'o', ('capabilities: getencoding runcommand\nencoding: UTF-8\npid: %d' % os.getpid()).encode('utf-8'))
+while True:
+    command = inp.readline()
+    if not command:
+        sys.exit(0)
+    length = struct.unpack('>I', inp.read(4))[0]
+    args = inp.read(length).decode('utf-8').split('\0')
+    if command.strip() != b'runcommand':
+        sys.exit(1)
+    if args[0] == 'debugpid':
+        write(b'o', str(os.getpid()).encode('utf-8'))
+        result(0)
+        continue
+    path = args[-1]
+    name = os.path.basename(path)
+    if 'crash-once' in name:
+        if not os.path.exists(path + '.crashed'):
+            open(path + '.crashed', 'w').close()
+            os._exit(1)
+    elif 'crash' in name:
+        os._exit(1)
+    if not os.path.exists(path):
+        write(b'e', ('abort: %s: no such file in rev 1234567890ab\n' % name).encode('utf-8'))
+        result(255)
+        continue
+    write(b'd', b'debug message\n')
+    with open(path, 'rb') as f:
+        count = len(f.read().splitlines())
+    for i in range(count):
+        write(b'o', ('1234567890ab 1373000000 -7200 godin%d\n' % (i % 2)).encode('utf-8'))
+    result(0)
@@ -0,0 +1,59 @@
+#!/usr/bin/env python3
+# Fake p4 client for the tests of the batch Perforce blame engine.
+#
+# Each line of an annotated file is the number of its changelist. Changelist 666 can not be described.
+# Each invocation is logged to p4.log in the working directory: command, clientspec and number of arguments.
+import os
+import sys
+
+
+def unescape(name):
+    return name.replace('%40', '@').replace('%23', '#').replace('%2A', '*').replace('%25', '%')
+
+
+args = sys.argv[1:]
+options = {}
+tagged = False
+while args and args[0].startswith('-'):
+    option = args.pop(0)
+    if option == '-ztag':
+        tagged = True
+    else:
+        options[option] = args.pop(0)
+command = args.pop(0)
+with open(options['-x']) as f:
+    targets = [line.rstrip('\n') for line in f if line.strip()]
+with open(os.path.join(os.getcwd(), 'p4.log'), 'a') as log:
+    log.write('%s %s %d\n' % (command, options.get('-c'), len(targets)))
+
+exit_code = 0
+if command == 'annotate' and args == ['-c']:
+    for target in targets:
+        name = unescape(target)
+        if not os.path.exists(name):
+            sys.stderr.write('%s - no such file(s).\n' % name)
+            exit_code = 1
+            continue
+        with open(name) as f:
+            lines = f.read().splitlines()
+        print('//depot/project/%s#3 - edit change %s (text)' % (target, lines[-1] if lines else '1'))
+        for line in lines:
+            print('%s: %s' % (line, line))
+elif command == 'describe' and tagged and args == ['-s']:
+    for change in targets:
+        if change == '666':
+            sys.stderr.write('%s - no such changelist.\n' % change)
+            exit_code = 1
+            continue
+        print('... change %s' % change)
+        print('... user user%s' % change)
+        print('... client ws')
+        print('... time %d' % (1370000000 + int(change)))
+        print('... desc First line')
+        print('... user of the description')
+        print('... status submitted')
+        print('')
+else:
+    sys.stderr.write('Unknown command %s %s\n' % (command, args))
+    exit_code = 1
+sys.exit(exit_code)
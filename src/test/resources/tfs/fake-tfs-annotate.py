@@ -0,0 +1,37 @@
+#!/usr/bin/env python3
+# Fake SonarTfsAnnotate server for the tests of the server TFS blame engine.
+#
+# The changeset of each line is the number of files annotated by the process, so that the reuse of a server is visible.
+# A file whose name contains "crash" stops the server, only once for "crash-once".
+# A file whose name contains "garbage" gets an invalid answer.
+import os
+import sys
+
+if sys.argv[1:] != ['--server']:
+    sys.stderr.write('Usage: SonarTfsAnnotate <file>\n')
+    sys.exit(1)
+
+out = sys.stdout
+out.write('SonarTfsAnnotate server 1\n')
+out.flush()
+count = 0
+for request in sys.stdin:
+    path = request.rstrip('\n')
+    name = os.path.basename(path)
+    if 'crash' in name:
+        marker = path + '.crashed'
+        if 'crash-once' not in name or not os.path.exists(marker):
+            open(marker, 'w').close()
+            os._exit(1)
+    if 'garbage' in name:
+        out.write('Unhandled exception\n')
+    elif not os.path.exists(path):
+        out.write('ERROR Unable to find %s in a TFS workspace\n' % path)
+    else:
+        count += 1
+        with open(path) as f:
+            lines = f.read().splitlines()
+        out.write('ANNOTATE %d\n' % len(lines))
+        for i in range(len(lines)):
+            out.write('%d godin%d 07/01/2013\n' % (count, i % 2))
+    out.flush()